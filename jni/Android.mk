@@ -1,19 +1,15 @@
 LOCAL_PATH:= $(call my-dir)
 
-include $(CLEAR_VARS)
-
-LOCAL_C_INCLUDES := \
+mosaic_c_includes := \
         $(LOCAL_PATH)/feature_stab/db_vlvm \
         $(LOCAL_PATH)/feature_stab/src \
         $(LOCAL_PATH)/feature_stab/src/dbreg \
         $(LOCAL_PATH)/feature_mos/src \
         $(LOCAL_PATH)/feature_mos/src/mosaic
 
-LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
-
-LOCAL_SRC_FILES := \
+# The stitcher itself, without the GL preview renderer
+mosaic_src_files := \
         feature_mos_jni.cpp \
-        mosaic_renderer_jni.cpp \
         feature_mos/src/mosaic/trsMatrix.cpp \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
@@ -21,11 +17,6 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
-        feature_mos/src/mosaic_renderer/Renderer.cpp \
-        feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
-        feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
-        feature_mos/src/mosaic_renderer/YVURenderer.cpp \
-        feature_mos/src/mosaic_renderer/FrameBuffer.cpp \
         feature_stab/db_vlvm/db_feature_detection.cpp \
         feature_stab/db_vlvm/db_feature_matching.cpp \
         feature_stab/db_vlvm/db_framestitching.cpp \
@@ -40,6 +31,21 @@ LOCAL_SRC_FILES := \
         feature_stab/src/dbreg/dbstabsmooth.cpp \
         feature_stab/src/dbreg/vp_motionmodel.c
 
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := $(mosaic_c_includes)
+
+LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
+
+LOCAL_SRC_FILES := \
+        $(mosaic_src_files) \
+        mosaic_renderer_jni.cpp \
+        feature_mos/src/mosaic_renderer/Renderer.cpp \
+        feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
+        feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
+        feature_mos/src/mosaic_renderer/YVURenderer.cpp \
+        feature_mos/src/mosaic_renderer/FrameBuffer.cpp
+
 LOCAL_SDK_VERSION := 9
 
 LOCAL_LDFLAGS := -llog -lGLESv2
@@ -49,6 +55,25 @@ LOCAL_MODULE_TAGS := optional
 LOCAL_MODULE    := libjni_snapcammosaic
 include $(BUILD_SHARED_LIBRARY)
 
+# Host build of the stitcher for MosaicBenchmark; only the CPU entry points
+# of Mosaic work in it
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := $(mosaic_c_includes) $(JNI_H_INCLUDE)
+
+LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
+
+LOCAL_SRC_FILES := \
+        $(mosaic_src_files) \
+        mosaic_host_jni.cpp
+
+LOCAL_LDLIBS := -lpthread
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_MODULE    := libjni_snapcammosaic
+include $(BUILD_HOST_SHARED_LIBRARY)
+
 # TinyPlanet
 include $(CLEAR_VARS)
 
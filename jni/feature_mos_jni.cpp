@@ -22,6 +22,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <sys/time.h>
 #include <db_utilities_camera.h>
 
 #include "mosaic/AlignFeatures.h"
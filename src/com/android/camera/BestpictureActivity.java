@@ -63,6 +63,7 @@ import com.android.camera.ui.DotsViewItem;
 import com.android.camera.ui.RotateTextToast;
 import com.android.camera.ui.RotateImageView;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CompletionRegistry;
 
 import org.codeaurora.snapcam.R;
 
@@ -107,12 +108,13 @@ public class BestpictureActivity extends FragmentActivity {
     public static int BESTPICTURE_ACTIVITY_CODE = 11;
 
     static class ImageItems implements DotsViewItem {
-        private Bitmap[] mBitmap;
+        // Decoded by the loading thread, keyed by image number.
+        private CompletionRegistry<Integer, Bitmap> mBitmaps =
+                new CompletionRegistry<Integer, Bitmap>();
         private boolean[] mChosen;
         private BestpictureActivity mActivity;
 
         public ImageItems(BestpictureActivity activity) {
-            mBitmap = new Bitmap[NUM_IMAGES];
             mChosen = new boolean[NUM_IMAGES];
             for (int i = 0; i < mChosen.length; i++) {
                 if (i == 0) {
@@ -125,11 +127,16 @@ public class BestpictureActivity extends FragmentActivity {
         }
 
         public Bitmap getBitmap(int index) {
-            return mBitmap[index];
+            return mBitmaps.get(index);
         }
 
         public void setBitmap(int index, Bitmap bitmap) {
-            mBitmap[index] = bitmap;
+            mBitmaps.complete(index, bitmap);
+        }
+
+        /* Runs callback on the loading thread once the bitmap is decoded, or right away */
+        public void whenBitmapReady(int index, CompletionRegistry.Callback<Bitmap> callback) {
+            mBitmaps.whenComplete(index, callback);
         }
 
         @Override
@@ -595,12 +602,7 @@ public class BestpictureActivity extends FragmentActivity {
 
         @Override
         public android.app.Fragment getItem(int imageNum) {
-           while(mImageItems.getBitmap(imageNum) == null) {
-                try {
-                    Thread.sleep(5);
-                } catch (Exception e) {
-                }
-            }
+            // The fragment shows its bitmap once it is decoded.
             return BestpictureFragment.create(imageNum, mImageItems);
         }
 
@@ -30,11 +30,15 @@
 package com.android.camera;
 
 import android.app.Fragment;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+
+import com.android.camera.util.CompletionRegistry;
+
 import org.codeaurora.snapcam.R;
 
 public class BestpictureFragment extends Fragment {
@@ -72,7 +76,19 @@ public class BestpictureFragment extends Fragment {
         mPictureSelectButton = (ImageView) rootView.findViewById(R.id.picture_select);
         if (mImageItems != null) {
             initSelectButton();
-            mImageView.setImageBitmap(mImageItems.getBitmap(mImageNum));
+            final ImageView imageView = mImageView;
+            mImageItems.whenBitmapReady(mImageNum,
+                    new CompletionRegistry.Callback<Bitmap>() {
+                @Override
+                public void onComplete(final Bitmap bitmap) {
+                    imageView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            imageView.setImageBitmap(bitmap);
+                        }
+                    });
+                }
+            });
             rootView.findViewById(R.id.picture_select).setOnClickListener(
                     new View.OnClickListener() {
                 @Override
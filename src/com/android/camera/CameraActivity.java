@@ -101,6 +101,7 @@ import com.android.camera.data.LocalData;
 import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
+import com.android.camera.data.MediaMetadataCache;
 import com.android.camera.data.SimpleViewData;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
@@ -1588,7 +1589,8 @@ public class CameraActivity extends Activity
                 FilmStripView.ImageData.SIZE_FULL);
         // Put a CameraPreviewData at the first position.
         mWrappedDataAdapter = new FixedFirstDataAdapter(
-                new CameraDataAdapter(R.color.photo_placeholder),
+                new CameraDataAdapter(R.color.photo_placeholder,
+                        new MediaMetadataCache(new File(getCacheDir(), "media_metadata"))),
                 mCameraPreviewData);
 
         mFilmStripView.setViewGap(
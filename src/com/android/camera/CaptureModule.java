@@ -341,6 +341,9 @@ public class CaptureModule implements CameraModule, PhotoController,
     private PostProcessor mPostProcessor;
     private FrameProcessor mFrameProcessor;
     private CaptureResult mPreviewCaptureResult;
+    // Guards mPreviewCaptureResult for threads waiting on a new preview result
+    private final Object mPreviewResultLock = new Object();
+    private long mPreviewResultCount;
     private Face[] mPreviewFaces = null;
     private Face[] mStickyFaces = null;
     private ExtendedFace[] mExFaces = null;
@@ -538,6 +541,34 @@ public class CaptureModule implements CameraModule, PhotoController,
         return mPreviewCaptureResult;
     }
 
+    /**
+     * Blocks until a preview result that arrives after this call reports the
+     * lens within tolerance of the given focus distance.
+     *
+     * @return false if the lens did not get there before the timeout.
+     */
+    public boolean waitForFocusDistance(float distance, float tolerance, long timeoutMs)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        synchronized (mPreviewResultLock) {
+            long seen = mPreviewResultCount;
+            while (true) {
+                if (mPreviewResultCount != seen) {
+                    seen = mPreviewResultCount;
+                    Float current = mPreviewCaptureResult.get(CaptureResult.LENS_FOCUS_DISTANCE);
+                    if (current != null && Math.abs(current - distance) < tolerance) {
+                        return true;
+                    }
+                }
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mPreviewResultLock.wait(remaining);
+            }
+        }
+    }
+
     public Rect getCameraRegion() {
         return mBayerCameraRegion;
     }
@@ -561,7 +592,11 @@ public class CaptureModule implements CameraModule, PhotoController,
                 mFirstPreviewLoaded = true;
             }
             if (id == getMainCameraId()) {
-                mPreviewCaptureResult = result;
+                synchronized (mPreviewResultLock) {
+                    mPreviewCaptureResult = result;
+                    mPreviewResultCount++;
+                    mPreviewResultLock.notifyAll();
+                }
             }
             updateCaptureStateMachine(id, result);
         }
@@ -1777,8 +1812,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                                         mActivity.getMediaSaveService().addRawImage(bytes, title,
                                                 "raw");
                                     } else {
-                                        ExifInterface exif = Exif.getExif(bytes);
-                                        int orientation = Exif.getOrientation(exif);
+                                        int orientation = Exif.getOrientation(bytes);
 
                                         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL) {
                                             mJpegImageData = bytes;
@@ -1843,8 +1877,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                         byte[] bytes = new byte[buffer.remaining()];
                         buffer.get(bytes);
 
-                        ExifInterface exif = Exif.getExif(bytes);
-                        int orientation = Exif.getOrientation(exif);
+                        int orientation = Exif.getOrientation(bytes);
 
                         mActivity.getMediaSaveService().addImage(bytes, title, date,
                                 null, image.getWidth(), image.getHeight(), orientation, null,
@@ -2598,8 +2631,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -4647,8 +4679,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             byte[] bayerBytes = getJpegData(bayerImage);
             byte[] monoBytes = getJpegData(monoImage);
 
-            ExifInterface exif = Exif.getExif(bayerBytes);
-            int orientation = Exif.getOrientation(exif);
+            int orientation = Exif.getOrientation(bayerBytes);
 
             mActivity.getMediaSaveService().addMpoImage(
                     null, bayerBytes, monoBytes, width, height, title,
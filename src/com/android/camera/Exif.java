@@ -45,10 +45,12 @@ public class Exif {
         }
     }
 
+    // Same as getOrientation(getExif(jpegData)), but only scans the header
+    // for the orientation tag instead of parsing every tag and the thumbnail.
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        return ExifInterface.getRotationForOrientationValue(
+                ExifInterface.quickReadOrientation(jpegData));
     }
 }
@@ -16,23 +16,25 @@
 
 package com.android.camera;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.provider.MediaStore.Video;
 import android.util.Log;
@@ -41,6 +43,11 @@ import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.ExtendedXmpPacket;
+import com.android.camera.util.InsertBatcher;
+import com.android.camera.util.PersistUtil;
+import com.android.camera.util.SaveEngine;
+import com.android.camera.util.XmpSplice;
 import com.android.camera.util.XmpUtil;
 
 import org.codeaurora.snapcam.filter.GDepth;
@@ -56,16 +63,23 @@ import com.adobe.xmp.XMPMeta;
 public class MediaSaveService extends Service {
     public static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
-    // The memory limit for unsaved image is 50MB.
-    private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
-                                   android.os.SystemProperties.getInt("persist.camera.perf.memlimit", 60);
-    private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
+    // The memory limit for unsaved image, 60MB unless overridden.
+    private static final long SAVE_TASK_MEMORY_LIMIT =
+            PersistUtil.getMemoryLimit() * 1024L * 1024L;
+    // Once full, the queue reopens after draining to this many bytes.
+    private static final long SAVE_TASK_MEMORY_LOW =
+            SAVE_TASK_MEMORY_LIMIT * PersistUtil.getSaveLowWatermark() / 100;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
+    // Longshot inserts are coalesced into batches of this size at most
+    private static final int INSERT_BATCH = PersistUtil.getSaveInsertBatch();
+    // Longest wait in ms for an insert batch to fill
+    private static final int INSERT_WINDOW = PersistUtil.getSaveInsertWindow();
+    // Longest wait in ms on destroy for queued saves, well inside the service timeout
+    private static final long SHUTDOWN_WAIT_MS = 5000;
 
     private final IBinder mBinder = new LocalBinder();
-    private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveEngine mEngine;
+    private InsertBatcher<ContentValues, Uri> mInserts;
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -93,15 +107,67 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        // Queued saves still finish and insert before the insert thread stops
+        mEngine.shutdown();
+        try {
+            if (!mEngine.awaitTermination(SHUTDOWN_WAIT_MS)) {
+                Log.w(TAG, "Saves still running on destroy, inserting them as they finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mInserts.shutdown();
+        Storage.flushWrites();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        final Handler handler = new Handler();
+        Executor mainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                handler.post(r);
+            }
+        };
+        mEngine = new SaveEngine(PersistUtil.getSaveThreads(),
+                SAVE_TASK_MEMORY_LIMIT, SAVE_TASK_MEMORY_LOW, mainExecutor);
+        final ContentResolver resolver = getContentResolver();
+        mInserts = new InsertBatcher<ContentValues, Uri>(
+                new InsertBatcher.Store<ContentValues, Uri>() {
+            @Override
+            public List<Uri> insert(List<ContentValues> values) {
+                return Storage.insertImages(resolver, values);
+            }
+        }, INSERT_BATCH, INSERT_WINDOW, mainExecutor);
+    }
+
+    // Adds the saved image to the MediaStore with the next batch, the
+    // listener is called in capture order. Null values just report a failed save.
+    private void insertImage(long ticket, ContentValues values,
+            final OnMediaSavedListener l) {
+        mInserts.submit(ticket, values, l == null ? null : new InsertBatcher.Callback<Uri>() {
+            @Override
+            public void onInserted(Uri uri) {
+                l.onMediaSaved(uri);
+            }
+        });
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mEngine.isFull();
+    }
+
+    /* Observers run on the saving threads, see SaveEngine.addQueueObserver() */
+    public void addQueueObserver(SaveEngine.QueueListener observer) {
+        mEngine.addQueueObserver(observer);
+    }
+
+    public void removeQueueObserver(SaveEngine.QueueListener observer) {
+        mEngine.removeQueueObserver(observer);
+    }
+
+    public SaveEngine.Metrics getMetrics() {
+        return mEngine.getMetrics();
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -116,17 +182,12 @@ public class MediaSaveService extends Service {
         }
 
         MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
-                width, height, title, date, loc, orientation, l,
-                resolver, pictureFormat);
+                width, height, title, date, loc, orientation, l, pictureFormat);
 
         long size = (csImage == null ? 0
                 : csImage.length)
                 + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        executeSave(t, SaveEngine.LANE_CAPTURE, size);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -138,13 +199,9 @@ public class MediaSaveService extends Service {
         }
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+                width, height, orientation, exif, l, pictureFormat);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        executeSave(t, SaveEngine.LANE_CAPTURE, data.length);
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
@@ -154,11 +211,8 @@ public class MediaSaveService extends Service {
         }
         RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        // RAW dumps yield to queued user visible captures
+        t.executeOnExecutor(mEngine.getExecutor(SaveEngine.LANE_BACKGROUND, data.length));
     }
 
     public void addClearsightImage(byte[] clearsight, GImage bayer, GDepth.DepthMap depthMap,
@@ -171,13 +225,9 @@ public class MediaSaveService extends Service {
         }
         ClearsightImageSaveTask t = new ClearsightImageSaveTask(clearsight, bayer, depthMap,
                 title, date,  (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+                width, height, orientation, exif, l, pictureFormat);
 
-        mMemoryUse += clearsight.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        executeSave(t, SaveEngine.LANE_CAPTURE, clearsight.length);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -202,21 +252,55 @@ public class MediaSaveService extends Service {
         new VideoSaveTask(path, duration, values, l, resolver).execute();
     }
 
-    public void setListener(Listener l) {
-        mListener = l;
-        if (l == null) return;
+    public void setListener(final Listener l) {
+        if (l == null) {
+            mEngine.setQueueListener(null);
+            return;
+        }
         l.onQueueStatus(isQueueFull());
+        mEngine.setQueueListener(new SaveEngine.QueueListener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                l.onQueueStatus(full);
+            }
+        });
     }
 
-    private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+    // Reserves the insert ticket of the save as it is queued. A save that is
+    // rejected reports a failure under its ticket right away, so it does not
+    // hold up the callbacks of later captures.
+    private void executeSave(InsertingSaveTask task, int lane, long size) {
+        task.ticket = mInserts.reserve();
+        try {
+            task.executeOnExecutor(mEngine.getExecutor(lane, size));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Save rejected", e);
+            insertImage(task.ticket, null, task.listener);
+        }
     }
 
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+    /* A save that ends with a MediaStore insert under its ticket */
+    private abstract class InsertingSaveTask extends AsyncTask<Void, Void, Void> {
+        long ticket;
+        OnMediaSavedListener listener;
+
+        @Override
+        protected Void doInBackground(Void... v) {
+            ContentValues values = null;
+            try {
+                values = save();
+            } finally {
+                // Later captures report after this one, even if it failed
+                insertImage(ticket, values, listener);
+            }
+            return null;
+        }
+
+        /* Writes the file, returns its MediaStore values or null on failure */
+        protected abstract ContentValues save();
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class MpoSaveTask extends InsertingSaveTask {
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
@@ -225,14 +309,12 @@ public class MediaSaveService extends Service {
         private Location loc;
         private int width, height;
         private int orientation;
-        private ContentResolver resolver;
-        private OnMediaSavedListener listener;
         private String pictureFormat;
 
         public MpoSaveTask(byte[] csImage, byte[] bayerImg,
                 byte[] monoImg, int width, int height, String title, long date,
                 Location loc, int orientation, OnMediaSavedListener listener,
-                ContentResolver resolver, String pictureFormat) {
+                String pictureFormat) {
             this.csImage = csImage;
             this.bayerImage = bayerImg;
             this.monoImage = monoImg;
@@ -242,13 +324,12 @@ public class MediaSaveService extends Service {
             this.width = width;
             this.height = height;
             this.orientation = orientation;
-            this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected ContentValues save() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -271,29 +352,16 @@ public class MediaSaveService extends Service {
 
             // combine to single mpo
             String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
-            // Try to get the real image size after add exif.
-            File f = new File(path);
-            if (f.exists() && f.isFile()) {
-                size = (int) f.length();
+            // The writer lays out the whole file up front, written in one go.
+            ByteBuffer[] buffers = MpoInterface.getMpoBuffers(mpo);
+            int size = buffers == null ? -1 : (int) Storage.writeFile(path, buffers);
+            if (size < 0) {
+                // Nothing was written, keep it out of the MediaStore.
+                return null;
             }
-            return Storage.addImage(resolver, title, date, loc, orientation,
+            return Storage.getContentValuesForData(title, date, loc, orientation,
                     size, path, width, height, pictureFormat);
         }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null)
-                listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
-        }
     }
 
     private class RawImageSaveTask extends AsyncTask<Void, Void, Long> {
@@ -317,16 +385,9 @@ public class MediaSaveService extends Service {
             long length = Storage.addRawImage(title, data, pictureFormat);
             return new Long(length);
         }
-
-        @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
-        }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveTask extends InsertingSaveTask {
         private byte[] data;
         private String title;
         private long date;
@@ -334,13 +395,11 @@ public class MediaSaveService extends Service {
         private int width, height;
         private int orientation;
         private ExifInterface exif;
-        private ContentResolver resolver;
-        private OnMediaSavedListener listener;
         private String pictureFormat;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
-                             ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
+                             OnMediaSavedListener listener, String pictureFormat) {
             this.data = data;
             this.title = title;
             this.date = date;
@@ -349,7 +408,6 @@ public class MediaSaveService extends Service {
             this.height = height;
             this.orientation = orientation;
             this.exif = exif;
-            this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
         }
@@ -360,7 +418,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected ContentValues save() {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -369,20 +427,22 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
-        }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+            if (exif != null && (pictureFormat == null || pictureFormat.equalsIgnoreCase("jpeg"))) {
+                // Splice the exif header in while writing instead of building a copy first.
+                try {
+                    return Storage.writeImage(title, date, loc, orientation,
+                            exif.spliceExif(data), width, height);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write exif, saving the image as is", e);
+                    exif = null;
+                }
+            }
+            return Storage.writeImage(
+                    title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
     }
 
-    private class ClearsightImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ClearsightImageSaveTask extends InsertingSaveTask {
         private byte[] clearsight;
         private byte[] depth;
         private GImage bayer;
@@ -395,14 +455,12 @@ public class MediaSaveService extends Service {
         private int width, height;
         private int orientation;
         private ExifInterface exif;
-        private ContentResolver resolver;
-        private OnMediaSavedListener listener;
         private String pictureFormat;
 
         public ClearsightImageSaveTask(byte[] clearsight, GImage bayer,GDepth.DepthMap depthMap,
                                        String title, long date, Location loc,
                                        int width, int height, int orientation,
-                                       ExifInterface exif, ContentResolver resolver,
+                                       ExifInterface exif,
                                        OnMediaSavedListener listener, String pictureFormat) {
             this.clearsight = clearsight;
             this.bayer = bayer;
@@ -414,7 +472,6 @@ public class MediaSaveService extends Service {
             this.height = height;
             this.orientation = orientation;
             this.exif = exif;
-            this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
 
@@ -427,9 +484,8 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected ContentValues save() {
             if ( depthMap != null ) {
-                depthMap.buffer = converToJpegByte(depthMap.rawDepth, depthMap.width, depthMap.height);
                 gDepth = GDepth.createGDepth(depthMap);
             }
             data = embedGDepthAndBayerInClearSight(clearsight);
@@ -446,33 +502,8 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
-        }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
-        }
-
-        private byte[] converToJpegByte(byte[] depthBuf, int width, int height) {
-            int[] colors = new int[depthBuf.length];
-            for(int i=0; i < colors.length; ++i) {
-                colors[i] =  (256+depthBuf[i])%256;
-            }
-            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            for( int y=0; y < height; ++y ) {
-                for( int x=0; x < width; ++x) {
-                    int c = colors[y*width+x];
-                    bitmap.setPixel(x, y, Color.rgb(c, c, c));
-                }
-            }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-            return baos.toByteArray();
+            return Storage.writeImage(
+                    title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
 
         private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
@@ -507,24 +538,22 @@ public class MediaSaveService extends Service {
                 return null;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try{
-                if ( gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
-
-                if ( bayer != null ) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
-                }
-            }catch(XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
+            // The base64 data goes straight from the images into the packet.
+            ExtendedXmpPacket extendedXmp = new ExtendedXmpPacket();
+            if ( gDepth != null) {
+                extendedXmp.addBase64Property(GDepth.NAMESPACE_URL, GDepth.PREFIX,
+                        GDepth.PROPERTY_DATA, gDepth.getDepthImage());
+            }
+            if ( bayer != null ) {
+                extendedXmp.addBase64Property(GImage.NAMESPACE_URL, GImage.PREFIX,
+                        GImage.PROPERTY_DATA, bayer.getImageData());
             }
 
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if ( XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta) ){
-                return baos.toByteArray();
+            // Only the segment headers are parsed, the image goes in one copy.
+            XmpSplice splice = XmpUtil.spliceXMPMeta(clearSightImageBytes, xmpMeta,
+                    extendedXmp.toByteArray());
+            if ( splice != null ){
+                return splice.toByteArray();
             }else{
                 Log.e(TAG, "embedGDepthInClearSight failure ");
                 return null;
@@ -194,7 +194,27 @@ public class MosaicFrameProcessor {
     }
 
     public void calculateTranslationRate() {
-        float[] frameData = mMosaicer.setSourceImageFromGPU();
+        updateTranslationRate(mMosaicer.setSourceImageFromGPU());
+    }
+
+    // Same as calculateTranslationRate() for an NV21 frame in memory rather
+    // than the one the renderer copied from the GPU, as fed by MosaicBenchmark.
+    // Returns the alignment result, one of Mosaic.MOSAIC_RET_*.
+    int processFrame(byte[] frame) {
+        float[] frameData = mMosaicer.setSourceImage(frame);
+        updateTranslationRate(frameData);
+        return (int) frameData[MOSAIC_RET_CODE_INDEX];
+    }
+
+    float getPanningRateX() {
+        return mPanningRateX;
+    }
+
+    float getPanningRateY() {
+        return mPanningRateY;
+    }
+
+    private void updateTranslationRate(float[] frameData) {
         int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
         mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
@@ -30,77 +30,56 @@ package com.android.camera;
 
 import android.app.Activity;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
+import android.media.Image;
+import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicYuvToRGB;
-import android.renderscript.Type;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.android.camera.imageprocessor.YuvFrame;
 import com.android.camera.ui.PanoCaptureProcessView;
 
 import java.io.ByteArrayOutputStream;
 
 public class PanoCaptureFrameProcessor {
 
-    private Allocation mInputAllocation;
-    private Allocation mARGBOutputAllocation;
+    private ImageReader mInputImageReader;
 
-    private Surface mSurface;
     private HandlerThread mProcessingThread;
     private Handler mProcessingHandler;
 
     public ProcessingTask mTask;
     private Size mSize;
-    private RenderScript mRs;
     private PanoCaptureUI mUI;
     private Activity mActivity;
     private PanoCaptureModule mController;
-    ScriptIntrinsicYuvToRGB mRsYuvToRGB;
-    private Bitmap mBitmap;
     private boolean mIsPanoActive = false;
     private Object mPanoSwitchLock = new Object();
-    private Object mAllocationLock = new Object();
-    private boolean mIsAllocationEverUsed;
+    private Object mImageReaderLock = new Object();
 
     public PanoCaptureFrameProcessor(Size dimensions, Activity activity, PanoCaptureUI ui, PanoCaptureModule controller) {
         mUI = ui;
         mSize = dimensions;
         mActivity = activity;
         mController = controller;
-        synchronized (mAllocationLock) {
-            mRs = RenderScript.create(mActivity);
-            mRsYuvToRGB = ScriptIntrinsicYuvToRGB.create(mRs, Element.RGBA_8888(mRs));
-
-            Type.Builder yuvTypeBuilder = new Type.Builder(mRs, Element.YUV(mRs));
-            yuvTypeBuilder.setX(dimensions.getWidth());
-            yuvTypeBuilder.setY(dimensions.getHeight());
-            yuvTypeBuilder.setYuvFormat(ImageFormat.YUV_420_888);
-            mInputAllocation = Allocation.createTyped(mRs, yuvTypeBuilder.create(),
-                    Allocation.USAGE_IO_INPUT | Allocation.USAGE_SCRIPT);
-
-            Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
-            rgbTypeBuilder.setX(dimensions.getWidth());
-            rgbTypeBuilder.setY(dimensions.getHeight());
-            mARGBOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
-
+        synchronized (mImageReaderLock) {
             if (mProcessingThread == null) {
                 mProcessingThread = new HandlerThread("PanoCapture_FrameProcessor");
                 mProcessingThread.start();
                 mProcessingHandler = new Handler(mProcessingThread.getLooper());
             }
+            // The view takes the frames as NV21, so they skip RGB until it
+            // draws its thumbnails
+            mInputImageReader = ImageReader.newInstance(dimensions.getWidth(),
+                    dimensions.getHeight(), ImageFormat.YUV_420_888, 2);
             mTask = new ProcessingTask();
-            mInputAllocation.setOnBufferAvailableListener(mTask);
-            mIsAllocationEverUsed = false;
+            mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
         }
     }
 
@@ -108,16 +87,8 @@ public class PanoCaptureFrameProcessor {
         if(mIsPanoActive) {
             changePanoStatus(false, true);
         }
-        synchronized (mAllocationLock) {
-            mInputAllocation.setOnBufferAvailableListener(null);
-            if(mIsAllocationEverUsed) {
-                mRs.destroy();
-                mInputAllocation.destroy();
-                mARGBOutputAllocation.destroy();
-            }
-            mRs = null;
-            mInputAllocation = null;
-            mARGBOutputAllocation = null;
+        synchronized (mImageReaderLock) {
+            mInputImageReader.setOnImageAvailableListener(null, null);
         }
         mProcessingThread.quitSafely();
         try {
@@ -126,13 +97,17 @@ public class PanoCaptureFrameProcessor {
             mProcessingHandler = null;
         } catch (InterruptedException e) {
         }
+        synchronized (mImageReaderLock) {
+            mInputImageReader.close();
+            mInputImageReader = null;
+        }
     }
 
     public Surface getInputSurface() {
-        synchronized (mAllocationLock) {
-            if (mInputAllocation == null)
+        synchronized (mImageReaderLock) {
+            if (mInputImageReader == null)
                 return null;
-            return mInputAllocation.getSurface();
+            return mInputImageReader.getSurface();
         }
     }
 
@@ -158,51 +133,30 @@ public class PanoCaptureFrameProcessor {
         return mIsPanoActive;
     }
 
-    class ProcessingTask implements Runnable, Allocation.OnBufferAvailableListener {
-        private int mPendingFrames = 0;
-        private int mFrameCounter = 0;
-
-        public ProcessingTask() {
-            mBitmap = Bitmap.createBitmap(mSize.getWidth(), mSize.getHeight(), Bitmap.Config.ARGB_8888);
-        }
+    class ProcessingTask implements ImageReader.OnImageAvailableListener {
 
         @Override
-        public void onBufferAvailable(Allocation a) {
-            if(mProcessingHandler == null)
-                return;
-            synchronized(this) {
-                mPendingFrames++;
-                mProcessingHandler.post(this);
+        public void onImageAvailable(ImageReader reader) {
+            Image image;
+            synchronized (mImageReaderLock) {
+                if (mInputImageReader == null)
+                    return;
+                image = reader.acquireLatestImage();
             }
-        }
-
-        @Override
-        public void run() {
-            int pendingFrames;
-            synchronized(this) {
-                pendingFrames = mPendingFrames;
-                mPendingFrames = 0;
-                mProcessingHandler.removeCallbacks(this);
+            if (image == null) {
+                return;
             }
-
-            synchronized (mAllocationLock) {
-                if(mInputAllocation == null || mARGBOutputAllocation == null)
-                    return;
-                mIsAllocationEverUsed = true;
-                for (int i = 0; i < pendingFrames; i++) {
-                    mInputAllocation.ioReceive();
-                }
+            YuvFrame frame = YuvFrame.wrap(image);
+            try {
                 synchronized (mPanoSwitchLock) {
                     if (mIsPanoActive && !mUI.isFrameProcessing()) {
-                        mRsYuvToRGB.setInput(mInputAllocation);
-                        mRsYuvToRGB.forEach(mARGBOutputAllocation);
-                        mARGBOutputAllocation.copyTo(mBitmap);
-                        mUI.onFrameAvailable(mBitmap, false);
+                        mUI.onFrameAvailable(frame, false);
                     }
                 }
+            } finally {
+                frame.release();
             }
         }
     }
 
 }
-
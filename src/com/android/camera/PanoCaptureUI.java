@@ -19,7 +19,6 @@
 
 package com.android.camera;
 
-import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.RectF;
@@ -48,6 +47,7 @@ import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import com.android.camera.imageprocessor.YuvFrame;
 import com.android.camera.ui.AutoFitSurfaceView;
 import com.android.camera.ui.CameraControls;
 import com.android.camera.ui.CameraRootView;
@@ -108,8 +108,8 @@ public class PanoCaptureUI implements
         return mPreviewProcessView.isFrameProcessing();
     }
 
-    public void onFrameAvailable(Bitmap bitmap, boolean isCancelling) {
-        mPreviewProcessView.onFrameAvailable(bitmap, isCancelling);
+    public void onFrameAvailable(YuvFrame frame, boolean isCancelling) {
+        mPreviewProcessView.onFrameAvailable(frame, isCancelling);
     }
 
     public void onPanoStatusChange(final boolean isStarting) {
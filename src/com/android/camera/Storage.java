@@ -17,9 +17,13 @@
 package com.android.camera;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
@@ -27,6 +31,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
@@ -34,7 +39,10 @@ import android.util.Log;
 
 import com.android.camera.data.LocalData;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifSplice;
 import com.android.camera.util.ApiHelper;
+import com.android.camera.util.FileSink;
+import com.android.camera.util.PersistUtil;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -57,6 +65,10 @@ public class Storage {
 
     private static boolean sSaveSDCard = false;
 
+    // Every saved image goes through a temp file and is renamed once complete.
+    private static final FileSink sFileSink = new FileSink(
+            PersistUtil.getSaveSyncBatch(), PersistUtil.getSaveSyncDelay());
+
     public static boolean isSaveSDCard() {
         return sSaveSDCard;
     }
@@ -79,7 +91,7 @@ public class Storage {
         if (exif != null && (mimeType == null ||
             mimeType.equalsIgnoreCase("jpeg"))) {
             try {
-                return exif.writeExif(jpeg, path);
+                return writeFile(path, exif.spliceExif(jpeg));
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
             }
@@ -94,27 +106,75 @@ public class Storage {
         return 0;
     }
 
+    // Writes the jpeg with its new exif header straight from the source array.
+    public static int writeFile(String path, ExifSplice jpeg) {
+        try {
+            return (int) sFileSink.write(path, jpeg);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+        }
+        return 0;
+    }
+
+    // Writes the buffers back to back, returns the file size or -1 on failure.
+    public static long writeFile(String path, ByteBuffer[] buffers) {
+        try {
+            return sFileSink.write(path, buffers);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+        }
+        return -1;
+    }
+
     public static void writeFile(String path, byte[] data) {
-        FileOutputStream out = null;
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
+            sFileSink.write(path, data);
         } catch (Exception e) {
             Log.e(TAG, "Failed to write data", e);
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to close file after write", e);
-            }
         }
     }
 
+    // Commits saved files still waiting for their sync batch and drops the
+    // temp files opened ahead for the next saves.
+    public static void flushWrites() {
+        sFileSink.flush();
+    }
+
+    public static FileSink.Stats getWriteStats() {
+        return sFileSink.getStats();
+    }
+
+    // Save the jpeg with its new exif header and add it to the MediaStore.
+    public static Uri addImage(ContentResolver resolver, String title, long date,
+            Location location, int orientation, ExifSplice jpeg, int width, int height) {
+        return insertImage(resolver,
+                writeImage(title, date, location, orientation, jpeg, width, height));
+    }
+
     // Save the image with a given mimeType and add it the MediaStore.
     public static Uri addImage(ContentResolver resolver, String title, long date,
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height, String mimeType) {
+        return insertImage(resolver,
+                writeImage(title, date, location, orientation, exif, jpeg, width, height,
+                        mimeType));
+    }
+
+    // Save the jpeg with its new exif header, returns the values to add it to
+    // the MediaStore with.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifSplice jpeg, int width, int height) {
+        String path = generateFilepath(title, "jpeg");
+        int size = writeFile(path, jpeg);
+        return getContentValuesForData(title, date, location, orientation,
+                size, path, width, height, "jpeg");
+    }
 
+    // Save the image with a given mimeType, returns the values to add it to
+    // the MediaStore with.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifInterface exif, byte[] jpeg, int width, int height,
+            String mimeType) {
         String path = generateFilepath(title, mimeType);
         int size = writeFile(path, jpeg, exif, mimeType);
         // Try to get the real image size after add exif.
@@ -122,7 +182,7 @@ public class Storage {
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
-        return addImage(resolver, title, date, location, orientation,
+        return getContentValuesForData(title, date, location, orientation,
                 size, path, width, height, mimeType);
     }
 
@@ -304,6 +364,32 @@ public class Storage {
         }
     }
 
+    // Adds the images to the MediaStore in one binder call, returns their uris
+    // in the same order. Falls back to one insert each if the batch fails.
+    public static List<Uri> insertImages(ContentResolver resolver, List<ContentValues> values) {
+        ArrayList<Uri> uris = new ArrayList<Uri>(values.size());
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (ContentProviderResult result : results) {
+                uris.add(result.uri);
+            }
+            return uris;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to write MediaStore batch of " + values.size() + ", " + th);
+        }
+        uris.clear();
+        for (ContentValues v : values) {
+            uris.add(insertImage(resolver, v));
+        }
+        return uris;
+    }
+
     private static Uri insertImage(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
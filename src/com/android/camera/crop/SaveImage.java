@@ -231,6 +231,9 @@ public class SaveImage {
         boolean ret = false;
         OutputStream s = null;
         try {
+            // Leave room for later exif edits, like a rotation, to be made
+            // in place.
+            exif.setPadding(ExifInterface.REWRITE_PADDING);
             s = exif.getExifWriterStream(file.getAbsolutePath());
             image.compress(Bitmap.CompressFormat.JPEG,
                     (jpegCompressQuality > 0) ? jpegCompressQuality : 1, s);
@@ -33,6 +33,8 @@ import com.android.camera.ui.FilmStripView.ImageData;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * A {@link LocalDataAdapter} that provides data in the camera folder.
@@ -42,6 +44,18 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
 
+    // The first page is shown as soon as it is read, the rest follows in
+    // larger pages.
+    private static final int FIRST_PAGE_SIZE = 32;
+    private static final int PAGE_SIZE = 512;
+    // A reload after more changes than this reads everything again.
+    private static final int MAX_DIFF_SIZE = 256;
+
+    private static final String[] DIFF_PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DATE_MODIFIED
+    };
+
     private LocalDataList mImages;
 
     private Listener mListener;
@@ -52,15 +66,42 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     private LocalData mLocalDataToDelete;
 
+    // Photos whose size is being decoded or failed to, by content uri.
+    private final HashSet<Uri> mDecodingDimensions = new HashSet<Uri>();
+    // Decodes still running; the cache is saved once they are all done.
+    private int mRunningDimensionTasks;
+
+    private final MediaMetadataCache mMetadataCache;
+    // True once mImages holds a complete load that later loads can diff against.
+    private boolean mLoaded;
+
     public CameraDataAdapter(int placeholderResource) {
+        this(placeholderResource, null);
+    }
+
+    /**
+     * @param metadataCache keeps decoded sizes across loads and app
+     *            restarts, may be null.
+     */
+    public CameraDataAdapter(int placeholderResource, MediaMetadataCache metadataCache) {
         mImages = new LocalDataList();
         mPlaceHolderResourceId = placeholderResource;
+        mMetadataCache = metadataCache;
     }
 
+    /**
+     * Loads the data in the camera folder. Once a load has completed, later
+     * ones only compare ids and modification dates with the MediaStore and
+     * apply the difference, unless it is large.
+     */
     @Override
     public void requestLoad(ContentResolver resolver) {
-        QueryTask qtask = new QueryTask();
-        qtask.execute(resolver);
+        if (mLoaded) {
+            new DiffTask(resolver).execute();
+        } else {
+            QueryTask qtask = new QueryTask();
+            qtask.execute(resolver);
+        }
     }
 
     @Override
@@ -98,7 +139,16 @@ public class CameraDataAdapter implements LocalDataAdapter {
             return null;
         }
 
-        return mImages.get(dataID).getView(
+        LocalData data = mImages.get(dataID);
+        if (data instanceof LocalMediaData.PhotoData
+                && !((LocalMediaData.PhotoData) data).hasDimensions()
+                && mDecodingDimensions.add(data.getContentUri())) {
+            // Not on the serial executor, where it would wait for the whole load
+            mRunningDimensionTasks++;
+            new DimensionTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                    (LocalMediaData.PhotoData) data);
+        }
+        return data.getView(
                 activity, mSuggestedWidth, mSuggestedHeight,
                 mPlaceHolderResourceId, this, inFullScreen);
     }
@@ -182,9 +232,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public int findDataByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // LocalDataList keeps the position of every uri, this is O(1).
         return mImages.indexOf(uri);
     }
 
@@ -261,6 +309,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     /** Update all the data */
     private void replaceData(LocalDataList list) {
+        mLoaded = false;
         if (list.size() == 0 && mImages.size() == 0) {
             return;
         }
@@ -276,87 +325,417 @@ public class CameraDataAdapter implements LocalDataAdapter {
         return cameraPath;
     }
 
-    private class QueryTask extends AsyncTask<ContentResolver, Void, LocalDataList> {
+    /** Reads the rows of a cursor in its order and closes it at the end. */
+    private static abstract class CursorSource implements LocalDataMerger.Source {
+        private final Cursor mCursor;
+        // Ids of the rows read so far, the same column in both projections
+        final HashSet<Long> mIds = new HashSet<Long>();
+        private final boolean mFailed;
+        private boolean mDone;
+
+        CursorSource(Cursor c) {
+            mFailed = c == null;
+            mCursor = (c != null && c.moveToFirst()) ? c : null;
+            if (mCursor == null && c != null) {
+                c.close();
+            }
+        }
+
+        protected abstract LocalData build(Cursor c);
+
+        @Override
+        public LocalData next() {
+            while (mCursor != null && !mCursor.isAfterLast()) {
+                mIds.add(mCursor.getLong(LocalMediaData.PhotoData.COL_ID));
+                LocalData data = build(mCursor);
+                mCursor.moveToNext();
+                if (data != null) {
+                    return data;
+                }
+            }
+            mDone = true;
+            close();
+            return null;
+        }
+
+        /* True once every row of a successful query went through next() */
+        boolean readAll() {
+            return mDone && !mFailed;
+        }
+
+        void close() {
+            if (mCursor != null && !mCursor.isClosed()) {
+                mCursor.close();
+            }
+        }
+    }
+
+    private static Cursor queryPhotos(ContentResolver resolver, String[] projection,
+            String ids) {
+        return resolver.query(
+                LocalMediaData.PhotoData.CONTENT_URI, projection,
+                "(" + MediaStore.Images.Media.DATA + " like ? or " +
+                MediaStore.Images.Media.DATA + " like ?)" +
+                (ids == null ? "" : " and " + MediaStore.Images.Media._ID + " in (" + ids + ")"),
+                getCameraPath(), LocalMediaData.PhotoData.QUERY_ORDER);
+    }
+
+    private static Cursor queryVideos(ContentResolver resolver, String[] projection,
+            String ids) {
+        return resolver.query(
+                LocalMediaData.VideoData.CONTENT_URI, projection,
+                "(" + MediaStore.Video.Media.DATA + " like ? or " +
+                MediaStore.Video.Media.DATA + " like ?)" +
+                (ids == null ? "" : " and " + MediaStore.Video.Media._ID + " in (" + ids + ")"),
+                getCameraPath(), LocalMediaData.VideoData.QUERY_ORDER);
+    }
+
+    private static class PhotoSource extends CursorSource {
+        private final MediaMetadataCache mCache;
+
+        PhotoSource(Cursor c, MediaMetadataCache cache) {
+            super(c);
+            mCache = cache;
+        }
+
+        @Override
+        protected LocalData build(Cursor c) {
+            // Sizes missing in the MediaStore come from the cache, or are
+            // decoded once in view.
+            LocalMediaData.PhotoData data = LocalMediaData.PhotoData.buildFromCursor(c, false);
+            if (data != null && !data.hasDimensions() && mCache != null) {
+                MediaMetadataCache.Record cached = mCache.get(false,
+                        data.getContentId(), data.getDateModified());
+                if (cached != null && cached.width <= 0) {
+                    // Failed to decode before, left out like it always was
+                    Log.w(TAG, "Skipping undecodable photo " + data.getPath());
+                    return null;
+                } else if (cached != null) {
+                    data = data.withDimensions(cached.width, cached.height);
+                }
+            }
+            if (data == null) {
+                Log.e(TAG, "Error loading data:"
+                        + c.getString(LocalMediaData.PhotoData.COL_DATA));
+            } else if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
+                return new InProgressDataWrapper(data, true);
+            }
+            return data;
+        }
+    }
+
+    private static class VideoSource extends CursorSource {
+        private final MediaMetadataCache mCache;
+
+        VideoSource(Cursor c, MediaMetadataCache cache) {
+            super(c);
+            mCache = cache;
+        }
+
+        @Override
+        protected LocalData build(Cursor c) {
+            LocalData data = LocalMediaData.VideoData.buildFromCursor(c, mCache);
+            if (data == null) {
+                Log.e(TAG, "Error loading data:"
+                        + c.getString(LocalMediaData.VideoData.COL_DATA));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * A page of loaded data. A concrete type, so that publishing it through
+     * {@link AsyncTask#publishProgress} does not create a generic array.
+     */
+    private static class Page extends ArrayList<LocalData> {
+        private static final long serialVersionUID = 1L;
+
+        Page(int capacity) {
+            super(capacity);
+        }
+    }
+
+    private class QueryTask extends AsyncTask<ContentResolver, Page, Void> {
+        // The list this load fills, null until the first page is shown.
+        private LocalDataList mList;
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads the photo and video data in the camera folder in background.
+         * Both queries come sorted by date taken, so they are merged as they
+         * are read and published in pages, the first one right away.
          *
          * @param resolver {@link ContentResolver} to load all the data.
-         * @return An {@link ArrayList} of all loaded data.
          */
         @Override
-        protected LocalDataList doInBackground(ContentResolver... resolver) {
-            LocalDataList l = new LocalDataList();
-            // Photos
-            Cursor c = resolver[0].query(
-                    LocalMediaData.PhotoData.CONTENT_URI,
-                    LocalMediaData.PhotoData.QUERY_PROJECTION,
-                    MediaStore.Images.Media.DATA + " like ? or " +
-                    MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.PhotoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                while (true) {
-                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
-                    if (data != null) {
-                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
-                            l.add(new InProgressDataWrapper(data, true));
-                        } else {
-                            l.add(data);
-                        }
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.PhotoData.COL_DATA));
+        protected Void doInBackground(ContentResolver... resolver) {
+            PhotoSource photos = new PhotoSource(queryPhotos(resolver[0],
+                    LocalMediaData.PhotoData.QUERY_PROJECTION, null), mMetadataCache);
+            VideoSource videos = new VideoSource(queryVideos(resolver[0],
+                    LocalMediaData.VideoData.QUERY_PROJECTION, null), mMetadataCache);
+            try {
+                LocalDataMerger merger = new LocalDataMerger(
+                        new LocalData.NewestFirstComparator(), photos, videos);
+                int pageSize = FIRST_PAGE_SIZE;
+                Page page = new Page(pageSize);
+                LocalData data;
+                while (!isCancelled() && (data = merger.next()) != null) {
+                    page.add(data);
+                    if (page.size() == pageSize) {
+                        publishProgress(page);
+                        pageSize = PAGE_SIZE;
+                        page = new Page(pageSize);
                     }
-                    if (c.isLast()) {
-                        break;
+                }
+                // Also publishes an empty first page when there is no data
+                if (!page.isEmpty() || pageSize == FIRST_PAGE_SIZE) {
+                    publishProgress(page);
+                }
+            } finally {
+                photos.close();
+                videos.close();
+            }
+            if (mMetadataCache != null) {
+                // Drops what was deleted behind our back, if every row was seen
+                if (photos.readAll()) {
+                    mMetadataCache.retain(false, photos.mIds);
+                }
+                if (videos.readAll()) {
+                    mMetadataCache.retain(true, videos.mIds);
+                }
+                mMetadataCache.save();
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void v) {
+            if (mList != null && mList == mImages) {
+                mLoaded = true;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Page... pages) {
+            for (Page page : pages) {
+                if (mList == null) {
+                    mList = new LocalDataList();
+                    for (LocalData data : page) {
+                        mList.add(data);
                     }
-                    c.moveToNext();
+                    replaceData(mList);
+                } else if (mList == mImages) {
+                    appendData(page);
+                } else {
+                    // Flushed or reloaded meanwhile
+                    cancel(false);
+                    return;
                 }
             }
-            if (c != null) {
-                c.close();
+        }
+    }
+
+    /** Adds a page of older data at the end. */
+    private void appendData(ArrayList<LocalData> page) {
+        if (page.isEmpty()) {
+            return;
+        }
+        for (LocalData data : page) {
+            mImages.add(data);
+        }
+        if (mListener != null) {
+            // Nothing shown changes, the filmstrip fills in free slots at the end.
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return false;
+                }
+            });
+        }
+    }
+
+    /**
+     * Compares ids and modification dates in the MediaStore with the loaded
+     * data, then reads only the rows that are new or changed.
+     */
+    private class DiffTask extends AsyncTask<Void, Void, Boolean> {
+        private final ContentResolver mResolver;
+        // Uri to date modified of the data loaded when the task was created
+        private final HashMap<Uri, Long> mKnown = new HashMap<Uri, Long>();
+        private final ArrayList<Uri> mRemoved = new ArrayList<Uri>();
+        private final ArrayList<LocalData> mChanged = new ArrayList<LocalData>();
+        private int mChangeCount;
+
+        DiffTask(ContentResolver resolver) {
+            mResolver = resolver;
+            for (int i = 0; i < mImages.size(); i++) {
+                LocalData data = mImages.get(i);
+                mKnown.put(data.getContentUri(), data.getDateModified());
             }
+        }
+
+        private final HashSet<Long> mPhotoIds = new HashSet<Long>();
+        private final HashSet<Long> mVideoIds = new HashSet<Long>();
 
-            c = resolver[0].query(
-                    LocalMediaData.VideoData.CONTENT_URI,
-                    LocalMediaData.VideoData.QUERY_PROJECTION,
-                    MediaStore.Video.Media.DATA + " like ? or " +
-                    MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.VideoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                c.moveToFirst();
-                while (true) {
-                    LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
-                    if (data != null) {
-                        l.add(data);
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.VideoData.COL_DATA));
+        // Returns the ids of new or modified rows, separated by commas, and
+        // adds every id to all.
+        private String diff(Cursor c, Uri baseUri, HashSet<Long> all) {
+            StringBuilder ids = new StringBuilder();
+            if (c == null) {
+                return ids.toString();
+            }
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    all.add(id);
+                    Uri uri = baseUri.buildUpon().appendPath(String.valueOf(id)).build();
+                    Long dateModified = mKnown.remove(uri);
+                    if (dateModified == null || dateModified != c.getLong(1)) {
+                        mChangeCount++;
+                        if (ids.length() > 0) {
+                            ids.append(',');
+                        }
+                        ids.append(id);
                     }
-                    if (!c.isLast()) {
-                        c.moveToNext();
-                    } else {
-                        break;
+                }
+            } finally {
+                c.close();
+            }
+            return ids.toString();
+        }
+
+        private void read(CursorSource source) {
+            LocalData data;
+            while ((data = source.next()) != null) {
+                mChanged.add(data);
+            }
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... v) {
+            Cursor photoCursor = queryPhotos(mResolver, DIFF_PROJECTION, null);
+            Cursor videoCursor = queryVideos(mResolver, DIFF_PROJECTION, null);
+            boolean complete = photoCursor != null && videoCursor != null;
+            String photoIds = diff(photoCursor, LocalMediaData.PhotoData.CONTENT_URI,
+                    mPhotoIds);
+            String videoIds = diff(videoCursor, LocalMediaData.VideoData.CONTENT_URI,
+                    mVideoIds);
+            if (complete && mMetadataCache != null) {
+                mMetadataCache.retain(false, mPhotoIds);
+                mMetadataCache.retain(true, mVideoIds);
+            }
+            // What is left was deleted
+            mRemoved.addAll(mKnown.keySet());
+            if (mRemoved.size() + mChangeCount > MAX_DIFF_SIZE) {
+                return false;
+            }
+            if (!photoIds.isEmpty()) {
+                read(new PhotoSource(queryPhotos(mResolver,
+                        LocalMediaData.PhotoData.QUERY_PROJECTION, photoIds), mMetadataCache));
+            }
+            if (!videoIds.isEmpty()) {
+                read(new VideoSource(queryVideos(mResolver,
+                        LocalMediaData.VideoData.QUERY_PROJECTION, videoIds), mMetadataCache));
+            }
+            if (mMetadataCache != null) {
+                mMetadataCache.save();
+            }
+            return true;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean applied) {
+            if (!mLoaded) {
+                // Flushed meanwhile
+                return;
+            }
+            if (!applied) {
+                new QueryTask().execute(mResolver);
+                return;
+            }
+            for (Uri uri : mRemoved) {
+                int pos = findDataByContentUri(uri);
+                if (pos != -1) {
+                    LocalData data = mImages.remove(pos);
+                    if (mListener != null) {
+                        mListener.onDataRemoved(pos, data);
                     }
                 }
             }
-            if (c != null) {
-                c.close();
+            for (LocalData data : mChanged) {
+                // Captures inserted while diffing are known already
+                int pos = findDataByContentUri(data.getContentUri());
+                if (pos != -1) {
+                    updateData(pos, data);
+                } else {
+                    insertData(data);
+                }
             }
+        }
+    }
 
-            if (l.size() != 0) {
-                l.sort(new LocalData.NewestFirstComparator());
+    /* Writes the sizes decoded by a batch of DimensionTasks in one go */
+    private void saveMetadataCache() {
+        if (mMetadataCache == null) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMetadataCache.save();
             }
+        });
+    }
 
-            return l;
+    private class DimensionTask
+            extends AsyncTask<LocalMediaData.PhotoData, Void, LocalMediaData.PhotoData> {
+        private Uri mUri;
+
+        @Override
+        protected LocalMediaData.PhotoData doInBackground(LocalMediaData.PhotoData... data) {
+            mUri = data[0].getContentUri();
+            LocalMediaData.PhotoData decoded = data[0].withDecodedDimensions();
+            if (mMetadataCache != null) {
+                MediaMetadataCache.Record r = data[0].getMetadataRecord();
+                if (decoded != null) {
+                    r = decoded.getMetadataRecord();
+                } else {
+                    // No size marks the file as undecodable until it is modified
+                    r.width = 0;
+                    r.height = 0;
+                }
+                mMetadataCache.put(r);
+            }
+            return decoded;
         }
 
         @Override
-        protected void onPostExecute(LocalDataList l) {
-            replaceData(l);
+        protected void onPostExecute(LocalMediaData.PhotoData data) {
+            if (--mRunningDimensionTasks == 0) {
+                saveMetadataCache();
+            }
+            // The data may have moved or gone while decoding
+            int pos = findDataByContentUri(mUri);
+            if (data == null) {
+                // Can't be shown, like a load that decodes sizes leaves it out.
+                // Keeps the uri so the file is not decoded again.
+                Log.w(TAG, "Removing undecodable photo " + mUri);
+                if (pos != -1) {
+                    LocalData removed = mImages.remove(pos);
+                    if (mListener != null) {
+                        mListener.onDataRemoved(pos, removed);
+                    }
+                }
+                return;
+            }
+            mDecodingDimensions.remove(mUri);
+            if (pos != -1) {
+                updateData(pos, data);
+            }
         }
     }
 
@@ -375,6 +754,14 @@ public class CameraDataAdapter implements LocalDataAdapter {
                     continue;
                 }
                 data[i].delete(mContext);
+                if (mMetadataCache != null && data[i].getContentId() >= 0) {
+                    mMetadataCache.remove(
+                            data[i].getLocalDataType() == LocalData.LOCAL_VIDEO,
+                            data[i].getContentId());
+                }
+            }
+            if (mMetadataCache != null) {
+                mMetadataCache.save();
             }
             return null;
         }
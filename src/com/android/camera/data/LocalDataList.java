@@ -18,84 +18,163 @@ package com.android.camera.data;
 
 import android.net.Uri;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ * <p>
+ * Items live in a circular array and each knows its absolute slot, the
+ * position plus a head offset that moves when data goes in at either end.
+ * So {@link #get(int)} and {@link #indexOf(Uri)} are O(1), adding at the
+ * front (a new capture) or the back is amortized O(1), and inserting or
+ * removing in the middle moves only the shorter side.
  */
 public class LocalDataList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static class Entry {
+        LocalData data;
+        // Position of the entry plus mHead, the array index is abs & mMask.
+        long abs;
 
-        public UriWrapper(Uri uri) {
-            mUri = uri;
+        Entry(LocalData data, long abs) {
+            this.data = data;
+            this.abs = abs;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof LocalData)) {
-                return false;
-            }
-            return mUri.equals(((LocalData) o).getContentUri());
+    private Entry[] mEntries = new Entry[INITIAL_CAPACITY];
+    private int mMask = INITIAL_CAPACITY - 1;
+    private long mHead;
+    private int mSize;
+    private HashMap<Uri, Entry> mUriMap = new HashMap<Uri, Entry>();
+
+    private Entry entryAt(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
         }
+        return mEntries[(int) ((mHead + index) & mMask)];
     }
 
-    private LinkedList<LocalData> mList = new LinkedList<LocalData>();
-    private HashMap<Uri, LocalData> mUriMap = new HashMap<Uri, LocalData>();
+    private void place(Entry entry, long abs) {
+        entry.abs = abs;
+        mEntries[(int) (abs & mMask)] = entry;
+    }
 
     public LocalData get(int index) {
-        return mList.get(index);
+        return entryAt(index).data;
     }
 
     public LocalData remove(int index) {
-        LocalData removedItem = mList.remove(index);
-        mUriMap.remove(removedItem);
-        return removedItem;
+        Entry removed = entryAt(index);
+        if (index < mSize / 2) {
+            // Shift the front up by one
+            for (int i = index; i > 0; i--) {
+                place(mEntries[(int) ((mHead + i - 1) & mMask)], mHead + i);
+            }
+            mEntries[(int) (mHead & mMask)] = null;
+            mHead++;
+        } else {
+            for (int i = index; i < mSize - 1; i++) {
+                place(mEntries[(int) ((mHead + i + 1) & mMask)], mHead + i);
+            }
+            mEntries[(int) ((mHead + mSize - 1) & mMask)] = null;
+        }
+        mSize--;
+        unmap(removed);
+        return removed.data;
     }
 
     public LocalData get(Uri uri) {
-        return mUriMap.get(uri);
+        Entry entry = mUriMap.get(uri);
+        return entry == null ? null : entry.data;
     }
 
     public void set(int pos, LocalData data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        Entry entry = entryAt(pos);
+        unmap(entry);
+        entry.data = data;
+        mUriMap.put(data.getContentUri(), entry);
     }
 
     public void add(LocalData data) {
-        mList.add(data);
-        mUriMap.put(data.getContentUri(), data);
+        add(mSize, data);
     }
 
     public void add(int pos, LocalData data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        if (pos < 0 || pos > mSize) {
+            throw new IndexOutOfBoundsException("Index: " + pos + ", Size: " + mSize);
+        }
+        if (mSize == mEntries.length) {
+            grow();
+        }
+        Entry entry = new Entry(data, 0);
+        if (pos < mSize / 2) {
+            // Shift the front down by one
+            mHead--;
+            for (int i = 0; i < pos; i++) {
+                place(mEntries[(int) ((mHead + i + 1) & mMask)], mHead + i);
+            }
+        } else {
+            for (int i = mSize; i > pos; i--) {
+                place(mEntries[(int) ((mHead + i - 1) & mMask)], mHead + i);
+            }
+        }
+        place(entry, mHead + pos);
+        mSize++;
+        mUriMap.put(data.getContentUri(), entry);
     }
 
     public int size() {
-        return mList.size();
+        return mSize;
     }
 
     public void sort(Comparator<LocalData> comparator) {
-        Collections.sort(mList, comparator);
+        LocalData[] data = new LocalData[mSize];
+        for (int i = 0; i < mSize; i++) {
+            data[i] = get(i);
+        }
+        Arrays.sort(data, comparator);
+        Entry[] entries = mEntries;
+        mEntries = new Entry[entries.length];
+        mHead = 0;
+        mUriMap.clear();
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = new Entry(data[i], 0);
+            place(entry, i);
+            mUriMap.put(data[i].getContentUri(), entry);
+        }
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the position of the data with the uri, or -1 if there is none,
+     * in O(1).
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        Entry entry = mUriMap.get(uri);
+        if (entry == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        return (int) (entry.abs - mHead);
+    }
+
+    // Forgets the uri of the entry, unless it maps to a later entry with the
+    // same uri already.
+    private void unmap(Entry entry) {
+        Uri uri = entry.data.getContentUri();
+        if (mUriMap.get(uri) == entry) {
+            mUriMap.remove(uri);
+        }
+    }
+
+    private void grow() {
+        Entry[] entries = mEntries;
+        mEntries = new Entry[entries.length * 2];
+        mMask = mEntries.length - 1;
+        for (Entry entry : entries) {
+            place(entry, entry.abs);
+        }
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import java.util.Comparator;
+
+/**
+ * Streams the merge of several sources that each return their data in
+ * comparator order, e.g. the photo and video cursors sorted by date taken.
+ * Every {@link #next()} compares the k source heads, so producing n items
+ * costs O(n k) with nothing buffered beyond the heads.
+ */
+class LocalDataMerger {
+    /** Data in comparator order, null once exhausted. */
+    interface Source {
+        LocalData next();
+    }
+
+    private final Comparator<LocalData> mComparator;
+    private final Source[] mSources;
+    private final LocalData[] mHeads;
+
+    LocalDataMerger(Comparator<LocalData> comparator, Source... sources) {
+        mComparator = comparator;
+        mSources = sources;
+        mHeads = new LocalData[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            mHeads[i] = sources[i].next();
+        }
+    }
+
+    /** Returns the first remaining data over all sources, or null at the end. */
+    LocalData next() {
+        int best = -1;
+        for (int i = 0; i < mHeads.length; i++) {
+            if (mHeads[i] != null && (best < 0
+                    || mComparator.compare(mHeads[i], mHeads[best]) < 0)) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        LocalData data = mHeads[best];
+        mHeads[best] = mSources[best].next();
+        return data;
+    }
+}
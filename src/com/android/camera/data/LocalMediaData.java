@@ -32,6 +32,8 @@ import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import com.android.camera.mpo.MpoIndexCache;
+import com.android.camera.mpo.MpoReader;
 import com.android.camera.ui.FilmStripView;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.PhotoSphereHelper;
@@ -41,6 +43,7 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.resource.bitmap.BitmapEncoder;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -107,6 +110,17 @@ public abstract class LocalMediaData implements LocalData {
         mLongitude = longitude;
     }
 
+    /** The metadata of this data to keep in a {@link MediaMetadataCache}. */
+    MediaMetadataCache.Record getMetadataRecord() {
+        MediaMetadataCache.Record r = new MediaMetadataCache.Record();
+        r.id = mContentId;
+        r.video = this instanceof VideoData;
+        r.dateModified = mDateModifiedInSeconds;
+        r.width = mWidth;
+        r.height = mHeight;
+        return r;
+    }
+
     @Override
     public long getDateTaken() {
         return mDateTakenInSeconds;
@@ -357,6 +371,16 @@ public abstract class LocalMediaData implements LocalData {
         }
 
         static PhotoData buildFromCursor(Cursor c) {
+            return buildFromCursor(c, true);
+        }
+
+        /**
+         * Builds the data of the cursor row. Without decodeDimensions a photo
+         * missing its size in the MediaStore reports
+         * {@link FilmStripView.ImageData#SIZE_FULL} until
+         * {@link #withDecodedDimensions()} reads it from the file.
+         */
+        static PhotoData buildFromCursor(Cursor c, boolean decodeDimensions) {
             long id = c.getLong(COL_ID);
             String title = c.getString(COL_TITLE);
             String mimeType = c.getString(COL_MIME_TYPE);
@@ -369,26 +393,16 @@ public abstract class LocalMediaData implements LocalData {
             if (width <= 0 || height <= 0) {
                 Log.w(TAG, "Zero dimension in ContentResolver for "
                         + path + ":" + width + "x" + height);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(path, opts);
-                if (opts.outWidth > 0 && opts.outHeight > 0) {
-                    width = opts.outWidth;
-                    height = opts.outHeight;
-                } else {
-                    Log.w(TAG, "Dimension decode failed for " + path);
-                    Bitmap b = BitmapFactory.decodeFile(path);
-                    if (b == null) {
-                        Log.w(TAG, "PhotoData skipped."
-                                + " Decoding " + path + "failed.");
-                        return null;
-                    }
-                    width = b.getWidth();
-                    height = b.getHeight();
-                    if (width == 0 || height == 0) {
-                        Log.w(TAG, "PhotoData skipped. Bitmap size 0 for " + path);
+                if (decodeDimensions) {
+                    int[] dimensions = decodeDimensions(path);
+                    if (dimensions == null) {
                         return null;
                     }
+                    width = dimensions[0];
+                    height = dimensions[1];
+                } else {
+                    width = FilmStripView.ImageData.SIZE_FULL;
+                    height = FilmStripView.ImageData.SIZE_FULL;
                 }
             }
 
@@ -401,6 +415,54 @@ public abstract class LocalMediaData implements LocalData {
             return result;
         }
 
+        // Reads the size of the image file, null if it cannot be decoded.
+        private static int[] decodeDimensions(String path) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, opts);
+            if (opts.outWidth > 0 && opts.outHeight > 0) {
+                return new int[] { opts.outWidth, opts.outHeight };
+            }
+            Log.w(TAG, "Dimension decode failed for " + path);
+            Bitmap b = BitmapFactory.decodeFile(path);
+            if (b == null) {
+                Log.w(TAG, "PhotoData skipped."
+                        + " Decoding " + path + "failed.");
+                return null;
+            }
+            int[] dimensions = new int[] { b.getWidth(), b.getHeight() };
+            b.recycle();
+            if (dimensions[0] == 0 || dimensions[1] == 0) {
+                Log.w(TAG, "PhotoData skipped. Bitmap size 0 for " + path);
+                return null;
+            }
+            return dimensions;
+        }
+
+        /** False until the size of a photo loaded without one is decoded. */
+        public boolean hasDimensions() {
+            return mWidth > 0 && mHeight > 0;
+        }
+
+        /**
+         * Returns a copy with the size read from the file, null if the file
+         * cannot be decoded. Decodes, so call it off the main thread.
+         */
+        public PhotoData withDecodedDimensions() {
+            int[] dimensions = decodeDimensions(mPath);
+            if (dimensions == null) {
+                return null;
+            }
+            return withDimensions(dimensions[0], dimensions[1]);
+        }
+
+        /** Returns a copy with a size known from elsewhere, e.g. a cache. */
+        PhotoData withDimensions(int width, int height) {
+            return new PhotoData(mContentId, mTitle, mMimeType, mDateTakenInSeconds,
+                    mDateModifiedInSeconds, mPath, mOrientation, width, height,
+                    mSizeInBytes, mLatitude, mLongitude);
+        }
+
         @Override
         public int getOrientation() {
             return mOrientation;
@@ -432,9 +494,25 @@ public abstract class LocalMediaData implements LocalData {
         public boolean delete(Context c) {
             ContentResolver cr = c.getContentResolver();
             cr.delete(CONTENT_URI, MediaStore.Images.ImageColumns._ID + "=" + mContentId, null);
+            MpoIndexCache.getInstance().remove(mPath);
             return super.delete(c);
         }
 
+        /**
+         * Opens the photo for reading its embedded images, the auxiliary mono
+         * or bayer frames of a dual camera MPO. The index is parsed once per
+         * file version and cached. Returns null if the file can't be read;
+         * the caller closes the reader.
+         */
+        public MpoReader openMpo() {
+            try {
+                return MpoReader.open(mPath);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read mpo index of " + mPath, e);
+                return null;
+            }
+        }
+
         @Override
         public Uri getContentUri() {
             Uri baseUri = CONTENT_URI;
@@ -497,9 +575,12 @@ public abstract class LocalMediaData implements LocalData {
             final int overrideHeight;
             final BitmapRequestBuilder<Uri, Bitmap> thumbnailRequest;
             if (inFullScreen) {
-                // Load up to the maximum size Bitmap we can render.
-                overrideWidth = Math.min(getWidth(), MAXIMUM_TEXTURE_SIZE);
-                overrideHeight = Math.min(getHeight(), MAXIMUM_TEXTURE_SIZE);
+                // Load up to the maximum size Bitmap we can render, or the
+                // view size while the size of the image is not known yet.
+                overrideWidth = hasDimensions()
+                        ? Math.min(getWidth(), MAXIMUM_TEXTURE_SIZE) : decodeWidth;
+                overrideHeight = hasDimensions()
+                        ? Math.min(getHeight(), MAXIMUM_TEXTURE_SIZE) : decodeHeight;
 
                 // Load two thumbnails, first the small low quality thumb from the media store,
                 // then a medium quality thumbWidth/thumbHeight image. Using two thumbnails ensures
@@ -606,6 +687,15 @@ public abstract class LocalMediaData implements LocalData {
         }
 
         static VideoData buildFromCursor(Cursor c) {
+            return buildFromCursor(c, null);
+        }
+
+        /**
+         * Builds the data of the cursor row. The rotated size comes from the
+         * cache when it has the video, otherwise it is read from the file
+         * and added to the cache.
+         */
+        static VideoData buildFromCursor(Cursor c, MediaMetadataCache cache) {
             long id = c.getLong(COL_ID);
             String title = c.getString(COL_TITLE);
             String mimeType = c.getString(COL_MIME_TYPE);
@@ -614,6 +704,14 @@ public abstract class LocalMediaData implements LocalData {
             String path = c.getString(COL_DATA);
             int width = c.getInt(COL_WIDTH);
             int height = c.getInt(COL_HEIGHT);
+            MediaMetadataCache.Record cached = cache == null ? null
+                    : cache.get(true, id, dateModifiedInSeconds);
+            if (cached != null) {
+                return new VideoData(id, title, mimeType, dateTakenInSeconds,
+                        dateModifiedInSeconds, path, cached.width, cached.height,
+                        c.getLong(COL_SIZE), c.getDouble(COL_LATITUDE),
+                        c.getDouble(COL_LONGITUDE), c.getLong(COL_DURATION) / 1000);
+            }
             MediaMetadataRetriever retriever = new MediaMetadataRetriever();
             String rotation = null;
 
@@ -666,6 +764,9 @@ public abstract class LocalMediaData implements LocalData {
             VideoData d = new VideoData(id, title, mimeType, dateTakenInSeconds,
                     dateModifiedInSeconds, path, width, height, sizeInBytes,
                     latitude, longitude, durationInSeconds);
+            if (cache != null) {
+                cache.put(d.getMetadataRecord());
+            }
             return d;
         }
 
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.util.Log;
+
+import com.android.camera.util.CameraUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * On disk cache of the media metadata that is costly to get again, the
+ * size of photos the MediaStore has none for and the rotated size of
+ * videos. A photo that could not be decoded is kept with no size.
+ * <p>
+ * The file is a header and fixed width records sorted by key, mapped read
+ * only and binary searched, so opening it reads nothing up front. Records
+ * are keyed by content id and media type and only returned while their
+ * date modified matches the MediaStore. Changes are kept in memory until
+ * {@link #save()} merges them into a new file that replaces the old one.
+ * Records of deleted media are dropped with {@link #remove} and
+ * {@link #retain}.
+ */
+public class MediaMetadataCache {
+    private static final String TAG = "CAM_MediaMetadataCache";
+
+    private static final int MAGIC = 0x434d4d43; // "CMMC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+
+    private static final int OFFSET_KEY = 0;
+    private static final int OFFSET_DATE_MODIFIED = 8;
+    private static final int OFFSET_WIDTH = 16;
+    private static final int OFFSET_HEIGHT = 20;
+
+    public static class Record {
+        public long id;
+        public boolean video;
+        public long dateModified;
+        public int width;
+        public int height;
+
+        long getKey() {
+            return key(video, id);
+        }
+    }
+
+    private final File mFile;
+    private MappedByteBuffer mMap;
+    private int mCount;
+    private boolean mLoaded;
+    // Changes since the last save, a null value removes the key.
+    private final TreeMap<Long, Record> mChanges = new TreeMap<Long, Record>();
+    private long mHits;
+    private long mMisses;
+
+    public MediaMetadataCache(File file) {
+        mFile = file;
+    }
+
+    private static long key(boolean video, long id) {
+        return (id << 1) | (video ? 1 : 0);
+    }
+
+    private void load() {
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "r");
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0) {
+                throw new IOException("Bad cache size " + length);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            int count = map.getInt(8);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                    || count != (length - HEADER_SIZE) / RECORD_SIZE) {
+                throw new IOException("Bad cache header");
+            }
+            mMap = map;
+            mCount = count;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping metadata cache " + mFile, e);
+            mFile.delete();
+        } finally {
+            CameraUtil.closeSilently(raf);
+        }
+    }
+
+    private int find(long key) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = mMap.getLong(HEADER_SIZE + mid * RECORD_SIZE + OFFSET_KEY);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private Record read(int index) {
+        int base = HEADER_SIZE + index * RECORD_SIZE;
+        Record r = new Record();
+        long key = mMap.getLong(base + OFFSET_KEY);
+        r.id = key >>> 1;
+        r.video = (key & 1) != 0;
+        r.dateModified = mMap.getLong(base + OFFSET_DATE_MODIFIED);
+        r.width = mMap.getInt(base + OFFSET_WIDTH);
+        r.height = mMap.getInt(base + OFFSET_HEIGHT);
+        return r;
+    }
+
+    private static void write(ByteBuffer buffer, Record r) {
+        int base = buffer.position();
+        buffer.putLong(base + OFFSET_KEY, r.getKey());
+        buffer.putLong(base + OFFSET_DATE_MODIFIED, r.dateModified);
+        buffer.putInt(base + OFFSET_WIDTH, r.width);
+        buffer.putInt(base + OFFSET_HEIGHT, r.height);
+        buffer.position(base + RECORD_SIZE);
+    }
+
+    /**
+     * Returns the cached record of the media, null if there is none or the
+     * media was modified since.
+     */
+    public synchronized Record get(boolean video, long id, long dateModified) {
+        if (!mLoaded) {
+            load();
+        }
+        long key = key(video, id);
+        Record r;
+        if (mChanges.containsKey(key)) {
+            r = mChanges.get(key);
+        } else {
+            int index = mMap == null ? -1 : find(key);
+            r = index < 0 ? null : read(index);
+        }
+        if (r == null || r.dateModified != dateModified) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return r;
+    }
+
+    public synchronized void put(Record r) {
+        mChanges.put(r.getKey(), r);
+    }
+
+    public synchronized void remove(boolean video, long id) {
+        mChanges.put(key(video, id), null);
+    }
+
+    /**
+     * Removes the records of the media type whose id is not in ids, which
+     * should hold every id a full MediaStore query returned.
+     */
+    public synchronized void retain(boolean video, Set<Long> ids) {
+        if (!mLoaded) {
+            load();
+        }
+        for (int index = 0; index < mCount; index++) {
+            long key = mMap.getLong(HEADER_SIZE + index * RECORD_SIZE + OFFSET_KEY);
+            if (((key & 1) != 0) == video && !ids.contains(key >>> 1)
+                    && !mChanges.containsKey(key)) {
+                mChanges.put(key, null);
+            }
+        }
+        for (Map.Entry<Long, Record> change : mChanges.entrySet()) {
+            long key = change.getKey();
+            if (((key & 1) != 0) == video && !ids.contains(key >>> 1)) {
+                change.setValue(null);
+            }
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Writes pending changes to disk, if there are any. */
+    public synchronized void save() {
+        if (mChanges.isEmpty()) {
+            return;
+        }
+        if (!mLoaded) {
+            load();
+        }
+        // Merge the sorted file with the sorted changes
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE
+                + (mCount + mChanges.size()) * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        out.position(HEADER_SIZE);
+        int count = 0;
+        int index = 0;
+        Iterator<Map.Entry<Long, Record>> changes = mChanges.entrySet().iterator();
+        Map.Entry<Long, Record> change = changes.hasNext() ? changes.next() : null;
+        while (index < mCount || change != null) {
+            long fileKey = index < mCount
+                    ? mMap.getLong(HEADER_SIZE + index * RECORD_SIZE + OFFSET_KEY)
+                    : Long.MAX_VALUE;
+            if (change != null && change.getKey() <= fileKey) {
+                if (change.getValue() != null) {
+                    write(out, change.getValue());
+                    count++;
+                }
+                if (change.getKey() == fileKey) {
+                    index++;
+                }
+                change = changes.hasNext() ? changes.next() : null;
+            } else {
+                write(out, read(index++));
+                count++;
+            }
+        }
+        out.putInt(0, MAGIC);
+        out.putInt(4, VERSION);
+        out.putInt(8, count);
+        out.flip();
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            stream.getChannel().write(out);
+            stream.close();
+            stream = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save metadata cache", e);
+            temp.delete();
+            return;
+        } finally {
+            CameraUtil.closeSilently(stream);
+        }
+        mChanges.clear();
+        mMap = null;
+        mCount = 0;
+        load();
+    }
+}
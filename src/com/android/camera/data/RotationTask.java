@@ -104,9 +104,12 @@ public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
                 exifInterface.setTag(tag);
                 try {
                     // Note: This only works if the file already has some EXIF.
-                    exifInterface.forceRewriteExif(filePath);
-                    long fileSize = new File(filePath).length();
-                    values.put(Images.Media.SIZE, fileSize);
+                    // The orientation is usually patched in the mapped header,
+                    // only a copied file changes in size.
+                    if (!exifInterface.forceRewriteExif(filePath)) {
+                        long fileSize = new File(filePath).length();
+                        values.put(Images.Media.SIZE, fileSize);
+                    }
                     newOrientation = finalRotationDegrees;
                     success = true;
                 } catch (FileNotFoundException e) {
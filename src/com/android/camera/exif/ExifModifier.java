@@ -165,15 +165,13 @@ class ExifModifier {
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    mByteBuffer.putInt((int) tag.getValueAt(i));
+                    mByteBuffer.putInt(tag.getPackedValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    Rational v = tag.getRational(i);
-                    mByteBuffer.putInt((int) v.getNumerator());
-                    mByteBuffer.putInt((int) v.getDenominator());
+                for (int i = 0, n = tag.getComponentCount() * 2; i < n; i++) {
+                    mByteBuffer.putInt(tag.getPackedValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
@@ -19,6 +19,7 @@ package com.android.camera.exif;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -83,6 +84,7 @@ class ExifOutputStream extends FilterOutputStream {
     private final ExifInterface mInterface;
 
     private int mSize = 0;
+    private int mPadding = 0;
 
     protected ExifOutputStream(OutputStream ou, ExifInterface iRef) {
         super(new BufferedOutputStream(ou, STREAMBUFFER_SIZE));
@@ -97,6 +99,15 @@ class ExifOutputStream extends FilterOutputStream {
         mExifData = exifData;
     }
 
+    /**
+     * Sets the number of zero bytes to reserve at the end of the APP1
+     * segment, so the header can later grow in place. The padding is cut
+     * down to what still fits in the 64Kb segment limit.
+     */
+    protected void setPadding(int padding) {
+        mPadding = Math.max(0, padding);
+    }
+
     /**
      * Gets the Exif header to be written into the JPEF file.
      */
@@ -227,10 +238,11 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
+        int padding = Math.min(mPadding, MAX_EXIF_SIZE - exifSize - 8);
         OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
         dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
         dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
+        dataOutputStream.writeShort((short) (exifSize + 8 + padding));
         dataOutputStream.writeInt(EXIF_HEADER);
         dataOutputStream.writeShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
@@ -243,12 +255,31 @@ class ExifOutputStream extends FilterOutputStream {
         dataOutputStream.writeInt(8);
         writeAllTags(dataOutputStream);
         writeThumbnail(dataOutputStream);
+        if (padding > 0) {
+            dataOutputStream.write(new byte[padding]);
+        }
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
         mSize += dataOutputStream.size();
     }
 
+    /**
+     * Serializes only the APP1 segment, marker included, that would be
+     * written for exifData with the given padding. Returns an empty array if
+     * exifData is null.
+     */
+    static byte[] buildApp1Segment(ExifData exifData, ExifInterface iRef, int padding)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_EXIF_SIZE / 16);
+        ExifOutputStream eos = new ExifOutputStream(bytes, iRef);
+        eos.setExifData(exifData);
+        eos.setPadding(padding);
+        eos.writeExifData();
+        eos.flush();
+        return bytes.toByteArray();
+    }
+
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
         ArrayList<ExifTag> nullTags = new ArrayList<ExifTag>();
         for(ExifTag t : data.getAllTags()) {
@@ -502,13 +533,13 @@ class ExifOutputStream extends FilterOutputStream {
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeInt((int) tag.getValueAt(i));
+                    dataOutputStream.writeInt(tag.getPackedValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                for (int i = 0, n = tag.getComponentCount() * 2; i < n; i++) {
+                    dataOutputStream.writeInt(tag.getPackedValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
@@ -687,44 +687,30 @@ class ExifParser {
             case ExifTag.TYPE_ASCII:
                 tag.setValue(readString(tag.getComponentCount()));
                 break;
-            case ExifTag.TYPE_UNSIGNED_LONG: {
-                long value[] = new long[tag.getComponentCount()];
-                for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedLong();
-                }
-                tag.setValue(value);
-            }
-                break;
-            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
-                for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedRational();
-                }
-                tag.setValue(value);
-            }
-                break;
             case ExifTag.TYPE_UNSIGNED_SHORT: {
                 int value[] = new int[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
                     value[i] = readUnsignedShort();
                 }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
+            case ExifTag.TYPE_UNSIGNED_LONG:
             case ExifTag.TYPE_LONG: {
                 int value[] = new int[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
                     value[i] = readLong();
                 }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
             case ExifTag.TYPE_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                int value[] = new int[tag.getComponentCount() * 2];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readRational();
+                    value[i] = readLong();
                 }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
         }
@@ -913,4 +899,209 @@ class ExifParser {
     protected ByteOrder getByteOrder() {
         return mTiffStream.getByteOrder();
     }
+
+    // Fields of the quick scan, used as indexes into its values array.
+    protected static final int QUICK_ORIENTATION = 0;
+    protected static final int QUICK_WIDTH = 1;
+    protected static final int QUICK_HEIGHT = 2;
+    protected static final int QUICK_DATE_TIME = 3;
+    protected static final int QUICK_DATE_TIME_ORIGINAL = 4;
+    protected static final int QUICK_FIELD_COUNT = 5;
+
+    private static final int QUICK_EXIF_IFD_FIELDS = (1 << QUICK_WIDTH) | (1 << QUICK_HEIGHT)
+            | (1 << QUICK_DATE_TIME_ORIGINAL);
+
+    private static final short TAG_ORIENTATION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+    private static final short TAG_IMAGE_WIDTH = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_IMAGE_WIDTH);
+    private static final short TAG_IMAGE_LENGTH = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_IMAGE_LENGTH);
+    private static final short TAG_DATE_TIME = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_DATE_TIME);
+    private static final short TAG_DATE_TIME_ORIGINAL = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_DATE_TIME_ORIGINAL);
+    private static final short TAG_PIXEL_X_DIMENSION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_PIXEL_X_DIMENSION);
+    private static final short TAG_PIXEL_Y_DIMENSION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_PIXEL_Y_DIMENSION);
+
+    /**
+     * Fast path for callers that only need a few primitive values. Walks the
+     * JPEG markers to the Exif APP1 segment the same way the full parser
+     * does, then reads the requested entries of IFD0 and, only when needed,
+     * the Exif IFD straight from the array. No ExifTag is created, no other
+     * IFD or the thumbnail is touched, and the scan stops as soon as every
+     * requested field is found. Malformed data ends the scan quietly.
+     * <p>
+     * Width and height come from ImageWidth/ImageLength of IFD0 when present,
+     * otherwise from PixelXDimension/PixelYDimension of the Exif IFD. Date
+     * times are returned packed as the decimal number yyyyMMddHHmmss.
+     *
+     * @param fields bit mask of (1 << QUICK_*) fields to read.
+     * @param values receives the found values, indexed by QUICK_*.
+     * @return bit mask of the fields that were found.
+     */
+    protected static int quickScan(byte[] jpeg, int offset, int length, int fields,
+            long[] values) {
+        int end = offset + length;
+        int tiff = findTiffStart(jpeg, offset, end);
+        if (tiff < 0 || tiff + DEFAULT_IFD0_OFFSET > end) {
+            return 0;
+        }
+        boolean little;
+        short byteOrder = (short) readUnsignedShort(jpeg, tiff, false);
+        if (byteOrder == LITTLE_ENDIAN_TAG) {
+            little = true;
+        } else if (byteOrder == BIG_ENDIAN_TAG) {
+            little = false;
+        } else {
+            return 0;
+        }
+        if (readUnsignedShort(jpeg, tiff + 2, little) != TIFF_HEADER_TAIL) {
+            return 0;
+        }
+
+        int found = 0;
+        int ifd = readOffset(jpeg, tiff, tiff + 4, end, little);
+        int exifIfd = -1;
+        int ifd0Fields = fields & ~QUICK_EXIF_IFD_FIELDS;
+        int count = ifd < 0 ? 0 : readUnsignedShort(jpeg, ifd, little);
+        for (int i = 0, entry = ifd + OFFSET_SIZE; i < count; i++, entry += TAG_SIZE) {
+            if (entry + TAG_SIZE > end) {
+                break;
+            }
+            short tag = (short) readUnsignedShort(jpeg, entry, little);
+            if (tag == TAG_ORIENTATION) {
+                found |= readIntField(jpeg, entry, little, QUICK_ORIENTATION, fields, values);
+            } else if (tag == TAG_IMAGE_WIDTH) {
+                found |= readIntField(jpeg, entry, little, QUICK_WIDTH, fields, values);
+            } else if (tag == TAG_IMAGE_LENGTH) {
+                found |= readIntField(jpeg, entry, little, QUICK_HEIGHT, fields, values);
+            } else if (tag == TAG_DATE_TIME) {
+                found |= readDateTimeField(jpeg, tiff, end, entry, little, QUICK_DATE_TIME,
+                        fields, values);
+            } else if (tag == TAG_EXIF_IFD) {
+                exifIfd = readOffset(jpeg, tiff, entry + 8, end, little);
+            }
+            if (found == fields || exifIfd >= 0 && (found & ifd0Fields) == ifd0Fields) {
+                break;
+            }
+        }
+        int exifFields = fields & QUICK_EXIF_IFD_FIELDS & ~found;
+        if (exifFields == 0 || exifIfd < 0) {
+            return found;
+        }
+
+        int exifFound = 0;
+        count = readUnsignedShort(jpeg, exifIfd, little);
+        for (int i = 0, entry = exifIfd + OFFSET_SIZE; i < count; i++, entry += TAG_SIZE) {
+            if (entry + TAG_SIZE > end) {
+                break;
+            }
+            short tag = (short) readUnsignedShort(jpeg, entry, little);
+            if (tag == TAG_PIXEL_X_DIMENSION) {
+                exifFound |= readIntField(jpeg, entry, little, QUICK_WIDTH, exifFields, values);
+            } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                exifFound |= readIntField(jpeg, entry, little, QUICK_HEIGHT, exifFields, values);
+            } else if (tag == TAG_DATE_TIME_ORIGINAL) {
+                exifFound |= readDateTimeField(jpeg, tiff, end, entry, little,
+                        QUICK_DATE_TIME_ORIGINAL, exifFields, values);
+            }
+            if (exifFound == exifFields) {
+                break;
+            }
+        }
+        return found | exifFound;
+    }
+
+    /* Returns the position of the TIFF header of the Exif APP1 segment, or -1 */
+    private static int findTiffStart(byte[] jpeg, int offset, int end) {
+        if (end - offset < 4 || (short) readUnsignedShort(jpeg, offset, false) != JpegHeader.SOI) {
+            return -1;
+        }
+        int pos = offset + 2;
+        while (pos + 4 <= end) {
+            short marker = (short) readUnsignedShort(jpeg, pos, false);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return -1;
+            }
+            int length = readUnsignedShort(jpeg, pos + 2, false);
+            if (marker == JpegHeader.APP1 && length >= 8 && pos + 10 <= end
+                    && (int) readUnsignedInt(jpeg, pos + 4, false) == EXIF_HEADER
+                    && readUnsignedShort(jpeg, pos + 8, false) == EXIF_HEADER_TAIL) {
+                return pos + 10;
+            }
+            if (length < 2) {
+                return -1;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    /* Stores an inline SHORT or LONG value, returns the field bit when it is wanted */
+    private static int readIntField(byte[] b, int entry, boolean little, int field, int fields,
+            long[] values) {
+        if ((fields & (1 << field)) == 0) {
+            return 0;
+        }
+        int type = readUnsignedShort(b, entry + 2, little);
+        if (type == ExifTag.TYPE_UNSIGNED_SHORT) {
+            values[field] = readUnsignedShort(b, entry + 8, little);
+        } else if (type == ExifTag.TYPE_UNSIGNED_LONG) {
+            values[field] = readUnsignedInt(b, entry + 8, little);
+        } else {
+            return 0;
+        }
+        return 1 << field;
+    }
+
+    /* Stores an ASCII "yyyy:MM:dd HH:mm:ss" value as yyyyMMddHHmmss */
+    private static int readDateTimeField(byte[] b, int tiff, int end, int entry, boolean little,
+            int field, int fields, long[] values) {
+        if ((fields & (1 << field)) == 0
+                || readUnsignedShort(b, entry + 2, little) != ExifTag.TYPE_ASCII
+                || readUnsignedInt(b, entry + 4, little) < 19) {
+            return 0;
+        }
+        int pos = readOffset(b, tiff, entry + 8, end, little);
+        if (pos < 0 || pos + 19 > end) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = 0; i < 19; i++) {
+            int c = b[pos + i];
+            if (i == 4 || i == 7 || i == 10 || i == 13 || i == 16) {
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            value = value * 10 + (c - '0');
+        }
+        values[field] = value;
+        return 1 << field;
+    }
+
+    /* Resolves an offset relative to the TIFF header, or -1 when it is out of bounds */
+    private static int readOffset(byte[] b, int tiff, int pos, int end, boolean little) {
+        long offset = readUnsignedInt(b, pos, little);
+        if (offset < DEFAULT_IFD0_OFFSET || offset > end - tiff - OFFSET_SIZE) {
+            return -1;
+        }
+        return tiff + (int) offset;
+    }
+
+    private static int readUnsignedShort(byte[] b, int pos, boolean little) {
+        int b0 = b[pos] & 0xff;
+        int b1 = b[pos + 1] & 0xff;
+        return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readUnsignedInt(byte[] b, int pos, boolean little) {
+        long hi = readUnsignedShort(b, little ? pos + 2 : pos, little);
+        long lo = readUnsignedShort(b, little ? pos : pos + 2, little);
+        return (hi << 16) | lo;
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+
+/**
+ * A JPEG with its Exif header replaced, described as pieces instead of a
+ * copy: [SOI][new APP1][segments before the old APP1][rest of the JPEG].
+ * <p>
+ * Only the APP1 segment is serialized. The image data stays in the caller's
+ * array and is copied once into the destination, or not at all when written
+ * to a channel with a gathering write. The result is byte for byte what
+ * {@link ExifOutputStream} produces for the same input.
+ * <p>
+ * The source array must not be modified while the splice is in use.
+ */
+public class ExifSplice {
+    private static final int CHANNEL_WINDOW_SIZE = 256 * 1024;
+    private static final int CHANNEL_WINDOWS_PER_WRITE = 8;
+
+    private final byte[] mApp1;
+    private final byte[] mJpeg;
+    private final int mHeadOffset;
+    private final int mHeadLength;
+    private final int mTailOffset;
+    private final int mTailLength;
+
+    /**
+     * @param app1 the serialized APP1 segment including its marker, may be
+     *            empty to just drop the old one.
+     */
+    ExifSplice(byte[] app1, byte[] jpeg, int offset, int length) throws IOException {
+        if (length < 2 || offset < 0 || offset + length > jpeg.length) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        if (readShort(jpeg, offset) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        mApp1 = app1;
+        mJpeg = jpeg;
+
+        // Same walk as ExifOutputStream: copy segments up to the first APP1,
+        // which is dropped, or up to SOF; everything after goes as is.
+        int end = offset + length;
+        int pos = offset + 2;
+        int skipStart = end;
+        int skipEnd = end;
+        while (pos + 4 <= end) {
+            short marker = readShort(jpeg, pos);
+            if (marker == JpegHeader.APP1) {
+                skipStart = pos;
+                skipEnd = Math.min(end, pos + 2 + (readShort(jpeg, pos + 2) & 0xffff));
+                break;
+            }
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            pos += 2 + (readShort(jpeg, pos + 2) & 0xffff);
+        }
+        mHeadOffset = offset + 2;
+        mHeadLength = Math.min(skipStart, end) - mHeadOffset;
+        mTailOffset = skipEnd;
+        mTailLength = end - skipEnd;
+    }
+
+    private static short readShort(byte[] data, int pos) {
+        return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+    }
+
+    /** Size of the resulting JPEG in bytes. */
+    public int size() {
+        return 2 + mApp1.length + mHeadLength + mTailLength;
+    }
+
+    /** Size of the new APP1 segment including its marker. */
+    public int getApp1Size() {
+        return mApp1.length;
+    }
+
+    /**
+     * Copies the resulting JPEG into dst, which needs {@link #size()} bytes
+     * from dstOffset on. Returns the number of bytes written.
+     */
+    public int writeTo(byte[] dst, int dstOffset) {
+        int pos = dstOffset;
+        dst[pos++] = (byte) (JpegHeader.SOI >> 8);
+        dst[pos++] = (byte) JpegHeader.SOI;
+        System.arraycopy(mApp1, 0, dst, pos, mApp1.length);
+        pos += mApp1.length;
+        System.arraycopy(mJpeg, mHeadOffset, dst, pos, mHeadLength);
+        pos += mHeadLength;
+        System.arraycopy(mJpeg, mTailOffset, dst, pos, mTailLength);
+        pos += mTailLength;
+        return pos - dstOffset;
+    }
+
+    /** Returns the resulting JPEG in an array of exactly {@link #size()} bytes. */
+    public byte[] toByteArray() {
+        byte[] out = new byte[size()];
+        writeTo(out, 0);
+        return out;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(getHeader());
+        out.write(mJpeg, mHeadOffset, mHeadLength);
+        out.write(mJpeg, mTailOffset, mTailLength);
+    }
+
+    /**
+     * Writes the resulting JPEG to the channel with gathering writes, the
+     * image data goes straight from the source array. Returns the number of
+     * bytes written.
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        return writeFully(channel, getBuffers());
+    }
+
+    /**
+     * Writes all remaining bytes of the buffers to the channel with gathering
+     * writes and returns their number. Large buffers go in bounded windows, a
+     * few per call, so a channel that stages heap buffers in temporary direct
+     * ones never stages them all at once.
+     */
+    public static long writeFully(GatheringByteChannel channel, ByteBuffer[] buffers)
+            throws IOException {
+        ArrayList<ByteBuffer> windowList = new ArrayList<ByteBuffer>();
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.remaining() > CHANNEL_WINDOW_SIZE) {
+                ByteBuffer window = buffer.slice();
+                window.limit(CHANNEL_WINDOW_SIZE);
+                windowList.add(window);
+                buffer.position(buffer.position() + CHANNEL_WINDOW_SIZE);
+            }
+            windowList.add(buffer);
+        }
+        ByteBuffer[] windows = windowList.toArray(new ByteBuffer[windowList.size()]);
+        long written = 0;
+        int first = 0;
+        while (first < windows.length) {
+            long n = channel.write(windows, first,
+                    Math.min(CHANNEL_WINDOWS_PER_WRITE, windows.length - first));
+            if (n < 0) {
+                throw new IOException("Channel closed while writing jpeg");
+            }
+            written += n;
+            while (first < windows.length && !windows[first].hasRemaining()) {
+                first++;
+            }
+        }
+        return written;
+    }
+
+    /** The resulting JPEG as a sequence of buffers wrapping the source. */
+    public ByteBuffer[] getBuffers() {
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(getHeader()),
+                ByteBuffer.wrap(mJpeg, mHeadOffset, mHeadLength),
+                ByteBuffer.wrap(mJpeg, mTailOffset, mTailLength)
+        };
+    }
+
+    private byte[] getHeader() {
+        byte[] header = new byte[2 + mApp1.length];
+        header[0] = (byte) (JpegHeader.SOI >> 8);
+        header[1] = (byte) JpegHeader.SOI;
+        System.arraycopy(mApp1, 0, header, 2, mApp1.length);
+        return header;
+    }
+}
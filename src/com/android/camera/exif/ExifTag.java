@@ -97,7 +97,10 @@ public class ExifTag {
     private int mComponentCountActual;
     // The ifd that this tag should be put in
     private int mIfd;
-    // The value (array of elements of type Tag Type)
+    // The value. A byte[] for the byte, undefined and ascii types. The integer
+    // types keep the raw 32 bits of every element in an int[], the rational
+    // types keep numerator and denominator pairs in an int[], so no value is
+    // held as a graph of boxed or Rational objects.
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
@@ -247,11 +250,7 @@ public class ExifTag {
             return false;
         }
 
-        long[] data = new long[value.length];
-        for (int i = 0; i < value.length; i++) {
-            data[i] = value[i];
-        }
-        mValue = data;
+        mValue = value.clone();
         mComponentCountActual = value.length;
         return true;
     }
@@ -290,7 +289,11 @@ public class ExifTag {
         if (checkOverflowForUnsignedLong(value)) {
             return false;
         }
-        mValue = value;
+        int[] data = new int[value.length];
+        for (int i = 0; i < value.length; i++) {
+            data[i] = (int) value[i];
+        }
+        mValue = data;
         mComponentCountActual = value.length;
         return true;
     }
@@ -373,11 +376,26 @@ public class ExifTag {
             return false;
         }
 
-        mValue = value;
+        int[] data = new int[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            data[i * 2] = (int) value[i].getNumerator();
+            data[i * 2 + 1] = (int) value[i].getDenominator();
+        }
+        mValue = data;
         mComponentCountActual = value.length;
         return true;
     }
 
+    /**
+     * Sets the raw elements read by {@link ExifParser}, taking ownership of
+     * the array. Integer types hold one int per element, rational types a
+     * numerator and denominator pair per element.
+     */
+    void setPackedValue(int[] packed) {
+        mValue = packed;
+        mComponentCountActual = isRationalType() ? packed.length / 2 : packed.length;
+    }
+
     /**
      * Sets a Rational value into this tag. This method should be used for tags
      * of type {@link #TYPE_UNSIGNED_RATIONAL}, or {@link #TYPE_RATIONAL}. This
@@ -603,10 +621,15 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
-        if (mValue instanceof Rational[]) {
-            return (Rational[]) mValue;
+        if (mValue == null || !isRationalType()) {
+            return null;
         }
-        return null;
+        int[] packed = (int[]) mValue;
+        Rational[] r = new Rational[packed.length / 2];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new Rational(unpack(packed[i * 2]), unpack(packed[i * 2 + 1]));
+        }
+        return r;
     }
 
     /**
@@ -619,11 +642,10 @@ public class ExifTag {
      * @return the tag's value as a Rational, or the defaultValue.
      */
     public Rational getValueAsRational(Rational defaultValue) {
-        Rational[] r = getValueAsRationals();
-        if (r == null || r.length < 1) {
+        if (mValue == null || !isRationalType() || ((int[]) mValue).length < 2) {
             return defaultValue;
         }
-        return r[0];
+        return getRational(0);
     }
 
     /**
@@ -649,17 +671,11 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
-        if (mValue == null) {
+        if (mValue == null || !isIntegerType()) {
             return null;
-        } else if (mValue instanceof long[]) {
-            long[] val = (long[]) mValue;
-            int[] arr = new int[val.length];
-            for (int i = 0; i < val.length; i++) {
-                arr[i] = (int) val[i]; // Truncates
-            }
-            return arr;
         }
-        return null;
+        // The raw bits, so unsigned longs above Integer.MAX_VALUE truncate
+        return ((int[]) mValue).clone();
     }
 
     /**
@@ -672,11 +688,10 @@ public class ExifTag {
      * @return the tag's value as a int, or the defaultValue.
      */
     public int getValueAsInt(int defaultValue) {
-        int[] i = getValueAsInts();
-        if (i == null || i.length < 1) {
+        if (mValue == null || !isIntegerType() || ((int[]) mValue).length < 1) {
             return defaultValue;
         }
-        return i[0];
+        return ((int[]) mValue)[0];
     }
 
     /**
@@ -687,10 +702,15 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
-        if (mValue instanceof long[]) {
-            return (long[]) mValue;
+        if (mValue == null || !isIntegerType()) {
+            return null;
         }
-        return null;
+        int[] packed = (int[]) mValue;
+        long[] l = new long[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            l[i] = unpack(packed[i]);
+        }
+        return l;
     }
 
     /**
@@ -703,17 +723,24 @@ public class ExifTag {
      * @return the tag's value as a long, or the defaultValue.
      */
     public long getValueAsLong(long defaultValue) {
-        long[] l = getValueAsLongs();
-        if (l == null || l.length < 1) {
+        if (mValue == null || !isIntegerType() || ((int[]) mValue).length < 1) {
             return defaultValue;
         }
-        return l[0];
+        return unpack(((int[]) mValue)[0]);
     }
 
     /**
-     * Gets the tag's value or null if none exists.
+     * Gets the tag's value or null if none exists. Integer values are returned
+     * as a long[] and rational values as a Rational[].
      */
     public Object getValue() {
+        if (mValue == null) {
+            return null;
+        } else if (isIntegerType()) {
+            return getValueAsLongs();
+        } else if (isRationalType()) {
+            return getValueAsRationals();
+        }
         return mValue;
     }
 
@@ -726,18 +753,21 @@ public class ExifTag {
      *         exists.
      */
     public long forceGetValueAsLong(long defaultValue) {
-        long[] l = getValueAsLongs();
-        if (l != null && l.length >= 1) {
-            return l[0];
+        if (mValue == null) {
+            return defaultValue;
+        } else if (isIntegerType()) {
+            return getValueAsLong(defaultValue);
+        } else if (isRationalType()) {
+            int[] packed = (int[]) mValue;
+            if (packed.length >= 2 && packed[1] != 0) {
+                return (long) (unpack(packed[0]) / (double) unpack(packed[1]));
+            }
+            return defaultValue;
         }
         byte[] b = getValueAsBytes();
         if (b != null && b.length >= 1) {
             return b[0];
         }
-        Rational[] r = getValueAsRationals();
-        if (r != null && r.length >= 1 && r[0].getDenominator() != 0) {
-            return (long) r[0].toDouble();
-        }
         return defaultValue;
     }
 
@@ -753,22 +783,17 @@ public class ExifTag {
             } else {
                 return Arrays.toString((byte[]) mValue);
             }
-        } else if (mValue instanceof long[]) {
-            if (((long[]) mValue).length == 1) {
-                return String.valueOf(((long[]) mValue)[0]);
+        } else if (isIntegerType()) {
+            if (((int[]) mValue).length == 1) {
+                return String.valueOf(getValueAt(0));
             } else {
-                return Arrays.toString((long[]) mValue);
+                return Arrays.toString(getValueAsLongs());
             }
-        } else if (mValue instanceof Object[]) {
-            if (((Object[]) mValue).length == 1) {
-                Object val = ((Object[]) mValue)[0];
-                if (val == null) {
-                    return "";
-                } else {
-                    return val.toString();
-                }
+        } else if (isRationalType()) {
+            if (((int[]) mValue).length == 2) {
+                return getRational(0).toString();
             } else {
-                return Arrays.toString((Object[]) mValue);
+                return Arrays.toString(getValueAsRationals());
             }
         } else {
             return mValue.toString();
@@ -786,8 +811,8 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     public long getValueAt(int index) {
-        if (mValue instanceof long[]) {
-            return ((long[]) mValue)[index];
+        if (mValue instanceof int[] && isIntegerType()) {
+            return unpack(((int[]) mValue)[index]);
         } else if (mValue instanceof byte[]) {
             return ((byte[]) mValue)[index];
         }
@@ -827,7 +852,39 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
         }
-        return ((Rational[]) mValue)[index];
+        int[] packed = (int[]) mValue;
+        return new Rational(unpack(packed[index * 2]), unpack(packed[index * 2 + 1]));
+    }
+
+    /**
+     * Gets the raw 32 bits of an element of an integer tag, or of the
+     * numerator (even index) or denominator (odd index) of a rational tag,
+     * as they are written to the file.
+     */
+    int getPackedValueAt(int index) {
+        return ((int[]) mValue)[index];
+    }
+
+    /* True if the value is of an integer type and has at least one element */
+    boolean hasIntegerValue() {
+        return mValue != null && isIntegerType() && ((int[]) mValue).length > 0;
+    }
+
+    private boolean isIntegerType() {
+        return mDataType == TYPE_UNSIGNED_SHORT || mDataType == TYPE_UNSIGNED_LONG
+                || mDataType == TYPE_LONG;
+    }
+
+    private boolean isRationalType() {
+        return mDataType == TYPE_UNSIGNED_RATIONAL || mDataType == TYPE_RATIONAL;
+    }
+
+    /* Widens a packed element, only the signed types keep their sign */
+    private long unpack(int value) {
+        if (mDataType == TYPE_LONG || mDataType == TYPE_RATIONAL) {
+            return value;
+        }
+        return value & 0xffffffffL;
     }
 
     /**
@@ -973,16 +1030,11 @@ public class ExifTag {
             if (mValue != null) {
                 if (tag.mValue == null) {
                     return false;
-                } else if (mValue instanceof long[]) {
-                    if (!(tag.mValue instanceof long[])) {
-                        return false;
-                    }
-                    return Arrays.equals((long[]) mValue, (long[]) tag.mValue);
-                } else if (mValue instanceof Rational[]) {
-                    if (!(tag.mValue instanceof Rational[])) {
+                } else if (mValue instanceof int[]) {
+                    if (!(tag.mValue instanceof int[])) {
                         return false;
                     }
-                    return Arrays.equals((Rational[]) mValue, (Rational[]) tag.mValue);
+                    return Arrays.equals((int[]) mValue, (int[]) tag.mValue);
                 } else if (mValue instanceof byte[]) {
                     if (!(tag.mValue instanceof byte[])) {
                         return false;
@@ -16,19 +16,24 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * This class stores all the tags in an IFD.
+ * <p>
+ * Tags are kept in an open addressing table keyed by the primitive tag id,
+ * so neither lookups nor insertions box the id or allocate map entries.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    // Slot i is in use when mTags[i] != null, with its key in mTagIds[i].
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -52,10 +57,26 @@ class IfdData {
     }
 
     /**
-     * Get a array the contains all {@link ExifTag} in this IFD.
+     * Get a array the contains all {@link ExifTag} in this IFD, sorted by
+     * ascending tag id as the IFD entries have to be written.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        ExifTag[] tags = new ExifTag[mTagCount];
+        int n = 0;
+        for (ExifTag tag : mTags) {
+            if (tag == null) {
+                continue;
+            }
+            // Insertion sort, an IFD holds a few dozen tags at most.
+            int unsignedId = tag.getTagId() & 0xffff;
+            int i = n++;
+            while (i > 0 && (tags[i - 1].getTagId() & 0xffff) > unsignedId) {
+                tags[i] = tags[i - 1];
+                i--;
+            }
+            tags[i] = tag;
+        }
+        return tags;
     }
 
     /**
@@ -76,7 +97,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int slot = findSlot(tagId);
+        return slot < 0 ? null : mTags[slot];
     }
 
     /**
@@ -84,25 +106,97 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        short tagId = tag.getTagId();
+        int mask = mTags.length - 1;
+        int slot = hash(tagId) & mask;
+        while (mTags[slot] != null) {
+            if (mTagIds[slot] == tagId) {
+                ExifTag old = mTags[slot];
+                mTags[slot] = tag;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mTagIds[slot] = tagId;
+        mTags[slot] = tag;
+        mTagCount++;
+        // Keep the load factor at or below 1/2 so probe runs stay short.
+        if (mTagCount * 2 > mTags.length) {
+            resize(mTags.length * 2);
+        }
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return findSlot(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int slot = findSlot(tagId);
+        if (slot < 0) {
+            return;
+        }
+        // Backward shift deletion: pull later entries of the probe run into
+        // the hole so lookups never need tombstones.
+        int mask = mTags.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mTags[next] != null) {
+            int home = hash(mTagIds[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mTagIds[hole] = mTagIds[next];
+                mTags[hole] = mTags[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mTags[hole] = null;
+        mTagCount--;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    private static int hash(short tagId) {
+        int h = (tagId & 0xffff) * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(short tagId) {
+        int mask = mTags.length - 1;
+        int slot = hash(tagId) & mask;
+        while (mTags[slot] != null) {
+            if (mTagIds[slot] == tagId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        short[] oldIds = mTagIds;
+        ExifTag[] oldTags = mTags;
+        mTagIds = new short[capacity];
+        mTags = new ExifTag[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldTags.length; i++) {
+            if (oldTags[i] != null) {
+                int slot = hash(oldIds[i]) & mask;
+                while (mTags[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                mTagIds[slot] = oldIds[i];
+                mTags[slot] = oldTags[i];
+            }
+        }
     }
 
     /**
@@ -139,7 +233,7 @@ class IfdData {
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+/**
+ * Open addressing map from a defined tag constant to its packed tag info.
+ * A missing key reads as {@link ExifInterface#DEFINITION_NULL}, so a slot is
+ * in use exactly when its info is non-zero; every real definition has a
+ * non-zero type.
+ */
+class TagInfoMap {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] mKeys;
+    private int[] mInfos;
+    private int mSize;
+
+    TagInfoMap() {
+        mKeys = new int[INITIAL_CAPACITY];
+        mInfos = new int[INITIAL_CAPACITY];
+    }
+
+    private TagInfoMap(TagInfoMap other) {
+        mKeys = other.mKeys.clone();
+        mInfos = other.mInfos.clone();
+        mSize = other.mSize;
+    }
+
+    TagInfoMap copy() {
+        return new TagInfoMap(this);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int get(int key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mInfos[slot] != ExifInterface.DEFINITION_NULL) {
+            if (mKeys[slot] == key) {
+                return mInfos[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ExifInterface.DEFINITION_NULL;
+    }
+
+    void put(int key, int info) {
+        if (info == ExifInterface.DEFINITION_NULL) {
+            delete(key);
+            return;
+        }
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mInfos[slot] != ExifInterface.DEFINITION_NULL) {
+            if (mKeys[slot] == key) {
+                mInfos[slot] = info;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mInfos[slot] = info;
+        if (++mSize * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+    }
+
+    void delete(int key) {
+        int mask = mKeys.length - 1;
+        int hole = hash(key) & mask;
+        while (mInfos[hole] != ExifInterface.DEFINITION_NULL && mKeys[hole] != key) {
+            hole = (hole + 1) & mask;
+        }
+        if (mInfos[hole] == ExifInterface.DEFINITION_NULL) {
+            return;
+        }
+        // Backward shift deletion, see IfdData#removeTag.
+        int next = (hole + 1) & mask;
+        while (mInfos[next] != ExifInterface.DEFINITION_NULL) {
+            int home = hash(mKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mInfos[hole] = mInfos[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mInfos[hole] = ExifInterface.DEFINITION_NULL;
+        mSize--;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = mKeys;
+        int[] oldInfos = mInfos;
+        mKeys = new int[capacity];
+        mInfos = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldInfos[i] != ExifInterface.DEFINITION_NULL) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (mInfos[slot] != ExifInterface.DEFINITION_NULL) {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = oldKeys[i];
+                mInfos[slot] = oldInfos[i];
+            }
+        }
+    }
+}
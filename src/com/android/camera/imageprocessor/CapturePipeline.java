@@ -0,0 +1,467 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chain of processing stages for captured shots, each with its own worker
+ * threads and a bounded queue in front of it.
+ *
+ * A stage blocks when the queue of the next stage is full, so a slow stage
+ * holds back the ones before it instead of letting shots pile up in memory;
+ * submit() blocks the same way. A stage can also be gated on an external
+ * condition such as the save queue being full. Ordered stages run on a
+ * single thread and see the shots in submission order even when an earlier
+ * stage has several workers.
+ *
+ * Every submitted job is handed to the Recycler exactly once, after the
+ * last stage, after a stage failed, or when the pipeline is closed.
+ * awaitIdle() before close() lets the jobs already submitted finish;
+ * closeWhenIdle() does the same on a thread of its own.
+ */
+public class CapturePipeline<T> {
+    private static final String TAG = "CapturePipeline";
+    private static final long GATE_TIMEOUT_MS = 10000;
+
+    public interface Stage<T> {
+        void process(T job) throws Exception;
+    }
+
+    /* A closed gate is checked again on signalGate(), or when it times out */
+    public interface Gate {
+        boolean isOpen();
+    }
+
+    public interface Recycler<T> {
+        void recycle(T job, boolean completed);
+    }
+
+    private static class Envelope<T> {
+        final long seq;
+        final T job;
+        final long submittedAt;
+        long enqueuedAt;
+        boolean failed;
+
+        Envelope(long seq, T job) {
+            this.seq = seq;
+            this.job = job;
+            submittedAt = System.nanoTime();
+        }
+    }
+
+    private final String mName;
+    private final Recycler<T> mRecycler;
+    private final List<StageRunner> mStages = new ArrayList<StageRunner>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final LatencyHistogram mTotalLatency;
+    private volatile boolean mStarted;
+    private volatile boolean mClosed;
+    private volatile boolean mDraining;
+    private final Object mGateLock = new Object();
+    private final Object mIdleLock = new Object();
+    // Submitted jobs not recycled yet, guarded by mIdleLock
+    private int mInFlight;
+    // Jobs submitted while draining, queued by the drain thread, guarded by mIdleLock
+    private final ArrayDeque<Envelope<T>> mLate = new ArrayDeque<Envelope<T>>();
+
+    public CapturePipeline(String name, Recycler<T> recycler) {
+        mName = name;
+        mRecycler = recycler;
+        mTotalLatency = new LatencyHistogram(name + " total");
+    }
+
+    public CapturePipeline<T> addStage(String name, int workers, int capacity, Stage<T> stage) {
+        return add(new StageRunner(name, workers, capacity, false, null, stage));
+    }
+
+    public CapturePipeline<T> addOrderedStage(String name, int capacity, Gate gate, Stage<T> stage) {
+        return add(new StageRunner(name, 1, capacity, true, gate, stage));
+    }
+
+    private CapturePipeline<T> add(StageRunner runner) {
+        if (mStarted) {
+            throw new IllegalStateException("Stages must be added before start()");
+        }
+        if (!mStages.isEmpty()) {
+            mStages.get(mStages.size() - 1).mNext = runner;
+        }
+        mStages.add(runner);
+        return this;
+    }
+
+    public void start() {
+        if (mStages.isEmpty()) {
+            throw new IllegalStateException("No stage is added");
+        }
+        mStarted = true;
+        for (StageRunner stage : mStages) {
+            stage.start();
+        }
+    }
+
+    /**
+     * Queues the job for the first stage, blocking while that stage is full
+     * unless stopBlockingSubmits() was called.
+     * Returns false if the pipeline is closed, the job is recycled then.
+     */
+    public boolean submit(T job) {
+        Envelope<T> envelope = new Envelope<T>(mSequence.getAndIncrement(), job);
+        synchronized (mIdleLock) {
+            mInFlight++;
+            if (mDraining && !mClosed) {
+                mLate.add(envelope);
+                mIdleLock.notifyAll();
+                return true;
+            }
+        }
+        if (mClosed || !mStarted) {
+            // Keep the sequence contiguous for the ordered stages.
+            envelope.failed = true;
+        }
+        boolean queued = mStages.get(0).enqueue(envelope);
+        return queued && !envelope.failed;
+    }
+
+    /* Wakes up a stage waiting on its gate, call when the gate may have opened */
+    public void signalGate() {
+        synchronized (mGateLock) {
+            mGateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for every submitted job to be recycled, for at most timeoutMs.
+     * Returns false if some are still in flight, close() drops them then.
+     */
+    public boolean awaitIdle(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mIdleLock) {
+            try {
+                while (mInFlight > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    mIdleLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* From now on submit() returns at once, the jobs wait for closeWhenIdle() */
+    public void stopBlockingSubmits() {
+        synchronized (mIdleLock) {
+            mDraining = true;
+        }
+    }
+
+    /**
+     * Lets the submitted jobs finish for at most timeoutMs, then closes the
+     * pipeline and runs onClosed, all on a new thread so the caller is not held.
+     */
+    public void closeWhenIdle(final long timeoutMs, final Runnable onClosed) {
+        stopBlockingSubmits();
+        new Thread(mName + "-drain") {
+            @Override
+            public void run() {
+                if (!drain(timeoutMs)) {
+                    Log.w(TAG, mName + ": dropping jobs still in flight");
+                }
+                close();
+                if (onClosed != null) {
+                    onClosed.run();
+                }
+            }
+        }.start();
+    }
+
+    /* Feeds the late jobs to the first stage until none is in flight */
+    private boolean drain(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                Envelope<T> envelope;
+                synchronized (mIdleLock) {
+                    while ((envelope = mLate.poll()) == null && mInFlight > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        mIdleLock.wait(remaining);
+                    }
+                }
+                if (envelope == null) {
+                    return true;
+                }
+                if (!mStarted) {
+                    envelope.failed = true;
+                }
+                mStages.get(0).enqueue(envelope);
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /* Stops the workers; queued jobs are dropped, running ones are waited for */
+    public void close() {
+        List<Envelope<T>> late;
+        synchronized (mIdleLock) {
+            mClosed = true;
+            late = new ArrayList<Envelope<T>>(mLate);
+            mLate.clear();
+        }
+        for (Envelope<T> envelope : late) {
+            finish(envelope, false);
+        }
+        for (StageRunner stage : mStages) {
+            stage.interrupt();
+        }
+        for (StageRunner stage : mStages) {
+            stage.join();
+        }
+        for (StageRunner stage : mStages) {
+            stage.drain();
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    public List<LatencyHistogram> getHistograms() {
+        List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+        for (StageRunner stage : mStages) {
+            histograms.add(stage.mWaitLatency);
+            histograms.add(stage.mProcessLatency);
+        }
+        histograms.add(mTotalLatency);
+        return histograms;
+    }
+
+    public void dumpStats() {
+        for (LatencyHistogram histogram : getHistograms()) {
+            Log.d(TAG, histogram.toString());
+        }
+    }
+
+    private void finish(Envelope<T> envelope, boolean completed) {
+        if (completed) {
+            mTotalLatency.record(System.nanoTime() - envelope.submittedAt);
+        }
+        try {
+            mRecycler.recycle(envelope.job, completed);
+        } catch (RuntimeException e) {
+            Log.e(TAG, mName + ": recycling failed", e);
+        }
+        synchronized (mIdleLock) {
+            if (--mInFlight == 0) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    private class StageRunner implements Runnable {
+        final String mStageName;
+        final Stage<T> mStage;
+        final Gate mGate;
+        final boolean mOrdered;
+        final BlockingQueue<Envelope<T>> mQueue;
+        final Thread[] mThreads;
+        final LatencyHistogram mWaitLatency;
+        final LatencyHistogram mProcessLatency;
+        // Only touched by the single worker of an ordered stage, and by
+        // close() once that worker is gone.
+        final TreeMap<Long, Envelope<T>> mPending = new TreeMap<Long, Envelope<T>>();
+        long mNextSeq;
+        StageRunner mNext;
+
+        StageRunner(String name, int workers, int capacity, boolean ordered, Gate gate,
+                    Stage<T> stage) {
+            mStageName = name;
+            mStage = stage;
+            mGate = gate;
+            mOrdered = ordered;
+            mQueue = new ArrayBlockingQueue<Envelope<T>>(Math.max(1, capacity));
+            mThreads = new Thread[Math.max(1, workers)];
+            mWaitLatency = new LatencyHistogram(mName + " " + name + " wait");
+            mProcessLatency = new LatencyHistogram(mName + " " + name);
+        }
+
+        void start() {
+            for (int i = 0; i < mThreads.length; i++) {
+                mThreads[i] = new Thread(this, mName + "-" + mStageName + "-" + i);
+                mThreads[i].start();
+            }
+        }
+
+        void interrupt() {
+            for (Thread thread : mThreads) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        void join() {
+            for (Thread thread : mThreads) {
+                if (thread == null || thread == Thread.currentThread()) {
+                    continue;
+                }
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        void drain() {
+            Envelope<T> envelope;
+            while ((envelope = mQueue.poll()) != null) {
+                finish(envelope, false);
+            }
+            for (Envelope<T> pending : mPending.values()) {
+                finish(pending, false);
+            }
+            mPending.clear();
+        }
+
+        /* Returns false if the job was recycled instead of queued */
+        boolean enqueue(Envelope<T> envelope) {
+            envelope.enqueuedAt = System.nanoTime();
+            try {
+                while (!mClosed) {
+                    if (mQueue.offer(envelope, 100, TimeUnit.MILLISECONDS)) {
+                        if (mClosed && mQueue.remove(envelope)) {
+                            // Lost the race with close(), which already drained.
+                            break;
+                        }
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finish(envelope, false);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mClosed) {
+                    Envelope<T> envelope = mQueue.take();
+                    if (!mOrdered) {
+                        handle(envelope);
+                        continue;
+                    }
+                    mPending.put(envelope.seq, envelope);
+                    while ((envelope = mPending.remove(mNextSeq)) != null) {
+                        mNextSeq++;
+                        handle(envelope);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            }
+        }
+
+        private void handle(Envelope<T> envelope) throws InterruptedException {
+            if (mClosed) {
+                finish(envelope, false);
+                throw new InterruptedException();
+            }
+            if (!envelope.failed) {
+                long start = System.nanoTime();
+                try {
+                    // Time spent on a closed gate counts as waiting.
+                    awaitGate();
+                    start = System.nanoTime();
+                    mWaitLatency.record(start - envelope.enqueuedAt);
+                    mStage.process(envelope.job);
+                } catch (InterruptedException e) {
+                    finish(envelope, false);
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, mName + ": " + mStageName + " failed", e);
+                    envelope.failed = true;
+                }
+                mProcessLatency.record(System.nanoTime() - start);
+            }
+            if (mNext != null) {
+                if (!mNext.enqueue(envelope)) {
+                    throw new InterruptedException();
+                }
+            } else {
+                finish(envelope, !envelope.failed);
+            }
+        }
+
+        private void awaitGate() throws InterruptedException {
+            if (mGate == null || mGate.isOpen()) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + GATE_TIMEOUT_MS;
+            synchronized (mGateLock) {
+                while (!mGate.isOpen()) {
+                    if (mClosed) {
+                        throw new InterruptedException();
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        Log.w(TAG, mName + ": " + mStageName + " gate is still closed, going on");
+                        return;
+                    }
+                    mGateLock.wait(remaining);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shared pool of NV21 frame buffers for the post processing path. The
+ * default instance hands out direct buffers for JNI, the heap instance
+ * array-backed ones for filters whose natives write into a byte array.
+ *
+ * Buffers are bucketed by their size rounded up to a page, since a session
+ * keeps asking for the same few frame sizes. Every acquired buffer has to be
+ * released; buffers still out after LEAK_AGE_MS are reported as leaks, unless
+ * they were acquired for a named long-lived owner.
+ * Idle buffers are kept only while the total stays under the high-water cap
+ * (persist.camera.bufpool.max_mb) and are dropped by trim().
+ */
+public class FrameBufferPool {
+    private static final String TAG = "FrameBufferPool";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+    private static final int BUCKET_ALIGNMENT = 4096;
+    private static final long LEAK_AGE_MS = 10000;
+
+    private static FrameBufferPool sInstance;
+    private static FrameBufferPool sHeapInstance;
+
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final IdentityHashMap<ByteBuffer, Lease> mLeases =
+            new IdentityHashMap<ByteBuffer, Lease>();
+    private final long mMaxBytes;
+    private final boolean mDirect;
+    private long mPooledBytes;
+    private long mLeasedBytes;
+    private long mPeakBytes;
+    private long mHits;
+    private long mMisses;
+    private long mDropped;
+
+    private static class Lease {
+        final long acquiredAt;
+        final String thread;
+        final String owner;
+        final Throwable origin;
+
+        Lease(String owner) {
+            this.owner = owner;
+            acquiredAt = SystemClock.uptimeMillis();
+            thread = Thread.currentThread().getName();
+            origin = DEBUG ? new Throwable("Acquired here") : null;
+        }
+    }
+
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long dropped;
+        public long leasedBytes;
+        public long pooledBytes;
+        public long peakBytes;
+        public int leasedCount;
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " dropped=" + dropped
+                    + " leased=" + leasedCount + "/" + leasedBytes + "B"
+                    + " pooled=" + pooledBytes + "B peak=" + peakBytes + "B";
+        }
+    }
+
+    public static synchronized FrameBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new FrameBufferPool(PersistUtil.getBufferPoolMaxSize() * 1024L * 1024L);
+        }
+        return sInstance;
+    }
+
+    /* Heap buffers count against the Java heap, so they get a quarter of the cap */
+    public static synchronized FrameBufferPool getHeapInstance() {
+        if (sHeapInstance == null) {
+            sHeapInstance = new FrameBufferPool(
+                    PersistUtil.getBufferPoolMaxSize() * 1024L * 1024L / 4, false);
+        }
+        return sHeapInstance;
+    }
+
+    public FrameBufferPool(long maxBytes) {
+        this(maxBytes, true);
+    }
+
+    public FrameBufferPool(long maxBytes, boolean direct) {
+        mMaxBytes = maxBytes;
+        mDirect = direct;
+    }
+
+    private static int bucketSize(int size) {
+        return (size + BUCKET_ALIGNMENT - 1) / BUCKET_ALIGNMENT * BUCKET_ALIGNMENT;
+    }
+
+    /* Returns a buffer of at least size bytes, limited to size */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, null);
+    }
+
+    /**
+     * Same as acquire(int), for a buffer the owner keeps across captures,
+     * such as a cached reference frame. It is left out of the leak check.
+     */
+    public ByteBuffer acquire(int size, String owner) {
+        int bucket = bucketSize(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(bucket);
+            if (free != null && !free.isEmpty()) {
+                buffer = free.poll();
+                mPooledBytes -= bucket;
+                mHits++;
+            } else {
+                mMisses++;
+                evictLocked(mMaxBytes - bucket - mLeasedBytes);
+            }
+        }
+        if (buffer == null) {
+            buffer = mDirect ? ByteBuffer.allocateDirect(bucket) : ByteBuffer.allocate(bucket);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        synchronized (this) {
+            mLeases.put(buffer, new Lease(owner));
+            mLeasedBytes += bucket;
+            mPeakBytes = Math.max(mPeakBytes, mLeasedBytes + mPooledBytes);
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int bucket = buffer.capacity();
+        synchronized (this) {
+            if (mLeases.remove(buffer) == null) {
+                Log.w(TAG, "Releasing a buffer that is not leased from the pool");
+                return;
+            }
+            mLeasedBytes -= bucket;
+            if (mLeasedBytes + mPooledBytes + bucket > mMaxBytes) {
+                mDropped++;
+                return;
+            }
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(bucket);
+            if (free == null) {
+                free = new ArrayDeque<ByteBuffer>();
+                mFreeBuffers.put(bucket, free);
+            }
+            free.push(buffer);
+            mPooledBytes += bucket;
+        }
+    }
+
+    public synchronized boolean isLeased(ByteBuffer buffer) {
+        return mLeases.containsKey(buffer);
+    }
+
+    /* Drops idle buffers until no more than target bytes stay pooled */
+    private void evictLocked(long target) {
+        Iterator<Map.Entry<Integer, ArrayDeque<ByteBuffer>>> it =
+                mFreeBuffers.entrySet().iterator();
+        while (mPooledBytes > Math.max(0, target) && it.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = it.next();
+            ArrayDeque<ByteBuffer> free = entry.getValue();
+            while (!free.isEmpty() && mPooledBytes > Math.max(0, target)) {
+                free.poll();
+                mPooledBytes -= entry.getKey();
+                mDropped++;
+            }
+            if (free.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /* Frees every idle buffer and reports what is still leased */
+    public void trim() {
+        synchronized (this) {
+            evictLocked(0);
+            mFreeBuffers.clear();
+            mPooledBytes = 0;
+        }
+        checkLeaks(LEAK_AGE_MS);
+        if (DEBUG) Log.d(TAG, "trim: " + getStats());
+    }
+
+    /* Logs buffers leased for longer than maxAgeMs without an owner and returns their count */
+    public int checkLeaks(long maxAgeMs) {
+        int leaks = 0;
+        long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            for (Map.Entry<ByteBuffer, Lease> entry : mLeases.entrySet()) {
+                Lease lease = entry.getValue();
+                if (lease.owner == null && now - lease.acquiredAt >= maxAgeMs) {
+                    leaks++;
+                    Log.w(TAG, "Buffer of " + entry.getKey().capacity() + " bytes leased by "
+                            + lease.thread + " for " + (now - lease.acquiredAt) + "ms",
+                            lease.origin);
+                }
+            }
+        }
+        return leaks;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = mHits;
+        stats.misses = mMisses;
+        stats.dropped = mDropped;
+        stats.leasedBytes = mLeasedBytes;
+        stats.pooledBytes = mPooledBytes;
+        stats.peakBytes = mPeakBytes;
+        stats.leasedCount = mLeases.size();
+        return stats;
+    }
+}
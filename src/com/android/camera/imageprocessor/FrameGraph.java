@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Graph of preview processing nodes that run on an executor.
+ *
+ * Frames pushed into the graph go to every source node and from there along
+ * the edges to the downstream nodes. Every node holds at most one pending
+ * frame: a frame that arrives while the previous one is still pending
+ * replaces it, so a slow node drops frames instead of adding latency. A node
+ * never runs concurrently with itself, but different nodes do, so one frame
+ * can be rendered while the next one is being filtered.
+ *
+ * Frames are reference counted. Camera frames wrap a YuvFrame and close its
+ * Image on the last release; frames created by nodes come from a pool of
+ * recycled arrays shared by the whole graph.
+ */
+public class FrameGraph {
+    private static final String TAG = "FrameGraph";
+    private static final int MAX_POOLED_PER_SIZE = 4;
+
+    /* Planes of a YuvFrame, NV21 layout */
+    public static final int FORMAT_YUV = 0;
+    /* Contiguous NV21, VU plane at stride * height */
+    public static final int FORMAT_NV21 = 1;
+    /* RGBA bytes, stride is the row length in bytes */
+    public static final int FORMAT_RGBA = 2;
+
+    public static class Frame {
+        private final FrameGraph mGraph;
+        private final YuvFrame mYuv;
+        private final byte[] mData;
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mStride;
+        private final long mTimestamp;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+        private Frame(FrameGraph graph, YuvFrame yuv, byte[] data, int format, int width,
+                      int height, int stride, long timestamp) {
+            mGraph = graph;
+            mYuv = yuv;
+            mData = data;
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mStride = stride;
+            mTimestamp = timestamp;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        /* Camera frame behind a FORMAT_YUV frame, null otherwise */
+        public YuvFrame getYuv() {
+            return mYuv;
+        }
+
+        /* Pixels of a FORMAT_NV21 or FORMAT_RGBA frame, null otherwise */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getStride() {
+            return mStride;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public Frame retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Frame is already released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                if (mYuv != null) {
+                    mYuv.release();
+                } else {
+                    mGraph.recycle(mData);
+                }
+            } else if (count < 0) {
+                throw new IllegalStateException("Frame is released too many times");
+            }
+        }
+    }
+
+    public abstract static class Node implements Runnable {
+        private final String mName;
+        private final List<Node> mOutputs = new ArrayList<Node>();
+        private final AtomicLong mProcessed = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mSkipped = new AtomicLong();
+        private final AtomicLong mBusyNs = new AtomicLong();
+        private FrameGraph mGraph;
+        private Frame mPending;
+        private long mPendingSince;
+        private long mQueuedAt;
+        private boolean mScheduled;
+
+        protected Node(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Processes one frame and returns the frame for the downstream nodes:
+         * in itself, a frame from obtain(), or null to stop here. The graph
+         * releases in once this returns.
+         */
+        protected abstract Frame process(Frame in);
+
+        /* System.nanoTime() when the frame in process() was queued for this node */
+        protected final long getQueuedTime() {
+            return mQueuedAt;
+        }
+
+        /* Called on the delivering thread before a frame is queued; a node that
+           only wants some of the frames returns false for the others */
+        protected boolean accept(Frame frame) {
+            return true;
+        }
+
+        /* Called from FrameGraph.stop() once this node has stopped running */
+        protected void onStop() {
+        }
+
+        /* Frame from the graph's pool for a format, see the FORMAT_ constants */
+        protected final Frame obtain(int format, int width, int height, int stride,
+                                     long timestamp) {
+            int size = format == FORMAT_RGBA ? stride * height : stride * height * 3 / 2;
+            return new Frame(mGraph, null, mGraph.acquire(size), format, width, height, stride,
+                    timestamp);
+        }
+
+        /* Takes over the reference the caller holds on frame */
+        private void deliver(Frame frame) {
+            if (!accept(frame)) {
+                mSkipped.incrementAndGet();
+                frame.release();
+                return;
+            }
+            Frame dropped;
+            boolean schedule;
+            synchronized (this) {
+                if (mGraph.mStopped) {
+                    frame.release();
+                    return;
+                }
+                dropped = mPending;
+                mPending = frame;
+                mPendingSince = System.nanoTime();
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (dropped != null) {
+                mDropped.incrementAndGet();
+                dropped.release();
+            }
+            if (schedule) {
+                mGraph.schedule(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mPending;
+                    mPending = null;
+                    if (frame == null) {
+                        mScheduled = false;
+                        break;
+                    }
+                    mQueuedAt = mPendingSince;
+                }
+                Frame out = null;
+                long start = System.nanoTime();
+                try {
+                    out = process(frame);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, mName + " failed to process a frame", e);
+                }
+                mBusyNs.addAndGet(System.nanoTime() - start);
+                mProcessed.incrementAndGet();
+                if (out != null) {
+                    for (Node node : mOutputs) {
+                        node.deliver(out.retain());
+                    }
+                    if (out != frame) {
+                        out.release();
+                    }
+                }
+                frame.release();
+            }
+            mGraph.onIdle();
+        }
+    }
+
+    public static class Stats {
+        public long pushed;
+        public String[] names;
+        public long[] processed;
+        public long[] dropped;
+        public long[] skipped;
+        public double[] meanMs;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("pushed=").append(pushed);
+            for (int i = 0; i < names.length; i++) {
+                sb.append(String.format(" %s[done=%d dropped=%d skipped=%d %.2fms]", names[i],
+                        processed[i], dropped[i], skipped[i], meanMs[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Executor mExecutor;
+    private final List<Node> mNodes = new ArrayList<Node>();
+    private final List<Node> mSources = new ArrayList<Node>();
+    private final HashMap<Integer, ArrayDeque<byte[]>> mPool =
+            new HashMap<Integer, ArrayDeque<byte[]>>();
+    private final AtomicLong mPushed = new AtomicLong();
+    private final Object mLock = new Object();
+    private int mRunning;
+    private volatile boolean mStopped;
+
+    public FrameGraph(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /* Adds a node that gets every pushed frame */
+    public Node addSource(Node node) {
+        add(node);
+        mSources.add(node);
+        return node;
+    }
+
+    /* Adds to, if needed, and feeds it whatever from returns */
+    public Node connect(Node from, Node to) {
+        if (from.mGraph != this) {
+            throw new IllegalArgumentException(from.getName() + " is not in this graph");
+        }
+        add(to);
+        from.mOutputs.add(to);
+        return to;
+    }
+
+    private void add(Node node) {
+        if (node.mGraph == this) {
+            return;
+        }
+        if (node.mGraph != null) {
+            throw new IllegalArgumentException(node.getName() + " is already in a graph");
+        }
+        node.mGraph = this;
+        mNodes.add(node);
+    }
+
+    /* Feeds a camera frame to the source nodes; the graph takes over the reference */
+    public void push(YuvFrame yuv) {
+        mPushed.incrementAndGet();
+        Frame frame = new Frame(this, yuv, null, FORMAT_YUV, yuv.getWidth(), yuv.getHeight(),
+                yuv.getYStride(), yuv.getTimestamp());
+        for (Node node : mSources) {
+            node.deliver(frame.retain());
+        }
+        frame.release();
+    }
+
+    /**
+     * Drops the pending frames, waits for the running nodes to finish and
+     * calls onStop() on every node. Frames pushed afterwards are released
+     * right away.
+     */
+    public void stop() {
+        mStopped = true;
+        for (Node node : mNodes) {
+            Frame pending;
+            synchronized (node) {
+                pending = node.mPending;
+                node.mPending = null;
+            }
+            if (pending != null) {
+                pending.release();
+            }
+        }
+        synchronized (mLock) {
+            while (mRunning > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (Node node : mNodes) {
+            node.onStop();
+        }
+        synchronized (mPool) {
+            mPool.clear();
+        }
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        int count = mNodes.size();
+        stats.pushed = mPushed.get();
+        stats.names = new String[count];
+        stats.processed = new long[count];
+        stats.dropped = new long[count];
+        stats.skipped = new long[count];
+        stats.meanMs = new double[count];
+        for (int i = 0; i < count; i++) {
+            Node node = mNodes.get(i);
+            long processed = node.mProcessed.get();
+            stats.names[i] = node.mName;
+            stats.processed[i] = processed;
+            stats.dropped[i] = node.mDropped.get();
+            stats.skipped[i] = node.mSkipped.get();
+            stats.meanMs[i] = processed == 0 ? 0 : node.mBusyNs.get() / 1e6 / processed;
+        }
+        return stats;
+    }
+
+    private void schedule(Node node) {
+        synchronized (mLock) {
+            mRunning++;
+        }
+        try {
+            mExecutor.execute(node);
+        } catch (RejectedExecutionException e) {
+            Frame pending;
+            synchronized (node) {
+                pending = node.mPending;
+                node.mPending = null;
+                node.mScheduled = false;
+            }
+            if (pending != null) {
+                pending.release();
+            }
+            onIdle();
+        }
+    }
+
+    private void onIdle() {
+        synchronized (mLock) {
+            mRunning--;
+            mLock.notifyAll();
+        }
+    }
+
+    private byte[] acquire(int size) {
+        synchronized (mPool) {
+            ArrayDeque<byte[]> free = mPool.get(size);
+            if (free != null && !free.isEmpty()) {
+                return free.pop();
+            }
+        }
+        return new byte[size];
+    }
+
+    private void recycle(byte[] data) {
+        if (mStopped) {
+            return;
+        }
+        synchronized (mPool) {
+            ArrayDeque<byte[]> free = mPool.get(data.length);
+            if (free == null) {
+                free = new ArrayDeque<byte[]>();
+                mPool.put(data.length, free);
+            }
+            if (free.size() < MAX_POOLED_PER_SIZE) {
+                free.push(data);
+            }
+        }
+    }
+
+    /* Copies the planes of a camera frame into a pooled NV21 frame, which lets
+       the Image go back to its reader while the rest of the graph runs */
+    public static class PackNode extends Node {
+        public PackNode() {
+            super("pack");
+        }
+
+        @Override
+        protected Frame process(Frame in) {
+            YuvFrame yuv = in.getYuv();
+            Frame out = obtain(FORMAT_NV21, in.getWidth(), in.getHeight(), in.getStride(),
+                    in.getTimestamp());
+            yuv.copyTo(out.getData());
+            return out;
+        }
+    }
+
+    /* Rotates NV21 clockwise and optionally mirrors the result horizontally */
+    public static class RotateNode extends Node {
+        private final PixelKernels mKernels;
+        private final int mDegrees;
+        private final boolean mMirror;
+
+        public RotateNode(PixelKernels kernels, int degrees, boolean mirror) {
+            super("rotate");
+            mKernels = kernels;
+            mDegrees = degrees;
+            mMirror = mirror;
+        }
+
+        @Override
+        protected Frame process(Frame in) {
+            boolean swap = mDegrees == 90 || mDegrees == 270;
+            int width = swap ? in.getHeight() : in.getWidth();
+            int height = swap ? in.getWidth() : in.getHeight();
+            Frame out = obtain(FORMAT_NV21, width, height, width, in.getTimestamp());
+            mKernels.rotateNV21(in.getData(), in.getWidth(), in.getHeight(), in.getStride(),
+                    mDegrees, out.getData());
+            if (mMirror) {
+                mKernels.mirrorNV21(out.getData(), width, height, width, false);
+            }
+            return out;
+        }
+    }
+
+    /* Converts NV21 to full range RGBA */
+    public static class RgbaNode extends Node {
+        private final PixelKernels mKernels;
+
+        public RgbaNode(PixelKernels kernels) {
+            super("rgba");
+            mKernels = kernels;
+        }
+
+        @Override
+        protected Frame process(Frame in) {
+            Frame out = obtain(FORMAT_RGBA, in.getWidth(), in.getHeight(), in.getWidth() * 4,
+                    in.getTimestamp());
+            mKernels.nv21ToRgba(in.getData(), in.getWidth(), in.getHeight(), in.getStride(),
+                    PixelKernels.RANGE_FULL, out.getData());
+            return out;
+        }
+    }
+}
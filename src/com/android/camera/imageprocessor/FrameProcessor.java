@@ -30,7 +30,10 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.android.camera.imageprocessor;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.camera2.CameraCharacteristics;
 import android.media.Image;
 import android.media.ImageReader;
@@ -51,14 +54,21 @@ import com.android.camera.imageprocessor.filter.BeautificationFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
 import com.android.camera.ui.RotateTextToast;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
+    private static final String TAG = "FrameProcessor";
 
     private ImageReader mInputImageReader;
     private Allocation mInputAllocation;
@@ -68,20 +78,21 @@ public class FrameProcessor {
 
     private HandlerThread mProcessingThread;
     private Handler mProcessingHandler;
-    private HandlerThread mOutingThread;
-    private Handler mOutingHandler;
-    private HandlerThread mListeningThread;
-    private Handler mListeningHandler;
+    private ThreadPoolExecutor mExecutor;
+    private volatile FrameGraph mGraph;
+    private SurfaceSinkNode mSurfaceSink;
+    private final List<ListenerScheduler> mListenerSchedulers =
+            new CopyOnWriteArrayList<ListenerScheduler>();
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
+    private final boolean mUseRs;
     private RenderScript mRs;
     private Activity mActivity;
     ScriptC_YuvToRgb mRsYuvToRGB;
     ScriptC_rotator mRsRotator;
     private Size mSize;
     private Object mAllocationLock = new Object();
-    private boolean mIsAllocationEverUsed;
+    private volatile boolean mIsAllocationEverUsed;
     private ArrayList<ImageFilter> mPreviewFilters;
     private ArrayList<ImageFilter> mFinalFilters;
     private Surface mSurfaceAsItIs;
@@ -99,9 +110,12 @@ public class FrameProcessor {
         mPreviewFilters = new ArrayList<ImageFilter>();
         mFinalFilters = new ArrayList<ImageFilter>();
 
-        mRs = RenderScript.create(mActivity);
-        mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
-        mRsRotator = new ScriptC_rotator(mRs);
+        mUseRs = !PersistUtil.isFrameProcCpu();
+        if (mUseRs) {
+            mRs = RenderScript.create(mActivity);
+            mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
+            mRsRotator = new ScriptC_rotator(mRs);
+        }
     }
 
     private void init(Size previewDim) {
@@ -110,11 +124,13 @@ public class FrameProcessor {
         synchronized (mAllocationLock) {
             mInputImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888, 8);
 
-            Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
-            rgbTypeBuilder.setX(mSize.getHeight());
-            rgbTypeBuilder.setY(mSize.getWidth());
-            mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
-                    Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+            if (mUseRs) {
+                Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
+                rgbTypeBuilder.setX(mSize.getHeight());
+                rgbTypeBuilder.setY(mSize.getWidth());
+                mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+            }
 
             if (mProcessingThread == null) {
                 mProcessingThread = new HandlerThread("FrameProcessor");
@@ -122,19 +138,19 @@ public class FrameProcessor {
                 mProcessingHandler = new Handler(mProcessingThread.getLooper());
             }
 
-            if (mOutingThread == null) {
-                mOutingThread = new HandlerThread("FrameOutingThread");
-                mOutingThread.start();
-                mOutingHandler = new Handler(mOutingThread.getLooper());
-            }
-
-            if (mListeningThread == null) {
-                mListeningThread = new HandlerThread("FrameListeningThread");
-                mListeningThread.start();
-                mListeningHandler = new Handler(mListeningThread.getLooper());
+            if (mExecutor == null) {
+                final AtomicInteger threads = new AtomicInteger();
+                int count = PersistUtil.getFrameProcThreads();
+                mExecutor = new ThreadPoolExecutor(count, count, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FrameGraph-" + threads.incrementAndGet());
+                    }
+                });
             }
 
-            mListeningTask = new ListeningTask();
+            mGraph = buildGraph();
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
             mIsAllocationEverUsed = false;
@@ -155,6 +171,14 @@ public class FrameProcessor {
         mRsRotator.set_width(width);
         mRsRotator.set_height(height);
         mRsRotator.set_pad(stridePad);
+        mRsRotator.set_degree(getRotatorDegree());
+        mRsYuvToRGB.set_gIn(mProcessAllocation);
+        mRsYuvToRGB.set_width(height);
+        mRsYuvToRGB.set_height(width);
+    }
+
+    /* Degree as rotator.rs takes it; 0 and 180 are the mirrored front camera cases */
+    private int getRotatorDegree() {
         int degree = 90;
         if(mModule.getMainCameraCharacteristics() != null) {
             degree = mModule.getMainCameraCharacteristics().
@@ -163,10 +187,63 @@ public class FrameProcessor {
                 degree = Math.abs(degree - 90);
             }
         }
-        mRsRotator.set_degree(degree);
-        mRsYuvToRGB.set_gIn(mProcessAllocation);
-        mRsYuvToRGB.set_width(height);
-        mRsYuvToRGB.set_height(width);
+        return degree;
+    }
+
+    /*
+     * Filters run in place one after the other, then the frame is packed into
+     * NV21 and rendered to the preview surface, through RenderScript or
+     * through the Java kernels. Frame listeners read the packed frame, which
+     * nothing modifies, or the camera frame itself when there is no filter.
+     */
+    private FrameGraph buildGraph() {
+        FrameGraph graph = new FrameGraph(mExecutor);
+        FrameGraph.Node last = null;
+        ArrayList<ImageFilter> listeners = new ArrayList<ImageFilter>();
+        mListenerSchedulers.clear();
+        for (ImageFilter filter : mPreviewFilters) {
+            if (filter.isFrameListener()) {
+                listeners.add(filter);
+            } else if (last == null) {
+                last = graph.addSource(new FilterNode(filter));
+            } else {
+                last = graph.connect(last, new FilterNode(filter));
+            }
+        }
+        mSurfaceSink = null;
+        if (last == null) {
+            for (ImageFilter listener : listeners) {
+                graph.addSource(new ListenerNode(listener));
+            }
+            return graph;
+        }
+        FrameGraph.Node pack = graph.connect(last, new FrameGraph.PackNode());
+        for (ImageFilter listener : listeners) {
+            graph.connect(pack, new ListenerNode(listener));
+        }
+        if (mUseRs) {
+            graph.connect(pack, new RsRenderNode());
+        } else {
+            // rotator.rs degree 0 and 180 are transposes: a quarter turn more, mirrored
+            int degree = getRotatorDegree();
+            boolean mirror = degree == 0 || degree == 180;
+            PixelKernels kernels = PixelKernels.getDefault();
+            FrameGraph.Node rotate = graph.connect(pack, new FrameGraph.RotateNode(kernels,
+                    mirror ? degree + 90 : degree, mirror));
+            FrameGraph.Node rgba = graph.connect(rotate, new FrameGraph.RgbaNode(kernels));
+            mSurfaceSink = new SurfaceSinkNode(mSurfaceAsItIs);
+            graph.connect(rgba, mSurfaceSink);
+        }
+        return graph;
+    }
+
+    /* Effective rate and latency of every frame listener */
+    public List<ListenerScheduler.Stats> getListenerStats() {
+        List<ListenerScheduler.Stats> stats = new ArrayList<ListenerScheduler.Stats>();
+        for (ListenerScheduler scheduler : mListenerSchedulers) {
+            stats.add(scheduler.getStats());
+        }
+        return stats;
     }
 
     public ArrayList<ImageFilter> getFrameFilters() {
@@ -219,6 +296,24 @@ public class FrameProcessor {
 
     public void onClose() {
         mIsActive = false;
+        if (mProcessingThread != null) {
+            mProcessingThread.quitSafely();
+            try {
+                mProcessingThread.join();
+                mProcessingThread = null;
+                mProcessingHandler = null;
+            } catch (InterruptedException e) {
+            }
+        }
+        FrameGraph graph = mGraph;
+        mGraph = null;
+        if (graph != null) {
+            graph.stop();
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
         synchronized (mAllocationLock) {
             if (mIsAllocationEverUsed) {
                 if (mInputAllocation != null) {
@@ -239,33 +334,7 @@ public class FrameProcessor {
             mInputAllocation = null;
             mVideoOutputAllocation = null;
         }
-        if (mProcessingThread != null) {
-            mProcessingThread.quitSafely();
-            try {
-                mProcessingThread.join();
-                mProcessingThread = null;
-                mProcessingHandler = null;
-            } catch (InterruptedException e) {
-            }
-        }
-        if (mOutingThread != null) {
-            mOutingThread.quitSafely();
-            try {
-                mOutingThread.join();
-                mOutingThread = null;
-                mOutingHandler = null;
-            } catch (InterruptedException e) {
-            }
-        }
-        if (mListeningThread != null) {
-            mListeningThread.quitSafely();
-            try {
-                mListeningThread.join();
-                mListeningThread = null;
-                mListeningHandler = null;
-            } catch (InterruptedException e) {
-            }
-        }
+        mSurfaceSink = null;
         for (ImageFilter filter : mPreviewFilters) {
             filter.deinit();
         }
@@ -326,11 +395,18 @@ public class FrameProcessor {
     public void setOutputSurface(Surface surface) {
         mSurfaceAsItIs = surface;
         if (mFinalFilters.size() != 0) {
-            mOutputAllocation.setSurface(surface);
+            if (mUseRs) {
+                mOutputAllocation.setSurface(surface);
+            } else if (mSurfaceSink != null) {
+                mSurfaceSink.setSurface(surface);
+            }
         }
     }
 
     public void setVideoOutputSurface(Surface surface) {
+        if (mSurfaceSink != null) {
+            mSurfaceSink.setVideoSurface(surface);
+        }
         if (surface == null) {
             synchronized (mAllocationLock) {
                 if (mVideoOutputAllocation != null) {
@@ -343,7 +419,7 @@ public class FrameProcessor {
         }
         mVideoSurfaceAsItIs = surface;
         mIsVideoOn = true;
-        if (mFinalFilters.size() != 0) {
+        if (mFinalFilters.size() != 0 && mUseRs) {
             synchronized (mAllocationLock) {
                 if (mVideoOutputAllocation == null) {
                     Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
@@ -357,78 +433,179 @@ public class FrameProcessor {
         }
     }
 
-    class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
-        byte[] yvuBytes = null;
-        int ySize;
-        int stride;
-        int height;
-        int width;
-
-        public ProcessingTask() {
-        }
-
+    class ProcessingTask implements ImageReader.OnImageAvailableListener {
         @Override
         public void onImageAvailable(ImageReader reader) {
-            synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
+            FrameGraph graph = mGraph;
+            try {
+                Image image = reader.acquireLatestImage();
+                if (image == null) {
                     return;
                 }
-                try {
-                    Image image = reader.acquireLatestImage();
-                    if (image == null) {
-                        return;
-                    }
-                    if (!mIsActive) {
-                        image.close();
-                        return;
-                    }
-                    mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            filter.addImage(bY, bVU, 0, new Boolean(true));
-                            needToFeedSurface = true;
-                        }
-                        bY.rewind();
-                        bVU.rewind();
-                    }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
-                    }
+                if (!mIsActive || graph == null) {
                     image.close();
-                } catch (IllegalStateException e) {
+                    return;
+                }
+                mIsAllocationEverUsed = true;
+                graph.push(YuvFrame.wrap(image));
+            } catch (IllegalStateException e) {
+            }
+        }
+    }
+
+    /*
+     * Hands frames to a frame listener. Listeners that are RateLimited get
+     * the frames their ListenerScheduler picks, downscaled to the size they
+     * ask for; the others get every frame they keep up with, uncopied.
+     */
+    private class ListenerNode extends FrameGraph.Node {
+        private final ImageFilter mFilter;
+        private final ListenerScheduler mScheduler;
+        private final int mMaxInputSize;
+        private int mWidth;
+        private int mHeight;
+        private int mInterval = 1;
+
+        ListenerNode(ImageFilter filter) {
+            super("listener");
+            mFilter = filter;
+            int targetFps = 0;
+            int maxInputSize = 0;
+            if (filter instanceof ImageFilter.RateLimited) {
+                targetFps = ((ImageFilter.RateLimited) filter).getTargetFps();
+                maxInputSize = ((ImageFilter.RateLimited) filter).getMaxInputSize();
+                mScheduler = new ListenerScheduler(filter.getStringName(), targetFps);
+                mListenerSchedulers.add(mScheduler);
+            } else {
+                mScheduler = null;
+            }
+            mMaxInputSize = maxInputSize;
+        }
+
+        @Override
+        protected boolean accept(FrameGraph.Frame frame) {
+            return mScheduler == null || mScheduler.offer(frame.getTimestamp());
+        }
+
+        @Override
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
+            if (!mIsActive) {
+                return null;
+            }
+            long start = System.nanoTime();
+            YuvFrame frame = in.getYuv();
+            FrameGraph.Frame scaled = null;
+            try {
+                if (mMaxInputSize > 0
+                        && Math.max(in.getWidth(), in.getHeight()) > mMaxInputSize) {
+                    scaled = downscale(in);
+                    frame = wrap(scaled);
+                } else if (frame == null) {
+                    frame = wrap(in);
+                }
+                // Listeners only need to hear about the frame size when it changes
+                if (frame.getWidth() != mWidth || frame.getHeight() != mHeight) {
+                    mWidth = frame.getWidth();
+                    mHeight = frame.getHeight();
+                    mFilter.init(mWidth, mHeight, frame.getYStride(), frame.getVUStride());
+                }
+                if (mFilter instanceof ImageFilter.FrameConsumer) {
+                    ((ImageFilter.FrameConsumer) mFilter).addFrame(frame, Boolean.valueOf(true));
+                } else {
+                    mFilter.addImage(frame.getY(), frame.getVU(), 0, Boolean.valueOf(true));
+                }
+            } finally {
+                if (scaled != null) {
+                    scaled.release();
+                }
+            }
+            if (mScheduler != null) {
+                mScheduler.onProcessed(getQueuedTime(), start, System.nanoTime());
+                int interval = mScheduler.getInterval();
+                if (interval != mInterval) {
+                    mInterval = interval;
+                    Log.d(TAG, mScheduler.getStats().toString());
                 }
             }
+            return null;
+        }
+
+        /* Box filters the frame down to mMaxInputSize, packing camera planes first */
+        private FrameGraph.Frame downscale(FrameGraph.Frame in) {
+            int width = in.getWidth();
+            int height = in.getHeight();
+            int ratio = (Math.max(width, height) + mMaxInputSize - 1) / mMaxInputSize;
+            int newWidth = width / ratio & ~1;
+            int newHeight = height / ratio & ~1;
+            FrameGraph.Frame packed = in;
+            if (in.getYuv() != null) {
+                packed = obtain(FrameGraph.FORMAT_NV21, width, height, in.getStride(),
+                        in.getTimestamp());
+                in.getYuv().copyTo(packed.getData());
+            } else {
+                packed.retain();
+            }
+            try {
+                FrameGraph.Frame out = obtain(FrameGraph.FORMAT_NV21, newWidth, newHeight,
+                        newWidth, in.getTimestamp());
+                PixelKernels.getDefault().downscaleNV21(packed.getData(), width, height,
+                        packed.getStride(), newWidth, newHeight, out.getData());
+                return out;
+            } finally {
+                packed.release();
+            }
+        }
+
+        private YuvFrame wrap(FrameGraph.Frame nv21) {
+            byte[] data = nv21.getData();
+            int ySize = nv21.getStride() * nv21.getHeight();
+            return new YuvFrame(ByteBuffer.wrap(data, 0, ySize).slice(),
+                    ByteBuffer.wrap(data, ySize, ySize / 2).slice(),
+                    nv21.getWidth(), nv21.getHeight(), nv21.getStride(), nv21.getStride(), 2,
+                    nv21.getTimestamp(), null);
+        }
+    }
+
+    /* Runs a preview filter on the camera frame planes in place */
+    private class FilterNode extends FrameGraph.Node {
+        private final ImageFilter mFilter;
+
+        FilterNode(ImageFilter filter) {
+            super("filter");
+            mFilter = filter;
+        }
+
+        @Override
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
+            if (!mIsActive) {
+                return null;
+            }
+            YuvFrame frame = in.getYuv();
+            mFilter.init(mSize.getWidth(), mSize.getHeight(), frame.getYStride(),
+                    frame.getYStride());
+            mFilter.addImage(frame.getY(), frame.getVU(), 0, Boolean.valueOf(true));
+            return in;
+        }
+    }
+
+    /* Rotates and converts NV21 frames with RenderScript straight into the
+       output allocations */
+    private class RsRenderNode extends FrameGraph.Node {
+        RsRenderNode() {
+            super("rs");
         }
 
         @Override
-        public void run() {
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
             synchronized (mAllocationLock) {
-                if (!mIsActive) {
-                    return;
+                if (!mIsActive || mOutputAllocation == null) {
+                    return null;
                 }
                 if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
+                    createAllocation(in.getStride(), in.getHeight(),
+                            in.getStride() - in.getWidth());
                 }
-                mInputAllocation.copyFrom(yvuBytes);
+                mInputAllocation.copyFrom(in.getData());
                 mRsRotator.forEach_rotate90andMerge(mInputAllocation);
                 mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
                 mOutputAllocation.ioSend();
@@ -437,59 +614,63 @@ public class FrameProcessor {
                     mVideoOutputAllocation.ioSend();
                 }
             }
+            return null;
         }
     }
 
-    class ListeningTask implements Runnable {
+    /* Draws RGBA frames onto the preview and video surfaces */
+    private static class SurfaceSinkNode extends FrameGraph.Node {
+        private final Rect mDst = new Rect();
+        private volatile Surface mSurface;
+        private volatile Surface mVideoSurface;
+        private Bitmap mBitmap;
+
+        SurfaceSinkNode(Surface surface) {
+            super("surface");
+            mSurface = surface;
+        }
 
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
+        void setSurface(Surface surface) {
+            mSurface = surface;
+        }
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
-            if (!mIsActive) {
-                return false;
-            }
-            if (!mMutureLock.tryAcquire()) {
-                return false;
+        void setVideoSurface(Surface surface) {
+            mVideoSurface = surface;
+        }
+
+        @Override
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
+            if (mBitmap == null || mBitmap.getWidth() != in.getWidth()
+                    || mBitmap.getHeight() != in.getHeight()) {
+                mBitmap = Bitmap.createBitmap(in.getWidth(), in.getHeight(),
+                        Bitmap.Config.ARGB_8888);
             }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
+            mBitmap.copyPixelsFromBuffer(
+                    ByteBuffer.wrap(in.getData(), 0, in.getStride() * in.getHeight()));
+            draw(mSurface);
+            draw(mVideoSurface);
+            return null;
+        }
+
+        private void draw(Surface surface) {
+            if (surface == null || !surface.isValid()) {
+                return;
             }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
+            Canvas canvas = surface.lockHardwareCanvas();
+            try {
+                mDst.set(0, 0, canvas.getWidth(), canvas.getHeight());
+                canvas.drawBitmap(mBitmap, null, mDst, null);
+            } finally {
+                surface.unlockCanvasAndPost(canvas);
             }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
-            return true;
         }
 
         @Override
-        public void run() {
-            try {
-                if (!mIsActive) {
-                    return;
-                }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
-                mMutureLock.release();
-            } catch (InterruptedException e) {
+        protected void onStop() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
             }
         }
     }
 }
-
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/**
+ * Decides which preview frames a frame listener gets.
+ *
+ * The listener gets every Nth frame. N is the larger of the ratio between
+ * the camera frame rate and the listener's target rate, and the number of
+ * frames it takes for the listener's measured processing time to stay
+ * under MAX_LOAD of the frame time. Processing time and frame interval are
+ * smoothed, and N only comes down again once processing fits the smaller
+ * interval with some margin, so it doesn't flip between two values.
+ */
+public class ListenerScheduler {
+    /* Share of the frame time a listener may keep a core busy */
+    private static final float MAX_LOAD = 0.5f;
+    private static final float DECREASE_MARGIN = 1.25f;
+    private static final int MAX_INTERVAL = 30;
+    private static final float SMOOTHING = 0.2f;
+    private static final long MAX_FRAME_GAP_NS = 1000000000L;
+
+    public static class Stats {
+        public String name;
+        public int interval;
+        public long offered;
+        public long processed;
+        public float effectiveFps;
+        public float processMs;
+        public float latencyMs;
+
+        @Override
+        public String toString() {
+            return String.format("%s: every %d, %.1f fps, process %.1f ms, latency %.1f ms"
+                    + " (%d/%d frames)", name, interval, effectiveFps, processMs, latencyMs,
+                    processed, offered);
+        }
+    }
+
+    private final String mName;
+    private final int mTargetFps;
+    private int mInterval = 1;
+    private int mSkipped;
+    private long mLastTimestamp = -1;
+    private float mFrameNs;
+    private float mProcessNs;
+    private float mLatencyNs;
+    private float mDoneIntervalNs;
+    private long mLastDone = -1;
+    private long mOffered;
+    private long mProcessed;
+
+    /* targetFps of 0 asks for every frame the listener keeps up with */
+    public ListenerScheduler(String name, int targetFps) {
+        mName = name;
+        mTargetFps = targetFps;
+    }
+
+    /* Called for every camera frame; true when this one goes to the listener */
+    public synchronized boolean offer(long timestampNs) {
+        mOffered++;
+        if (mLastTimestamp >= 0) {
+            long gap = timestampNs - mLastTimestamp;
+            if (gap > 0 && gap < MAX_FRAME_GAP_NS) {
+                mFrameNs = smooth(mFrameNs, gap);
+            }
+        }
+        mLastTimestamp = timestampNs;
+        if (mSkipped + 1 < mInterval) {
+            mSkipped++;
+            return false;
+        }
+        mSkipped = 0;
+        return true;
+    }
+
+    /* Reports a processed frame: when it was accepted, and when processing
+       started and ended, all System.nanoTime() */
+    public synchronized void onProcessed(long acceptedNs, long startNs, long endNs) {
+        mProcessed++;
+        mProcessNs = smooth(mProcessNs, endNs - startNs);
+        mLatencyNs = smooth(mLatencyNs, endNs - acceptedNs);
+        if (mLastDone >= 0) {
+            mDoneIntervalNs = smooth(mDoneIntervalNs, endNs - mLastDone);
+        }
+        mLastDone = endNs;
+        int wanted = intervalFor(mProcessNs);
+        if (wanted > mInterval || intervalFor(mProcessNs * DECREASE_MARGIN) < mInterval) {
+            mInterval = wanted;
+        }
+    }
+
+    public synchronized int getInterval() {
+        return mInterval;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.name = mName;
+        stats.interval = mInterval;
+        stats.offered = mOffered;
+        stats.processed = mProcessed;
+        stats.effectiveFps = mDoneIntervalNs > 0 ? 1e9f / mDoneIntervalNs : 0;
+        stats.processMs = mProcessNs / 1e6f;
+        stats.latencyMs = mLatencyNs / 1e6f;
+        return stats;
+    }
+
+    private int intervalFor(float processNs) {
+        if (mFrameNs <= 0) {
+            return mInterval;
+        }
+        int interval = 1;
+        if (mTargetFps > 0) {
+            interval = Math.round(1e9f / mTargetFps / mFrameNs);
+        }
+        interval = Math.max(interval, (int) Math.ceil(processNs / (mFrameNs * MAX_LOAD)));
+        return Math.max(1, Math.min(MAX_INTERVAL, interval));
+    }
+
+    private static float smooth(float average, float sample) {
+        return average <= 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
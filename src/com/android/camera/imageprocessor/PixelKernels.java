@@ -0,0 +1,933 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stride aware rotate, mirror, crop, downscale and colour conversion
+ * kernels for NV21, YUV_420_888 and ARGB buffers.
+ *
+ * An NV21 buffer is described by its width, height and row stride; the VU
+ * plane starts at stride * height and uses the same stride. Every kernel
+ * splits its output rows into tiles that run on a fork-join pool and
+ * returns once the whole image is done. The arithmetic follows the native
+ * and RenderScript code these kernels took over, byte for byte, and none
+ * of it depends on android.*, so it runs and is tested on a plain JVM.
+ *
+ * ByteBuffers are used through their backing array when they have one.
+ * Direct buffers have none, so each tile reads the rows it needs into
+ * scratch rows and writes its output rows back with bulk copies; no frame
+ * sized copy is made.
+ */
+public class PixelKernels {
+    /* Full range BT.601, as in rs/YuvToRgb.rs */
+    public static final int RANGE_FULL = 0;
+    /* Video range BT.601, as in the old nativeNV21toRgb */
+    public static final int RANGE_LIMITED = 1;
+
+    private static final int MIN_TILE_BYTES = 32 * 1024;
+    private static final int TILES_PER_THREAD = 4;
+    private static final int TRANSPOSE_BLOCK = 16;
+
+    private static PixelKernels sDefault;
+
+    private final ForkJoinPool mPool;
+
+    /* Body of a kernel over the half-open range [from, to) of its tile rows */
+    private interface Rows {
+        void run(int from, int to);
+    }
+
+    private static class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Rows mRows;
+        private final int mFrom;
+        private final int mTo;
+        private final int mGrain;
+
+        Tile(Rows rows, int from, int to, int grain) {
+            mRows = rows;
+            mFrom = from;
+            mTo = to;
+            mGrain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mGrain) {
+                mRows.run(mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new Tile(mRows, mFrom, mid, mGrain), new Tile(mRows, mid, mTo, mGrain));
+        }
+    }
+
+    /* Kernels run on the calling thread */
+    public PixelKernels() {
+        this(null);
+    }
+
+    public PixelKernels(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /* Shared instance with one worker per core */
+    public static synchronized PixelKernels getDefault() {
+        if (sDefault == null) {
+            sDefault = new PixelKernels(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+        }
+        return sDefault;
+    }
+
+    public int getParallelism() {
+        return mPool == null ? 1 : mPool.getParallelism();
+    }
+
+    /* Converts NV21 to RGBA bytes, width * 4 bytes per dst row */
+    public void nv21ToRgba(byte[] src, int width, int height, int stride, int range, byte[] dst) {
+        nv21ToRgba(src, 0, width, height, stride, range, dst, 0);
+    }
+
+    public void nv21ToRgba(ByteBuffer src, int width, int height, int stride, int range,
+                           ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray()) {
+            nv21ToRgba(src.array(), src.arrayOffset(), width, height, stride, range,
+                    dst.array(), dst.arrayOffset());
+            return;
+        }
+        final ByteBuffer in = src;
+        final ByteBuffer out = dst;
+        final int vuBase = stride * height;
+        final int vuLength = (width + 1) & ~1;
+        forEachRow(height, width * 4, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer srcIn = in.duplicate();
+                ByteBuffer dstOut = out.duplicate();
+                byte[] yRow = new byte[width];
+                byte[] vuRow = new byte[vuLength];
+                byte[] rgba = new byte[width * 4];
+                for (int y = from; y < to; y++) {
+                    read(srcIn, y * stride, yRow, width);
+                    if (y == from || (y & 1) == 0) {
+                        read(srcIn, vuBase + (y >> 1) * stride, vuRow, vuLength);
+                    }
+                    rgbaRow(yRow, 0, vuRow, 0, width, range, rgba, 0);
+                    write(dstOut, y * width * 4, rgba, width * 4);
+                }
+            }
+        });
+    }
+
+    private void nv21ToRgba(final byte[] src, final int srcOff, final int width, int height,
+                            final int stride, final int range, final byte[] dst,
+                            final int dstOff) {
+        final int vuBase = srcOff + stride * height;
+        forEachRow(height, width * 4, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    rgbaRow(src, srcOff + y * stride, src, vuBase + (y >> 1) * stride, width,
+                            range, dst, dstOff + y * width * 4);
+                }
+            }
+        });
+    }
+
+    private static void rgbaRow(byte[] y, int yRow, byte[] vu, int vuRow, int width, int range,
+                                byte[] dst, int out) {
+        for (int x = 0; x < width; x++) {
+            int c = vuRow + (x & ~1);
+            int argb = toArgb(y[yRow + x] & 0xFF, vu[c] & 0xFF, vu[c + 1] & 0xFF, range);
+            dst[out++] = (byte) (argb >> 16);
+            dst[out++] = (byte) (argb >> 8);
+            dst[out++] = (byte) argb;
+            dst[out++] = (byte) 0xFF;
+        }
+    }
+
+    /* Converts NV21 to packed ARGB ints as taken by Bitmap.setPixels() */
+    public void nv21ToArgb(final byte[] src, final int width, int height, final int stride,
+                           final int range, final int[] dst) {
+        final int vuBase = stride * height;
+        forEachRow(height, width * 4, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int yRow = y * stride;
+                    int vuRow = vuBase + (y >> 1) * stride;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int c = vuRow + (x & ~1);
+                        dst[out++] = toArgb(src[yRow + x] & 0xFF, src[c] & 0xFF, src[c + 1] & 0xFF,
+                                range);
+                    }
+                }
+            }
+        });
+    }
+
+    /* Converts packed ARGB ints to NV21, sampling chroma from the top-left pixel
+       of every 2x2 block. Width and height must be even. */
+    public void argbToNV21(final int[] src, final int width, int height, final byte[] dst,
+                           final int dstStride) {
+        checkEven(width, height);
+        final int vuBase = dstStride * height;
+        forEachRow(height / 2, width * 3, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int pair = from; pair < to; pair++) {
+                    int vu = vuBase + pair * dstStride;
+                    for (int j = pair * 2; j < pair * 2 + 2; j++) {
+                        int in = j * width;
+                        int out = j * dstStride;
+                        for (int i = 0; i < width; i++) {
+                            int argb = src[in++];
+                            int r = (argb >> 16) & 0xFF;
+                            int g = (argb >> 8) & 0xFF;
+                            int b = argb & 0xFF;
+                            dst[out++] = clamp(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                            if ((j & 1) == 0 && (i & 1) == 0) {
+                                dst[vu++] = clamp(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                                dst[vu++] = clamp(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /* Packs the planes of a YUV_420_888 image into NV21. The chroma planes can be
+       planar (pixel stride 1) or semi-planar (pixel stride 2). */
+    public void yuv420ToNV21(final ByteBuffer y, final int yStride, final ByteBuffer u,
+                             final ByteBuffer v, final int uvStride, final int uvPixelStride,
+                             final int width, int height, final byte[] dst, final int dstStride) {
+        checkEven(width, height);
+        final int vuBase = dstStride * height;
+        final int uvLength = (width / 2 - 1) * uvPixelStride + 1;
+        forEachRow(height / 2, width * 3, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer yIn = y.duplicate();
+                ByteBuffer uIn = u.duplicate();
+                ByteBuffer vIn = v.duplicate();
+                byte[] uRow = new byte[uvLength];
+                byte[] vRow = new byte[uvLength];
+                for (int pair = from; pair < to; pair++) {
+                    for (int j = pair * 2; j < pair * 2 + 2; j++) {
+                        yIn.limit(j * yStride + width).position(j * yStride);
+                        yIn.get(dst, j * dstStride, width);
+                    }
+                    uIn.limit(pair * uvStride + uvLength).position(pair * uvStride);
+                    uIn.get(uRow);
+                    vIn.limit(pair * uvStride + uvLength).position(pair * uvStride);
+                    vIn.get(vRow);
+                    int out = vuBase + pair * dstStride;
+                    for (int k = 0; k < uvLength; k += uvPixelStride) {
+                        dst[out++] = vRow[k];
+                        dst[out++] = uRow[k];
+                    }
+                }
+            }
+        });
+    }
+
+    /* Rotates NV21 clockwise by 0, 90, 180 or 270 degrees into a tightly packed
+       dst, the same output as the old native rotateBufAndMerge. Stride padding
+       is dropped. */
+    public void rotateNV21(byte[] src, int width, int height, int stride, int degrees,
+                           byte[] dst) {
+        rotateNV21(src, 0, width, height, stride, degrees, dst, 0);
+    }
+
+    public void rotateNV21(ByteBuffer src, int width, int height, int stride, int degrees,
+                           ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray()) {
+            rotateNV21(src.array(), src.arrayOffset(), width, height, stride, degrees,
+                    dst.array(), dst.arrayOffset());
+            return;
+        }
+        checkEven(width, height);
+        switch (degrees) {
+            case 0:
+            case 180:
+                rotateRows(src, width, height, stride, degrees == 180, dst);
+                break;
+            case 90:
+            case 270:
+                transpose(src, width, height, stride, degrees == 270, dst);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation " + degrees);
+        }
+    }
+
+    /* Direct buffer rotation by 0 or 180 degrees, one row pair at a time */
+    private void rotateRows(final ByteBuffer src, final int width, final int height,
+                            final int stride, final boolean flip, final ByteBuffer dst) {
+        final int vuBase = stride * height;
+        final int ySize = width * height;
+        forEachRow(height / 2, width * 3, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer in = src.duplicate();
+                ByteBuffer out = dst.duplicate();
+                byte[] row = new byte[width];
+                for (int pair = from; pair < to; pair++) {
+                    for (int r = pair * 2; r < pair * 2 + 2; r++) {
+                        read(in, (flip ? height - 1 - r : r) * stride, row, width);
+                        if (flip) {
+                            reverse(row, 0, width);
+                        }
+                        write(out, r * width, row, width);
+                    }
+                    read(in, vuBase + (flip ? height / 2 - 1 - pair : pair) * stride, row,
+                            width);
+                    if (flip) {
+                        reversePairs(row, 0, width);
+                    }
+                    write(out, ySize + pair * width, row, width);
+                }
+            }
+        });
+    }
+
+    /* Direct buffer rotation by 90 or 270 degrees. A tile gathers a block of
+       output rows from the matching column span of every source row, then
+       writes the block out at once. */
+    private void transpose(final ByteBuffer src, final int width, final int height,
+                           final int stride, final boolean counterClockwise,
+                           final ByteBuffer dst) {
+        final int vuBase = stride * height;
+        final int ySize = width * height;
+        final int pairs = width / 2;
+        forEachRow((pairs + TRANSPOSE_BLOCK - 1) / TRANSPOSE_BLOCK,
+                height * 3 * TRANSPOSE_BLOCK, new Rows() {
+            @Override
+            public void run(int fromBlock, int toBlock) {
+                ByteBuffer in = src.duplicate();
+                ByteBuffer out = dst.duplicate();
+                byte[] span = new byte[TRANSPOSE_BLOCK * 2];
+                byte[] yBlock = new byte[TRANSPOSE_BLOCK * 2 * height];
+                byte[] vuBlock = new byte[TRANSPOSE_BLOCK * height];
+                for (int block = fromBlock; block < toBlock; block++) {
+                    int from = block * TRANSPOSE_BLOCK;
+                    int to = Math.min(pairs, from + TRANSPOSE_BLOCK);
+                    int length = (to - from) * 2;
+                    // Output rows [from * 2, to * 2) read source columns [start, start + length)
+                    int start = counterClockwise ? width - to * 2 : from * 2;
+                    for (int c = 0; c < height; c++) {
+                        read(in, (counterClockwise ? c : height - 1 - c) * stride + start, span,
+                                length);
+                        for (int r = 0; r < length; r++) {
+                            yBlock[r * height + c] = span[counterClockwise ? length - 1 - r : r];
+                        }
+                    }
+                    write(out, from * 2 * height, yBlock, length * height);
+                    for (int k = 0; k < height / 2; k++) {
+                        read(in, vuBase + (counterClockwise ? k : height / 2 - 1 - k) * stride
+                                + start, span, length);
+                        for (int r = 0; r < to - from; r++) {
+                            int s = counterClockwise ? length - 2 - r * 2 : r * 2;
+                            vuBlock[r * height + k * 2] = span[s];
+                            vuBlock[r * height + k * 2 + 1] = span[s + 1];
+                        }
+                    }
+                    write(out, ySize + from * height, vuBlock, (to - from) * height);
+                }
+            }
+        });
+    }
+
+    private void rotateNV21(final byte[] src, final int srcOff, final int width,
+                            final int height, final int stride, int degrees, final byte[] dst,
+                            final int dstOff) {
+        checkEven(width, height);
+        final int vuBase = srcOff + stride * height;
+        final int ySize = dstOff + width * height;
+        switch (degrees) {
+            case 0:
+                forEachRow(height / 2, width * 3, new Rows() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int pair = from; pair < to; pair++) {
+                            int row = pair * 2;
+                            System.arraycopy(src, srcOff + row * stride,
+                                    dst, dstOff + row * width, width);
+                            System.arraycopy(src, srcOff + (row + 1) * stride,
+                                    dst, dstOff + (row + 1) * width, width);
+                            System.arraycopy(src, vuBase + pair * stride, dst, ySize + pair * width,
+                                    width);
+                        }
+                    }
+                });
+                break;
+            case 90:
+                forEachBlock(width / 2, height * 3, new Rows() {
+                    @Override
+                    public void run(int from, int to) {
+                        // Output row r is source column r read bottom up
+                        for (int c = 0; c < height; c++) {
+                            int in = srcOff + (height - 1 - c) * stride;
+                            for (int r = from * 2; r < to * 2; r++) {
+                                dst[dstOff + r * height + c] = src[in + r];
+                            }
+                        }
+                        for (int k = 0; k < height / 2; k++) {
+                            int in = vuBase + (height / 2 - 1 - k) * stride;
+                            for (int r = from; r < to; r++) {
+                                int out = ySize + r * height + k * 2;
+                                dst[out] = src[in + r * 2];
+                                dst[out + 1] = src[in + r * 2 + 1];
+                            }
+                        }
+                    }
+                });
+                break;
+            case 180:
+                forEachRow(height / 2, width * 3, new Rows() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int pair = from; pair < to; pair++) {
+                            for (int r = pair * 2; r < pair * 2 + 2; r++) {
+                                int in = srcOff + (height - 1 - r) * stride + width - 1;
+                                int out = dstOff + r * width;
+                                for (int x = 0; x < width; x++) {
+                                    dst[out++] = src[in--];
+                                }
+                            }
+                            int in = vuBase + (height / 2 - 1 - pair) * stride + width - 2;
+                            int out = ySize + pair * width;
+                            for (int x = 0; x < width; x += 2) {
+                                dst[out++] = src[in];
+                                dst[out++] = src[in + 1];
+                                in -= 2;
+                            }
+                        }
+                    }
+                });
+                break;
+            case 270:
+                forEachBlock(width / 2, height * 3, new Rows() {
+                    @Override
+                    public void run(int from, int to) {
+                        // Output row r is source column width - 1 - r read top down
+                        for (int c = 0; c < height; c++) {
+                            int in = srcOff + c * stride + width - 1;
+                            for (int r = from * 2; r < to * 2; r++) {
+                                dst[dstOff + r * height + c] = src[in - r];
+                            }
+                        }
+                        for (int k = 0; k < height / 2; k++) {
+                            int in = vuBase + k * stride + width - 2;
+                            for (int r = from; r < to; r++) {
+                                int out = ySize + r * height + k * 2;
+                                dst[out] = src[in - r * 2];
+                                dst[out + 1] = src[in - r * 2 + 1];
+                            }
+                        }
+                    }
+                });
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation " + degrees);
+        }
+    }
+
+    /* Mirrors NV21 in place, the same output as the old nativeFlipNV21. A vertical
+       flip swaps whole rows including the stride padding. */
+    public void mirrorNV21(byte[] buf, int width, int height, int stride, boolean vertical) {
+        mirrorNV21(buf, 0, width, height, stride, vertical);
+    }
+
+    public void mirrorNV21(ByteBuffer buf, final int width, final int height, final int stride,
+                           boolean vertical) {
+        if (buf.hasArray()) {
+            mirrorNV21(buf.array(), buf.arrayOffset(), width, height, stride, vertical);
+            return;
+        }
+        final ByteBuffer image = buf;
+        final int vuBase = stride * height;
+        if (vertical) {
+            forEachRow(height / 2, stride * 2, new Rows() {
+                @Override
+                public void run(int from, int to) {
+                    swapRows(image.duplicate(), 0, height, stride, from, to);
+                }
+            });
+            forEachRow(height / 4, stride * 2, new Rows() {
+                @Override
+                public void run(int from, int to) {
+                    swapRows(image.duplicate(), vuBase, height / 2, stride, from, to);
+                }
+            });
+            return;
+        }
+        forEachRow(height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer rows = image.duplicate();
+                byte[] row = new byte[width];
+                for (int y = from; y < to; y++) {
+                    read(rows, y * stride, row, width);
+                    reverse(row, 0, width);
+                    write(rows, y * stride, row, width);
+                }
+            }
+        });
+        forEachRow(height / 2, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer rows = image.duplicate();
+                byte[] row = new byte[width];
+                for (int y = from; y < to; y++) {
+                    read(rows, vuBase + y * stride, row, width);
+                    reversePairs(row, 0, width);
+                    write(rows, vuBase + y * stride, row, width);
+                }
+            }
+        });
+    }
+
+    private void mirrorNV21(final byte[] buf, final int off, final int width, final int height,
+                            final int stride, boolean vertical) {
+        final int vuBase = off + stride * height;
+        if (vertical) {
+            forEachRow(height / 2, stride * 2, new Rows() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        swapRows(buf, off + y * stride, off + (height - 1 - y) * stride, stride);
+                    }
+                }
+            });
+            forEachRow(height / 4, stride * 2, new Rows() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        swapRows(buf, vuBase + y * stride,
+                                vuBase + (height / 2 - 1 - y) * stride, stride);
+                    }
+                }
+            });
+            return;
+        }
+        forEachRow(height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    reverse(buf, off + y * stride, width);
+                }
+            }
+        });
+        forEachRow(height / 2, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    reversePairs(buf, vuBase + y * stride, width);
+                }
+            }
+        });
+    }
+
+    private static void reverse(byte[] buf, int left, int length) {
+        int right = left + length - 1;
+        while (left < right) {
+            byte t = buf[left];
+            buf[left++] = buf[right];
+            buf[right--] = t;
+        }
+    }
+
+    /* Reverses the order of the VU pairs of a chroma row, keeping each pair */
+    private static void reversePairs(byte[] buf, int left, int length) {
+        int right = left + length - 2;
+        while (left < right) {
+            byte v = buf[left];
+            byte u = buf[left + 1];
+            buf[left] = buf[right];
+            buf[left + 1] = buf[right + 1];
+            buf[right] = v;
+            buf[right + 1] = u;
+            left += 2;
+            right -= 2;
+        }
+    }
+
+    /* Copies the width x height region at (left, top) of src into dst. The
+       region has to start and end on even coordinates. */
+    public void cropNV21(final byte[] src, final int srcStride, int srcHeight, final int left,
+                         final int top, final int width, int height, final byte[] dst,
+                         final int dstStride) {
+        checkEven(left, top);
+        checkEven(width, height);
+        if (left + width > srcStride || top + height > srcHeight) {
+            throw new IllegalArgumentException("Crop is outside of the image");
+        }
+        final int srcVU = srcStride * srcHeight;
+        final int dstVU = dstStride * height;
+        forEachRow(height / 2, width * 3, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int pair = from; pair < to; pair++) {
+                    int row = pair * 2;
+                    System.arraycopy(src, (top + row) * srcStride + left,
+                            dst, row * dstStride, width);
+                    System.arraycopy(src, (top + row + 1) * srcStride + left,
+                            dst, (row + 1) * dstStride, width);
+                    System.arraycopy(src, srcVU + (top / 2 + pair) * srcStride + left,
+                            dst, dstVU + pair * dstStride, width);
+                }
+            }
+        });
+    }
+
+    /* Copies NV21 into separate Y and VU planes with dstStride, the same output
+       as the old nativeNV21Split. Both planes are written from index 0. */
+    public void splitNV21(final byte[] src, final int width, int height, final int srcStride,
+                          final ByteBuffer y, final ByteBuffer vu, final int dstStride) {
+        final int srcVU = srcStride * height;
+        final int chromaRows = height / 2;
+        forEachRow(height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer yOut = y.duplicate();
+                ByteBuffer vuOut = vu.duplicate();
+                yOut.clear();
+                vuOut.clear();
+                for (int j = from; j < to; j++) {
+                    yOut.position(j * dstStride);
+                    yOut.put(src, j * srcStride, width);
+                    if (j < chromaRows) {
+                        vuOut.position(j * dstStride);
+                        vuOut.put(src, srcVU + j * srcStride, width);
+                    }
+                }
+            }
+        });
+    }
+
+    /* Box filters NV21 down by the integer ratio the old nativeResizeImage picked
+       for newWidth x newHeight, cropping the centre when the aspect ratios
+       differ. dst is tightly packed. Returns the ratio. */
+    public int downscaleNV21(byte[] src, int width, int height, int stride, int newWidth,
+                             int newHeight, byte[] dst) {
+        return downscaleNV21(src, 0, width, height, stride, newWidth, newHeight, dst, 0);
+    }
+
+    public int downscaleNV21(ByteBuffer src, int width, int height, int stride, int newWidth,
+                             int newHeight, ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray()) {
+            return downscaleNV21(src.array(), src.arrayOffset(), width, height, stride,
+                    newWidth, newHeight, dst.array(), dst.arrayOffset());
+        }
+        final ByteBuffer image = src;
+        final ByteBuffer scaled = dst;
+        final int ratio = downscaleRatio(width, height, newWidth, newHeight);
+        final int left = (width - newWidth * ratio) / 2;
+        final int top = (height - newHeight * ratio) / 2;
+        final int area = ratio * ratio;
+        // Each output row reads ratio whole source rows into the window.
+        forEachRow(newHeight, newWidth * area, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer in = image.duplicate();
+                ByteBuffer out = scaled.duplicate();
+                byte[] window = new byte[ratio * stride];
+                byte[] row = new byte[newWidth];
+                for (int r = from; r < to; r++) {
+                    readRows(in, (top + r * ratio) * stride, window, ratio * stride);
+                    downscaleRow(window, 0, stride, left, ratio, newWidth, row, 0);
+                    write(out, r * newWidth, row, newWidth);
+                }
+            }
+        });
+        final int vuBase = stride * height;
+        final int chromaRowBytes = (newWidth + 1) / 2 * 2;
+        final int chromaBase = newWidth * newHeight;
+        forEachRow((newHeight + 1) / 2, chromaRowBytes * area, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                ByteBuffer in = image.duplicate();
+                ByteBuffer out = scaled.duplicate();
+                byte[] window = new byte[ratio * stride];
+                byte[] row = new byte[chromaRowBytes];
+                for (int r = from; r < to; r++) {
+                    int j = top + r * ratio * 2;
+                    readRows(in, vuBase + j / 2 * stride, window, ratio * stride);
+                    downscaleChromaRow(window, 0, stride, left, ratio, newWidth, row, 0);
+                    write(out, chromaBase + r * chromaRowBytes, row, chromaRowBytes);
+                }
+            }
+        });
+        return ratio;
+    }
+
+    private int downscaleNV21(final byte[] src, final int srcOff, int width, int height,
+                              final int stride, final int newWidth, final int newHeight,
+                              final byte[] dst, final int dstOff) {
+        final int ratio = downscaleRatio(width, height, newWidth, newHeight);
+        final int left = (width - newWidth * ratio) / 2;
+        final int top = (height - newHeight * ratio) / 2;
+        final int area = ratio * ratio;
+        forEachRow(newHeight, newWidth * area, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    downscaleRow(src, srcOff + (top + row * ratio) * stride, stride, left, ratio,
+                            newWidth, dst, dstOff + row * newWidth);
+                }
+            }
+        });
+        // Chroma keeps the odd column and row counts of the native loops
+        final int vuBase = srcOff + stride * height;
+        final int chromaRowBytes = (newWidth + 1) / 2 * 2;
+        final int chromaBase = dstOff + newWidth * newHeight;
+        forEachRow((newHeight + 1) / 2, chromaRowBytes * area, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    int j = top + row * ratio * 2;
+                    downscaleChromaRow(src, vuBase + j / 2 * stride, stride, left, ratio,
+                            newWidth, dst, chromaBase + row * chromaRowBytes);
+                }
+            }
+        });
+        return ratio;
+    }
+
+    private static int downscaleRatio(int width, int height, int newWidth, int newHeight) {
+        int adjustedWidth = width;
+        if ((float) width / height != (float) newWidth / newHeight) {
+            adjustedWidth = (int) (((float) newWidth / newHeight) * height);
+        }
+        int wR = adjustedWidth / newWidth;
+        int hR = height / newHeight;
+        if (wR < hR && adjustedWidth - newWidth * wR >= adjustedWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && height - newHeight * hR >= height / 4) {
+            hR++;
+        }
+        int ratio = wR < hR ? wR : hR;
+        if (ratio < 1) {
+            throw new IllegalArgumentException("Cannot upscale " + width + "x" + height
+                    + " to " + newWidth + "x" + newHeight);
+        }
+        return ratio;
+    }
+
+    /* Averages ratio x ratio boxes of the ratio luma rows starting at base */
+    private static void downscaleRow(byte[] src, int base, int stride, int left, int ratio,
+                                     int newWidth, byte[] dst, int out) {
+        int area = ratio * ratio;
+        for (int i = left; i < newWidth * ratio + left; i += ratio) {
+            int sum = 0;
+            for (int y = 0; y < ratio; y++) {
+                int in = base + y * stride + i;
+                for (int x = 0; x < ratio; x++) {
+                    sum += src[in + x] & 0xFF;
+                }
+            }
+            dst[out++] = (byte) (sum / area);
+        }
+    }
+
+    /* Same over the ratio chroma rows starting at base, which cover 2 * ratio
+       luma rows */
+    private static void downscaleChromaRow(byte[] src, int base, int stride, int left, int ratio,
+                                           int newWidth, byte[] dst, int out) {
+        int area = ratio * ratio;
+        for (int i = left; i < newWidth * ratio + left; i += ratio * 2) {
+            int v = 0;
+            int u = 0;
+            for (int y = 0; y < ratio; y++) {
+                int in = base + y * stride;
+                for (int x = 0; x < ratio * 2; x += 2) {
+                    int c = in + (i + x) / 2 * 2;
+                    v += src[c] & 0xFF;
+                    u += src[c + 1] & 0xFF;
+                }
+            }
+            dst[out++] = (byte) (v / area);
+            dst[out++] = (byte) (u / area);
+        }
+    }
+
+    /* Scales NV21 to newWidth x newHeight with nearest neighbour sampling, the
+       way Canvas.drawBitmap() scales without a filtering Paint. dst is tightly
+       packed. All dimensions must be even. */
+    public void scaleNV21(final byte[] src, int width, int height, final int stride,
+                          final int newWidth, final int newHeight, final byte[] dst) {
+        checkEven(width, height);
+        checkEven(newWidth, newHeight);
+        final int[] columns = samplePoints(width, newWidth);
+        final int[] rows = samplePoints(height, newHeight);
+        final int[] vuColumns = samplePoints(width / 2, newWidth / 2);
+        final int[] vuRows = samplePoints(height / 2, newHeight / 2);
+        final int vuBase = stride * height;
+        final int ySize = newWidth * newHeight;
+        forEachRow(newHeight / 2, newWidth * 3, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int pair = from; pair < to; pair++) {
+                    for (int j = pair * 2; j < pair * 2 + 2; j++) {
+                        int in = rows[j] * stride;
+                        int out = j * newWidth;
+                        for (int i = 0; i < newWidth; i++) {
+                            dst[out++] = src[in + columns[i]];
+                        }
+                    }
+                    int in = vuBase + vuRows[pair] * stride;
+                    int out = ySize + pair * newWidth;
+                    for (int k = 0; k < newWidth / 2; k++) {
+                        int c = in + vuColumns[k] * 2;
+                        dst[out++] = src[c];
+                        dst[out++] = src[c + 1];
+                    }
+                }
+            }
+        });
+    }
+
+    /* Source index sampled by each of the size destination pixels: the one
+       under the destination pixel's centre */
+    private static int[] samplePoints(int srcSize, int size) {
+        int[] points = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = (int) (((2L * i + 1) * srcSize) / (2L * size));
+        }
+        return points;
+    }
+
+    private static int toArgb(int y, int v, int u, int range) {
+        v -= 128;
+        u -= 128;
+        int r;
+        int g;
+        int b;
+        if (range == RANGE_FULL) {
+            r = (int) (y + 1.370705f * v);
+            g = (int) (y - 0.698001f * v - 0.337633f * u);
+            b = (int) (y + 1.732446 * u);
+        } else {
+            r = (int) (1.164f * y + 1.596f * v);
+            g = (int) (1.164f * y - 0.813f * v - 0.391f * u);
+            b = (int) (1.164f * y + 2.018f * u);
+        }
+        r = r > 255 ? 255 : r < 0 ? 0 : r;
+        g = g > 255 ? 255 : g < 0 ? 0 : g;
+        b = b > 255 ? 255 : b < 0 ? 0 : b;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+
+    private static void swapRows(byte[] buf, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            byte t = buf[a + i];
+            buf[a + i] = buf[b + i];
+            buf[b + i] = t;
+        }
+    }
+
+    private static void checkEven(int a, int b) {
+        if (((a | b) & 1) != 0) {
+            throw new IllegalArgumentException("NV21 dimensions must be even: " + a + ", " + b);
+        }
+    }
+
+    /* Reads length bytes at index of buf, a per-tile duplicate, into dst */
+    private static void read(ByteBuffer buf, int index, byte[] dst, int length) {
+        buf.limit(index + length).position(index);
+        buf.get(dst, 0, length);
+    }
+
+    /* Like read() but stops at the end of buf, the last row may lack its padding */
+    private static void readRows(ByteBuffer buf, int index, byte[] dst, int length) {
+        read(buf, index, dst, Math.min(length, buf.capacity() - index));
+    }
+
+    private static void write(ByteBuffer buf, int index, byte[] src, int length) {
+        buf.limit(index + length).position(index);
+        buf.put(src, 0, length);
+    }
+
+    /* Swaps rows [from, to) of the count rows at base with their mirror rows */
+    private static void swapRows(ByteBuffer buf, int base, int count, int stride, int from,
+                                 int to) {
+        byte[] a = new byte[stride];
+        byte[] b = new byte[stride];
+        for (int y = from; y < to; y++) {
+            int top = base + y * stride;
+            int bottom = base + (count - 1 - y) * stride;
+            read(buf, top, a, stride);
+            read(buf, bottom, b, stride);
+            write(buf, top, b, stride);
+            write(buf, bottom, a, stride);
+        }
+    }
+
+    /* Runs rows in tiles of at least MIN_TILE_BYTES of work */
+    private void forEachRow(int rows, int bytesPerRow, Rows body) {
+        if (rows <= 0) {
+            return;
+        }
+        int grain = Math.max(1, MIN_TILE_BYTES / Math.max(1, bytesPerRow));
+        if (mPool == null || rows <= grain) {
+            body.run(0, rows);
+            return;
+        }
+        int tiles = mPool.getParallelism() * TILES_PER_THREAD;
+        grain = Math.max(grain, (rows + tiles - 1) / tiles);
+        mPool.invoke(new Tile(body, 0, rows, grain));
+    }
+
+    /* Same as forEachRow but hands out rows in multiples of TRANSPOSE_BLOCK, so
+       the transposing kernels write a block of output rows per source row */
+    private void forEachBlock(final int rows, int bytesPerRow, final Rows body) {
+        int blocks = (rows + TRANSPOSE_BLOCK - 1) / TRANSPOSE_BLOCK;
+        forEachRow(blocks, bytesPerRow * TRANSPOSE_BLOCK, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int block = from; block < to; block++) {
+                    body.run(block * TRANSPOSE_BLOCK,
+                            Math.min(rows, (block + 1) * TRANSPOSE_BLOCK));
+                }
+            }
+        });
+    }
+}
@@ -75,14 +75,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CompletionRegistry;
 import com.android.camera.util.PersistUtil;
+import com.android.camera.util.SaveEngine;
 
 import android.util.Size;
 
@@ -108,13 +112,29 @@ public class PostProcessor{
     private int mFilterIndex;
     private HandlerThread mHandlerThread;
     private ProcessorHandler mHandler;
+    private volatile CapturePipeline<CaptureJob> mPipeline;
+    // The current pipeline and the closed ones still draining
+    private final List<CapturePipeline<CaptureJob>> mLivePipelines =
+            new CopyOnWriteArrayList<CapturePipeline<CaptureJob>>();
+    private MediaSaveService mObservedSaveService;
+    // Wakes up the save stages when the save queue has room again.
+    private final SaveEngine.QueueListener mSaveQueueObserver = new SaveEngine.QueueListener() {
+        @Override
+        public void onQueueStatus(boolean full) {
+            if (!full) {
+                for (CapturePipeline<CaptureJob> pipeline : mLivePipelines) {
+                    pipeline.signalGate();
+                }
+            }
+        }
+    };
     private CameraActivity mActivity;
     private int mWidth;
     private int mHeight;
     private int mStride;
     private Object lock = new Object();
     private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
-    private Image[] mImages;
+    private YuvFrame[] mImages;
     private PhotoModule.NamedImages mNamedImages;
     private WatchdogThread mWatchdog;
     private int mOrientation = 0;
@@ -139,7 +159,11 @@ public class PostProcessor{
     private Handler mSavingHander;
     private HandlerThread mSavingHandlerThread;
     private ImageHandlerTask mImageHandlerTask;
-    private LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<TotalCaptureResult>();
+    private static final long META_DATA_TIMEOUT_MS = 100;
+    private static final long PIPELINE_DRAIN_TIMEOUT_MS = 3000;
+    // Capture results of the current shot keyed by their arrival index.
+    private CompletionRegistry<Integer, TotalCaptureResult> mCaptureResults =
+            new CompletionRegistry<Integer, TotalCaptureResult>();
     private TotalCaptureResult mZSLFallOffResult = null;
     private boolean mIsZSLFallOff = false;
     private TotalCaptureResult mLatestResultForLongShot = null;
@@ -156,7 +180,7 @@ public class PostProcessor{
     }
 
     public void onStartCapturing() {
-        mTotalCaptureResultList.clear();
+        mCaptureResults.clear();
     }
 
     public ImageReader getZSLReprocessImageReader() {
@@ -391,8 +415,9 @@ public class PostProcessor{
         public void onCaptureCompleted(CameraCaptureSession session,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
-            if(mTotalCaptureResultList.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
-                mTotalCaptureResultList.add(result);
+            int index = mCaptureResults.getCompletedCount();
+            if(index <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
+                mCaptureResults.complete(index, result);
             }
             if(mIsZSLFallOff) {
                 mZSLFallOffResult = result;
@@ -706,13 +731,40 @@ public class PostProcessor{
                 mHandler.setInActive();
             }
         }
+        final CapturePipeline<CaptureJob> pipeline = mPipeline;
+        if (pipeline != null) {
+            // The processor thread is joined below, it must not block on a full pipeline
+            pipeline.stopBlockingSubmits();
+        }
         stopBackgroundThread();
+        if (pipeline != null) {
+            mPipeline = null;
+            // The shots already taken still reach the save queue, off the main thread
+            pipeline.closeWhenIdle(PIPELINE_DRAIN_TIMEOUT_MS, new Runnable() {
+                @Override
+                public void run() {
+                    if (DEBUG_ZSL) pipeline.dumpStats();
+                    synchronized (mSaveQueueObserver) {
+                        mLivePipelines.remove(pipeline);
+                        if (mLivePipelines.isEmpty()) {
+                            observeSaveQueue(null);
+                        }
+                    }
+                }
+            });
+        }
 
         setFilter(FILTER_NONE);
         if(mZSLQueue != null) {
             mZSLQueue.onClose();
             mZSLQueue = null;
         }
+        if(mDefaultResultImage != null) {
+            mDefaultResultImage.recycle();
+            mDefaultResultImage = null;
+        }
+        FrameBufferPool.getInstance().trim();
+        FrameBufferPool.getHeapInstance().trim();
         if (mImageWriter != null) {
             mImageWriter.close();
             mImageWriter = null;
@@ -731,6 +783,8 @@ public class PostProcessor{
         mHandlerThread = new HandlerThread("PostProcessorThread");
         mHandlerThread.start();
         mHandler = new ProcessorHandler(mHandlerThread.getLooper());
+        mPipeline = createPipeline();
+        mLivePipelines.add(mPipeline);
 
         mZSLHandlerThread = new HandlerThread("ZSLHandlerThread");
         mZSLHandlerThread.start();
@@ -840,6 +894,14 @@ public class PostProcessor{
             return false;
         }
         synchronized (lock) {
+            if (mFilter instanceof ImageFilter.OutputExchange) {
+                // Gives back the buffer lent for the next shot
+                ByteBuffer buffer = ((ImageFilter.OutputExchange) mFilter).exchangeOutput(null);
+                FrameBufferPool pool = FrameBufferPool.getHeapInstance();
+                if (buffer != null && pool.isLeased(buffer)) {
+                    pool.release(buffer);
+                }
+            }
             if (mFilter != null) {
                 mFilter.deinit();
             }
@@ -887,7 +949,7 @@ public class PostProcessor{
             return false;
         }
         mFilterIndex = index;
-        mImages = new Image[mFilter.getNumRequiredImage()];
+        mImages = new YuvFrame[mFilter.getNumRequiredImage()];
         return true;
     }
 
@@ -949,28 +1011,27 @@ public class PostProcessor{
                         if(!handler.isRunning || mStatus != STATUS.BUSY) {
                             return;
                         }
-                        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
-                        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
+                        YuvFrame frame = YuvFrame.wrap(image);
 
                         if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
-                            image.close();
+                            if(mDefaultResultImage != null) {
+                                mDefaultResultImage.recycle();
+                            }
+                            // Held until the next shot replaces it
+                            mDefaultResultImage = ImageFilter.ResultImage.obtain(
+                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride,
+                                    TAG);
+                            frame.copyTo(mDefaultResultImage.outBuffer);
+                            frame.release();
                         } else {
                             if (DEBUG_DUMP_FILTER_IMG) {
-                                ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                        mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
+                                ImageFilter.ResultImage debugResultImage =
+                                        ImageFilter.ResultImage.obtain(new Rect(0, 0, mWidth,
                                         mHeight), mWidth, mHeight, mStride);
-                                yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
-                                vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
-                                        vuBuf.remaining());
-                                yBuf.rewind();
-                                vuBuf.rewind();
+                                frame.copyTo(debugResultImage.outBuffer);
 
                                 byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                debugResultImage.recycle();
                                 mActivity.getMediaSaveService().addImage(
                                         bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                         debugResultImage.outRoi.width(),
@@ -981,8 +1042,8 @@ public class PostProcessor{
                             if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
                                 mController.checkAndPlayShutterSound(mController.getMainCameraId());
                             }
-                            mFilter.addImage(yBuf, vuBuf, numImage, null);
-                            mImages[numImage] = image;
+                            mFilter.addImage(frame.getY(), frame.getVU(), numImage, null);
+                            mImages[numImage] = frame;
                         }
                     }
                 }
@@ -990,6 +1051,12 @@ public class PostProcessor{
     }
 
     public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
+        return addExifTags(jpeg, jpeg.length, orientationInDegree, result);
+    }
+
+    /* Returns the first length bytes of jpeg with the exif header put in */
+    public static byte[] addExifTags(byte[] jpeg, int length, int orientationInDegree,
+                                     TotalCaptureResult result) {
         ExifInterface exif = new ExifInterface();
         exif.addMakeAndModelTag();
         exif.addOrientationTag(orientationInDegree);
@@ -1015,13 +1082,13 @@ public class PostProcessor{
                 exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
             }
         }
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
-            exif.writeExif(jpeg, jpegOut);
+            // One copy of the image into an exactly sized array.
+            return exif.spliceExif(jpeg, 0, length).toByteArray();
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return Arrays.copyOf(jpeg, length);
     }
 
     private void clear() {
@@ -1037,7 +1104,7 @@ public class PostProcessor{
         final ProcessorHandler handler = mHandler;
         mHandler.post(new Runnable() {
             public void run() {
-                byte[] bytes;
+                CaptureJob job = null;
                 ImageFilter.ResultImage resultImage = null;
                 synchronized (lock) {
                     if (!handler.isRunning) {
@@ -1049,7 +1116,7 @@ public class PostProcessor{
                         resultImage = mFilter.processImage();
                         for (int i = 0; i < mImages.length; i++) {
                             if(mImages[i] != null) {
-                                mImages[i].close();
+                                mImages[i].release();
                                 mImages[i] = null;
                             }
                         }
@@ -1060,18 +1127,6 @@ public class PostProcessor{
                             filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
                             filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
                         }
-
-                        if(isSelfieMirrorOn() && !mController.isBackCamera()) {
-                            boolean isVertical = true;
-                            if (mOrientation == 0 || mOrientation == 180) {
-                                isVertical = false;
-                            } else {
-                                isVertical = true;
-                            }
-                            nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
-                                    resultImage.height, resultImage.stride - resultImage.width,
-                                    isVertical);
-                        }
                     }
                     //End processing FrameProessor filter
                     clear();
@@ -1085,53 +1140,193 @@ public class PostProcessor{
                             ) {
                         Log.d(TAG, "Result image is not valid.");
                     } else {
-                        bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
-                        if (mController.getCurrentIntentMode() ==
-                                CaptureModule.INTENT_MODE_CAPTURE) {
-                            mController.setJpegImageData(bytes);
-                            if (mController.isQuickCapture()) {
-                                mController.onCaptureDone();
-                            } else {
-                                mController.showCapturedReview(
-                                        bytes, mOrientation, isSelfieMirrorOn());
-                            }
+                        job = new CaptureJob(detachResultImage(resultImage), mOrientation,
+                                isSelfieMirrorOn() && !mController.isBackCamera(),
+                                waitForMetaData(0), title, date, mediaSavedListener,
+                                contentResolver);
+                    }
+                    if(resultImage != null && resultImage == mDefaultResultImage) {
+                        mDefaultResultImage = null;
+                        if (job == null) {
+                            resultImage.recycle();
                         }
-                        mActivity.getMediaSaveService().addImage(
-                                    bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                    mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
+                    }
+                }
+                // Outside of the lock, this blocks while the pipeline is backed up.
+                CapturePipeline<CaptureJob> pipeline = mPipeline;
+                if (job != null) {
+                    if (pipeline != null) {
+                        pipeline.submit(job);
+                    } else {
+                        job.recycle();
                     }
                 }
             }
         });
     }
 
-    public TotalCaptureResult waitForMetaData(int index) {
-        int timeout = 10; //100ms
-    	while(timeout > 0) {
-            if (mTotalCaptureResultList.size() > index) {
-                    return mTotalCaptureResultList.get(index);
+    /* Gives the pipeline a result it owns; filters reuse their output buffer for the next
+       shot, so it is exchanged for another one, or copied if the filter can't do that */
+    private ImageFilter.ResultImage detachResultImage(ImageFilter.ResultImage resultImage) {
+        if (resultImage == mDefaultResultImage) {
+            return resultImage;
+        }
+        if (mFilter instanceof ImageFilter.OutputExchange) {
+            FrameBufferPool pool = FrameBufferPool.getHeapInstance();
+            ByteBuffer next = pool.acquire(resultImage.outBuffer.limit(), mFilter.getStringName());
+            ByteBuffer out = ((ImageFilter.OutputExchange) mFilter).exchangeOutput(next);
+            if (out == resultImage.outBuffer) {
+                if (pool.isLeased(out)) {
+                    return ImageFilter.ResultImage.adopt(pool, out, resultImage.outRoi,
+                            resultImage.width, resultImage.height, resultImage.stride);
+                }
+                // The buffer the filter made itself in init()
+                return resultImage;
             }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
+            ((ImageFilter.OutputExchange) mFilter).exchangeOutput(out);
+            pool.release(next);
+        }
+        ImageFilter.ResultImage image = ImageFilter.ResultImage.obtain(
+                new Rect(resultImage.outRoi), resultImage.width, resultImage.height,
+                resultImage.stride);
+        ByteBuffer src = resultImage.outBuffer.duplicate();
+        src.clear();
+        src.limit(Math.min(src.capacity(), image.outBuffer.remaining()));
+        image.outBuffer.duplicate().put(src);
+        return image;
+    }
+
+    /* A processed shot on its way through the mirror, encode and save stages */
+    private static class CaptureJob {
+        ImageFilter.ResultImage resultImage;
+        final int orientation;
+        final boolean mirror;
+        final TotalCaptureResult result;
+        final String title;
+        final long date;
+        final MediaSaveService.OnMediaSavedListener listener;
+        final ContentResolver resolver;
+        byte[] jpeg;
+        int width;
+        int height;
+
+        CaptureJob(ImageFilter.ResultImage resultImage, int orientation, boolean mirror,
+                   TotalCaptureResult result, String title, long date,
+                   MediaSaveService.OnMediaSavedListener listener, ContentResolver resolver) {
+            this.resultImage = resultImage;
+            this.orientation = orientation;
+            this.mirror = mirror;
+            this.result = result;
+            this.title = title;
+            this.date = date;
+            this.listener = listener;
+            this.resolver = resolver;
+        }
+
+        void recycle() {
+            if (resultImage != null) {
+                resultImage.recycle();
+                resultImage = null;
+            }
+        }
+    }
+
+    /* The service can be bound after the pipeline is created, so it is picked up lazily */
+    private void observeSaveQueue(MediaSaveService service) {
+        synchronized (mSaveQueueObserver) {
+            if (service == mObservedSaveService) {
+                return;
+            }
+            if (mObservedSaveService != null) {
+                mObservedSaveService.removeQueueObserver(mSaveQueueObserver);
+            }
+            mObservedSaveService = service;
+            if (service != null) {
+                service.addQueueObserver(mSaveQueueObserver);
             }
-            timeout--;
         }
-        if(mTotalCaptureResultList.size() == 0) {
-            return null;
+    }
+
+    private CapturePipeline<CaptureJob> createPipeline() {
+        CapturePipeline<CaptureJob> pipeline = new CapturePipeline<CaptureJob>("PostProc",
+                new CapturePipeline.Recycler<CaptureJob>() {
+            @Override
+            public void recycle(CaptureJob job, boolean completed) {
+                job.recycle();
+            }
+        });
+        pipeline.addStage("mirror", 1, 1, new CapturePipeline.Stage<CaptureJob>() {
+            @Override
+            public void process(CaptureJob job) {
+                if (!job.mirror) {
+                    return;
+                }
+                ImageFilter.ResultImage image = job.resultImage;
+                boolean isVertical = !(job.orientation == 0 || job.orientation == 180);
+                PixelKernels.getDefault().mirrorNV21(image.outBuffer, image.width,
+                        image.height, image.stride, isVertical);
+            }
+        });
+        pipeline.addStage("encode", PersistUtil.getPostProcEncodeThreads(), 1,
+                new CapturePipeline.Stage<CaptureJob>() {
+            @Override
+            public void process(CaptureJob job) {
+                job.jpeg = nv21ToJpeg(job.resultImage, job.orientation, job.result, job.mirror);
+                job.width = job.resultImage.outRoi.width();
+                job.height = job.resultImage.outRoi.height();
+                // The frame is no longer needed once it is encoded.
+                job.recycle();
+            }
+        });
+        pipeline.addOrderedStage("save", 2, new CapturePipeline.Gate() {
+            @Override
+            public boolean isOpen() {
+                MediaSaveService service = mActivity.getMediaSaveService();
+                if (service == null) {
+                    return true;
+                }
+                observeSaveQueue(service);
+                return !service.isQueueFull();
+            }
+        }, new CapturePipeline.Stage<CaptureJob>() {
+            @Override
+            public void process(CaptureJob job) {
+                if (mController.getCurrentIntentMode() ==
+                        CaptureModule.INTENT_MODE_CAPTURE) {
+                    mController.setJpegImageData(job.jpeg);
+                    if (mController.isQuickCapture()) {
+                        mController.onCaptureDone();
+                    } else {
+                        mController.showCapturedReview(job.jpeg, job.orientation, job.mirror);
+                    }
+                }
+                mActivity.getMediaSaveService().addImage(
+                        job.jpeg, job.title, job.date, null, job.width, job.height,
+                        job.orientation, null, job.listener, job.resolver, "jpeg");
+                mController.updateThumbnailJpegData(job.jpeg);
+            }
+        });
+        pipeline.start();
+        return pipeline;
+    }
+
+    /* Waits up to 100ms for the result of the index-th image, falls back to the first one */
+    public TotalCaptureResult waitForMetaData(int index) {
+        TotalCaptureResult result = mCaptureResults.await(index, META_DATA_TIMEOUT_MS);
+        if (result == null) {
+            result = mCaptureResults.get(0);
         }
-        return mTotalCaptureResultList.get(0);
+        return result;
     }
 
     private ImageFilter.ResultImage resizeImage(ImageFilter.ResultImage oldImage, Size newSize) {
-        ImageFilter.ResultImage newImage = new ImageFilter.ResultImage(
-                ByteBuffer.allocateDirect(newSize.getWidth() * newSize.getHeight() * 3/2),
+        ImageFilter.ResultImage newImage = ImageFilter.ResultImage.obtain(
                 new Rect(0, 0,
                         newSize.getWidth(), newSize.getHeight()),
                 newSize.getWidth(), newSize.getHeight(), newSize.getWidth());
-        int ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
-                oldImage.width, oldImage.height, oldImage.stride, newSize.getWidth(), newSize.getHeight());
+        int ratio = PixelKernels.getDefault().downscaleNV21(oldImage.outBuffer,
+                oldImage.width, oldImage.height, oldImage.stride,
+                newSize.getWidth(), newSize.getHeight(), newImage.outBuffer);
         newImage.outRoi = new Rect(oldImage.outRoi.left/ratio, oldImage.outRoi.top/ratio,
                                        oldImage.outRoi.right/ratio, oldImage.outRoi.bottom/ratio);
         if(newImage.width < newImage.outRoi.width()) {
@@ -1160,8 +1355,7 @@ public class PostProcessor{
                     int size = image.getPlanes()[0].getBuffer().remaining();
                     byte[] bytes = new byte[size];
                     image.getPlanes()[0].getBuffer().get(bytes, 0, size);
-                    ExifInterface exif = Exif.getExif(bytes);
-                    int orientation = Exif.getOrientation(exif);
+                    int orientation = Exif.getOrientation(bytes);
                     if (mController.getCurrentIntentMode() != CaptureModule.INTENT_MODE_NORMAL) {
                         mController.setJpegImageData(bytes);
                         if (mController.isQuickCapture()) {
@@ -1183,17 +1377,21 @@ public class PostProcessor{
     };
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
+        return nv21ToJpeg(resultImage, orientation, result,
+                isSelfieMirrorOn() && !mController.isBackCamera());
+    }
+
+    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
+                              TotalCaptureResult result, boolean mirror) {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
+        YuvImage im = new YuvImage(resultImage.toArray(), ImageFormat.NV21,
                                     resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        if(isSelfieMirrorOn() && !mController.isBackCamera()) {
+        if(mirror) {
             int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
             resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
         im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
-        return bytes;
+        return addExifTags(bos.getArray(), bos.size(), orientation, result);
     }
 
     public int getJpegQualityValue() {
@@ -1215,9 +1413,11 @@ public class PostProcessor{
         }
     }
 
-    private native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
-    private native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
-    private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
+    // Reference implementations of the PixelKernels mirror, resize and split,
+    // kept for PixelKernelsNativeTest. Static so the test needs no instance.
+    static native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
+    static native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
+    static native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
     static {
         System.loadLibrary("jni_imageutil");
     }
@@ -0,0 +1,207 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted view of the Y and interleaved VU planes of an NV21
+ * frame, usually the planes of an Image straight from an ImageReader.
+ *
+ * Consumers read the planes in place through getY()/getVU(). Whoever needs
+ * a contiguous NV21 copy goes through copyTo(), which is the only place a
+ * frame gets copied and reports every copy to the CopyListener hook, so
+ * tests can assert how many times a frame is copied between sensor and
+ * encoder. The backing Image is closed when the last reference is released.
+ */
+public class YuvFrame {
+
+    public interface Releaser {
+        void release(YuvFrame frame);
+    }
+
+    public interface CopyListener {
+        void onCopy(YuvFrame frame, int bytes);
+    }
+
+    private static volatile CopyListener sCopyListener;
+
+    private final ByteBuffer mY;
+    private final ByteBuffer mVU;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mYStride;
+    private final int mVUStride;
+    private final int mVUPixelStride;
+    private final long mTimestamp;
+    private final Releaser mReleaser;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private final AtomicInteger mCopyCount = new AtomicInteger();
+
+    public YuvFrame(ByteBuffer y, ByteBuffer vu, int width, int height, int yStride,
+                    int vuStride, int vuPixelStride, long timestamp, Releaser releaser) {
+        mY = y;
+        mVU = vu;
+        mWidth = width;
+        mHeight = height;
+        mYStride = yStride;
+        mVUStride = vuStride;
+        mVUPixelStride = vuPixelStride;
+        mTimestamp = timestamp;
+        mReleaser = releaser;
+    }
+
+    /* Wraps the planes of a YUV_420_888 image laid out as NV21; release() closes it */
+    public static YuvFrame wrap(final Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvFrame(planes[0].getBuffer(), planes[2].getBuffer(),
+                image.getWidth(), image.getHeight(),
+                planes[0].getRowStride(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                image.getTimestamp(), new Releaser() {
+            @Override
+            public void release(YuvFrame frame) {
+                image.close();
+            }
+        });
+    }
+
+    /* Hook for tests and tracing, called for every plane copy of any frame */
+    public static void setCopyListener(CopyListener listener) {
+        sCopyListener = listener;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getYStride() {
+        return mYStride;
+    }
+
+    public int getVUStride() {
+        return mVUStride;
+    }
+
+    public int getVUPixelStride() {
+        return mVUPixelStride;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /* Independent view of the Y plane, positioned at its start */
+    public ByteBuffer getY() {
+        ByteBuffer y = mY.duplicate();
+        y.rewind();
+        return y;
+    }
+
+    /* Independent view of the interleaved VU plane, positioned at its start */
+    public ByteBuffer getVU() {
+        ByteBuffer vu = mVU.duplicate();
+        vu.rewind();
+        return vu;
+    }
+
+    /* Size of the contiguous NV21 layout produced by copyTo() */
+    public int getNV21Size() {
+        return mYStride * mHeight * 3 / 2;
+    }
+
+    public int getCopyCount() {
+        return mCopyCount.get();
+    }
+
+    public YuvFrame retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("YuvFrame is already released");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            if (mReleaser != null) {
+                mReleaser.release(this);
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("YuvFrame is released too many times");
+        }
+    }
+
+    /* Copies the planes into dst as NV21, VU starting at yStride * height */
+    public void copyTo(ByteBuffer dst) {
+        ByteBuffer y = getY();
+        ByteBuffer vu = getVU();
+        int bytes = y.remaining() + vu.remaining();
+        ByteBuffer out = dst.duplicate();
+        out.clear();
+        out.put(y);
+        out.position(mYStride * mHeight);
+        out.put(vu);
+        onCopied(bytes);
+    }
+
+    /* Same as copyTo(ByteBuffer); allocates dst when it is missing or too small */
+    public byte[] copyTo(byte[] dst) {
+        if (dst == null || dst.length < getNV21Size()) {
+            dst = new byte[getNV21Size()];
+        }
+        ByteBuffer y = getY();
+        ByteBuffer vu = getVU();
+        int ySize = y.remaining();
+        int vuSize = vu.remaining();
+        y.get(dst, 0, ySize);
+        vu.get(dst, mYStride * mHeight, vuSize);
+        onCopied(ySize + vuSize);
+        return dst;
+    }
+
+    private void onCopied(int bytes) {
+        mCopyCount.incrementAndGet();
+        CopyListener listener = sCopyListener;
+        if (listener != null) {
+            listener.onCopy(this, bytes);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ranks buffered ZSL frames by a weighted score of lens state, AE state,
+ * exposure time, a sampled sharpness metric and frame age.
+ *
+ * Frames that are still converging (lens moving, AE/AF/AWB searching) are
+ * rejected outright, which keeps the old checkImageRequirement behaviour as
+ * the floor. The sharpness metric only looks at a fixed grid of samples, so
+ * scoring a frame costs the same regardless of the sensor resolution. It is
+ * computed by the image producer before the frame is buffered, since a
+ * buffered image can be evicted and closed while it is being ranked.
+ */
+public class ZSLFrameScorer implements ZSLRingBuffer.Scorer<ZSLQueue.ImageItem, TotalCaptureResult> {
+    public static final int STATE_UNKNOWN = -1;
+
+    private static final int GRID_COLUMNS = 32;
+    private static final int GRID_ROWS = 24;
+    private static final float SHARPNESS_KNEE = 0.02f;
+    private static final long MAX_EXPOSURE_NS = 100000000L;
+
+    private final long mWindowNs;
+    private float mLensWeight = 0.2f;
+    private float mAeWeight = 0.2f;
+    private float mExposureWeight = 0.15f;
+    private float mSharpnessWeight = 0.35f;
+    private float mAgeWeight = 0.1f;
+
+    public ZSLFrameScorer(long windowNs) {
+        mWindowNs = windowNs;
+    }
+
+    public long getWindowNs() {
+        return mWindowNs;
+    }
+
+    public void setWeights(float lens, float ae, float exposure, float sharpness, float age) {
+        mLensWeight = lens;
+        mAeWeight = ae;
+        mExposureWeight = exposure;
+        mSharpnessWeight = sharpness;
+        mAgeWeight = age;
+    }
+
+    @Override
+    public float score(ZSLQueue.ImageItem item, TotalCaptureResult result, long ageNs) {
+        if (!isAcceptable(result)) {
+            return -1f;
+        }
+        return score(getInt(result, CaptureResult.LENS_STATE),
+                getInt(result, CaptureResult.CONTROL_AE_STATE),
+                getExposureTime(result), item.getSharpness(), ageNs);
+    }
+
+    /* Must be called by the producer while it still owns the image */
+    public static float sharpness(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        return sharpness(plane.getBuffer(), image.getWidth(), image.getHeight(),
+                plane.getRowStride(), plane.getPixelStride());
+    }
+
+    public boolean isAcceptable(TotalCaptureResult result) {
+        return isAcceptable(getInt(result, CaptureResult.LENS_STATE),
+                getInt(result, CaptureResult.CONTROL_AF_STATE),
+                getInt(result, CaptureResult.CONTROL_AE_STATE),
+                getInt(result, CaptureResult.CONTROL_AWB_STATE),
+                getInt(result, CaptureResult.FLASH_MODE));
+    }
+
+    public static boolean isAcceptable(int lensState, int afState, int aeState,
+                                       int awbState, int flashMode) {
+        if (lensState == CaptureResult.LENS_STATE_MOVING
+                || aeState == CaptureResult.CONTROL_AE_STATE_SEARCHING
+                || aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE
+                || afState == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN
+                || afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN) {
+            return false;
+        }
+
+        if (aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED
+                && flashMode != STATE_UNKNOWN
+                && flashMode != CaptureResult.FLASH_MODE_OFF) {
+            return true;
+        }
+
+        if (awbState == CaptureResult.CONTROL_AWB_STATE_SEARCHING) {
+            return false;
+        }
+        return true;
+    }
+
+    /* Score of an already accepted frame, in the range [0, sum of weights] */
+    public float score(int lensState, int aeState, long exposureNs, float sharpness, long ageNs) {
+        float score = 0f;
+
+        if (lensState == CaptureResult.LENS_STATE_STATIONARY || lensState == STATE_UNKNOWN) {
+            score += mLensWeight;
+        }
+
+        if (aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED) {
+            score += mAeWeight;
+        } else if (aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+            score += mAeWeight * 0.5f;
+        } else {
+            score += mAeWeight * 0.75f;
+        }
+
+        // Shorter exposures carry less motion blur.
+        if (exposureNs <= 0) {
+            score += mExposureWeight * 0.5f;
+        } else {
+            score += mExposureWeight * Math.max(0f, 1f - (float) exposureNs / MAX_EXPOSURE_NS);
+        }
+
+        score += mSharpnessWeight * Math.max(0f, Math.min(1f, sharpness));
+
+        if (mWindowNs > 0) {
+            score += mAgeWeight * Math.max(0f, 1f - (float) ageNs / mWindowNs);
+        } else {
+            score += mAgeWeight;
+        }
+        return score;
+    }
+
+    /**
+     * Mean absolute horizontal and vertical gradient over a fixed sample grid
+     * of the Y plane, mapped to [0, 1). Blur flattens neighbouring pixel
+     * differences, so sharper frames score higher.
+     */
+    public static float sharpness(ByteBuffer y, int width, int height, int rowStride,
+                                  int pixelStride) {
+        if (y == null || width < 2 || height < 2) {
+            return 0f;
+        }
+        int stepX = Math.max(1, (width - 1) / GRID_COLUMNS);
+        int stepY = Math.max(1, (height - 1) / GRID_ROWS);
+        long sum = 0;
+        int count = 0;
+        for (int row = stepY / 2; row < height - 1; row += stepY) {
+            int rowOffset = row * rowStride;
+            for (int col = stepX / 2; col < width - 1; col += stepX) {
+                int offset = rowOffset + col * pixelStride;
+                int p = y.get(offset) & 0xff;
+                int right = y.get(offset + pixelStride) & 0xff;
+                int below = y.get(offset + rowStride) & 0xff;
+                sum += Math.abs(p - right) + Math.abs(p - below);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0f;
+        }
+        float mean = sum / (510f * count);
+        return mean / (mean + SHARPNESS_KNEE);
+    }
+
+    private static int getInt(TotalCaptureResult result, CaptureResult.Key<Integer> key) {
+        Integer value = result.get(key);
+        return value == null ? STATE_UNKNOWN : value.intValue();
+    }
+
+    private static long getExposureTime(TotalCaptureResult result) {
+        Long value = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        return value == null ? 0 : value.longValue();
+    }
+}
@@ -37,211 +37,118 @@ import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
 import android.os.SystemProperties;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-
 public class ZSLQueue {
     private static final String CIRCULAR_BUFFER_SIZE_PERSIST = "persist.camera.zsl.buffer.size";
     private static final int CIRCULAR_BUFFER_SIZE_DEFAULT = 5;
     private int mCircularBufferSize = CIRCULAR_BUFFER_SIZE_DEFAULT;
-    private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
-    private Object mLock = new Object();
+    private volatile ZSLRingBuffer<ImageItem, TotalCaptureResult> mBuffer;
     private CaptureModule mModule;
     private static final boolean DEBUG_QUEUE  =
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
     private static final String TAG = "ZSLQueue";
 
+    private final ZSLRingBuffer.Releaser<ImageItem> mReleaser =
+            new ZSLRingBuffer.Releaser<ImageItem>() {
+        @Override
+        public void release(ImageItem item) {
+            item.closeImage();
+        }
+    };
+
+    private final ZSLFrameScorer mScorer;
+    private final ZSLRingBuffer.Selector<TotalCaptureResult> mSelector =
+            new ZSLRingBuffer.Selector<TotalCaptureResult>() {
+        @Override
+        public boolean isAcceptable(TotalCaptureResult metadata) {
+            return mScorer.isAcceptable(metadata);
+        }
+    };
+
     public ZSLQueue(CaptureModule module) {
         mCircularBufferSize = SystemProperties.getInt(CIRCULAR_BUFFER_SIZE_PERSIST, CIRCULAR_BUFFER_SIZE_DEFAULT);
-        synchronized (mLock) {
-            mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
-            mModule = module;
+        if (mCircularBufferSize <= 0) {
+            mCircularBufferSize = CIRCULAR_BUFFER_SIZE_DEFAULT;
         }
-    }
-
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
-    }
-
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+        mBuffer = new ZSLRingBuffer<ImageItem, TotalCaptureResult>(mCircularBufferSize, mReleaser);
+        mModule = module;
+        mScorer = new ZSLFrameScorer(PersistUtil.getZSLScoreWindow() * 1000000L);
     }
 
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
+        ZSLRingBuffer<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null) {
+            image.close();
+            if (rawImage != null) {
+                rawImage.close();
             }
+            return;
         }
+        ImageItem item = new ImageItem();
+        item.setImage(image, rawImage);
+        if(mScorer.getWindowNs() > 0) {
+            // Once buffered the image may be evicted and closed while it is ranked.
+            item.setSharpness(ZSLFrameScorer.sharpness(image));
+        }
+        buffer.addImage(image.getTimestamp(), item);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
+        if(DEBUG_QUEUE) Log.d(TAG, "image: " + image.getTimestamp() +
+                " paired: " + buffer.getPairedCount() +
+                " unmatched: " + buffer.getUnmatchedImageCount());
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
-            }
+        ZSLRingBuffer<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null)
+            return;
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
+        }
+        if(timestamp == -1) {
+            return;
         }
+        buffer.addMetadata(timestamp, metadata);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + timestamp +
+                " unmatched: " + buffer.getUnmatchedMetadataCount());
     }
 
     public ImageItem tryToGetMatchingItem() {
-        synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+        ZSLRingBuffer<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null) {
+            return null;
         }
-        return null;
-    }
-
-    public void onClose() {
-        synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
-            }
-            mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+        ZSLRingBuffer.Frame<ImageItem, TotalCaptureResult> frame;
+        if(mScorer.getWindowNs() > 0) {
+            frame = buffer.takeBest(mScorer, mScorer.getWindowNs());
+        } else {
+            frame = buffer.takeLatest(mSelector);
         }
-    }
-
-    private boolean checkImageRequirement(TotalCaptureResult captureResult) {
-        if( (captureResult.get(CaptureResult.LENS_STATE) != null &&
-             captureResult.get(CaptureResult.LENS_STATE).intValue() == CaptureResult.LENS_STATE_MOVING)
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-                (captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_SEARCHING ||
-                 captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_PRECAPTURE))
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AF_STATE) != null) &&
-                (captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN ||
-                 captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN)) {
-            return false;
-        }
-
-        if( captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-            captureResult.get(CaptureResult.FLASH_MODE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED &&
-            captureResult.get(CaptureResult.FLASH_MODE).intValue() != CaptureResult.FLASH_MODE_OFF) {
-            return true;
+        if(frame == null) {
+            return null;
         }
+        if(DEBUG_QUEUE) Log.d(TAG, "Selected: " + frame.timestamp);
+        frame.image.setMetadata(frame.metadata);
+        return frame.image;
+    }
 
-        if( captureResult.get(CaptureResult.CONTROL_AWB_STATE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AWB_STATE).intValue() == CaptureResult.CONTROL_AWB_STATE_SEARCHING ) {
-            return false;
+    public void onClose() {
+        ZSLRingBuffer<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        mBuffer = null;
+        if(buffer != null) {
+            buffer.close();
         }
-
-        return true;
     }
 
     static class ImageItem {
         private Image mImage = null;
         private Image mRawImage = null;
         private TotalCaptureResult mMetadata = null;
+        private float mSharpness;
 
         public Image getImage() {
             return mImage;
@@ -260,6 +167,14 @@ public class ZSLQueue {
             mRawImage =rawImage;
         }
 
+        public float getSharpness() {
+            return mSharpness;
+        }
+
+        public void setSharpness(float sharpness) {
+            mSharpness = sharpness;
+        }
+
         public TotalCaptureResult getMetadata() {
             return mMetadata;
         }
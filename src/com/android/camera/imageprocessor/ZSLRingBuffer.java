@@ -0,0 +1,405 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ZSL frame buffer pairing images with their capture metadata by
+ * sensor timestamp.
+ *
+ * Images and metadata are published into two separate rings, each written by
+ * exactly one producer thread (the image listener and the capture callback),
+ * so the producers never contend on a common monitor. Every ring keeps a small
+ * open-addressing timestamp index, which makes pairing a constant time lookup
+ * regardless of arrival order. Consumers claim a frame with a CAS on its image
+ * slot; whoever wins the CAS (a consumer or the producer evicting the slot)
+ * owns the image and is responsible for releasing it.
+ *
+ * This class has no Android dependencies so it can be exercised on a plain JVM.
+ */
+public class ZSLRingBuffer<I, M> {
+
+    /* Called for every image that leaves the buffer without being taken */
+    public interface Releaser<I> {
+        void release(I image);
+    }
+
+    /* Decides whether the metadata of a paired frame is good enough to be taken */
+    public interface Selector<M> {
+        boolean isAcceptable(M metadata);
+    }
+
+    /**
+     * Ranks a paired frame, higher is better; a negative score rejects it.
+     * The frame is still published while it is ranked and the producer can
+     * release the image at any time, so only values fixed at insert may be read.
+     */
+    public interface Scorer<I, M> {
+        float score(I image, M metadata, long ageNs);
+    }
+
+    public static class Frame<I, M> {
+        public final long timestamp;
+        public final I image;
+        public final M metadata;
+
+        Frame(long timestamp, I image, M metadata) {
+            this.timestamp = timestamp;
+            this.image = image;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Entry {
+        static final AtomicIntegerFieldUpdater<Entry> PAIRED =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "paired");
+        final long timestamp;
+        final long sequence;
+        volatile int paired;
+
+        Entry(long timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class ImageEntry<I> extends Entry {
+        final I image;
+
+        ImageEntry(long timestamp, long sequence, I image) {
+            super(timestamp, sequence);
+            this.image = image;
+        }
+    }
+
+    private static class MetaEntry<M> extends Entry {
+        final M metadata;
+
+        MetaEntry(long timestamp, long sequence, M metadata) {
+            super(timestamp, sequence);
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Timestamp to slot index over one ring. Only the owning producer writes,
+     * any thread may read; readers validate every hit against the ring itself,
+     * so a stale or half-written index entry simply reads as a miss.
+     */
+    private static class TimestampIndex {
+        private static final long EMPTY = Long.MIN_VALUE;
+        private static final int MAX_PROBE = 8;
+        private final AtomicReferenceArray<? extends Entry> mRing;
+        private final AtomicLongArray mKeys;
+        private final AtomicIntegerArray mSlots;
+        private final int mMask;
+
+        TimestampIndex(AtomicReferenceArray<? extends Entry> ring) {
+            int size = Integer.highestOneBit(Math.max(ring.length() * 4, MAX_PROBE) - 1) << 1;
+            mRing = ring;
+            mKeys = new AtomicLongArray(size);
+            mSlots = new AtomicIntegerArray(size);
+            mMask = size - 1;
+            for (int i = 0; i < size; i++) {
+                mKeys.set(i, EMPTY);
+            }
+        }
+
+        private int home(long timestamp) {
+            long h = timestamp * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mMask;
+        }
+
+        private boolean isLive(int pos, long key) {
+            Entry e = mRing.get(mSlots.get(pos));
+            return e != null && e.timestamp == key;
+        }
+
+        void put(long timestamp, int slot) {
+            int start = home(timestamp);
+            int target = start;
+            for (int i = 0; i < MAX_PROBE; i++) {
+                int pos = (start + i) & mMask;
+                long key = mKeys.get(pos);
+                if (key == EMPTY || key == timestamp || !isLive(pos, key)) {
+                    target = pos;
+                    break;
+                }
+            }
+            // Slot first, key last: a reader that sees the key also sees the slot.
+            mSlots.set(target, slot);
+            mKeys.set(target, timestamp);
+        }
+
+        int get(long timestamp) {
+            int start = home(timestamp);
+            for (int i = 0; i < MAX_PROBE; i++) {
+                int pos = (start + i) & mMask;
+                long key = mKeys.get(pos);
+                if (key == timestamp) {
+                    int slot = mSlots.get(pos);
+                    Entry e = mRing.get(slot);
+                    if (e != null && e.timestamp == timestamp) {
+                        return slot;
+                    }
+                } else if (key == EMPTY) {
+                    break;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final int mCapacity;
+    private final Releaser<I> mReleaser;
+    private final AtomicReferenceArray<ImageEntry<I>> mImages;
+    private final AtomicReferenceArray<MetaEntry<M>> mMetas;
+    private final TimestampIndex mImageIndex;
+    private final TimestampIndex mMetaIndex;
+    private volatile long mImageSequence;
+    private volatile long mMetaSequence;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mPairedCount = new AtomicLong();
+    private final AtomicLong mUnmatchedImageCount = new AtomicLong();
+    private final AtomicLong mUnmatchedMetadataCount = new AtomicLong();
+    private final AtomicLong mTakenCount = new AtomicLong();
+
+    public ZSLRingBuffer(int capacity, Releaser<I> releaser) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid ZSL buffer size " + capacity);
+        }
+        mCapacity = capacity;
+        mReleaser = releaser;
+        mImages = new AtomicReferenceArray<ImageEntry<I>>(capacity);
+        mMetas = new AtomicReferenceArray<MetaEntry<M>>(capacity);
+        mImageIndex = new TimestampIndex(mImages);
+        mMetaIndex = new TimestampIndex(mMetas);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /* Must only be called from the single image producer thread */
+    public void addImage(long timestamp, I image) {
+        if (mClosed) {
+            release(image);
+            return;
+        }
+        long seq = mImageSequence;
+        int slot = (int) (seq % mCapacity);
+        ImageEntry<I> entry = new ImageEntry<I>(timestamp, seq, image);
+        ImageEntry<I> old = mImages.getAndSet(slot, entry);
+        if (old != null) {
+            if (old.paired == 0) {
+                mUnmatchedImageCount.incrementAndGet();
+            }
+            release(old.image);
+        }
+        mImageIndex.put(timestamp, slot);
+        mImageSequence = seq + 1;
+
+        int metaSlot = mMetaIndex.get(timestamp);
+        if (metaSlot >= 0) {
+            MetaEntry<M> meta = mMetas.get(metaSlot);
+            if (meta != null && meta.timestamp == timestamp) {
+                markPaired(entry, meta);
+            }
+        }
+
+        if (mClosed && mImages.compareAndSet(slot, entry, null)) {
+            release(image);
+        }
+    }
+
+    /* Must only be called from the single metadata producer thread */
+    public void addMetadata(long timestamp, M metadata) {
+        if (mClosed) {
+            return;
+        }
+        long seq = mMetaSequence;
+        int slot = (int) (seq % mCapacity);
+        MetaEntry<M> entry = new MetaEntry<M>(timestamp, seq, metadata);
+        MetaEntry<M> old = mMetas.getAndSet(slot, entry);
+        if (old != null && old.paired == 0) {
+            mUnmatchedMetadataCount.incrementAndGet();
+        }
+        mMetaIndex.put(timestamp, slot);
+        mMetaSequence = seq + 1;
+
+        int imageSlot = mImageIndex.get(timestamp);
+        if (imageSlot >= 0) {
+            ImageEntry<I> image = mImages.get(imageSlot);
+            if (image != null && image.timestamp == timestamp) {
+                markPaired(image, entry);
+            }
+        }
+    }
+
+    private void markPaired(ImageEntry<I> image, MetaEntry<M> meta) {
+        meta.paired = 1;
+        if (Entry.PAIRED.compareAndSet(image, 0, 1)) {
+            mPairedCount.incrementAndGet();
+        }
+    }
+
+    private MetaEntry<M> findMeta(long timestamp) {
+        int slot = mMetaIndex.get(timestamp);
+        if (slot < 0) {
+            return null;
+        }
+        MetaEntry<M> meta = mMetas.get(slot);
+        if (meta == null || meta.timestamp != timestamp) {
+            return null;
+        }
+        return meta;
+    }
+
+    /**
+     * Claims the newest image that has its metadata and passes the selector.
+     * The walk is bounded by the buffer depth and normally ends on the first
+     * probe, since the newest frame is usually already paired.
+     */
+    public Frame<I, M> takeLatest(Selector<M> selector) {
+        if (mClosed) {
+            return null;
+        }
+        long head = mImageSequence;
+        long tail = Math.max(0, head - mCapacity);
+        for (long seq = head - 1; seq >= tail; seq--) {
+            int slot = (int) (seq % mCapacity);
+            ImageEntry<I> image = mImages.get(slot);
+            if (image == null || image.sequence != seq) {
+                continue;
+            }
+            MetaEntry<M> meta = findMeta(image.timestamp);
+            if (meta == null || (selector != null && !selector.isAcceptable(meta.metadata))) {
+                continue;
+            }
+            if (mImages.compareAndSet(slot, image, null)) {
+                mTakenCount.incrementAndGet();
+                return new Frame<I, M>(image.timestamp, image.image, meta.metadata);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Claims the best scoring paired frame no older than maxAgeNs relative to
+     * the newest buffered image. At most one scoring pass over the buffer depth
+     * is made per attempt, so the cost per capture is bounded by the depth and
+     * by the scorer itself.
+     */
+    public Frame<I, M> takeBest(Scorer<I, M> scorer, long maxAgeNs) {
+        for (int attempt = 0; attempt < 2 && !mClosed; attempt++) {
+            long head = mImageSequence;
+            long tail = Math.max(0, head - mCapacity);
+            long newest = Long.MIN_VALUE;
+            ImageEntry<I> bestImage = null;
+            MetaEntry<M> bestMeta = null;
+            float bestScore = -1f;
+            int bestSlot = -1;
+            for (long seq = head - 1; seq >= tail; seq--) {
+                int slot = (int) (seq % mCapacity);
+                ImageEntry<I> image = mImages.get(slot);
+                if (image == null || image.sequence != seq) {
+                    continue;
+                }
+                if (newest == Long.MIN_VALUE) {
+                    newest = image.timestamp;
+                }
+                long age = Math.max(0, newest - image.timestamp);
+                if (age > maxAgeNs) {
+                    continue;
+                }
+                MetaEntry<M> meta = findMeta(image.timestamp);
+                if (meta == null) {
+                    continue;
+                }
+                float score = scorer.score(image.image, meta.metadata, age);
+                if (score >= 0 && score > bestScore) {
+                    bestScore = score;
+                    bestImage = image;
+                    bestMeta = meta;
+                    bestSlot = slot;
+                }
+            }
+            if (bestImage == null) {
+                return null;
+            }
+            if (mImages.compareAndSet(bestSlot, bestImage, null)) {
+                mTakenCount.incrementAndGet();
+                return new Frame<I, M>(bestImage.timestamp, bestImage.image, bestMeta.metadata);
+            }
+            // The winner was evicted while scoring, rank the buffer once more.
+        }
+        return null;
+    }
+
+    public void close() {
+        mClosed = true;
+        for (int i = 0; i < mCapacity; i++) {
+            ImageEntry<I> image = mImages.getAndSet(i, null);
+            if (image != null) {
+                release(image.image);
+            }
+            mMetas.set(i, null);
+        }
+    }
+
+    private void release(I image) {
+        if (image != null && mReleaser != null) {
+            mReleaser.release(image);
+        }
+    }
+
+    public long getPairedCount() {
+        return mPairedCount.get();
+    }
+
+    public long getTakenCount() {
+        return mTakenCount.get();
+    }
+
+    /* Images evicted before their metadata showed up */
+    public long getUnmatchedImageCount() {
+        return mUnmatchedImageCount.get();
+    }
+
+    /* Metadata evicted before its image showed up */
+    public long getUnmatchedMetadataCount() {
+        return mUnmatchedMetadataCount.get();
+    }
+}
@@ -51,6 +51,7 @@ import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CompletionRegistry;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -76,7 +77,9 @@ public class BestpictureFilter implements ImageFilter {
     private static final String INTENT_ACTION_STILL_IMAGE_CAMERA_SECURE =
             "android.media.action.STILL_IMAGE_CAMERA_SECURE";
     private final static int TIME_DELAY = 50;
-    private int mSavedCount = 0;
+    // Pictures saved to the private folder, keyed by image number.
+    private CompletionRegistry<Integer, Boolean> mSavedImages =
+            new CompletionRegistry<Integer, Boolean>();
     private PhotoModule.NamedImages mNamedImages;
     private ByteBuffer mBY;
     private ByteBuffer mBVU;
@@ -84,7 +87,6 @@ public class BestpictureFilter implements ImageFilter {
     private boolean mIsOn = false;
     private PostProcessor mProcessor;
     private ProgressDialog mProgressDialog;
-    private ImageFilter.ResultImage mBestpictureResultImage;
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -144,7 +146,7 @@ public class BestpictureFilter implements ImageFilter {
         if(imageNum == 0) {
             showProgressDialog();
             mOrientation = CameraUtil.getJpegRotation(mModule.getMainCameraId(), mModule.getDisplayOrientation());
-            mSavedCount = 0;
+            mSavedImages.clear();
             mBY = bY;
             mBVU = bVU;
 
@@ -161,14 +163,11 @@ public class BestpictureFilter implements ImageFilter {
                         public void onMediaSaved(final  Uri uri) {
                             if (uri != null) {
                                 mActivity.notifyNewMedia(uri);
-                                new Thread() {
-                                    public void run() {
-                                        while(mSavedCount < NUM_REQUIRED_IMAGE) {
-                                            try {
-                                                Thread.sleep(10);
-                                            } catch (Exception e) {
-                                            }
-                                        }
+                                // Pictures are saved in order, the last one means all are there.
+                                mSavedImages.whenComplete(NUM_REQUIRED_IMAGE - 1,
+                                        new CompletionRegistry.Callback<Boolean>() {
+                                    @Override
+                                    public void onComplete(Boolean saved) {
                                         mActivity.runOnUiThread(new Runnable() {
                                             public void run() {
                                                 dismissProgressDialog();
@@ -176,7 +175,7 @@ public class BestpictureFilter implements ImageFilter {
                                             }
                                         });
                                     }
-                                }.start();
+                                });
 
                             }
                         }
@@ -207,17 +206,21 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            ImageFilter.ResultImage resultImage = ImageFilter.ResultImage.obtain(
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
-            yBuf.rewind();
-            vuBuf.rewind();
+            try {
+                ByteBuffer out = resultImage.outBuffer.duplicate();
+                out.put(yBuf);
+                out.position(mStrideY * mHeight);
+                out.put(vuBuf);
+                yBuf.rewind();
+                vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
-                    mProcessor.waitForMetaData(imageNum));
+                return nv21ToJpeg(resultImage, mOrientation,
+                        mProcessor.waitForMetaData(imageNum));
+            } finally {
+                resultImage.recycle();
+            }
         }
     }
 
@@ -280,7 +283,7 @@ public class BestpictureFilter implements ImageFilter {
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
+        YuvImage im = new YuvImage(resultImage.toArray(), ImageFormat.NV21,
                 resultImage.width, resultImage.height, new int[]{resultImage.stride,
                 resultImage.stride});
         im.compressToJpeg(resultImage.outRoi, mProcessor.getJpegQualityValue(), bos);
@@ -314,7 +317,7 @@ public class BestpictureFilter implements ImageFilter {
             out.close();
         } catch (Exception e) {
         }
-        mSavedCount++;
+        mSavedImages.complete(imageNum, Boolean.TRUE);
         Log(imageNum+" image is saved");
     }
 }
@@ -40,7 +40,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class BlurbusterFilter implements ImageFilter{
+public class BlurbusterFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = 5;
     private int mWidth;
     private int mHeight;
@@ -99,6 +99,13 @@ public class BlurbusterFilter implements ImageFilter{
         nativeDeinit();
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        ByteBuffer out = mOutBuf;
+        mOutBuf = buffer;
+        return out;
+    }
+
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
         Log("addImage");
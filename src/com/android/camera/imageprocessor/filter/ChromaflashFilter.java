@@ -38,12 +38,13 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.util.CompletionRegistry;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class ChromaflashFilter implements ImageFilter{
+public class ChromaflashFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = 6;
     private int mWidth;
     private int mHeight;
@@ -54,7 +55,10 @@ public class ChromaflashFilter implements ImageFilter{
     private static boolean mIsSupported = false;
     private ByteBuffer mOutBuf;
     private CaptureModule mModule;
-    private int mImageNum = -1;
+    private static final long IMAGE_TIMEOUT_MS = 5000;
+    // Images handed to addImage() for the current shot, keyed by image number.
+    private CompletionRegistry<Integer, Boolean> mAddedImages =
+            new CompletionRegistry<Integer, Boolean>();
 
     private static void Log(String msg) {
         if(DEBUG) {
@@ -88,7 +92,7 @@ public class ChromaflashFilter implements ImageFilter{
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
         mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
-        mImageNum = -1;
+        mAddedImages.clear();
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -98,21 +102,28 @@ public class ChromaflashFilter implements ImageFilter{
     public void deinit() {
         Log("deinit");
         mOutBuf = null;
-        mImageNum = -1;
+        mAddedImages.clear();
         nativeDeinit();
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        ByteBuffer out = mOutBuf;
+        mOutBuf = buffer;
+        return out;
+    }
+
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
         Log("addImage");
         if(imageNum == 1 || imageNum == 2 || imageNum == 4) {
-            mImageNum = imageNum;
+            mAddedImages.complete(imageNum, Boolean.TRUE);
             return;
         }
         int yActualSize = bY.remaining();
         int vuActualSize = bVU.remaining();
-        mImageNum = imageNum;
         int status = nativeAddImage(bY, bVU, yActualSize, vuActualSize, imageNum);
+        mAddedImages.complete(imageNum, Boolean.TRUE);
         if(status != 0) {
             Log.e(TAG, "Fail to add image");
         }
@@ -124,7 +135,7 @@ public class ChromaflashFilter implements ImageFilter{
         int[] roi = new int[4];
         int status = nativeProcessImage(mOutBuf.array(), roi);
         Log("processImage done");
-        mImageNum = -1;
+        mAddedImages.clear();
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
@@ -182,11 +193,8 @@ public class ChromaflashFilter implements ImageFilter{
     }
 
     private void waitForImage(int index) {
-        try {
-            while(mImageNum < index) {
-                Thread.sleep(50);
-            }
-        } catch (InterruptedException e) {
+        if (mAddedImages.await(index, IMAGE_TIMEOUT_MS) == null) {
+            Log.w(TAG, "Timed out waiting for image " + index);
         }
     }
 
@@ -33,6 +33,8 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Handler;
+import com.android.camera.imageprocessor.FrameBufferPool;
+import com.android.camera.imageprocessor.YuvFrame;
 import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
@@ -71,6 +73,8 @@ public interface ImageFilter {
         public int width;
         public int height;
         public int stride;
+        // Pool the buffer is leased from, null when it is not pooled
+        private FrameBufferPool mPool;
 
         public ResultImage(ByteBuffer buf, Rect roi, int width, int height, int stride) {
             outBuffer = buf;
@@ -79,6 +83,74 @@ public interface ImageFilter {
             this.height = height;
             this.stride = stride;
         }
+
+        /* NV21 image backed by a FrameBufferPool buffer, give it back with recycle() */
+        public static ResultImage obtain(Rect roi, int width, int height, int stride) {
+            return obtain(roi, width, height, stride, null);
+        }
+
+        /* Same, for an image kept across captures by owner, see FrameBufferPool */
+        public static ResultImage obtain(Rect roi, int width, int height, int stride,
+                                         String owner) {
+            FrameBufferPool pool = FrameBufferPool.getInstance();
+            return adopt(pool, pool.acquire(stride * height * 3 / 2, owner),
+                    roi, width, height, stride);
+        }
+
+        /* Image backed by a buffer leased from pool, recycle() releases it */
+        public static ResultImage adopt(FrameBufferPool pool, ByteBuffer buffer, Rect roi,
+                                        int width, int height, int stride) {
+            ResultImage image = new ResultImage(buffer, roi, width, height, stride);
+            image.mPool = pool;
+            return image;
+        }
+
+        /* The NV21 bytes for APIs that only take an array, like YuvImage. That is
+           the backing array when the buffer exposes one (Android's direct buffers
+           do), otherwise a copy the caller owns. */
+        public byte[] toArray() {
+            if (outBuffer.hasArray() && outBuffer.arrayOffset() == 0) {
+                return outBuffer.array();
+            }
+            ByteBuffer src = outBuffer.duplicate();
+            src.clear();
+            src.limit(Math.min(src.capacity(), stride * height * 3 / 2));
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            return bytes;
+        }
+
+        public void recycle() {
+            if (mPool != null && outBuffer != null) {
+                mPool.release(outBuffer);
+                outBuffer = null;
+                mPool = null;
+            }
+        }
+    }
+
+    /* Implemented by filters that can read the frame planes in place instead of
+       getting them through addImage() */
+    interface FrameConsumer {
+        void addFrame(YuvFrame frame, Object param);
+    }
+
+    /* Implemented by filters that can hand over the buffer of their result
+       instead of having it copied, and write the next one somewhere else */
+    interface OutputExchange {
+        /* Returns the buffer of the last result and writes the next one into
+           buffer, an array-backed buffer at least as large */
+        ByteBuffer exchangeOutput(ByteBuffer buffer);
+    }
+
+    /* Implemented by frame listeners that don't need every preview frame at
+       full size; FrameProcessor then hands them every Nth frame, downscaled */
+    interface RateLimited {
+        /* Frames per second the listener wants, 0 for all it keeps up with */
+        int getTargetFps();
+
+        /* Longest side of the frames it wants, 0 for the preview size */
+        int getMaxInputSize();
     }
 
     /* Whether it is post proc filter or frame proc filter */
@@ -40,7 +40,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class OptizoomFilter implements ImageFilter{
+public class OptizoomFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = 8;
     private int mWidth;
     private int mHeight;
@@ -101,6 +101,13 @@ public class OptizoomFilter implements ImageFilter{
         nativeDeinit();
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        ByteBuffer out = mOutBuf;
+        mOutBuf = buffer;
+        return out;
+    }
+
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
         Log("addImage");
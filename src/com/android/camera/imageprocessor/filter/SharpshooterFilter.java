@@ -44,7 +44,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class SharpshooterFilter implements ImageFilter{
+public class SharpshooterFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = 5;
     private int mWidth;
     private int mHeight;
@@ -123,6 +123,13 @@ public class SharpshooterFilter implements ImageFilter{
         nativeDeinit();
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        ByteBuffer out = mOutBuf;
+        mOutBuf = buffer;
+        return out;
+    }
+
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
         Log("addImage");
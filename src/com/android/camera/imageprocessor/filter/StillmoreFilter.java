@@ -44,7 +44,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class StillmoreFilter implements ImageFilter{
+public class StillmoreFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = PersistUtil.getStillmoreNumRequiredImages();
     private int mWidth;
     private int mHeight;
@@ -116,6 +116,13 @@ public class StillmoreFilter implements ImageFilter{
         nativeDeinit();
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        ByteBuffer out = mOutBuf;
+        mOutBuf = buffer;
+        return out;
+    }
+
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
         Log("addImage");
@@ -40,6 +40,7 @@ import android.util.Log;
 import android.util.Size;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.YuvFrame;
 import com.android.camera.ui.FilmstripBottomControls;
 import com.android.camera.ui.TrackingFocusRenderer;
 
@@ -47,7 +48,11 @@ import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 
-public class TrackingFocusFrameListener implements ImageFilter {
+public class TrackingFocusFrameListener implements ImageFilter, ImageFilter.FrameConsumer,
+        ImageFilter.RateLimited {
+    /* The tracker follows objects fine at half the preview rate and size */
+    private static final int TARGET_FPS = 15;
+    private static final int MAX_INPUT_SIZE = 720;
 
     int mWidth;
     int mHeight;
@@ -99,6 +104,16 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     @Override
     public void init(int width, int height, int strideY, int strideVU) {
+        if (mIsInitialzed && (width != mWidth || height != mHeight || strideY != mStrideY)) {
+            // The tracker is set up for one frame geometry, start over with the new one
+            if (mTrackedId != PENDING_REGISTRATION) {
+                nUnregisterObject(mTrackedId);
+                mTrackedId = PENDING_REGISTRATION;
+            }
+            mInputCords = null;
+            mIsFirstTime = true;
+            deinit();
+        }
         mWidth = width;
         mHeight = height;
         mStrideY = strideY;
@@ -126,6 +141,26 @@ public class TrackingFocusFrameListener implements ImageFilter {
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
         bY.get(yvuBytes, 0, bY.remaining());
         bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+        track();
+    }
+
+    @Override
+    public int getTargetFps() {
+        return TARGET_FPS;
+    }
+
+    @Override
+    public int getMaxInputSize() {
+        return MAX_INPUT_SIZE;
+    }
+
+    @Override
+    public void addFrame(YuvFrame frame, Object isPreview) {
+        yvuBytes = frame.copyTo(yvuBytes);
+        track();
+    }
+
+    private void track() {
         int[] cords = mTrackingFocusRender.getInputCords(mWidth, mHeight);
         if(cords != null) {
             if(mTrackedId != PENDING_REGISTRATION) {
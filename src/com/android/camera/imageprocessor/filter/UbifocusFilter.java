@@ -38,7 +38,6 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.os.Handler;
 import android.util.Log;
@@ -48,6 +47,7 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CompletionRegistry;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -57,7 +57,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class UbifocusFilter implements ImageFilter {
+public class UbifocusFilter implements ImageFilter, ImageFilter.OutputExchange {
     public static final int NUM_REQUIRED_IMAGE = 5;
     private int mWidth;
     private int mHeight;
@@ -75,11 +75,13 @@ public class UbifocusFilter implements ImageFilter {
     private float mMinFocusDistance = -1f;
     private Object mClosingLock = new Object();
     private PostProcessor mPostProcessor;
-    private ImageFilter.ResultImage mUbifocusResultImage;
     final String[] NAMES = {"00.jpg", "01.jpg", "02.jpg", "03.jpg",
             "04.jpg", "DepthMapImage.y", "AllFocusImage.jpg"};
 
-    private int mSavedCount = 0;
+    private static final long SAVE_TIMEOUT_MS = 5000;
+    // Images saved to the private folder, keyed by image number.
+    private CompletionRegistry<Integer, Boolean> mSavedImages =
+            new CompletionRegistry<Integer, Boolean>();
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -129,13 +131,22 @@ public class UbifocusFilter implements ImageFilter {
         }
     }
 
+    @Override
+    public ByteBuffer exchangeOutput(ByteBuffer buffer) {
+        synchronized (mClosingLock) {
+            ByteBuffer out = mOutBuf;
+            mOutBuf = buffer;
+            return out;
+        }
+    }
+
     @Override
     public void addImage(final ByteBuffer bY, final ByteBuffer bVU, final int imageNum, Object param) {
         Log("addImage");
         if(imageNum == 0) {
             mModule.setRefocusLastTaken(false);
             mOrientation = CameraUtil.getJpegRotation(mModule.getMainCameraId(), mModule.getDisplayOrientation());
-            mSavedCount = 0;
+            mSavedImages.clear();
         }
         int yActualSize = bY.remaining();
         int vuActualSize = bVU.remaining();
@@ -150,7 +161,7 @@ public class UbifocusFilter implements ImageFilter {
                     }
                     byte[] bytes = getYUVBytes(bY, bVU, imageNum);
                     saveToPrivateFile(imageNum, bytes);
-                    mSavedCount++;
+                    mSavedImages.complete(imageNum, Boolean.TRUE);
                 }
             }
         }.start();
@@ -171,11 +182,8 @@ public class UbifocusFilter implements ImageFilter {
             saveToPrivateFile(NAMES.length - 1, nv21ToJpeg(mOutBuf, null, new Rect(roi[0], roi[1], roi[0] + roi[2], roi[1] + roi[3]), mOrientation, 0));
             mModule.setRefocusLastTaken(true);
         }
-        while(mSavedCount < NUM_REQUIRED_IMAGE) {
-            try {
-                Thread.sleep(1);
-            } catch (Exception e) {
-            }
+        if (mSavedImages.awaitCount(NUM_REQUIRED_IMAGE, SAVE_TIMEOUT_MS) < NUM_REQUIRED_IMAGE) {
+            Log.w(TAG, "Timed out waiting for the focus images to be saved");
         }
         ResultImage result = new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
         Log("processImage done");
@@ -209,20 +217,11 @@ public class UbifocusFilter implements ImageFilter {
             mModule.setAFModeToPreview(mModule.getMainCameraId(), CaptureRequest.CONTROL_AF_MODE_OFF);
             mModule.setFocusDistanceToPreview(mModule.getMainCameraId(), value);
             Log("Request:  " + value);
-            float focusDistance;
             try {
-                int count = FOCUS_ADJUST_TIME_OUT;
-                do {
-                    Thread.sleep(5);
-                    count -= 5;
-                    if(count <= 0) {
-                        break;
-                    }
-                    focusDistance = mModule.getPreviewCaptureResult().get(CaptureResult.LENS_FOCUS_DISTANCE);
-                    Log("Taken focus value :"+focusDistance);
-                } while(Math.abs(focusDistance - value) >= 1f);
+                if (!mModule.waitForFocusDistance(value, 1f, FOCUS_ADJUST_TIME_OUT)) {
+                    Log("Focus did not reach " + value);
+                }
             } catch (InterruptedException e) {
-            } catch (NullPointerException e) {
             }
             builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
             builder.set(CaptureRequest.LENS_FOCUS_DISTANCE, value);
@@ -282,24 +281,28 @@ public class UbifocusFilter implements ImageFilter {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            ImageFilter.ResultImage resultImage = ImageFilter.ResultImage.obtain(
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mUbifocusResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
-            yBuf.rewind();
-            vuBuf.rewind();
+            try {
+                ByteBuffer out = resultImage.outBuffer.duplicate();
+                out.put(yBuf);
+                out.position(mStrideY * mHeight);
+                out.put(vuBuf);
+                yBuf.rewind();
+                vuBuf.rewind();
 
-            return nv21ToJpeg(mUbifocusResultImage, mOrientation,
-                    mPostProcessor.waitForMetaData(imageNum));
+                return nv21ToJpeg(resultImage, mOrientation,
+                        mPostProcessor.waitForMetaData(imageNum));
+            } finally {
+                resultImage.recycle();
+            }
         }
     }
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
+        YuvImage im = new YuvImage(resultImage.toArray(), ImageFormat.NV21,
                 resultImage.width, resultImage.height, new int[]{resultImage.stride,
                 resultImage.stride});
         im.compressToJpeg(resultImage.outRoi, mPostProcessor.getJpegQualityValue(), bos);
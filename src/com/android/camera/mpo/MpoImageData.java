@@ -37,20 +37,49 @@ public class MpoImageData {
     private final MpoIfdData mMpIndexIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_INDEX_IFD);
     private final MpoIfdData mMpAttribIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_ATTRIB_IFD);
     private final byte[] mJpegData;
+    private final int mJpegOffset;
+    private final int mJpegLength;
     private final ByteOrder mByteOrder;
 
     public MpoImageData(byte[] jpegData, ByteOrder byteOrder) {
+        this(jpegData, 0, jpegData.length, byteOrder);
+    }
+
+    /**
+     * Uses the jpeg image in length bytes of jpegData from offset on, without
+     * copying it. The array must not change until the mpo is written.
+     */
+    public MpoImageData(byte[] jpegData, int offset, int length, ByteOrder byteOrder) {
+        if (offset < 0 || length < 0 || offset + length > jpegData.length) {
+            throw new IllegalArgumentException("Invalid jpeg range");
+        }
         mJpegData = jpegData;
+        mJpegOffset = offset;
+        mJpegLength = length;
         mByteOrder = byteOrder;
     }
 
     /**
-     * Gets the jpeg data.
+     * Gets the array holding the jpeg data.
      */
     protected byte[] getJpegData() {
         return mJpegData;
     }
 
+    /**
+     * Gets where the jpeg data starts in {@link #getJpegData()}.
+     */
+    protected int getJpegOffset() {
+        return mJpegOffset;
+    }
+
+    /**
+     * Gets the size of the jpeg data in bytes.
+     */
+    protected int getJpegLength() {
+        return mJpegLength;
+    }
+
     /**
      * Gets the byte order.
      */
@@ -243,6 +272,6 @@ public class MpoImageData {
     }
 
     public int calculateImageSize() {
-        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + mJpegData.length;
+        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + mJpegLength;
     }
 }
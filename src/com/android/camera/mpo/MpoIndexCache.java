@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of parsed MPO indexes, keyed by path and
+ * checked against the modification time and size of the file, so swiping
+ * back and forth over the same images does not parse them again. Plain
+ * JPEGs are cached too, as indexes without images.
+ */
+public class MpoIndexCache {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static MpoIndexCache sInstance;
+
+    private final LinkedHashMap<String, Entry> mEntries;
+    private int mHits;
+    private int mMisses;
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final MpoReader.Index index;
+
+        Entry(long lastModified, long length, MpoReader.Index index) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.index = index;
+        }
+    }
+
+    public static synchronized MpoIndexCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new MpoIndexCache(DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    public MpoIndexCache(final int capacity) {
+        mEntries = new LinkedHashMap<String, Entry>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Returns the index of file, parsing it through channel if it is not cached or stale. */
+    public MpoReader.Index get(File file, FileChannel channel) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = channel.size();
+        synchronized (this) {
+            Entry entry = mEntries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                mHits++;
+                return entry.index;
+            }
+            mMisses++;
+        }
+        // Parse outside the lock, a racing parse of the same file is harmless.
+        MpoReader.Index index = MpoReader.readIndex(channel);
+        synchronized (this) {
+            mEntries.put(path, new Entry(lastModified, length, index));
+        }
+        return index;
+    }
+
+    public synchronized void remove(String path) {
+        mEntries.remove(new File(path).getAbsolutePath());
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+}
@@ -19,13 +19,11 @@
 
 package com.android.camera.mpo;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import android.util.Log;
-
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.CameraUtil;
 
@@ -96,11 +94,21 @@ public class MpoInterface {
         return s.size();
     }
 
-    public static int writeMpo(MpoData mpo, String outFilename) {
-        if (mpo == null || outFilename == null)
+    /**
+     * Lays out the mpo file as buffers that mostly wrap the image arrays, to
+     * be written back to back with one gathering write. Returns null if the
+     * images can't be put in an mpo file.
+     */
+    public static ByteBuffer[] getMpoBuffers(MpoData mpo) {
+        if (mpo == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
+        try {
+            return new MpoWriter(mpo).getBuffers();
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image", e);
+            return null;
+        }
     }
 
     /**
@@ -118,26 +126,4 @@ public class MpoInterface {
         MpoOutputStream mos = new MpoOutputStream(outStream);
         return mos;
     }
-
-    /**
-     * Returns an FileOutputStream object that writes to a file.
-     *
-     * @param outFileName
-     *            an String containing a filepath for a file.
-     * @return an FileOutputStream that writes to the outFileName file.
-     * @throws FileNotFoundException
-     */
-    private static OutputStream getFileWriterStream(String outFileName) {
-        if (outFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(outFileName);
-        } catch (FileNotFoundException e) {
-            CameraUtil.closeSilently(out);
-            Log.w(TAG, "File not found");
-        }
-        return out;
-    }
 }
@@ -46,13 +46,13 @@ class MpoOutputStream extends FilterOutputStream {
     private static final int STATE_SKIP_CROP = 2;
     private static final int STATE_JPEG_DATA = 3;
 
-    private static final short TIFF_HEADER = 0x002A;
-    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
-    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
-    private static final int MAX_EXIF_SIZE = 65535;
+    static final short TIFF_HEADER = 0x002A;
+    static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    static final int MAX_EXIF_SIZE = 65535;
 
-    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
-    private static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
+    static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+    static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
 
     private MpoData mMpoData;
     private MpoImageData mCurrentImageData;
@@ -117,7 +117,7 @@ class MpoOutputStream extends FilterOutputStream {
         if(mMpoData.getAuxiliaryImageCount() > 1) {
             mSkipCropData = true;
         }
-        write(mCurrentImageData.getJpegData());
+        writeJpegData(mCurrentImageData);
         flush();
 
         mSkipCropData = false;
@@ -125,11 +125,15 @@ class MpoOutputStream extends FilterOutputStream {
         for (MpoImageData image : mMpoData.getAuxiliaryMpoImages()) {
             resetStates();
             mCurrentImageData = image;
-            write(mCurrentImageData.getJpegData());
+            writeJpegData(mCurrentImageData);
             flush();
         }
     }
 
+    private void writeJpegData(MpoImageData image) throws IOException {
+        write(image.getJpegData(), image.getJpegOffset(), image.getJpegLength());
+    }
+
     /**
      * Writes the image out. The input data should be a valid JPEG format. After
      * writing, it's Exif header will be replaced by the given header.
@@ -343,7 +347,7 @@ class MpoOutputStream extends FilterOutputStream {
             writeIfd(attribIfd, dataOutputStream);
     }
 
-    private void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+    static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
         MpoTag[] tags = ifd.getAllTags();
         dataOutputStream.writeShort((short) tags.length);
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.android.camera.exif.JpegHeader;
+
+/**
+ * Random access reader for MPO containers.
+ * <p>
+ * Only the segment headers of the primary image and its MP Format segment
+ * are read to build the {@link Index}; the embedded images are handed out as
+ * read-only mapped slices or bounded streams over the file, so nothing is
+ * loaded until it is actually decoded. Use {@link #open(String)} to share
+ * parsed indexes through {@link MpoIndexCache}.
+ */
+public class MpoReader implements Closeable {
+    private static final short SOS = (short) 0xFFDA;
+    private static final short TIFF_TAG_MP_ENTRY = (short) MpoInterface.TAG_MP_ENTRY;
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    /** Where the images of an MPO container are, absolute in the file. */
+    public static final class Index {
+        /** Index of a file without an MP Format segment, the whole file is one image. */
+        static final Index NONE = new Index(new long[0], new long[0], new int[0]);
+
+        private final long[] mOffsets;
+        private final long[] mSizes;
+        private final int[] mAttribs;
+
+        Index(long[] offsets, long[] sizes, int[] attribs) {
+            mOffsets = offsets;
+            mSizes = sizes;
+            mAttribs = attribs;
+        }
+
+        public boolean isMpo() {
+            return mOffsets.length > 0;
+        }
+
+        public int getImageCount() {
+            return mOffsets.length;
+        }
+
+        public long getImageOffset(int index) {
+            return mOffsets[index];
+        }
+
+        public long getImageSize(int index) {
+            return mSizes[index];
+        }
+
+        /** Individual image attribute of the MP entry, the type code in the low 24 bits. */
+        public int getImageAttrib(int index) {
+            return mAttribs[index];
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Index mIndex;
+
+    /** Opens the file, looking the index up in the shared cache first. */
+    public static MpoReader open(String path) throws IOException {
+        File file = new File(path);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            Index index = MpoIndexCache.getInstance().get(file, raf.getChannel());
+            return new MpoReader(raf, index);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    MpoReader(RandomAccessFile file, Index index) {
+        mFile = file;
+        mChannel = file.getChannel();
+        mIndex = index;
+    }
+
+    public Index getIndex() {
+        return mIndex;
+    }
+
+    public boolean isMpo() {
+        return mIndex.isMpo();
+    }
+
+    public int getImageCount() {
+        return mIndex.getImageCount();
+    }
+
+    /** Read-only view of one embedded JPEG, mapped on demand. */
+    public ByteBuffer getImage(int index) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, mIndex.getImageOffset(index),
+                mIndex.getImageSize(index));
+    }
+
+    /**
+     * Stream over one embedded JPEG that ends with the image. It reads the
+     * file through positional reads and stays valid until this reader is
+     * closed; it does not close the reader.
+     */
+    public InputStream openImage(int index) {
+        return new SliceInputStream(mChannel, mIndex.getImageOffset(index),
+                mIndex.getImageSize(index));
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Parses the MP Index IFD in the MP Format segment of the primary image.
+     * Returns {@link Index#NONE} when the file is a JPEG without one, and
+     * throws if it is not a JPEG or the index points outside the file.
+     */
+    public static Index readIndex(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(channel, header, 0, 2);
+        if (header.getShort(0) != JpegHeader.SOI) {
+            throw new IOException("Not a jpeg image");
+        }
+        long pos = 2;
+        while (pos + 8 <= fileSize) {
+            readFully(channel, header, pos, 8);
+            short marker = header.getShort(0);
+            int length = header.getShort(2) & 0xffff;
+            if (marker == SOS || marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            if (marker == JpegHeader.APP2
+                    && header.getInt(4) == MpoImageData.MP_FORMAT_IDENTIFIER
+                    && length > MpoImageData.APP_HEADER_SIZE + MpoImageData.MP_HEADER_SIZE) {
+                // TIFF header and IFDs, offsets inside count from the byte order mark
+                long tiffStart = pos + MpoImageData.MP_HEADER_SIZE;
+                ByteBuffer tiff = ByteBuffer.allocate(length - MpoImageData.APP_HEADER_SIZE);
+                readFully(channel, tiff, tiffStart, tiff.capacity());
+                return parseIndexIfd(channel, tiff, tiffStart, fileSize);
+            }
+            pos += 2 + length;
+        }
+        return Index.NONE;
+    }
+
+    private static Index parseIndexIfd(FileChannel channel, ByteBuffer tiff, long tiffStart,
+            long fileSize) throws IOException {
+        short order = tiff.getShort(0);
+        if (order == MpoOutputStream.TIFF_LITTLE_ENDIAN) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order != MpoOutputStream.TIFF_BIG_ENDIAN) {
+            throw new IOException("Invalid MP Format byte order");
+        }
+        if (tiff.getShort(2) != MpoOutputStream.TIFF_HEADER) {
+            throw new IOException("Invalid MP Format header");
+        }
+        int ifd = tiff.getInt(4);
+        if (ifd < MpoImageData.OFFSET_TO_FIRST_IFD || ifd + 2 > tiff.limit()) {
+            return Index.NONE;
+        }
+        int tagCount = tiff.getShort(ifd) & 0xffff;
+        for (int i = 0; i < tagCount; i++) {
+            int tagPos = ifd + 2 + i * IFD_ENTRY_SIZE;
+            if (tagPos + IFD_ENTRY_SIZE > tiff.limit()) {
+                break;
+            }
+            if (tiff.getShort(tagPos) != TIFF_TAG_MP_ENTRY) {
+                continue;
+            }
+            int count = tiff.getInt(tagPos + 4);
+            int offset = tiff.getInt(tagPos + 8);
+            if (count <= 0 || count % MpoTag.MpEntry.SIZE != 0 || offset < 0
+                    || offset + count > tiff.limit()) {
+                throw new IOException("Invalid MP entry");
+            }
+            Index index = parseEntries(channel, tiff, offset, count, tiff.order(), tiffStart,
+                    fileSize);
+            if (index == null && tiff.order() != ByteOrder.BIG_ENDIAN) {
+                // MpoTag packs MP entries big endian whatever the TIFF byte order
+                index = parseEntries(channel, tiff, offset, count, ByteOrder.BIG_ENDIAN,
+                        tiffStart, fileSize);
+            }
+            if (index == null) {
+                throw new IOException("MP entries point outside of the file");
+            }
+            return index;
+        }
+        return Index.NONE;
+    }
+
+    /* Returns null unless every entry is a JPEG inside the file */
+    private static Index parseEntries(FileChannel channel, ByteBuffer tiff, int offset, int count,
+            ByteOrder order, long tiffStart, long fileSize) throws IOException {
+        ByteBuffer entries = tiff.duplicate().order(order);
+        int images = count / MpoTag.MpEntry.SIZE;
+        long[] offsets = new long[images];
+        long[] sizes = new long[images];
+        int[] attribs = new int[images];
+        ByteBuffer soi = ByteBuffer.allocate(2);
+        for (int i = 0; i < images; i++) {
+            int entry = offset + i * MpoTag.MpEntry.SIZE;
+            attribs[i] = entries.getInt(entry);
+            sizes[i] = entries.getInt(entry + 4) & 0xffffffffL;
+            long imageOffset = entries.getInt(entry + 8) & 0xffffffffL;
+            // the primary image always starts the file and has offset 0
+            offsets[i] = i == 0 ? 0 : tiffStart + imageOffset;
+            if (sizes[i] < 4 || offsets[i] + sizes[i] > fileSize) {
+                return null;
+            }
+            readFully(channel, soi, offsets[i], 2);
+            if (soi.getShort(0) != JpegHeader.SOI) {
+                return null;
+            }
+        }
+        return new Index(offsets, sizes, attribs);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static class SliceInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private final long mEnd;
+        private long mPos;
+        private long mMark;
+        private final ByteBuffer mOne = ByteBuffer.allocate(1);
+
+        SliceInputStream(FileChannel channel, long offset, long size) {
+            mChannel = channel;
+            mPos = offset;
+            mMark = offset;
+            mEnd = offset + size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos >= mEnd) {
+                return -1;
+            }
+            mOne.clear();
+            if (mChannel.read(mOne, mPos) <= 0) {
+                return -1;
+            }
+            mPos++;
+            return mOne.get(0) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mPos >= mEnd) {
+                return -1;
+            }
+            int n = (int) Math.min(len, mEnd - mPos);
+            int read = mChannel.read(ByteBuffer.wrap(b, off, n), mPos);
+            if (read > 0) {
+                mPos += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, mEnd - mPos));
+            mPos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPos);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mMark = mPos;
+        }
+
+        @Override
+        public void reset() {
+            mPos = mMark;
+        }
+    }
+}
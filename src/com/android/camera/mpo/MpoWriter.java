@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.exif.OrderedDataOutputStream;
+import com.android.camera.mpo.MpoTag.MpEntry;
+
+/**
+ * Writes an MPO container in two passes, byte for byte what
+ * {@link MpoOutputStream} produces for the same {@link MpoData}.
+ * <p>
+ * The first pass only walks the segment headers of each JPEG to find where
+ * its MP Format segment goes and, on a primary image with several auxiliary
+ * images, the dual camera crop segment to blank. That fixes every MP entry
+ * offset and the total size before anything is written. The second pass
+ * hands the container out as one sequence of buffers: slices of
+ * the source JPEGs with the small MP Format segments in between, so the
+ * images themselves are never copied.
+ * <p>
+ * The source arrays must not be modified until the container is written.
+ */
+class MpoWriter {
+    // APP2 marker, segment length and MP Format identifier
+    private static final int MPF_PREFIX_SIZE = 8;
+
+    private final ArrayList<ByteBuffer> mParts = new ArrayList<ByteBuffer>();
+    private final long mSize;
+
+    MpoWriter(MpoData mpo) throws IOException {
+        MpoImageData primary = mpo.getPrimaryMpoImage();
+        if (primary == null) {
+            throw new IllegalArgumentException("Primary Mpo Image has not been set");
+        }
+        mpo.updateAllTags();
+        ArrayList<MpoImageData> images =
+                new ArrayList<MpoImageData>(mpo.getAuxiliaryImageCount() + 1);
+        images.add(primary);
+        images.addAll(mpo.getAuxiliaryMpoImages());
+
+        // Pass one: where the MP Format segments go, from the segment headers.
+        int[] mpfOffsets = new int[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            mpfOffsets[i] = findMpfOffset(images.get(i));
+        }
+        int[] crop = null;
+        if (mpo.getAuxiliaryImageCount() > 1) {
+            // The primary is not the bayer image, its crop info is stale.
+            crop = findCropInfo(primary.getJpegData(), mpfOffsets[0],
+                    primary.getJpegOffset() + primary.getJpegLength());
+        }
+        // Entry offsets count from the TIFF header in the primary MP Format
+        // segment, which follows what precedes it in the primary image.
+        updateEntryOffsets(primary,
+                mpfOffsets[0] - primary.getJpegOffset() + MPF_PREFIX_SIZE);
+
+        // Pass two: the container as slices of the images around new segments.
+        long size = 0;
+        for (int i = 0; i < images.size(); i++) {
+            MpoImageData image = images.get(i);
+            byte[] jpeg = image.getJpegData();
+            int start = image.getJpegOffset();
+            int end = start + image.getJpegLength();
+            byte[] mpf = buildMpfSegment(image);
+            mParts.add(ByteBuffer.wrap(jpeg, start, mpfOffsets[i] - start));
+            mParts.add(ByteBuffer.wrap(mpf));
+            if (i == 0 && crop != null) {
+                mParts.add(ByteBuffer.wrap(jpeg, mpfOffsets[i], crop[0] - mpfOffsets[i]));
+                mParts.add(ByteBuffer.wrap(new byte[crop[1] - crop[0]]));
+                mParts.add(ByteBuffer.wrap(jpeg, crop[1], end - crop[1]));
+            } else {
+                mParts.add(ByteBuffer.wrap(jpeg, mpfOffsets[i], end - mpfOffsets[i]));
+            }
+            size += image.getJpegLength() + mpf.length;
+        }
+        mSize = size;
+    }
+
+    /** Size of the container in bytes. */
+    long size() {
+        return mSize;
+    }
+
+    /** The container as a sequence of buffers, mostly wrapping the sources. */
+    ByteBuffer[] getBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[mParts.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = mParts.get(i).duplicate();
+        }
+        return buffers;
+    }
+
+    private static int readUnsignedShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /* Same rule as MpoOutputStream: right after the leading APP0 and APP1 segments */
+    private static int findMpfOffset(MpoImageData image) throws IOException {
+        byte[] jpeg = image.getJpegData();
+        int end = image.getJpegOffset() + image.getJpegLength();
+        int pos = image.getJpegOffset();
+        if (pos + 2 > end || (short) readUnsignedShort(jpeg, pos) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write mpo");
+        }
+        pos += 2;
+        while (pos + 4 <= end) {
+            short marker = (short) readUnsignedShort(jpeg, pos);
+            if (marker != JpegHeader.APP0 && marker != JpegHeader.APP1) {
+                return pos;
+            }
+            pos += 2 + readUnsignedShort(jpeg, pos + 2);
+        }
+        throw new IOException("No image data in jpeg, cannot write mpo");
+    }
+
+    /**
+     * Returns the payload range of the first segment before SOF that starts
+     * with the dual camera crop info, or null if there is none.
+     */
+    private static int[] findCropInfo(byte[] jpeg, int pos, int end) {
+        while (pos + 4 <= end) {
+            short marker = (short) readUnsignedShort(jpeg, pos);
+            if (JpegHeader.isSofMarker(marker)) {
+                return null;
+            }
+            int segmentEnd = Math.min(end, pos + 2 + readUnsignedShort(jpeg, pos + 2));
+            if (isCropInfo(jpeg, pos + 4, end)) {
+                return new int[] {
+                        pos + 4, segmentEnd
+                };
+            }
+            pos = segmentEnd;
+        }
+        return null;
+    }
+
+    private static boolean isCropInfo(byte[] jpeg, int pos, int end) {
+        if (pos + MpoOutputStream.DC_CROP_INFO_BYTE_SIZE > end) {
+            return false;
+        }
+        for (int i = 0; i < MpoOutputStream.DC_CROP_INFO_BYTE_SIZE; i++) {
+            if (jpeg[pos + i] != (byte) MpoOutputStream.DC_CROP_INFO.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void updateEntryOffsets(MpoImageData primary, int mpoOffset) {
+        MpoTag mpEntryTag = primary.getTag((short) MpoInterface.TAG_MP_ENTRY,
+                MpoIfdData.TYPE_MP_INDEX_IFD);
+        List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
+        // the primary offset is always 0
+        for (int i = 1; i < mpEntries.size(); i++) {
+            MpEntry entry = mpEntries.get(i);
+            entry.setImageOffset(entry.getImageOffset() - mpoOffset);
+        }
+        mpEntryTag.setValue(mpEntries);
+    }
+
+    private static byte[] buildMpfSegment(MpoImageData image) throws IOException {
+        int exifSize = image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        if (exifSize > MpoOutputStream.MAX_EXIF_SIZE) {
+            throw new IOException("Exif header is too large (>64Kb)");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(exifSize + 2);
+        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(bytes);
+        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
+        dataOutputStream.writeShort(JpegHeader.APP2);
+        dataOutputStream.writeShort((short) exifSize);
+        dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
+        if (image.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+            dataOutputStream.writeShort(MpoOutputStream.TIFF_BIG_ENDIAN);
+        } else {
+            dataOutputStream.writeShort(MpoOutputStream.TIFF_LITTLE_ENDIAN);
+        }
+        dataOutputStream.setByteOrder(image.getByteOrder());
+        dataOutputStream.writeShort(MpoOutputStream.TIFF_HEADER);
+        if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
+            dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
+            MpoIfdData indexIfd = image.getIndexIfdData();
+            if (indexIfd.getTagCount() > 0) {
+                MpoOutputStream.writeIfd(indexIfd, dataOutputStream);
+            }
+            MpoIfdData attribIfd = image.getAttribIfdData();
+            if (attribIfd.getTagCount() > 0) {
+                MpoOutputStream.writeIfd(attribIfd, dataOutputStream);
+            }
+        } else {
+            dataOutputStream.writeInt(0);
+        }
+        dataOutputStream.flush();
+        return bytes.toByteArray();
+    }
+}
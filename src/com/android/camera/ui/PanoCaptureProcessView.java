@@ -60,6 +60,8 @@ import android.widget.Toast;
 import com.android.camera.CameraActivity;
 import com.android.camera.PanoCaptureModule;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.PixelKernels;
+import com.android.camera.imageprocessor.YuvFrame;
 import com.android.camera.util.CameraUtil;
 
 import org.codeaurora.snapcam.R;
@@ -99,13 +101,16 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
 
     public static int mPreviewThumbWidth;
     public static int mPreviewThumbHeight;
-    private static float mPanoPreviewRatioToCamera;
     public static int mFinalPictureWidth;
     public static int mFinalPictureHeight;
     private static float mFinalPictureRatioToCamera;
     private Picture mPreviewPicture;
     private int[] mAargbBuffer;
     private byte[] mDataBuffer;
+    private byte[] mFrameData;
+    private byte[] mScaleBuffer;
+    private int[] mKeyFrameArgb;
+    private Bitmap mKeyFrameBitmap;
     public static int MAX_PANO_FRAME = 6;
     private static String TAG = "PanoramaCapture";
     private Bitmap mTempBitmap;
@@ -364,8 +369,6 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
 
         DECISION_MARGIN = (int)(0.2 * mPreviewThumbHeight);
 
-        mPanoPreviewRatioToCamera = (float)Math.min(mPreviewThumbWidth, mPreviewThumbHeight) /
-                                    (float)Math.min(cameraWidth, cameraHeight);
         mFinalPictureRatioToCamera = (float)Math.min(mFinalPictureWidth, mFinalPictureHeight) /
                                      (float)Math.min(cameraWidth, cameraHeight);
     }
@@ -429,35 +432,53 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
         return true;
     }
 
-    private void bitmapToDataNV21(Bitmap bitmap) {
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
-        int y = 0;
-        int u = w*h;
-        int a, R, G, B, Y, U, V;
-        int index = 0;
-
-        bitmap.getPixels(mAargbBuffer, 0, w, 0, 0, w, h);
-        for (int j = 0; j < h; j++) {
-            for (int i = 0; i < w; i++) {
-
-                a = (mAargbBuffer[index] & 0xff000000) >> 24;
-                R = (mAargbBuffer[index] & 0xff0000) >> 16;
-                G = (mAargbBuffer[index] & 0xff00) >> 8;
-                B = (mAargbBuffer[index] & 0xff) >> 0;
-
-                Y = ( (  66 * R + 129 * G +  25 * B + 128) >> 8) +  16;
-                U = ( ( -38 * R -  74 * G + 112 * B + 128) >> 8) + 128;
-                V = ( ( 112 * R -  94 * G -  18 * B + 128) >> 8) + 128;
-
-                mDataBuffer[y++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                if (j % 2 == 0 && index % 2 == 0) {
-                    mDataBuffer[u++] = (byte)((V<0) ? 0 : ((V > 255) ? 255 : V));
-                    mDataBuffer[u++] = (byte)((U<0) ? 0 : ((U > 255) ? 255 : U));
-                }
-                index ++;
+    /* Clockwise rotation from the camera frame to the view.
+       See android.hardware.Camera.Parameters.setRotation for documentation. */
+    private int getFrameRotation() {
+        int sensorOrientation = mController.getCameraSensorOrientation();
+        int rotation = (sensorOrientation + mOrientation) % 360;
+        if (mOrientation == 0 || mOrientation == 180) {
+            return (sensorOrientation == 90 || sensorOrientation == 270) ? rotation : 0;
+        }
+        return rotation;
+    }
+
+    /* Scales and rotates a camera frame into a dstWidth x dstHeight NV21 buffer
+       in the view orientation. Scaling goes first so only the small copy is
+       rotated. */
+    private void frameToNV21(byte[] frame, int width, int height, int stride,
+                             byte[] dst, int dstWidth, int dstHeight) {
+        PixelKernels kernels = PixelKernels.getDefault();
+        int degrees = getFrameRotation();
+        if (degrees == 0) {
+            kernels.scaleNV21(frame, width, height, stride, dstWidth, dstHeight, dst);
+            return;
+        }
+        int scaledWidth = degrees == 180 ? dstWidth : dstHeight;
+        int scaledHeight = degrees == 180 ? dstHeight : dstWidth;
+        int size = dstWidth * dstHeight * 3 / 2;
+        if (mScaleBuffer == null || mScaleBuffer.length < size) {
+            mScaleBuffer = new byte[size];
+        }
+        kernels.scaleNV21(frame, width, height, stride, scaledWidth, scaledHeight, mScaleBuffer);
+        kernels.rotateNV21(mScaleBuffer, scaledWidth, scaledHeight, scaledWidth, degrees, dst);
+    }
+
+    /* The whole camera frame as a Bitmap, for the key frame path to scale from.
+       Only built for key frames; BitmapTask draws it right away, so it is reused. */
+    private Bitmap frameToBitmap(byte[] frame, int width, int height, int stride) {
+        if (mKeyFrameBitmap == null || mKeyFrameBitmap.getWidth() != width
+                || mKeyFrameBitmap.getHeight() != height) {
+            if (mKeyFrameBitmap != null) {
+                mKeyFrameBitmap.recycle();
             }
+            mKeyFrameBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mKeyFrameArgb = new int[width * height];
         }
+        PixelKernels.getDefault().nv21ToArgb(frame, width, height, stride,
+                PixelKernels.RANGE_LIMITED, mKeyFrameArgb);
+        mKeyFrameBitmap.setPixels(mKeyFrameArgb, 0, width, 0, 0, width, height);
+        return mKeyFrameBitmap;
     }
 
     class PanoQueueProcessor extends Thread {
@@ -601,11 +622,11 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
     /*
      *  bitmap will be kept to use further.
      */
-    public void onFrameAvailable(final Bitmap bitmap, final boolean isCancelling) {
+    public void onFrameAvailable(YuvFrame frame, final boolean isCancelling) {
         if(mPanoStatus == PANO_STATUS.COMPLETING || mPanoStatus == PANO_STATUS.OPENING) {
             return;
         }
-        if(bitmap == null) {
+        if(frame == null) {
             if(isCancelling) {
                 mCompleteSentence = "Cancelling...";
             } else {
@@ -697,6 +718,13 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
                 return;
             }
             mIsFrameProcessing = true;
+            // Copied here, on the frame processor thread, so the image can go back
+            // to the camera; mIsFrameProcessing keeps the next frame out until done
+            mFrameData = frame.copyTo(mFrameData);
+            final byte[] frameData = mFrameData;
+            final int frameWidth = frame.getWidth();
+            final int frameHeight = frame.getHeight();
+            final int frameStride = frame.getYStride();
             mHandler.post(new Runnable() {
                 public void run() {
                     Picture picture;
@@ -708,8 +736,13 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
                         }
                         mTempOrietnation = mOrientation;
                     }
-                    rotateAndScale(bitmap, mTempBitmap, mPanoPreviewRatioToCamera);
-                    bitmapToDataNV21(mTempBitmap);
+                    int width = mTempBitmap.getWidth();
+                    int height = mTempBitmap.getHeight();
+                    frameToNV21(frameData, frameWidth, frameHeight, frameStride,
+                            mDataBuffer, width, height);
+                    PixelKernels.getDefault().nv21ToArgb(mDataBuffer, width, height, width,
+                            PixelKernels.RANGE_LIMITED, mAargbBuffer);
+                    mTempBitmap.setPixels(mAargbBuffer, 0, width, 0, 0, width, height);
                     boolean[] isKey = new boolean[1];
                     int[] framePos = new int[3];
                     int[] moveSpeed = new int[1];
@@ -722,7 +755,9 @@ public class PanoCaptureProcessView extends View implements SensorEventListener
                     }
 
                     if (isKey[0]) {
-                        mQueueProcessor.addTask(bitmap, framePos[0], framePos[1], framePos[2]);
+                        mQueueProcessor.addTask(
+                                frameToBitmap(frameData, frameWidth, frameHeight, frameStride),
+                                framePos[0], framePos[1], framePos[2]);
                     }
                     picture = new Picture(mTempBitmap, mCurrDegX, mCurrDegY, framePos[0], framePos[1]);
                     if (mPanoStatus == PANO_STATUS.ACTIVE_UNKNOWN) {
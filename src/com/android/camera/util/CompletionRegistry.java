@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Values that complete asynchronously, such as capture results or saved
+ * images, registered under a key like the sensor timestamp or image index.
+ *
+ * Consumers either block on a key (or on a number of completed keys) with a
+ * timeout, or chain a callback that runs as soon as the value arrives. A
+ * waiter is woken by the completing thread directly instead of polling.
+ * A key completes once; completing it again replaces the value without
+ * running the callbacks again. A null value is a valid completion.
+ */
+public class CompletionRegistry<K, V> {
+
+    public interface Callback<V> {
+        void onComplete(V value);
+    }
+
+    private static class Entry<V> {
+        boolean done;
+        V value;
+        List<Callback<V>> callbacks;
+    }
+
+    private final HashMap<K, Entry<V>> mEntries = new HashMap<K, Entry<V>>();
+    private int mCompletedCount;
+
+    /* Completes the key and runs its callbacks on the calling thread */
+    public void complete(K key, V value) {
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            Entry<V> entry = getEntryLocked(key);
+            entry.value = value;
+            if (entry.done) {
+                return;
+            }
+            entry.done = true;
+            mCompletedCount++;
+            callbacks = entry.callbacks;
+            entry.callbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Callback<V> callback : callbacks) {
+                callback.onComplete(value);
+            }
+        }
+    }
+
+    public synchronized boolean isDone(K key) {
+        Entry<V> entry = mEntries.get(key);
+        return entry != null && entry.done;
+    }
+
+    /* Value of the key, or null if it is not complete yet */
+    public synchronized V get(K key) {
+        Entry<V> entry = mEntries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    public synchronized int getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * Waits up to timeoutMs for the key and returns its value, or null on
+     * timeout. An interrupt ends the wait early and is kept on the thread.
+     */
+    public V await(K key, long timeoutMs) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (this) {
+            Entry<V> entry = getEntryLocked(key);
+            while (!entry.done) {
+                if (!waitLocked(deadline)) {
+                    break;
+                }
+                // clear() may have replaced the entry while we waited.
+                entry = getEntryLocked(key);
+            }
+            return entry.value;
+        }
+    }
+
+    /* Waits up to timeoutMs until count keys are complete, returns the completed count */
+    public int awaitCount(int count, long timeoutMs) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (this) {
+            while (mCompletedCount < count) {
+                if (!waitLocked(deadline)) {
+                    break;
+                }
+            }
+            return mCompletedCount;
+        }
+    }
+
+    /* Runs callback once the key completes, right away if it already has */
+    public void whenComplete(K key, Callback<V> callback) {
+        V value;
+        synchronized (this) {
+            Entry<V> entry = getEntryLocked(key);
+            if (!entry.done) {
+                if (entry.callbacks == null) {
+                    entry.callbacks = new ArrayList<Callback<V>>(1);
+                }
+                entry.callbacks.add(callback);
+                return;
+            }
+            value = entry.value;
+        }
+        callback.onComplete(value);
+    }
+
+    /* Forgets every key; pending callbacks are dropped and waiters keep waiting */
+    public synchronized void clear() {
+        mEntries.clear();
+        mCompletedCount = 0;
+    }
+
+    private Entry<V> getEntryLocked(K key) {
+        Entry<V> entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry<V>();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /* Returns false once the deadline has passed or the thread is interrupted */
+    private boolean waitLocked(long deadline) {
+        long remaining = deadline - SystemClock.elapsedRealtime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+}
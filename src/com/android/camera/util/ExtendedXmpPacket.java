@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import java.util.ArrayList;
+
+/**
+ * Builds an extended XMP packet of base64 properties, like GDepth:Data and
+ * GImage:Data, without going through XMPMeta.
+ * <p>
+ * Serializing large binary properties through the XMP toolkit needs them
+ * as base64 Strings first, and then again as the serialized buffer. Here
+ * the packet size is known up front, so the base64 text is encoded from
+ * the source arrays straight into the one packet array that
+ * {@link XmpUtil#spliceXMPMeta(byte[], com.adobe.xmp.XMPMeta, byte[])}
+ * splits into extended XMP segments.
+ */
+public class ExtendedXmpPacket {
+    private static final String PACKET_START = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"\"";
+    private static final String PACKET_END = "/></rdf:RDF></x:xmpmeta>";
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static class Property {
+        final String namespace;
+        final String prefix;
+        final String name;
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Property(String namespace, String prefix, String name, byte[] data, int offset,
+                int length) {
+            this.namespace = namespace;
+            this.prefix = prefix;
+            this.name = name;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ArrayList<Property> mProperties = new ArrayList<Property>();
+
+    public ExtendedXmpPacket addBase64Property(String namespace, String prefix, String name,
+            byte[] data) {
+        return addBase64Property(namespace, prefix, name, data, 0, data.length);
+    }
+
+    /**
+     * Adds a property whose value is data in base64, without line breaks.
+     * The array is only read by {@link #toByteArray()}.
+     */
+    public ExtendedXmpPacket addBase64Property(String namespace, String prefix, String name,
+            byte[] data, int offset, int length) {
+        mProperties.add(new Property(namespace, prefix, name, data, offset, length));
+        return this;
+    }
+
+    public static int getBase64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /** Size of the packet in bytes. */
+    public int size() {
+        int size = PACKET_START.length() + PACKET_END.length();
+        ArrayList<String> declared = new ArrayList<String>();
+        for (Property property : mProperties) {
+            if (!declared.contains(property.prefix)) {
+                declared.add(property.prefix);
+                size += namespaceDeclaration(property).length();
+            }
+            size += attributeStart(property).length() + getBase64Length(property.length) + 1;
+        }
+        return size;
+    }
+
+    /** The packet, in an array of exactly {@link #size()} bytes. */
+    public byte[] toByteArray() {
+        byte[] packet = new byte[size()];
+        int pos = putAscii(packet, 0, PACKET_START);
+        ArrayList<String> declared = new ArrayList<String>();
+        for (Property property : mProperties) {
+            if (!declared.contains(property.prefix)) {
+                declared.add(property.prefix);
+                pos = putAscii(packet, pos, namespaceDeclaration(property));
+            }
+        }
+        for (Property property : mProperties) {
+            pos = putAscii(packet, pos, attributeStart(property));
+            pos = encodeBase64(property.data, property.offset, property.length, packet, pos);
+            packet[pos++] = '"';
+        }
+        putAscii(packet, pos, PACKET_END);
+        return packet;
+    }
+
+    private static String namespaceDeclaration(Property property) {
+        return " xmlns:" + property.prefix + "=\"" + property.namespace + "\"";
+    }
+
+    private static String attributeStart(Property property) {
+        return " " + property.prefix + ":" + property.name + "=\"";
+    }
+
+    private static int putAscii(byte[] dst, int pos, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            dst[pos++] = (byte) value.charAt(i);
+        }
+        return pos;
+    }
+
+    /** Writes data as base64 with padding into dst at pos, returns the end. */
+    static int encodeBase64(byte[] data, int offset, int length, byte[] dst, int pos) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 3 <= end; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8)
+                    | (data[i + 2] & 0xff);
+            dst[pos++] = BASE64[bits >>> 18];
+            dst[pos++] = BASE64[(bits >>> 12) & 0x3f];
+            dst[pos++] = BASE64[(bits >>> 6) & 0x3f];
+            dst[pos++] = BASE64[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data[i] & 0xff) << 16;
+            if (i + 1 < end) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            dst[pos++] = BASE64[bits >>> 18];
+            dst[pos++] = BASE64[(bits >>> 12) & 0x3f];
+            dst[pos++] = i + 1 < end ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[pos++] = '=';
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.android.camera.exif.ExifSplice;
+
+/**
+ * Writes media files through a hidden temp file in the target directory
+ * that is renamed over the final name once complete, so a partly written
+ * image never shows up under its real name.
+ * <p>
+ * A few temp files per directory are opened ahead of time on the sync
+ * thread, so a save takes an open channel instead of creating a file.
+ * <p>
+ * How often the data is forced to storage trades durability for
+ * throughput:
+ * <ul>
+ * <li>{@link #SYNC_NEVER} leaves it to the kernel.</li>
+ * <li>1 forces every file before its rename.</li>
+ * <li>N &gt; 1 forces the temp files of up to N concurrent saves back to
+ *     back, once N are pending or after the sync delay, and renames them
+ *     after that. Each save returns once its file is forced and renamed.</li>
+ * </ul>
+ * In every mode but {@link #SYNC_NEVER} a file is durable once it is visible.
+ */
+public class FileSink {
+    private static final String TAG = "CAM_FileSink";
+    private static final String TEMP_PREFIX = ".save";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_SPARE_FILES = 2;
+
+    public static final int SYNC_NEVER = 0;
+
+    public static class Stats {
+        public long files;
+        public long bytes;
+        public long failures;
+        public long forces;
+        public long writeNs;
+        public long forceNs;
+
+        @Override
+        public String toString() {
+            return "files=" + files + " bytes=" + bytes + " failures=" + failures
+                    + " forces=" + forces + " write=" + writeNs / 1000000 + "ms"
+                    + " force=" + forceNs / 1000000 + "ms";
+        }
+    }
+
+    /* An open temp file, renamed to target once written */
+    private static class TempFile {
+        final File file;
+        final FileOutputStream out;
+        File target;
+        IOException error;
+
+        TempFile(File dir) throws IOException {
+            file = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir);
+            out = new FileOutputStream(file);
+        }
+
+        FileChannel getChannel() {
+            return out.getChannel();
+        }
+
+        void discard() {
+            CameraUtil.closeSilently(out);
+            file.delete();
+        }
+    }
+
+    /* Files forced together; their writers wait until done */
+    private static class Batch {
+        final ArrayList<TempFile> files = new ArrayList<TempFile>();
+        boolean done;
+    }
+
+    private final int mSyncBatch;
+    private final long mSyncDelayMs;
+    private final ScheduledExecutorService mExecutor;
+    private final Object mStatsLock = new Object();
+    private final Stats mStats = new Stats();
+
+    // Guarded by this
+    private Batch mBatch;
+    private final HashMap<File, ArrayDeque<TempFile>> mSpareFiles =
+            new HashMap<File, ArrayDeque<TempFile>>();
+
+    private final Runnable mDeleteSpares = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<TempFile> spares = new ArrayList<TempFile>();
+            synchronized (FileSink.this) {
+                for (ArrayDeque<TempFile> files : mSpareFiles.values()) {
+                    spares.addAll(files);
+                }
+                mSpareFiles.clear();
+            }
+            for (TempFile spare : spares) {
+                spare.discard();
+            }
+        }
+    };
+
+    /**
+     * @param syncBatch {@link #SYNC_NEVER}, 1 to force each file, or the
+     *            number of files to force together.
+     * @param syncDelayMs longest time a file waits for its batch to fill.
+     */
+    public FileSink(int syncBatch, long syncDelayMs) {
+        mSyncBatch = Math.max(SYNC_NEVER, syncBatch);
+        mSyncDelayMs = syncDelayMs;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileSink-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getSyncBatch() {
+        return mSyncBatch;
+    }
+
+    public long write(String path, byte[] data) throws IOException {
+        return write(path, new ByteBuffer[] { ByteBuffer.wrap(data) });
+    }
+
+    public long write(String path, ExifSplice jpeg) throws IOException {
+        return write(path, jpeg.getBuffers());
+    }
+
+    /**
+     * Writes the remaining bytes of the buffers to path, replacing any file
+     * there. Returns the file size once the file is visible. On failure
+     * nothing is left behind, neither the temp file nor a partial target.
+     */
+    public long write(String path, ByteBuffer[] buffers) throws IOException {
+        long start = System.nanoTime();
+        File target = new File(path);
+        long forceNs = 0;
+        long written;
+        TempFile temp = null;
+        try {
+            temp = takeTempFile(target.getAbsoluteFile().getParentFile());
+            written = ExifSplice.writeFully(temp.getChannel(), buffers);
+            temp.target = target;
+            if (mSyncBatch > 1) {
+                long forceStart = System.nanoTime();
+                commit(temp);
+                forceNs = System.nanoTime() - forceStart;
+            } else {
+                if (mSyncBatch == 1) {
+                    long forceStart = System.nanoTime();
+                    temp.getChannel().force(false);
+                    forceNs = System.nanoTime() - forceStart;
+                }
+                rename(temp);
+            }
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.discard();
+            }
+            synchronized (mStatsLock) {
+                mStats.failures++;
+            }
+            throw e;
+        }
+        synchronized (mStatsLock) {
+            mStats.files++;
+            mStats.bytes += written;
+            mStats.writeNs += System.nanoTime() - start - forceNs;
+            if (mSyncBatch == 1) {
+                mStats.forces++;
+                mStats.forceNs += forceNs;
+            }
+        }
+        return written;
+    }
+
+    /* A spare temp file of the directory, or a new one. Refills the spares
+       on the sync thread. */
+    private TempFile takeTempFile(final File dir) throws IOException {
+        TempFile temp = null;
+        synchronized (this) {
+            ArrayDeque<TempFile> spares = mSpareFiles.get(dir);
+            if (spares != null) {
+                temp = spares.poll();
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fillSpares(dir);
+            }
+        });
+        return temp != null ? temp : new TempFile(dir);
+    }
+
+    private void fillSpares(File dir) {
+        while (true) {
+            synchronized (this) {
+                ArrayDeque<TempFile> spares = mSpareFiles.get(dir);
+                if (spares != null && spares.size() >= MAX_SPARE_FILES) {
+                    return;
+                }
+            }
+            TempFile spare;
+            try {
+                spare = new TempFile(dir);
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                ArrayDeque<TempFile> spares = mSpareFiles.get(dir);
+                if (spares == null) {
+                    spares = new ArrayDeque<TempFile>();
+                    mSpareFiles.put(dir, spares);
+                }
+                spares.add(spare);
+            }
+        }
+    }
+
+    private static void rename(TempFile temp) throws IOException {
+        CameraUtil.closeSilently(temp.out);
+        if (!temp.file.renameTo(temp.target)) {
+            throw new IOException("Failed to rename " + temp.file + " to " + temp.target);
+        }
+    }
+
+    /* Adds the file to the open batch and returns once that batch is forced
+       and renamed. The writer that fills the batch does the work. */
+    private void commit(TempFile temp) throws IOException {
+        final Batch batch;
+        boolean full;
+        synchronized (this) {
+            if (mBatch == null) {
+                mBatch = new Batch();
+                final Batch scheduled = mBatch;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        commitIfOpen(scheduled);
+                    }
+                }, mSyncDelayMs, TimeUnit.MILLISECONDS);
+            }
+            batch = mBatch;
+            batch.files.add(temp);
+            full = batch.files.size() >= mSyncBatch;
+            if (full) {
+                mBatch = null;
+            }
+        }
+        if (full) {
+            commitBatch(batch);
+        } else {
+            boolean interrupted = false;
+            synchronized (batch) {
+                while (!batch.done) {
+                    try {
+                        batch.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (temp.error != null) {
+            throw temp.error;
+        }
+    }
+
+    private void commitIfOpen(Batch batch) {
+        synchronized (this) {
+            if (mBatch != batch) {
+                return;
+            }
+            mBatch = null;
+        }
+        commitBatch(batch);
+    }
+
+    /* Forces every file of the batch, then renames them */
+    private void commitBatch(Batch batch) {
+        long start = System.nanoTime();
+        for (TempFile temp : batch.files) {
+            try {
+                temp.getChannel().force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to sync saved file", e);
+                temp.error = e;
+            }
+        }
+        long forceNs = System.nanoTime() - start;
+        for (TempFile temp : batch.files) {
+            if (temp.error == null) {
+                try {
+                    rename(temp);
+                } catch (IOException e) {
+                    temp.error = e;
+                }
+            }
+        }
+        synchronized (mStatsLock) {
+            mStats.forces += batch.files.size();
+            mStats.forceNs += forceNs;
+        }
+        synchronized (batch) {
+            batch.done = true;
+            batch.notifyAll();
+        }
+    }
+
+    /**
+     * Commits the files waiting for their batch to fill, then deletes the
+     * spare temp files. Blocks until both are done.
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = mBatch;
+            mBatch = null;
+        }
+        if (batch != null) {
+            commitBatch(batch);
+        }
+        // Queued behind any spare refill, so none comes back after it
+        try {
+            mExecutor.submit(mDeleteSpares).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to delete spare files", e);
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (mStatsLock) {
+            stats.files = mStats.files;
+            stats.bytes = mStats.bytes;
+            stats.failures = mStats.failures;
+            stats.forces = mStats.forces;
+            stats.writeNs = mStats.writeNs;
+            stats.forceNs = mStats.forceNs;
+        }
+        return stats;
+    }
+}
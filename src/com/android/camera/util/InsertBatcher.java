@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Coalesces inserts from concurrent saves into batches, and reports each
+ * result in the order the saves were reserved.
+ * <p>
+ * A capture reserves a ticket when it is queued. Its save submits the item
+ * under that ticket once written, or null when there is nothing to insert.
+ * Pending items are inserted together when the batch is full or the window
+ * since the first one has passed. Callbacks go through the callback
+ * executor in ticket order, so a save that finishes early waits for the
+ * captures before it. Items submitted after shutdown() are inserted right
+ * away on the submitting thread.
+ */
+public class InsertBatcher<T, R> {
+    private static final String TAG = "CAM_InsertBatcher";
+
+    public interface Store<T, R> {
+        /**
+         * Inserts the items and returns one result per item in the same
+         * order, null for an item that failed.
+         */
+        List<R> insert(List<T> items);
+    }
+
+    public interface Callback<R> {
+        void onInserted(R result);
+    }
+
+    public static class Stats {
+        public long items;
+        public long batches;
+        public int largestBatch;
+
+        @Override
+        public String toString() {
+            return "items=" + items + " batches=" + batches + " largest=" + largestBatch;
+        }
+    }
+
+    private static class Entry<T, R> {
+        final T item;
+        final Callback<R> callback;
+        R result;
+        boolean done;
+
+        Entry(T item, Callback<R> callback) {
+            this.item = item;
+            this.callback = callback;
+        }
+    }
+
+    private final Store<T, R> mStore;
+    private final int mMaxBatch;
+    private final long mWindowMs;
+    private final Executor mCallbackExecutor;
+    private final ScheduledThreadPoolExecutor mInsertThread;
+
+    // Guarded by this
+    private long mNextTicket;
+    private long mNextDelivery;
+    private final TreeMap<Long, Entry<T, R>> mUndelivered = new TreeMap<Long, Entry<T, R>>();
+    private ArrayList<Entry<T, R>> mPending = new ArrayList<Entry<T, R>>();
+    private boolean mInsertScheduled;
+    private final Stats mStats = new Stats();
+
+    private final Runnable mInsertTask = new Runnable() {
+        @Override
+        public void run() {
+            insertPending();
+        }
+    };
+
+    /**
+     * @param maxBatch items inserted together at most, 1 inserts each right away.
+     * @param windowMs longest time an item waits for its batch to fill.
+     */
+    public InsertBatcher(Store<T, R> store, int maxBatch, long windowMs,
+            Executor callbackExecutor) {
+        mStore = store;
+        mMaxBatch = Math.max(1, maxBatch);
+        mWindowMs = windowMs;
+        mCallbackExecutor = callbackExecutor;
+        mInsertThread = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "InsertBatcher");
+            }
+        });
+        mInsertThread.setKeepAliveTime(30, TimeUnit.SECONDS);
+        mInsertThread.allowCoreThreadTimeOut(true);
+    }
+
+    /** Reserves the callback slot of the next capture, in capture order. */
+    public synchronized long reserve() {
+        return mNextTicket++;
+    }
+
+    /**
+     * Submits the item of a reserved ticket. A null item inserts nothing and
+     * reports a null result. Every reserved ticket must be submitted once,
+     * later callbacks wait for it.
+     */
+    public void submit(long ticket, T item, Callback<R> callback) {
+        synchronized (this) {
+            if (ticket < mNextDelivery || ticket >= mNextTicket
+                    || mUndelivered.containsKey(ticket)) {
+                throw new IllegalStateException("Ticket " + ticket + " was not reserved");
+            }
+            Entry<T, R> entry = new Entry<T, R>(item, callback);
+            mUndelivered.put(ticket, entry);
+            if (item == null) {
+                entry.done = true;
+                deliverReady();
+                return;
+            }
+            mPending.add(entry);
+            try {
+                if (mPending.size() >= mMaxBatch) {
+                    mInsertThread.execute(mInsertTask);
+                    return;
+                } else if (!mInsertScheduled) {
+                    mInsertThread.schedule(mInsertTask, mWindowMs, TimeUnit.MILLISECONDS);
+                    mInsertScheduled = true;
+                }
+                if (!mInsertThread.isShutdown()) {
+                    return;
+                }
+            } catch (RejectedExecutionException e) {
+                // Shut down, the save still gets its row below
+            }
+        }
+        insertPending();
+    }
+
+    /** Inserts whatever is pending without waiting for the window. */
+    public void flush() {
+        try {
+            mInsertThread.execute(mInsertTask);
+        } catch (RejectedExecutionException e) {
+            insertPending();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.items = mStats.items;
+        stats.batches = mStats.batches;
+        stats.largestBatch = mStats.largestBatch;
+        return stats;
+    }
+
+    /** Inserts what is pending and stops the insert thread afterwards. */
+    public void shutdown() {
+        flush();
+        mInsertThread.shutdown();
+    }
+
+    private void insertPending() {
+        ArrayList<Entry<T, R>> batch;
+        synchronized (this) {
+            mInsertScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mPending = new ArrayList<Entry<T, R>>(mMaxBatch);
+        }
+        ArrayList<T> items = new ArrayList<T>(batch.size());
+        for (Entry<T, R> entry : batch) {
+            items.add(entry.item);
+        }
+        List<R> results = null;
+        try {
+            results = mStore.insert(items);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to insert " + items.size() + " items", e);
+        }
+        if (results != null && results.size() != items.size()) {
+            Log.e(TAG, "Store returned " + results.size() + " results for "
+                    + items.size() + " items");
+            results = null;
+        }
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                Entry<T, R> entry = batch.get(i);
+                entry.result = results == null ? null : results.get(i);
+                entry.done = true;
+            }
+            mStats.items += batch.size();
+            mStats.batches++;
+            mStats.largestBatch = Math.max(mStats.largestBatch, batch.size());
+            deliverReady();
+        }
+    }
+
+    // Called with the lock held, so callbacks are queued in ticket order.
+    private void deliverReady() {
+        while (!mUndelivered.isEmpty() && mUndelivered.firstKey() == mNextDelivery) {
+            final Entry<T, R> entry = mUndelivered.get(mNextDelivery);
+            if (!entry.done) {
+                return;
+            }
+            mUndelivered.remove(mNextDelivery);
+            mNextDelivery++;
+            if (entry.callback != null) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        entry.callback.onInserted(entry.result);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -54,6 +54,28 @@ public class PersistUtil {
             SystemProperties.getBoolean("persist.camera.camera2", false);
     private static final boolean PERSIST_CAMERA_ZSL =
             SystemProperties.getBoolean("persist.camera.zsl.disabled", false);
+    private static final int PERSIST_CAMERA_ZSL_SCORE_WINDOW =
+            SystemProperties.getInt("persist.camera.zsl.score.window", 150);
+    private static final int PERSIST_CAMERA_BUFFER_POOL_MAX_SIZE =
+            SystemProperties.getInt("persist.camera.bufpool.max_mb", 128);
+    private static final int PERSIST_CAMERA_POSTPROC_ENCODE_THREADS =
+            SystemProperties.getInt("persist.camera.postproc.encoders", 2);
+    private static final int PERSIST_CAMERA_SAVE_THREADS =
+            SystemProperties.getInt("persist.camera.save.threads", 2);
+    private static final int PERSIST_CAMERA_SAVE_LOW_WATERMARK =
+            SystemProperties.getInt("persist.camera.save.low_pct", 75);
+    private static final int PERSIST_CAMERA_SAVE_SYNC_BATCH =
+            SystemProperties.getInt("persist.camera.save.sync_batch", 1);
+    private static final int PERSIST_CAMERA_SAVE_SYNC_DELAY =
+            SystemProperties.getInt("persist.camera.save.sync_ms", 500);
+    private static final int PERSIST_CAMERA_SAVE_INSERT_BATCH =
+            SystemProperties.getInt("persist.camera.save.insert_batch", 8);
+    private static final int PERSIST_CAMERA_SAVE_INSERT_WINDOW =
+            SystemProperties.getInt("persist.camera.save.insert_ms", 30);
+    private static final boolean PERSIST_CAMERA_FRAMEPROC_CPU =
+            SystemProperties.getBoolean("persist.camera.frameproc.cpu", false);
+    private static final int PERSIST_CAMERA_FRAMEPROC_THREADS =
+            SystemProperties.getInt("persist.camera.frameproc.threads", 3);
     private static final int PERSIST_CAMERA_CANCEL_TOUCHFOCUS_DELAY =
             SystemProperties.getInt("persist.camera.focus_delay", 5000);
     private static final int PERSIST_CAMERA_DEBUG =
@@ -107,6 +129,61 @@ public class PersistUtil {
         return PERSIST_CAMERA_ZSL;
     }
 
+    /* Age window in ms for ZSL best frame selection, 0 takes the newest frame */
+    public static int getZSLScoreWindow() {
+        return Math.max(0, PERSIST_CAMERA_ZSL_SCORE_WINDOW);
+    }
+
+    /* High-water cap in MB for pooled post processing frame buffers */
+    public static int getBufferPoolMaxSize() {
+        return PERSIST_CAMERA_BUFFER_POOL_MAX_SIZE;
+    }
+
+    /* Number of JPEG encoder threads of the post processing pipeline */
+    public static int getPostProcEncodeThreads() {
+        return Math.max(1, PERSIST_CAMERA_POSTPROC_ENCODE_THREADS);
+    }
+
+    /* Number of worker threads of the media save service */
+    public static int getSaveThreads() {
+        return Math.max(1, PERSIST_CAMERA_SAVE_THREADS);
+    }
+
+    /* Percent of the memory limit the save queue drains to before taking captures again */
+    public static int getSaveLowWatermark() {
+        return Math.min(100, Math.max(0, PERSIST_CAMERA_SAVE_LOW_WATERMARK));
+    }
+
+    /* Saved files forced to storage together, 0 never forces and 1 forces each one */
+    public static int getSaveSyncBatch() {
+        return Math.max(0, PERSIST_CAMERA_SAVE_SYNC_BATCH);
+    }
+
+    /* Longest time in ms a saved file waits for the rest of its sync batch */
+    public static int getSaveSyncDelay() {
+        return Math.max(0, PERSIST_CAMERA_SAVE_SYNC_DELAY);
+    }
+
+    /* Most saved images added to the MediaStore in one batch */
+    public static int getSaveInsertBatch() {
+        return Math.max(1, PERSIST_CAMERA_SAVE_INSERT_BATCH);
+    }
+
+    /* Longest time in ms a saved image waits for its MediaStore batch to fill */
+    public static int getSaveInsertWindow() {
+        return Math.max(0, PERSIST_CAMERA_SAVE_INSERT_WINDOW);
+    }
+
+    /* Whether the preview filters render through the Java kernels instead of RenderScript */
+    public static boolean isFrameProcCpu() {
+        return PERSIST_CAMERA_FRAMEPROC_CPU;
+    }
+
+    /* Worker threads of the preview frame graph */
+    public static int getFrameProcThreads() {
+        return Math.max(1, PERSIST_CAMERA_FRAMEPROC_THREADS);
+    }
+
     public static int getCamera2Debug() {
         return PERSIST_CAMERA_DEBUG;
     }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker pool for saving captures, with priority lanes and accounting of
+ * the bytes held by queued and running saves.
+ * <p>
+ * Saves in {@link #LANE_CAPTURE} always run before queued saves in
+ * {@link #LANE_BACKGROUND} (RAW and debug dumps), in submission order
+ * within a lane. The engine is full once the bytes in flight reach the
+ * high watermark and only becomes available again when they drop to the
+ * low one, so the queue listener sees one full/available pair per burst
+ * instead of a flip for every save. Listener calls go through the
+ * callback executor in the order the transitions happened.
+ */
+public class SaveEngine {
+    public static final int LANE_CAPTURE = 0;
+    public static final int LANE_BACKGROUND = 1;
+    private static final int LANE_COUNT = 2;
+
+    public interface QueueListener {
+        void onQueueStatus(boolean full);
+    }
+
+    public static class Metrics {
+        public int[] queued = new int[LANE_COUNT];
+        public int running;
+        public long bytesInFlight;
+        public long peakBytes;
+        public long[] completed = new long[LANE_COUNT];
+        public long[] maxLatencyMs = new long[LANE_COUNT];
+        public long[] totalLatencyMs = new long[LANE_COUNT];
+        public int fullTransitions;
+
+        public long getAverageLatencyMs(int lane) {
+            return completed[lane] == 0 ? 0 : totalLatencyMs[lane] / completed[lane];
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queued[LANE_CAPTURE] + "/" + queued[LANE_BACKGROUND]
+                    + " running=" + running + " bytes=" + bytesInFlight
+                    + " peak=" + peakBytes + " full=" + fullTransitions
+                    + " capture=" + completed[LANE_CAPTURE] + "@"
+                    + getAverageLatencyMs(LANE_CAPTURE) + "/" + maxLatencyMs[LANE_CAPTURE] + "ms"
+                    + " background=" + completed[LANE_BACKGROUND] + "@"
+                    + getAverageLatencyMs(LANE_BACKGROUND) + "/"
+                    + maxLatencyMs[LANE_BACKGROUND] + "ms";
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Executor mCallbackExecutor;
+    private final long mHighWatermark;
+    private final long mLowWatermark;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger[] mQueued = {
+            new AtomicInteger(), new AtomicInteger()
+    };
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    // Guarded by this
+    private volatile boolean mFull;
+    private QueueListener mListener;
+    private final List<QueueListener> mObservers = new ArrayList<QueueListener>();
+    private long mPeakBytes;
+    private int mFullTransitions;
+    private final long[] mCompleted = new long[LANE_COUNT];
+    private final long[] mMaxLatencyMs = new long[LANE_COUNT];
+    private final long[] mTotalLatencyMs = new long[LANE_COUNT];
+
+    private class Job implements Runnable, Comparable<Job> {
+        final int lane;
+        final long bytes;
+        final long sequence;
+        final long submitted;
+        final Runnable work;
+
+        Job(int lane, long bytes, Runnable work) {
+            this.lane = lane;
+            this.bytes = bytes;
+            this.work = work;
+            sequence = mSequence.getAndIncrement();
+            submitted = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (lane != other.lane) {
+                return lane < other.lane ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            mQueued[lane].decrementAndGet();
+            mRunning.incrementAndGet();
+            try {
+                work.run();
+            } finally {
+                mRunning.decrementAndGet();
+                onDone(this);
+            }
+        }
+    }
+
+    /**
+     * @param workers number of saves running at the same time.
+     * @param highWatermark bytes in flight at which the engine becomes full.
+     * @param lowWatermark bytes in flight at which it becomes available again.
+     * @param callbackExecutor where the queue listener is called, usually
+     *            the main thread.
+     */
+    public SaveEngine(int workers, long highWatermark, long lowWatermark,
+            Executor callbackExecutor) {
+        if (workers < 1 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Bad save engine configuration");
+        }
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+        mCallbackExecutor = callbackExecutor;
+        final AtomicInteger threads = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SaveEngine-" + threads.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Sets the listener told about full/available transitions from now on. */
+    public synchronized void setQueueListener(QueueListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds a listener called on the thread making the transition, outside
+     * the lock, for waiters that cannot count on the callback executor.
+     * It must not block.
+     */
+    public synchronized void addQueueObserver(QueueListener observer) {
+        mObservers.add(observer);
+    }
+
+    public synchronized void removeQueueObserver(QueueListener observer) {
+        mObservers.remove(observer);
+    }
+
+    public boolean isFull() {
+        return mFull;
+    }
+
+    public long getBytesInFlight() {
+        return mBytes.get();
+    }
+
+    /**
+     * Queues work holding bytes until it has run. The bytes count towards
+     * the watermarks right away; callers check {@link #isFull()} first.
+     */
+    public void submit(int lane, long bytes, Runnable work) {
+        if (lane < 0 || lane >= LANE_COUNT) {
+            throw new IllegalArgumentException("Unknown lane " + lane);
+        }
+        Job job = new Job(lane, bytes, work);
+        mQueued[lane].incrementAndGet();
+        account(bytes);
+        try {
+            mExecutor.execute(job);
+        } catch (RejectedExecutionException e) {
+            // Never runs, so it gives its bytes back here
+            mQueued[lane].decrementAndGet();
+            account(-bytes);
+            throw e;
+        }
+    }
+
+    /** Executor queueing every runnable in the lane, holding bytes each. */
+    public Executor getExecutor(final int lane, final long bytes) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable work) {
+                submit(lane, bytes, work);
+            }
+        };
+    }
+
+    private void account(long delta) {
+        final QueueListener listener;
+        final QueueListener[] observers;
+        final boolean full;
+        synchronized (this) {
+            long bytes = mBytes.addAndGet(delta);
+            mPeakBytes = Math.max(mPeakBytes, bytes);
+            if (!mFull && bytes >= mHighWatermark) {
+                mFull = true;
+                mFullTransitions++;
+            } else if (mFull && bytes <= mLowWatermark) {
+                mFull = false;
+            } else {
+                return;
+            }
+            full = mFull;
+            listener = mListener;
+            if (listener != null) {
+                // Posted under the lock so transitions arrive in order
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onQueueStatus(full);
+                    }
+                });
+            }
+            observers = mObservers.toArray(new QueueListener[mObservers.size()]);
+        }
+        for (QueueListener observer : observers) {
+            observer.onQueueStatus(full);
+        }
+    }
+
+    private void onDone(Job job) {
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.submitted);
+        synchronized (this) {
+            mCompleted[job.lane]++;
+            mTotalLatencyMs[job.lane] += latencyMs;
+            mMaxLatencyMs[job.lane] = Math.max(mMaxLatencyMs[job.lane], latencyMs);
+        }
+        account(-job.bytes);
+    }
+
+    public synchronized Metrics getMetrics() {
+        Metrics metrics = new Metrics();
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            metrics.queued[lane] = mQueued[lane].get();
+            metrics.completed[lane] = mCompleted[lane];
+            metrics.maxLatencyMs[lane] = mMaxLatencyMs[lane];
+            metrics.totalLatencyMs[lane] = mTotalLatencyMs[lane];
+        }
+        metrics.running = mRunning.get();
+        metrics.bytesInFlight = mBytes.get();
+        metrics.peakBytes = mPeakBytes;
+        metrics.fullTransitions = mFullTransitions;
+        return metrics;
+    }
+
+    /** Lets queued saves finish and stops the workers afterwards. */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /** Waits for queued saves after {@link #shutdown()}, returns whether all finished. */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import com.android.camera.exif.ExifSplice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+
+/**
+ * A JPEG with a standard XMP segment and optional extended XMP segments
+ * added, described as pieces instead of a copy: the head of the JPEG, the
+ * new APP1 segments and the rest of the JPEG.
+ * <p>
+ * Only the marker headers in front of the scan data are looked at. The
+ * segments go right after a leading APP1 (Exif), or right after SOI, and
+ * can replace an existing XMP segment instead. Extended XMP is split into
+ * chunks that reference the serialized packet, so the only copy of the
+ * image and of the extended packet is the one into the destination, none
+ * at all with a gathering write to a channel.
+ * <p>
+ * The source buffer and packets must not be modified while the splice is
+ * in use.
+ */
+public class XmpSplice {
+    static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    static final String EXTENDED_XMP_HEADER_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
+    static final int MAX_XMP_BUFFER_SIZE = 65502;
+    static final int MAX_EXTENDED_XMP_BUFFER_SIZE = 65000;
+    // Signature, GUID as 32 hex digits, full length and offset of the chunk
+    static final int EXTENDED_XMP_HEADER_SIZE = 75;
+    private static final int GUID_SIZE = 32;
+
+    private static final int M_MARKER = 0xff;
+    private static final int M_SOI = 0xd8;
+    private static final int M_APP1 = 0xe1;
+    private static final int M_SOS = 0xda;
+    private static final int M_EOI = 0xd9;
+
+    private final ByteBuffer mHead;
+    private final ByteBuffer mTail;
+    private final ArrayList<ByteBuffer> mSegments = new ArrayList<ByteBuffer>();
+    private final int mSize;
+
+    /**
+     * @param jpeg the source JPEG between its position and limit.
+     * @param standardXmp the serialized standard XMP packet.
+     * @param extendedXmp the serialized extended XMP packet, or null.
+     * @param guid MD5 digest of extendedXmp as 32 hex digits, when there is one.
+     * @param replaceXmp whether an existing standard XMP segment is replaced,
+     *            otherwise the new segments are only inserted.
+     */
+    public XmpSplice(ByteBuffer jpeg, byte[] standardXmp, byte[] extendedXmp, String guid,
+            boolean replaceXmp) throws IOException {
+        if (standardXmp.length > MAX_XMP_BUFFER_SIZE) {
+            throw new IOException("XMP packet is too large: " + standardXmp.length);
+        }
+        if (extendedXmp != null && (guid == null || guid.length() != GUID_SIZE)) {
+            throw new IllegalArgumentException("Extended XMP needs a 32 digit GUID");
+        }
+        int start = jpeg.position();
+        int end = jpeg.limit();
+        if (end - start < 4 || (jpeg.get(start) & 0xff) != M_MARKER
+                || (jpeg.get(start + 1) & 0xff) != M_SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write xmp");
+        }
+
+        // Walk the marker headers up to the scan data, same rules as the old
+        // section parser: after a leading APP1, or replacing the XMP segment.
+        int insert = start + 2;
+        int skipEnd = insert;
+        int pos = start + 2;
+        boolean first = true;
+        while (pos + 4 <= end) {
+            if ((jpeg.get(pos) & 0xff) != M_MARKER) {
+                throw new IOException("Not a valid jpeg image, cannot write xmp");
+            }
+            int marker = jpeg.get(pos + 1) & 0xff;
+            if (marker == M_MARKER) {
+                // Fill byte, kept as is
+                pos++;
+                continue;
+            }
+            if (marker == M_SOS || marker == M_EOI) {
+                break;
+            }
+            int segmentEnd = pos + 2 + (jpeg.getShort(pos + 2) & 0xffff);
+            if (segmentEnd > end) {
+                throw new IOException("Truncated jpeg segment, cannot write xmp");
+            }
+            if (marker == M_APP1 && replaceXmp && hasXmpHeader(jpeg, pos + 4, segmentEnd)) {
+                insert = pos;
+                skipEnd = segmentEnd;
+                break;
+            }
+            if (first && marker == M_APP1) {
+                insert = segmentEnd;
+                skipEnd = segmentEnd;
+            }
+            first = false;
+            pos = segmentEnd;
+        }
+
+        mHead = slice(jpeg, start, insert);
+        mTail = slice(jpeg, skipEnd, end);
+        int size = mHead.remaining() + mTail.remaining();
+        mSegments.add(ByteBuffer.wrap(buildSegment(XMP_HEADER, standardXmp)));
+        size += mSegments.get(0).remaining();
+        if (extendedXmp != null) {
+            size += addExtendedSegments(extendedXmp, guid);
+        }
+        mSize = size;
+    }
+
+    public XmpSplice(byte[] jpeg, byte[] standardXmp, byte[] extendedXmp, String guid,
+            boolean replaceXmp) throws IOException {
+        this(ByteBuffer.wrap(jpeg), standardXmp, extendedXmp, guid, replaceXmp);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    private static boolean hasXmpHeader(ByteBuffer jpeg, int pos, int end) {
+        if (end - pos < XMP_HEADER.length()) {
+            return false;
+        }
+        for (int i = 0; i < XMP_HEADER.length(); i++) {
+            if (jpeg.get(pos + i) != (byte) XMP_HEADER.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* APP1 marker, length and the header, followed by packet */
+    private static byte[] buildSegment(String header, byte[] packet) {
+        ByteBuffer segment = ByteBuffer.allocate(4 + header.length() + packet.length);
+        segment.put((byte) M_MARKER).put((byte) M_APP1);
+        segment.putShort((short) (segment.capacity() - 2));
+        putAscii(segment, header);
+        segment.put(packet);
+        return segment.array();
+    }
+
+    private static void putAscii(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * The extended XMP JPEG marker segment content holds:
+     * - a signature string, "http://ns.adobe.com/xmp/extension/\0"
+     * - a 128 bit GUID stored as a 32 byte ASCII hex string
+     * - a UInt32 full length of the entire extended XMP
+     * - a UInt32 offset for this portion of the extended XMP
+     * - the UTF-8 text for this portion of the extended XMP
+     */
+    private int addExtendedSegments(byte[] extendedXmp, String guid) {
+        int size = 0;
+        for (int offset = 0; offset < extendedXmp.length;
+                offset += MAX_EXTENDED_XMP_BUFFER_SIZE) {
+            int length = Math.min(MAX_EXTENDED_XMP_BUFFER_SIZE, extendedXmp.length - offset);
+            ByteBuffer header = ByteBuffer.allocate(4 + EXTENDED_XMP_HEADER_SIZE);
+            header.put((byte) M_MARKER).put((byte) M_APP1);
+            header.putShort((short) (2 + EXTENDED_XMP_HEADER_SIZE + length));
+            putAscii(header, EXTENDED_XMP_HEADER_SIGNATURE);
+            putAscii(header, guid);
+            header.putInt(extendedXmp.length);
+            header.putInt(offset);
+            header.flip();
+            mSegments.add(header);
+            mSegments.add(ByteBuffer.wrap(extendedXmp, offset, length).slice());
+            size += header.remaining() + length;
+        }
+        return size;
+    }
+
+    /** Size of the resulting JPEG in bytes. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Copies the resulting JPEG into dst, which needs {@link #size()} bytes
+     * from dstOffset on. Returns the number of bytes written.
+     */
+    public int writeTo(byte[] dst, int dstOffset) {
+        int pos = dstOffset;
+        for (ByteBuffer buffer : getBuffers()) {
+            int length = buffer.remaining();
+            buffer.get(dst, pos, length);
+            pos += length;
+        }
+        return pos - dstOffset;
+    }
+
+    /** Returns the resulting JPEG in an array of exactly {@link #size()} bytes. */
+    public byte[] toByteArray() {
+        byte[] out = new byte[mSize];
+        writeTo(out, 0);
+        return out;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] chunk = null;
+        for (ByteBuffer buffer : getBuffers()) {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                continue;
+            }
+            // Mapped source, copied through a bounded chunk
+            if (chunk == null) {
+                chunk = new byte[64 * 1024];
+            }
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Writes the resulting JPEG to the channel with gathering writes.
+     * Returns the number of bytes written.
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        return ExifSplice.writeFully(channel, getBuffers());
+    }
+
+    /** The resulting JPEG as a sequence of buffers wrapping the sources. */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[mSegments.size() + 2];
+        int i = 0;
+        buffers[i++] = mHead.duplicate();
+        for (ByteBuffer segment : mSegments) {
+            buffers[i++] = segment.duplicate();
+        }
+        buffers[i] = mTail.duplicate();
+        return buffers;
+    }
+}
@@ -23,14 +23,18 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -39,7 +43,7 @@ import java.util.List;
 
 /**
  * Util class to read/write xmp from a jpeg image file. It only supports jpeg
- * image format, and doesn't support extended xmp now.
+ * image format; extended xmp is only written, see spliceXMPMeta().
  * To use it:
  * XMPMeta xmpMeta = XmpUtil.extractOrCreateXMPMeta(filename);
  * xmpMeta.setProperty(PanoConstants.GOOGLE_PANO_NAMESPACE, "property_name", "value");
@@ -54,15 +58,10 @@ public class XmpUtil {
   private static final String TAG = "XmpUtil";
   private static final int XMP_HEADER_SIZE = 29;
   private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
-  private static final int MAX_XMP_BUFFER_SIZE = 65502;
 
-  private static final String EXTENDED_XMP_HEADER_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
   private static final String XMP_NOTE_NAMESPACE = "http://ns.adobe.com/xmp/note/";
   private static final String NOTE_PREFIX = "xmpNote";
 
-  private static final int MAX_EXTENDED_XMP_BUFFER_SIZE = 65000;
-  private static final int EXTEND_XMP_HEADER_SIZE = 75;
-
   private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
   private static final String PANO_PREFIX = "GPano";
 
@@ -157,7 +156,8 @@ public class XmpUtil {
   }
 
   /**
-   * Writes the XMPMeta to the jpeg image file.
+   * Writes the XMPMeta to the jpeg image file. The file is spliced into a
+   * temporary file next to it, which then replaces it.
    */
   public static boolean writeXMPMeta(String filename, XMPMeta meta) {
     if (!filename.toLowerCase().endsWith(".jpg")
@@ -165,33 +165,35 @@ public class XmpUtil {
       Log.d(TAG, "XMP parse: only jpeg file is supported");
       return false;
     }
-    List<Section> sections = null;
-    try {
-      sections = parse(new FileInputStream(filename), false);
-      sections = insertXMPSection(sections, meta);
-      if (sections == null) {
-        return false;
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Could not read file: " + filename, e);
+    byte[] packet = serialize(meta);
+    if (packet == null) {
       return false;
     }
-    FileOutputStream os = null;
+    File file = new File(filename);
+    File tmp = new File(filename + ".xmp.tmp");
+    RandomAccessFile in = null;
+    FileOutputStream out = null;
     try {
-      // Overwrite the image file with the new meta data.
-      os = new FileOutputStream(filename);
-      writeJpegFile(os, sections);
+      in = new RandomAccessFile(file, "r");
+      FileChannel channel = in.getChannel();
+      ByteBuffer jpeg = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      XmpSplice splice = new XmpSplice(jpeg, packet, null, null, true);
+      out = new FileOutputStream(tmp);
+      splice.writeTo(out.getChannel());
+      out.getFD().sync();
     } catch (IOException e) {
       Log.d(TAG, "Write file failed:" + filename, e);
+      CameraUtil.closeSilently(out);
+      tmp.delete();
       return false;
     } finally {
-      if (os != null) {
-        try {
-          os.close();
-        } catch (IOException e) {
-          // Ignore.
-        }
-      }
+      CameraUtil.closeSilently(in);
+      CameraUtil.closeSilently(out);
+    }
+    if (!tmp.renameTo(file)) {
+      Log.d(TAG, "Could not replace " + filename);
+      tmp.delete();
+      return false;
     }
     return true;
   }
@@ -201,57 +203,46 @@ public class XmpUtil {
    */
   public static boolean writeXMPMeta(InputStream inputStream, OutputStream outputStream,
       XMPMeta meta) {
-    List<Section> sections = parse(inputStream, false);
-      sections = insertXMPSection(sections, meta);
-      if (sections == null) {
-        return false;
-      }
+    byte[] packet = serialize(meta);
+    if (packet == null) {
+      CameraUtil.closeSilently(inputStream);
+      CameraUtil.closeSilently(outputStream);
+      return false;
+    }
+    return writeSplice(inputStream, outputStream, packet, null, null, true);
+  }
+
+  /* Reads the whole jpeg, splices the packets in and writes it out in bulk */
+  private static boolean writeSplice(InputStream inputStream, OutputStream outputStream,
+      byte[] standardXmp, byte[] extendedXmp, String guid, boolean replaceXmp) {
     try {
-      // Overwrite the image file with the new meta data.
-      writeJpegFile(outputStream, sections);
+      byte[] jpeg = readFully(inputStream);
+      new XmpSplice(jpeg, standardXmp, extendedXmp, guid, replaceXmp).writeTo(outputStream);
     } catch (IOException e) {
       Log.d(TAG, "Write to stream failed", e);
       return false;
     } finally {
-      if (outputStream != null) {
-        try {
-          outputStream.close();
-        } catch (IOException e) {
-          // Ignore.
-        }
-      }
+      CameraUtil.closeSilently(inputStream);
+      CameraUtil.closeSilently(outputStream);
     }
     return true;
   }
 
-  /**
-   * Write a list of sections to a Jpeg file.
-   */
-  private static void writeJpegFile(OutputStream os, List<Section> sections)
-      throws IOException {
-    // Writes the jpeg file header.
-    os.write(0xff);
-    os.write(M_SOI);
-    for (Section section : sections) {
-      os.write(0xff);
-      os.write(section.marker);
-      if (section.length > 0) {
-        // It's not the image data.
-        int lh = section.length >> 8;
-        int ll = section.length & 0xff;
-        os.write(lh);
-        os.write(ll);
-      }
-      os.write(section.data);
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 8192));
+    byte[] chunk = new byte[64 * 1024];
+    int n;
+    while ((n = is.read(chunk)) != -1) {
+      out.write(chunk, 0, n);
     }
+    return out.toByteArray();
   }
 
-  private static List<Section> insertXMPSection(
-      List<Section> sections, XMPMeta meta) {
-    if (sections == null || sections.size() <= 1) {
-      return null;
-    }
-    byte[] buffer;
+  /**
+   * Serializes the meta in the compact form without a packet wrapper,
+   * returns null if it fails.
+   */
+  private static byte[] serialize(XMPMeta meta) {
     try {
       SerializeOptions options = new SerializeOptions();
       options.setUseCompactFormat(true);
@@ -259,42 +250,11 @@ public class XmpUtil {
       // javax.xml.parsers.DocumentBuilder
       // fails to parse the packet end <?xpacket end="w"?> in android.
       options.setOmitPacketWrapper(true);
-      buffer = XMPMetaFactory.serializeToBuffer(meta, options);
+      return XMPMetaFactory.serializeToBuffer(meta, options);
     } catch (XMPException e) {
       Log.d(TAG, "Serialize xmp failed", e);
       return null;
     }
-    if (buffer.length > MAX_XMP_BUFFER_SIZE) {
-      // Do not support extended xmp now.
-      return null;
-    }
-    // The XMP section starts with XMP_HEADER and then the real xmp data.
-    byte[] xmpdata = new byte[buffer.length + XMP_HEADER_SIZE];
-    System.arraycopy(XMP_HEADER.getBytes(), 0, xmpdata, 0, XMP_HEADER_SIZE);
-    System.arraycopy(buffer, 0, xmpdata, XMP_HEADER_SIZE, buffer.length);
-    Section xmpSection = new Section();
-    xmpSection.marker = M_APP1;
-    // Adds the length place (2 bytes) to the section length.
-    xmpSection.length = xmpdata.length + 2;
-    xmpSection.data = xmpdata;
-
-    for (int i = 0; i < sections.size(); ++i) {
-      // If we can find the old xmp section, replace it with the new one.
-      if (sections.get(i).marker == M_APP1
-          && hasXMPHeader(sections.get(i).data)) {
-        // Replace with the new xmp data.
-        sections.set(i, xmpSection);
-        return sections;
-      }
-    }
-    // If the first section is Exif, insert XMP data before the second section,
-    // otherwise, make xmp data the first section.
-    List<Section> newSections = new ArrayList<Section>();
-    int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
-    newSections.addAll(sections.subList(0, position));
-    newSections.add(xmpSection);
-    newSections.addAll(sections.subList(position, sections.size()));
-    return newSections;
   }
 
   /**
@@ -415,119 +375,50 @@ public class XmpUtil {
     }
   }
 
-  private static Section createStandardXMPSection(XMPMeta meta) {
-    byte[] buffer;
-    try {
-      SerializeOptions options = new SerializeOptions();
-      options.setUseCompactFormat(true);
-      // We have to omit packet wrapper here because
-      // javax.xml.parsers.DocumentBuilder
-      // fails to parse the packet end <?xpacket end="w"?> in android.
-      options.setOmitPacketWrapper(true);
-      buffer = XMPMetaFactory.serializeToBuffer(meta, options);
-    } catch (XMPException e) {
-      Log.d(TAG, "Serialize xmp failed", e);
-      return null;
-    }
-    if (buffer.length > MAX_XMP_BUFFER_SIZE) {
-      Log.e(TAG, "exceed max size");
+  /**
+   * Splices the standard and extended XMP into a jpeg without copying it.
+   * The standard meta gets the HasExtendedXMP note pointing at the extended
+   * part, which is split over as many APP1 segments as it needs.
+   *
+   * @param jpeg The jpeg image
+   * @param standardMeta The main portion of the metadata tree, serialized and written as
+   *                     the standard XMP packet
+   * @param extendedMeta The extended portion, serialized without a packet wrapper
+   *                     and written as a series of APP1 marker segments
+   * @return The splice to write or copy out, or null if it fails
+   */
+  public static XmpSplice spliceXMPMeta(byte[] jpeg, XMPMeta standardMeta,
+                                        XMPMeta extendedMeta) {
+    byte[] extended = serialize(extendedMeta);
+    if (extended == null) {
       return null;
     }
-    // The XMP section starts with XMP_HEADER and then the real xmp data.
-    byte[] xmpdata = new byte[buffer.length + XMP_HEADER_SIZE];
-    System.arraycopy(XMP_HEADER.getBytes(), 0, xmpdata, 0, XMP_HEADER_SIZE);
-    System.arraycopy(buffer, 0, xmpdata, XMP_HEADER_SIZE, buffer.length);
-    Section xmpSection = new Section();
-    xmpSection.marker = M_APP1;
-    // Adds the length place (2 bytes) to the section length.
-    xmpSection.length = xmpdata.length + 2;
-    xmpSection.data = xmpdata;
-
-    return xmpSection;
-  }
-
-  private static Section createSection(byte[] portionOfExtendedMeta, byte[] headerBytes) {
-
-    if (portionOfExtendedMeta.length > MAX_EXTENDED_XMP_BUFFER_SIZE) {
-      // Do not support extended xmp now.
-      Log.e(TAG, "createSection fail exceed max size");
-      return null;
-    }
-
-    byte[] xmpdata = new byte[portionOfExtendedMeta.length + 75];
-    System.arraycopy(headerBytes, 0, xmpdata, 0, headerBytes.length);
-
-    System.arraycopy(portionOfExtendedMeta, 0, xmpdata, headerBytes.length, portionOfExtendedMeta.length);
-    Section xmpSection = new Section();
-    xmpSection.marker = M_APP1;
-    // Adds the length place (2 bytes) to the section length.
-    xmpSection.length = xmpdata.length + 2;
-    xmpSection.data = xmpdata;
-    ByteBuffer byteBuffer2 = ByteBuffer.wrap(xmpdata);
-    Log.d(TAG, "fullLength=" + byteBuffer2.getInt(67) + " offset=" + byteBuffer2.getInt(71));
-    return xmpSection;
+    return spliceXMPMeta(jpeg, standardMeta, extended);
   }
 
   /**
-   * Split extendXMPMeta to multiple marker segments
-   * @param extendedXMPMetaBytes serialized extended XMP
-   * @param guid Is a 128-bit MD5 digest of the full ExtendedXMP serialization,
-   *             stored as a 32-byte ASCII hex string
-   * @return  split result
+   * Same as {@link #spliceXMPMeta(byte[], XMPMeta, XMPMeta)} with the
+   * extended part already serialized, for instance by ExtendedXmpPacket.
    */
-  private static List<Section> splitExtendXMPMeta(byte[] extendedXMPMetaBytes, String guid){
-    List<Section> sections = new ArrayList<Section>();
-     /*
-    The extended XMP JPEG marker segment content holds:
-    - a signature string, "http://ns.adobe.com/xmp/extension/\0"
-    - a 128 bit GUID stored as a 32 byte ASCII hex string
-    - a UInt32 full length of the entire extended XMP
-    - a UInt32 offset for this portion of the extended XMP
-    - the UTF-8 text for this portion of the extended XMP
-     */
-    int splitNum = extendedXMPMetaBytes.length/MAX_EXTENDED_XMP_BUFFER_SIZE;
-    byte[] portion = new byte[MAX_EXTENDED_XMP_BUFFER_SIZE];
-    ByteBuffer byteBuffer = ByteBuffer.wrap(extendedXMPMetaBytes);
-    Section extendedXmpSection = null;
-
-    byte[] headerBytes = new byte[EXTEND_XMP_HEADER_SIZE];
-    int index = 0;
-    System.arraycopy(EXTENDED_XMP_HEADER_SIGNATURE.getBytes(), 0, headerBytes, 0, EXTENDED_XMP_HEADER_SIGNATURE.length());
-    index += EXTENDED_XMP_HEADER_SIGNATURE.length();
-
-    System.arraycopy(guid.getBytes(), 0, headerBytes, index, guid.length());
-    index += guid.length();
-
-    Log.d(TAG, "buffer.length=" + extendedXMPMetaBytes.length);
-    byte[] fullLengthBytes = new byte[4];
-    ByteBuffer intBuffer = ByteBuffer.wrap(fullLengthBytes);
-    intBuffer.putInt(0, extendedXMPMetaBytes.length);
-    System.arraycopy(fullLengthBytes, 0, headerBytes, index, 4);
-    index += 4;
-
-    byte[] offsetBytes = new byte[4];
-    ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
-    for( int i=0; i < splitNum; ++i ) {
-      offsetBuffer.putInt(0, i*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byteBuffer.get(portion);
-      extendedXmpSection = createSection(portion, headerBytes);
-      sections.add(extendedXmpSection);
+  public static XmpSplice spliceXMPMeta(byte[] jpeg, XMPMeta standardMeta,
+                                        byte[] extendedXmp) {
+    String guid = getGUID(extendedXmp);
+    try {
+      standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
+    } catch (XMPException exception) {
+      Log.d(TAG, "set XMPMeta Property", exception);
+      return null;
     }
-
-    int remainSize = extendedXMPMetaBytes.length - splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE;
-    if (  remainSize > 0 ) {
-      offsetBuffer.putInt(0, splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byte[] remain = new byte[remainSize];
-      byteBuffer.get(remain);
-      extendedXmpSection = createSection(remain, headerBytes);
-      sections.add(extendedXmpSection);
+    byte[] standard = serialize(standardMeta);
+    if (standard == null) {
+      return null;
+    }
+    try {
+      return new XmpSplice(jpeg, standard, extendedXmp, guid, false);
+    } catch (IOException e) {
+      Log.e(TAG, "Insert XMP failed", e);
+      return null;
     }
-
-    return sections;
   }
 
   /**
@@ -541,75 +432,23 @@ public class XmpUtil {
    */
   public static boolean writeXMPMeta(InputStream inputStream, OutputStream outputStream,
                                      XMPMeta standardMeta, XMPMeta extendedMeta) {
-    byte[] buffer;
-    try {
-      SerializeOptions options = new SerializeOptions();
-      options.setUseCompactFormat(true);
-      // We have to omit packet wrapper here because
-      // javax.xml.parsers.DocumentBuilder
-      // fails to parse the packet end <?xpacket end="w"?> in android.
-      options.setOmitPacketWrapper(true);
-      buffer = XMPMetaFactory.serializeToBuffer(extendedMeta, options);
-    } catch (XMPException e) {
-      Log.d(TAG, "Serialize extended xmp failed", e);
-      return false;
-    }
-
-    String guid = getGUID(buffer);
-    try {
-      standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
-    } catch (XMPException exception) {
-      Log.d(TAG, "set XMPMeta Property", exception);
-      return false;
-    }
-    List<Section> sections = parse(inputStream, false);
-    List<Section> xmpSections = new ArrayList<Section>();
-    Section standardXmpSection = createStandardXMPSection(standardMeta);
-    if (standardXmpSection == null) {
-      Log.e(TAG, "create standard meta section error");
-      return false;
-    }
-    xmpSections.add(standardXmpSection);
-
-    List<Section> extendedSections = splitExtendXMPMeta(buffer, guid);
-    xmpSections.addAll(extendedSections);
-    sections = insertXMPSection(sections, xmpSections);
-    if (sections == null) {
-      Log.d(TAG, "Insert XMP fialed");
-      return false;
-    }
-    try {
-      // Overwrite the image file with the new meta data.
-      writeJpegFile(outputStream, sections);
-    } catch (IOException e) {
-      Log.d(TAG, "Write to stream failed", e);
-      return false;
-    } finally {
-      if (outputStream != null) {
-        try {
-          outputStream.close();
-        } catch (IOException e) {
-          // Ignore.
-        }
+    byte[] extended = serialize(extendedMeta);
+    String guid = extended == null ? null : getGUID(extended);
+    byte[] standard = null;
+    if (guid != null) {
+      try {
+        standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
+        standard = serialize(standardMeta);
+      } catch (XMPException exception) {
+        Log.d(TAG, "set XMPMeta Property", exception);
       }
     }
-    return true;
-  }
-
-  private static List<Section> insertXMPSection(
-          List<Section> sections, List<Section> xmpSections) {
-    if (sections == null || sections.size() <= 1) {
-      return null;
+    if (standard == null) {
+      CameraUtil.closeSilently(inputStream);
+      CameraUtil.closeSilently(outputStream);
+      return false;
     }
-
-    // If the first section is Exif, insert XMP data before the second section,
-    // otherwise, make xmp data the first section.
-    List<Section> newSections = new ArrayList<Section>();
-    int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
-    newSections.addAll(sections.subList(0, position));
-    newSections.addAll(xmpSections);
-    newSections.addAll(sections.subList(position, sections.size()));
-    return newSections;
+    return writeSplice(inputStream, outputStream, standard, extended, guid, false);
   }
 
   private static String getGUID(byte[] src) {
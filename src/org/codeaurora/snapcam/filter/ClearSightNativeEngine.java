@@ -41,6 +41,7 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.util.Log;
 
+import com.android.camera.imageprocessor.FrameBufferPool;
 import com.android.camera.util.PersistUtil;
 
 public class ClearSightNativeEngine {
@@ -116,6 +117,9 @@ public class ClearSightNativeEngine {
 
     public void close() {
         reset();
+        for (SourceImage image : mCache) {
+            image.release();
+        }
         mCache.clear();
         mImageWidth = 0;
         mImageHeight = 0;
@@ -359,10 +363,18 @@ public class ClearSightNativeEngine {
         float[] mMetadata;
 
         SourceImage(int ySize, int vuSize) {
-            mY = ByteBuffer.allocateDirect(ySize);
-            mVU = ByteBuffer.allocateDirect(vuSize);
+            // Cached as reference frames, possibly across several captures
+            mY = FrameBufferPool.getInstance().acquire(ySize, TAG);
+            mVU = FrameBufferPool.getInstance().acquire(vuSize, TAG);
             mMetadata = new float[METADATA_SIZE];
         }
+
+        void release() {
+            FrameBufferPool.getInstance().release(mY);
+            FrameBufferPool.getInstance().release(mVU);
+            mY = null;
+            mVU = null;
+        }
     }
 
     public static class ClearsightImage {
@@ -28,27 +28,24 @@
  */
 package org.codeaurora.snapcam.filter;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
-import android.hardware.Camera.Size;
 import android.util.Base64;
 import android.util.Log;
 
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-
-import java.io.OutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.BufferedOutputStream;
+import java.io.IOException;
 
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 
+/**
+ * GDepth metadata of a ClearSight capture. The depth map is stored range
+ * linear: one pass finds near and far, a second one maps every depth to
+ * 0..255 through a lookup table into the reusable DepthMap.buffer, and
+ * that plane is encoded as a lossless greyscale PNG. The PNG goes into
+ * the extended XMP as is; the base64 text is only produced while the
+ * packet is written, see ExtendedXmpPacket.
+ */
 public class GDepth{
     private final static String TAG = "Flow_GDepth";
     public final static String NAMESPACE_URL = "http://ns.google.com/photos/1.0/depthmap/";
@@ -66,14 +63,14 @@ public class GDepth{
 
     public final static String FORMAT_RANGE_INVERSE="RangeInverse";
     public final static String FORMAT_RANGLE_LINEAR = "RangeLinear";
-    private final static String MIME = "image/jpeg";
+    private final static String MIME = GreyPng.MIME;
 
     private DepthMap mDepthMap;
+    private byte[] mDepthImage;
     private String mData;
     private int mNear;
     private int mFar;
     private final String mFormat = "RangeLinear";
-    private int[] mMap;
 
     static {
         try {
@@ -86,19 +83,21 @@ public class GDepth{
 
     private GDepth(DepthMap depthMap){
         mDepthMap = depthMap;
-        mMap = new int[depthMap.buffer.length];
-
-        for( int i=0; i < mMap.length; ++i ) {
-            mMap[i] = (256+depthMap.buffer[i])%256;
-        }
-        mNear = mFar = mMap[0];
-        for(int d : mMap ) {
-            if ( d < mNear) {
-                mNear = d;
-            }else if ( d > mFar) {
-                mFar = d;
+        byte[] depth = depthMap.rawDepth;
+        int size = depthMap.width * depthMap.height;
+        int near = 255;
+        int far = 0;
+        for (int i = 0; i < size; ++i) {
+            int d = depth[i] & 0xff;
+            if (d < near) {
+                near = d;
+            }
+            if (d > far) {
+                far = d;
             }
         }
+        mNear = near;
+        mFar = far;
     }
 
     public int getNear() {
@@ -117,14 +116,35 @@ public class GDepth{
         return MIME;
     }
 
+    /** The encoded depth image in base64, built on first use. */
     public String getData(){
+        if (mData == null && mDepthImage != null) {
+            mData = Base64.encodeToString(mDepthImage, Base64.NO_WRAP);
+        }
         return mData;
     }
 
+    /** The encoded depth image, what GDepth:Data holds in base64. */
+    public byte[] getDepthImage() {
+        return mDepthImage;
+    }
+
+    /** The depth map, for a GDepth read from XMP only after decode(). */
+    public DepthMap getDepthMap() {
+        return mDepthMap;
+    }
+
     public Rect getRoi() {
         return mDepthMap.roi;
     }
+
     public static GDepth createGDepth(DepthMap depthMap){
+        if (depthMap == null || depthMap.rawDepth == null
+                || depthMap.width <= 0 || depthMap.height <= 0
+                || depthMap.rawDepth.length < depthMap.width * depthMap.height) {
+            Log.e(TAG, "invalid depth map");
+            return null;
+        }
         GDepth gDepth = new GDepth(depthMap);
         if (  gDepth.encoding() ) {
             return gDepth;
@@ -134,110 +154,54 @@ public class GDepth{
 
     private  boolean encoding(){
         Log.d(TAG, "encoding");
-        boolean result = false;
-        int[]  grayscaleImage = convertIntoImage(mMap);
-        byte[] jpegBytes = compressToJPEG(grayscaleImage );
-        if (jpegBytes != null ) {
-            String base64String = serializeAsBase64Str(jpegBytes);
-            result = true;
-            mData = base64String;
-        }else{
-            Log.e(TAG, "compressToJPEG failure");
+        int size = mDepthMap.width * mDepthMap.height;
+        if (mDepthMap.buffer == null || mDepthMap.buffer.length < size) {
+            mDepthMap.buffer = new byte[size];
         }
-
-        return result;
+        normalize(mDepthMap.rawDepth, mDepthMap.buffer, size, mNear, mFar);
+        try {
+            mDepthImage = GreyPng.encode(mDepthMap.buffer, mDepthMap.width, mDepthMap.height);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "depth image encoding failure", e);
+            return false;
+        }
+        return true;
     }
 
-    private  int[] convertIntoImage(int[] depthMap) {
-        int[] imageBuffer = new int[depthMap.length];
-        float dividend = mFar-mNear;
-        for ( int i =0; i < imageBuffer.length; ++i) {
-            if ( depthMap[i] == 0 && mNear == 0 ) {
-                imageBuffer[i] = 0;
-            }else{
-                imageBuffer[i] = getRangeLinearDepth(depthMap[i], mNear, dividend);
+    /**
+     * Range linear mapping of depth into dst, 255 * (d - near) / (far - near)
+     * rounded down, or 0 everywhere when the map is flat.
+     */
+    static void normalize(byte[] depth, byte[] dst, int size, int near, int far) {
+        byte[] lut = new byte[256];
+        int range = far - near;
+        if (range > 0) {
+            for (int d = near; d <= far; ++d) {
+                lut[d] = (byte) (255 * (d - near) / range);
             }
         }
-        return imageBuffer;
-    }
-
-    private   int getRangeLinearDepth(int depth, int near, float dividend) {
-        return (int)(255*(depth-near)/dividend);
-    }
-
-    private   int getRangeLinearDepth(int depth, int near, int far) {
-        return (int)(255*(depth-near)/(float)(far-near));
-    }
-
-    private  byte[] compressToJPEG(int[] image) {
-        Log.d(TAG, "compressToJPEG int[].size=" + image.length);
-        byte[] bitsBuffer = new byte[image.length];
-        for(int i=0; i < image.length; ++i){
-            bitsBuffer[i] = (byte)image[i];
+        for (int i = 0; i < size; ++i) {
+            dst[i] = lut[depth[i] & 0xff];
         }
-        return compressToJPEG(bitsBuffer);
     }
 
-    private  byte[] compressToJPEG(byte[] image) {
-        Log.d(TAG, "compressToJPEG byte[].size=" + image.length);
-        Bitmap bmp = BitmapFactory.decodeByteArray (image, 0, image.length);
-        if ( bmp == null ) {
-            Log.d(TAG, " buffer can't be decoded ");
-            return null;
+    /**
+     * Inverse of normalize(): as far - near is at most 255, every encoded
+     * value maps back to exactly the depth it came from.
+     */
+    static void denormalize(byte[] encoded, byte[] dst, int size, int near, int far) {
+        byte[] lut = new byte[256];
+        int range = far - near;
+        for (int v = 0; v < 256; ++v) {
+            lut[v] = (byte) (near + (range > 0 ? (v * range + 254) / 255 : 0));
         }
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        bmp.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        return outputStream.toByteArray();
-    }
-
-    private  String serializeAsBase64Str(byte[] image) {
-        Log.d(TAG, "serializeAsBase64Str");
-        return Base64.encodeToString(image, Base64.DEFAULT);
-    }
-
-    private  void saveAsFile(String str, String name){
-        Log.d(TAG, "saveAsFile " + "sdcard/DDM/"+ TAG + name + ".log");
-        File file = new File("sdcard/DDM/"+ TAG + name + ".log");
-
-        OutputStream out = null;
-        byte[] bytes = str.getBytes();
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(bytes, 0, bytes.length);
-        }catch(Exception e) {
-            Log.d(TAG, e.toString());
-        }finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }catch(Exception e){
-                    Log.d(TAG, e.toString());
-                }
-            }
-        }
-    }
-
-    private void saveAsJPEG(byte[] bytes){
-        Log.d(TAG, "saveAsJPEG");
-        File file = new File("sdcard/"+ System.currentTimeMillis() + "_depth.JPEG");
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(bytes, 0, bytes.length);
-        }catch(Exception e) {
-            Log.d(TAG, e.toString());
-        }finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }catch(Exception e){
-                    Log.d(TAG, e.toString());
-                }
-            }
+        for (int i = 0; i < size; ++i) {
+            dst[i] = lut[encoded[i] & 0xff];
         }
     }
 
     public static class DepthMap{
+        /** Reusable plane of the normalized depth, allocated when missing. */
         public byte[] buffer;
         public int width;
         public int height;
@@ -255,6 +219,13 @@ public class GDepth{
         this.mFar = far;
         this.mData = data;
     }
+
+    GDepth(int near, int far, byte[] depthImage) {
+        this.mNear = near;
+        this.mFar = far;
+        this.mDepthImage = depthImage;
+    }
+
     public static GDepth createGDepth(XMPMeta xmpMeta){
         try {
             int near = Integer.parseInt((String)
@@ -265,7 +236,7 @@ public class GDepth{
                     GDepth.NAMESPACE_URL, PROPERTY_DATA).getValue();
             String format = (String)xmpMeta.getProperty(
                     GDepth.NAMESPACE_URL, PROPERTY_FORMAT).getValue();
-            Log.d(TAG, "new GDepth: nerar=" + near+ " far=" + far + "format=" + format+ " data=" + data);
+            Log.d(TAG, "new GDepth: nerar=" + near+ " far=" + far + "format=" + format);
             int x = Integer.parseInt((String)
                     xmpMeta.getProperty(GDepth.NAMESPACE_URL, PROPERTY_ROI_X).getValue());
             int y = Integer.parseInt((String)
@@ -285,23 +256,34 @@ public class GDepth{
         return null;
     }
 
+    /**
+     * Decodes the depth image back into a depth map of the original depth
+     * values, available from getDepthMap().
+     */
     public boolean decode() {
         Log.d(TAG, "decode");
-        byte[] depthBuffer = Base64.decode(mData, Base64.DEFAULT);
-        saveAsJPEG(depthBuffer);
-        //TODO:
-        //convert JPEG compress bytes to bytes
-
-        int[] intDepthBuffer = new int[depthBuffer.length];
-        int[] intDepth = new int[depthBuffer.length];
-
-        //conver to 0-255;
-        for( int i=0; i < intDepthBuffer.length; ++i) {
-            intDepthBuffer[i] = (256+depthBuffer[i])%256;
+        try {
+            byte[] image = mDepthImage;
+            if (image == null) {
+                if (mData == null) {
+                    return false;
+                }
+                image = Base64.decode(mData, Base64.DEFAULT);
+            }
+            int[] size = GreyPng.getSize(image);
+            byte[] encoded = GreyPng.decode(image);
+            DepthMap depthMap = new DepthMap(size[0], size[1]);
+            depthMap.buffer = encoded;
+            depthMap.rawDepth = new byte[encoded.length];
+            denormalize(encoded, depthMap.rawDepth, encoded.length, mNear, mFar);
+            if (mDepthMap != null) {
+                depthMap.roi = mDepthMap.roi;
+            }
+            mDepthMap = depthMap;
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "depth image decoding failure", e);
+            return false;
         }
-        //conver to depth value
-
-        return false;
-
     }
-}
\ No newline at end of file
+}
@@ -51,10 +51,11 @@ public class GImage{
     }
 
     private  String mMime = "image/jpeg";
+    private byte[] mImage;
     private String mData;
 
     public GImage(byte[] data, String mime){
-        mData = Base64.encodeToString(data, Base64.DEFAULT);
+        mImage = data;
         mMime = mime;
     }
 
@@ -62,7 +63,16 @@ public class GImage{
         return mMime;
     }
 
+    /** The image in base64, built on first use. */
     public String getData(){
+        if (mData == null) {
+            mData = Base64.encodeToString(mImage, Base64.NO_WRAP);
+        }
         return mData;
     }
+
+    /** The encoded image, what GImage:Data holds in base64. */
+    public byte[] getImageData(){
+        return mImage;
+    }
 }
\ No newline at end of file
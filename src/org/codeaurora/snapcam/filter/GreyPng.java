@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless 8 bit greyscale PNG encoding of a single plane, for depth maps.
+ * <p>
+ * Rows are written with the Up filter, which turns the smooth gradients of
+ * a depth map into long runs, and deflated straight from the plane through
+ * one reusable row, into a buffer sized for the worst case up front.
+ * {@link #decode} reads back what {@link #encode} writes: one IDAT stream,
+ * 8 bit greyscale, no interlacing.
+ */
+class GreyPng {
+    static final String MIME = "image/png";
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454e44;
+    private static final int IHDR_SIZE = 13;
+    // Length, type and CRC around each chunk's data
+    private static final int CHUNK_OVERHEAD = 12;
+    private static final int COLOR_TYPE_GREY = 0;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+
+    /** Encodes the first width * height bytes of plane, row by row. */
+    static byte[] encode(byte[] plane, int width, int height) {
+        if (width <= 0 || height <= 0 || plane.length < width * height) {
+            throw new IllegalArgumentException("Plane too small for " + width + "x" + height);
+        }
+        int raw = height * (width + 1);
+        // zlib's deflateBound() plus the stream header and checksum
+        int bound = raw + (raw >> 12) + (raw >> 14) + (raw >> 25) + 13 + 6;
+        byte[] out = new byte[SIGNATURE.length + 3 * CHUNK_OVERHEAD + IHDR_SIZE + bound];
+        System.arraycopy(SIGNATURE, 0, out, 0, SIGNATURE.length);
+        int pos = SIGNATURE.length;
+
+        int ihdr = pos + 8;
+        putInt(out, ihdr, width);
+        putInt(out, ihdr + 4, height);
+        out[ihdr + 8] = 8;
+        out[ihdr + 9] = COLOR_TYPE_GREY;
+        // compression, filter and interlace methods are all 0
+        pos = finishChunk(out, pos, IHDR, IHDR_SIZE);
+
+        int idat = pos + 8;
+        int compressed = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            byte[] row = new byte[width + 1];
+            row[0] = FILTER_UP;
+            for (int y = 0; y < height; y++) {
+                int start = y * width;
+                if (y == 0) {
+                    System.arraycopy(plane, 0, row, 1, width);
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        row[x + 1] = (byte) (plane[start + x] - plane[start - width + x]);
+                    }
+                }
+                deflater.setInput(row, 0, row.length);
+                while (!deflater.needsInput()) {
+                    compressed += deflater.deflate(out, idat + compressed,
+                            out.length - idat - compressed);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out, idat + compressed,
+                        out.length - idat - compressed);
+            }
+        } finally {
+            deflater.end();
+        }
+        pos = finishChunk(out, pos, IDAT, compressed);
+        pos = finishChunk(out, pos, IEND, 0);
+        return Arrays.copyOf(out, pos);
+    }
+
+    /* Writes length and type in front of the data at pos + 8 and the CRC after it */
+    private static int finishChunk(byte[] out, int pos, int type, int length) {
+        putInt(out, pos, length);
+        putInt(out, pos + 4, type);
+        CRC32 crc = new CRC32();
+        crc.update(out, pos + 4, 4 + length);
+        putInt(out, pos + 8 + length, (int) crc.getValue());
+        return pos + CHUNK_OVERHEAD + length;
+    }
+
+    private static void putInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] in, int pos) {
+        return ((in[pos] & 0xff) << 24) | ((in[pos + 1] & 0xff) << 16)
+                | ((in[pos + 2] & 0xff) << 8) | (in[pos + 3] & 0xff);
+    }
+
+    /** Width and height of an encoded plane. */
+    static int[] getSize(byte[] png) throws IOException {
+        checkHeader(png);
+        return new int[] {
+                getInt(png, SIGNATURE.length + 8), getInt(png, SIGNATURE.length + 12)
+        };
+    }
+
+    private static void checkHeader(byte[] png) throws IOException {
+        if (png.length < SIGNATURE.length + CHUNK_OVERHEAD + IHDR_SIZE
+                || !Arrays.equals(SIGNATURE, Arrays.copyOf(png, SIGNATURE.length))
+                || getInt(png, SIGNATURE.length + 4) != IHDR) {
+            throw new IOException("Not a png image");
+        }
+        int ihdr = SIGNATURE.length + 8;
+        if (png[ihdr + 8] != 8 || png[ihdr + 9] != COLOR_TYPE_GREY || png[ihdr + 12] != 0) {
+            throw new IOException("Only 8 bit greyscale png without interlacing is supported");
+        }
+    }
+
+    /** Decodes the plane written by {@link #encode}, width * height bytes. */
+    static byte[] decode(byte[] png) throws IOException {
+        int[] size = getSize(png);
+        int width = size[0];
+        int height = size[1];
+        byte[] plane = new byte[width * height];
+        byte[] row = new byte[width + 1];
+        Inflater inflater = new Inflater();
+        try {
+            int pos = SIGNATURE.length;
+            int y = 0;
+            int filled = 0;
+            while (pos + CHUNK_OVERHEAD <= png.length && y < height) {
+                int length = getInt(png, pos);
+                int type = getInt(png, pos + 4);
+                if (length < 0 || pos + CHUNK_OVERHEAD + length > png.length) {
+                    throw new IOException("Truncated png chunk");
+                }
+                if (type == IDAT) {
+                    inflater.setInput(png, pos + 8, length);
+                    while (y < height) {
+                        int n = inflater.inflate(row, filled, row.length - filled);
+                        if (n == 0) {
+                            if (inflater.finished() || inflater.needsInput()) {
+                                break;
+                            }
+                            throw new IOException("Corrupt png data");
+                        }
+                        filled += n;
+                        if (filled == row.length) {
+                            unfilter(row, plane, y, width);
+                            filled = 0;
+                            y++;
+                        }
+                    }
+                }
+                pos += CHUNK_OVERHEAD + length;
+            }
+            if (y < height) {
+                throw new IOException("Truncated png data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt png data", e);
+        } finally {
+            inflater.end();
+        }
+        return plane;
+    }
+
+    private static void unfilter(byte[] row, byte[] plane, int y, int width) throws IOException {
+        int start = y * width;
+        switch (row[0]) {
+            case FILTER_NONE:
+                System.arraycopy(row, 1, plane, start, width);
+                break;
+            case FILTER_SUB:
+                for (int x = 0; x < width; x++) {
+                    plane[start + x] = (byte) (row[x + 1] + (x > 0 ? plane[start + x - 1] : 0));
+                }
+                break;
+            case FILTER_UP:
+                for (int x = 0; x < width; x++) {
+                    plane[start + x] = (byte) (row[x + 1] + (y > 0 ? plane[start - width + x] : 0));
+                }
+                break;
+            default:
+                throw new IOException("Unsupported png filter " + row[0]);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Feeds NV21 frame sequences through the feature_mos stitcher the way a
+ * panorama capture does: MosaicFrameProcessor.processFrame() per frame, then
+ * createMosaic(true) and getFinalMosaicNV21(). Reports the time per frame,
+ * the alignment results, the final blend time and a checksum of the mosaic.
+ *
+ * Runs on a plain JVM against the host build of libjni_snapcammosaic, with
+ * -Djava.library.path pointing at it; results go to stdout. A recorded
+ * sequence is read from -Dmosaic.frames, a file of back-to-back NV21 frames
+ * of -Dmosaic.size (WxH). -Dmosaic.checksum (of the recorded mosaic) and
+ * -Dmosaic.maxFrameMs turn the report into a gate for stitcher changes.
+ */
+@LargeTest
+public class MosaicBenchmark extends TestCase {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FRAMES = 60;
+    // Past the aligner's still camera threshold of 5 low-res pixels
+    private static final int PAN_STEP = 24;
+
+    static class Result {
+        int width;
+        int height;
+        int frames;
+        double[] frameMs;
+        int ok;
+        int fewInliers;
+        int lowTexture;
+        // MOSAIC_RET_ERROR, also what frames that moved too little get
+        int rejected;
+        float panningRate;
+        int createResult;
+        double createMs;
+        double finalMs;
+        int mosaicWidth;
+        int mosaicHeight;
+        long checksum;
+
+        double meanFrameMs() {
+            double sum = 0;
+            for (double ms : frameMs) {
+                sum += ms;
+            }
+            return sum / frameMs.length;
+        }
+
+        double frameMsAt(float fraction) {
+            double[] sorted = frameMs.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames %dx%d: setSourceImage mean %.2f ms, p90 %.2f ms,"
+                    + " max %.2f ms; ok %d, few inliers %d, low texture %d, rejected %d;"
+                    + " pan rate %.3f; createMosaic %d in %.1f ms, getFinalMosaicNV21 %.1f ms;"
+                    + " mosaic %dx%d crc %08x", frames, width, height, meanFrameMs(),
+                    frameMsAt(0.9f), frameMsAt(1f), ok, fewInliers, lowTexture, rejected,
+                    panningRate, createResult, createMs, finalMs, mosaicWidth, mosaicHeight,
+                    checksum);
+        }
+    }
+
+    public void testSyntheticPan() {
+        List<byte[]> frames = syntheticPan(WIDTH, HEIGHT, FRAMES, PAN_STEP);
+        Result first = stitch(WIDTH, HEIGHT, frames);
+        System.out.println("synthetic pan: " + first);
+        assertTrue(first.toString(), first.ok + first.fewInliers > FRAMES * 3 / 4);
+        assertEquals(Mosaic.MOSAIC_RET_OK, first.createResult);
+        assertTrue(first.mosaicWidth > WIDTH);
+
+        // The stitcher is deterministic, so checksums can gate changes to it
+        Result second = stitch(WIDTH, HEIGHT, frames);
+        assertEquals(first.checksum, second.checksum);
+        checkFrameTime(first);
+    }
+
+    public void testRecordedSequence() throws IOException {
+        String path = System.getProperty("mosaic.frames");
+        if (path == null) {
+            return;
+        }
+        String[] size = System.getProperty("mosaic.size", WIDTH + "x" + HEIGHT).split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        Result result = stitch(width, height, readFrames(path, width * height * 3 / 2));
+        System.out.println(path + ": " + result);
+        String checksum = System.getProperty("mosaic.checksum");
+        if (checksum != null) {
+            assertEquals(Long.parseLong(checksum, 16), result.checksum);
+        }
+        checkFrameTime(result);
+    }
+
+    private static void checkFrameTime(Result result) {
+        String maxFrameMs = System.getProperty("mosaic.maxFrameMs");
+        if (maxFrameMs != null) {
+            assertTrue(result.toString(),
+                    result.meanFrameMs() <= Double.parseDouble(maxFrameMs));
+        }
+    }
+
+    private static Result stitch(int width, int height, List<byte[]> frames) {
+        Result result = new Result();
+        result.width = width;
+        result.height = height;
+        result.frames = frames.size();
+        result.frameMs = new double[frames.size()];
+        MosaicFrameProcessor processor = MosaicFrameProcessor.getInstance();
+        processor.initialize(width, height, width * height * 3 / 2);
+        try {
+            processor.reset();
+            for (int i = 0; i < frames.size(); i++) {
+                long start = System.nanoTime();
+                int ret = processor.processFrame(frames.get(i));
+                result.frameMs[i] = (System.nanoTime() - start) / 1e6;
+                switch (ret) {
+                    case Mosaic.MOSAIC_RET_OK:
+                        result.ok++;
+                        break;
+                    case Mosaic.MOSAIC_RET_FEW_INLIERS:
+                        result.fewInliers++;
+                        break;
+                    case Mosaic.MOSAIC_RET_LOW_TEXTURE:
+                        result.lowTexture++;
+                        break;
+                    default:
+                        result.rejected++;
+                }
+            }
+            result.panningRate = processor.getPanningRateX();
+
+            long start = System.nanoTime();
+            result.createResult = processor.createMosaic(true);
+            result.createMs = (System.nanoTime() - start) / 1e6;
+            if (result.createResult != Mosaic.MOSAIC_RET_OK) {
+                return result;
+            }
+            start = System.nanoTime();
+            byte[] mosaic = processor.getFinalMosaicNV21();
+            result.finalMs = (System.nanoTime() - start) / 1e6;
+
+            // The size follows the image as two big endian ints
+            int size = mosaic.length - 8;
+            result.mosaicWidth = readInt(mosaic, size);
+            result.mosaicHeight = readInt(mosaic, size + 4);
+            CRC32 crc = new CRC32();
+            crc.update(mosaic, 0, size);
+            result.checksum = crc.getValue();
+            return result;
+        } finally {
+            processor.clear();
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static List<byte[]> readFrames(String path, int frameSize) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        DataInputStream in = new DataInputStream(new FileInputStream(path));
+        try {
+            while (true) {
+                byte[] frame = new byte[frameSize];
+                in.readFully(frame);
+                frames.add(frame);
+            }
+        } catch (EOFException end) {
+            // A partial last frame is dropped
+        } finally {
+            in.close();
+        }
+        return frames;
+    }
+
+    /* Frames of a camera panning right across a textured scene */
+    private static List<byte[]> syntheticPan(int width, int height, int count, int step) {
+        int sceneWidth = width + count * step;
+        byte[] scene = texturedScene(sceneWidth, height);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[width * height * 3 / 2];
+            int left = i * step & ~1;
+            for (int j = 0; j < height * 3 / 2; j++) {
+                System.arraycopy(scene, j * sceneWidth + left, frame, j * width, width);
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /* NV21 scene of smooth noise with scattered boxes, so it has corners to align on */
+    private static byte[] texturedScene(int width, int height) {
+        Random random = new Random(25);
+        int cell = 16;
+        int gridWidth = width / cell + 2;
+        int gridHeight = height / cell + 2;
+        float[] grid = new float[gridWidth * gridHeight];
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = random.nextFloat();
+        }
+        byte[] scene = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int gx = x / cell;
+                int gy = y / cell;
+                float fx = (x % cell) / (float) cell;
+                float fy = (y % cell) / (float) cell;
+                float top = grid[gy * gridWidth + gx] * (1 - fx) + grid[gy * gridWidth + gx + 1] * fx;
+                float bottom = grid[(gy + 1) * gridWidth + gx] * (1 - fx)
+                        + grid[(gy + 1) * gridWidth + gx + 1] * fx;
+                scene[y * width + x] = (byte) (40 + 150 * (top * (1 - fy) + bottom * fy));
+            }
+        }
+        for (int box = 0; box < width * height / 2000; box++) {
+            int bw = 4 + random.nextInt(20);
+            int bh = 4 + random.nextInt(20);
+            int bx = random.nextInt(width - bw);
+            int by = random.nextInt(height - bh);
+            byte luma = (byte) (random.nextBoolean() ? 10 : 245);
+            for (int y = by; y < by + bh; y++) {
+                Arrays.fill(scene, y * width + bx, y * width + bx + bw, luma);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x += 2) {
+                int luma = scene[y * 2 * width + x] & 0xFF;
+                scene[width * height + y * width + x] = (byte) (96 + luma / 4);
+                scene[width * height + y * width + x + 1] = (byte) (160 - luma / 4);
+            }
+        }
+        return scene;
+    }
+}
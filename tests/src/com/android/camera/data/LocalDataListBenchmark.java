@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Times the filmstrip access pattern on LocalDataList at 10k and 100k
+ * items: captures added at the front, positional reads while scrolling
+ * and uri lookups for updates.
+ */
+@LargeTest
+public class LocalDataListBenchmark extends TestCase {
+    private static final int READS = 1000000;
+    private static final int LOOKUPS = 100000;
+    private static final int CAPTURES = 10000;
+
+    private void run(int size) {
+        LocalData[] data = new LocalData[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = LocalDataListTest.newData(i, size - i);
+        }
+        LocalDataList list = new LocalDataList();
+        for (int i = 0; i < size; i++) {
+            list.add(data[i]);
+        }
+
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < READS; i++) {
+            sink += list.get(random.nextInt(size)).hashCode();
+        }
+        long readNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int pos = random.nextInt(size);
+            assertEquals(pos, list.indexOf(data[pos].getContentUri()));
+        }
+        long lookupNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CAPTURES; i++) {
+            list.add(0, LocalDataListTest.newData(size + i, size + i));
+        }
+        long captureNs = System.nanoTime() - start;
+        assertEquals(size + CAPTURES, list.size());
+
+        System.out.println("LocalDataListBenchmark " + size + " items: get "
+                + readNs / READS + "ns, indexOf " + lookupNs / LOOKUPS + "ns, add(0) "
+                + captureNs / CAPTURES + "ns (" + (sink == 0 ? "" : "ok") + ")");
+    }
+
+    public void test10k() {
+        run(10000);
+    }
+
+    public void test100k() {
+        run(100000);
+    }
+}
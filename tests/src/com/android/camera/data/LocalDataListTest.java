@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Runs random operations on LocalDataList and an ArrayList model side by
+ * side and checks they agree on every position and uri lookup.
+ */
+@SmallTest
+public class LocalDataListTest extends TestCase {
+    private static final Uri BASE = Uri.parse("content://media/external/images/media/");
+
+    /** LocalData with just a uri, title and date, for tests of data structures. */
+    static LocalData newData(final long id, final long date) {
+        final Uri uri = Uri.parse(BASE + String.valueOf(id));
+        return (LocalData) Proxy.newProxyInstance(LocalData.class.getClassLoader(),
+                new Class<?>[] { LocalData.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getContentUri")) {
+                    return uri;
+                } else if (name.equals("getDateTaken") || name.equals("getDateModified")) {
+                    return date;
+                } else if (name.equals("getTitle") || name.equals("toString")) {
+                    return "IMG_" + id;
+                } else if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static void assertMatches(ArrayList<LocalData> model, LocalDataList list) {
+        assertEquals(model.size(), list.size());
+        for (int i = 0; i < model.size(); i++) {
+            LocalData data = model.get(i);
+            assertTrue("position " + i, data == list.get(i));
+            assertEquals(i, list.indexOf(data.getContentUri()));
+            assertTrue(data == list.get(data.getContentUri()));
+        }
+    }
+
+    public void testRandomOperationsMatchModel() {
+        Random random = new Random(42);
+        ArrayList<LocalData> model = new ArrayList<LocalData>();
+        ArrayList<LocalData> removed = new ArrayList<LocalData>();
+        LocalDataList list = new LocalDataList();
+        long nextId = 0;
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(10);
+            if (op < 3) {
+                // New capture at the front
+                LocalData data = newData(nextId++, random.nextInt(1000));
+                model.add(0, data);
+                list.add(0, data);
+            } else if (op < 5) {
+                LocalData data = newData(nextId++, random.nextInt(1000));
+                int pos = random.nextInt(model.size() + 1);
+                model.add(pos, data);
+                list.add(pos, data);
+            } else if (op < 6) {
+                LocalData data = newData(nextId++, random.nextInt(1000));
+                model.add(data);
+                list.add(data);
+            } else if (op < 8 && !model.isEmpty()) {
+                int pos = random.nextInt(model.size());
+                LocalData data = list.remove(pos);
+                assertTrue(data == model.remove(pos));
+                removed.add(data);
+            } else if (op < 9 && !model.isEmpty()) {
+                int pos = random.nextInt(model.size());
+                LocalData data = newData(nextId++, random.nextInt(1000));
+                removed.add(model.set(pos, data));
+                list.set(pos, data);
+            } else if (random.nextInt(50) == 0) {
+                LocalData.NewestFirstComparator comp = new LocalData.NewestFirstComparator();
+                Collections.sort(model, comp);
+                list.sort(comp);
+            }
+            if (step % 97 == 0) {
+                assertMatches(model, list);
+            }
+        }
+        assertMatches(model, list);
+        // Removed and replaced data must not leave stale uris behind
+        for (LocalData data : removed) {
+            assertEquals(-1, list.indexOf(data.getContentUri()));
+            assertNull(list.get(data.getContentUri()));
+        }
+    }
+
+    public void testOutOfBounds() {
+        LocalDataList list = new LocalDataList();
+        list.add(newData(0, 0));
+        try {
+            list.get(1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            list.add(3, newData(1, 0));
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            list.remove(-1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the streaming merge of date sorted sources gives the order a full
+ * sort of all data gives.
+ */
+@SmallTest
+public class LocalDataMergerTest extends TestCase {
+    private static final Comparator<LocalData> NEWEST_FIRST =
+            new LocalData.NewestFirstComparator();
+
+    private static LocalDataMerger.Source source(List<LocalData> data) {
+        final Iterator<LocalData> it = data.iterator();
+        return new LocalDataMerger.Source() {
+            @Override
+            public LocalData next() {
+                return it.hasNext() ? it.next() : null;
+            }
+        };
+    }
+
+    private static List<LocalData> drain(LocalDataMerger merger) {
+        List<LocalData> merged = new ArrayList<LocalData>();
+        LocalData data;
+        while ((data = merger.next()) != null) {
+            merged.add(data);
+        }
+        return merged;
+    }
+
+    public void testMatchesFullSort() {
+        Random random = new Random(7);
+        long id = 0;
+        for (int round = 0; round < 50; round++) {
+            List<LocalData> photos = new ArrayList<LocalData>();
+            List<LocalData> videos = new ArrayList<LocalData>();
+            List<LocalData> all = new ArrayList<LocalData>();
+            int count = random.nextInt(300);
+            for (int i = 0; i < count; i++) {
+                // Few distinct dates, so ties between sources happen
+                LocalData data = LocalDataListTest.newData(id++, random.nextInt(40));
+                (random.nextInt(4) == 0 ? videos : photos).add(data);
+                all.add(data);
+            }
+            Collections.sort(photos, NEWEST_FIRST);
+            Collections.sort(videos, NEWEST_FIRST);
+            Collections.sort(all, NEWEST_FIRST);
+            assertEquals(all, drain(new LocalDataMerger(NEWEST_FIRST,
+                    source(photos), source(videos))));
+        }
+    }
+
+    public void testEmptySources() {
+        List<LocalData> empty = new ArrayList<LocalData>();
+        assertNull(new LocalDataMerger(NEWEST_FIRST, source(empty), source(empty)).next());
+        List<LocalData> one = new ArrayList<LocalData>();
+        one.add(LocalDataListTest.newData(1, 1));
+        assertEquals(one, drain(new LocalDataMerger(NEWEST_FIRST,
+                source(empty), source(one), source(empty))));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Checks MediaMetadataCache round trips records through its file, honours
+ * date modified and survives a corrupt file.
+ */
+@SmallTest
+public class MediaMetadataCacheTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("metadata", ".cache");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static MediaMetadataCache.Record record(long id, boolean video, long dateModified) {
+        MediaMetadataCache.Record r = new MediaMetadataCache.Record();
+        r.id = id;
+        r.video = video;
+        r.dateModified = dateModified;
+        r.width = (int) (id % 4000) + 1;
+        r.height = (int) (id % 3000) + 1;
+        return r;
+    }
+
+    private static void assertRecord(MediaMetadataCache.Record expected,
+            MediaMetadataCache.Record actual) {
+        assertNotNull(actual);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.video, actual.video);
+        assertEquals(expected.dateModified, actual.dateModified);
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+    }
+
+    public void testRoundTripAndMerge() {
+        Random random = new Random(3);
+        HashMap<Long, MediaMetadataCache.Record> model =
+                new HashMap<Long, MediaMetadataCache.Record>();
+        MediaMetadataCache cache = new MediaMetadataCache(mFile);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 500; i++) {
+                long id = random.nextInt(2000);
+                boolean video = random.nextBoolean();
+                long key = id * 2 + (video ? 1 : 0);
+                if (random.nextInt(5) == 0) {
+                    cache.remove(video, id);
+                    model.remove(key);
+                } else {
+                    MediaMetadataCache.Record r = record(id, video, random.nextInt(100));
+                    cache.put(r);
+                    model.put(key, r);
+                }
+            }
+            cache.save();
+            // A fresh instance only sees what is on disk
+            cache = new MediaMetadataCache(mFile);
+            for (long key = 0; key < 4000; key++) {
+                MediaMetadataCache.Record expected = model.get(key);
+                MediaMetadataCache.Record actual = cache.get((key & 1) != 0, key >> 1,
+                        expected == null ? 0 : expected.dateModified);
+                if (expected == null) {
+                    assertNull(actual);
+                } else {
+                    assertRecord(expected, actual);
+                }
+            }
+        }
+        assertEquals(16 + model.size() * MediaMetadataCache.RECORD_SIZE, mFile.length());
+    }
+
+    public void testStaleRecordIgnored() {
+        MediaMetadataCache cache = new MediaMetadataCache(mFile);
+        cache.put(record(5, false, 100));
+        cache.save();
+        assertNotNull(cache.get(false, 5, 100));
+        assertNull(cache.get(false, 5, 101));
+        assertNull(cache.get(true, 5, 100));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testRetainDropsMissingMedia() {
+        MediaMetadataCache cache = new MediaMetadataCache(mFile);
+        cache.put(record(1, false, 1));
+        cache.put(record(2, false, 1));
+        cache.put(record(2, true, 1));
+        cache.save();
+        // One on disk and one pending, both gone from the MediaStore
+        cache.put(record(3, false, 1));
+        cache.retain(false, new HashSet<Long>(Arrays.asList(2L)));
+        cache.save();
+        cache = new MediaMetadataCache(mFile);
+        assertNull(cache.get(false, 1, 1));
+        assertNotNull(cache.get(false, 2, 1));
+        assertNull(cache.get(false, 3, 1));
+        // Videos are not touched by a photo query
+        assertNotNull(cache.get(true, 2, 1));
+        assertEquals(16 + 2 * MediaMetadataCache.RECORD_SIZE, mFile.length());
+    }
+
+    public void testCorruptFileDropped() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[100]);
+        out.close();
+        MediaMetadataCache cache = new MediaMetadataCache(mFile);
+        assertNull(cache.get(false, 1, 1));
+        assertFalse(mFile.exists());
+        cache.put(record(1, false, 1));
+        cache.save();
+        assertNotNull(new MediaMetadataCache(mFile).get(false, 1, 1));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Counts the objects allocated by tag lookups and by readExif + writeExif
+ * round trips, using the per thread allocation counters of the runtime.
+ */
+@SmallTest
+public class ExifAllocationTest extends TestCase {
+    private static final short TAG_ID_RATIONALS = (short) 0xC7F0;
+    private static final int FEW = 1;
+    private static final int MANY = 64;
+    private static final int WARMUP_ROUNDS = 5;
+
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJpeg = ExifSpliceBenchmark.makeJpeg(1 << 16, new Random(9));
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Debug.stopAllocCounting();
+        super.tearDown();
+    }
+
+    /* A private tag of unsigned rationals whose count is up to the writer */
+    private static int defineRationalsTag(ExifInterface exif) {
+        return exif.setTagDefinition(TAG_ID_RATIONALS, IfdId.TYPE_IFD_0,
+                ExifTag.TYPE_UNSIGNED_RATIONAL, (short) ExifTag.SIZE_UNDEFINED,
+                new int[] {IfdId.TYPE_IFD_0});
+    }
+
+    private byte[] makeExifJpeg(int rationals) throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(400, 100)));
+        exif.addGpsTags(37.422, 122.084);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3000));
+        Rational[] values = new Rational[rationals];
+        for (int i = 0; i < rationals; i++) {
+            values[i] = new Rational(i + 1, 7);
+        }
+        exif.setTag(exif.buildTag(defineRationalsTag(exif), values));
+        return exif.spliceExif(mJpeg).toByteArray();
+    }
+
+    private static int roundTrip(byte[] jpeg, ByteArrayOutputStream out) throws Exception {
+        ExifInterface exif = new ExifInterface();
+        defineRationalsTag(exif);
+        Debug.resetThreadAllocCount();
+        exif.readExif(jpeg);
+        exif.writeExif(jpeg, out);
+        int count = Debug.getThreadAllocCount();
+        out.reset();
+        return count;
+    }
+
+    private static int minRoundTrip(byte[] jpeg) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length + 4096);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ROUNDS + 3; i++) {
+            int count = roundTrip(jpeg, out);
+            if (i >= WARMUP_ROUNDS) {
+                min = Math.min(min, count);
+            }
+        }
+        return min;
+    }
+
+    private static long lookUpTags(ExifInterface exif) {
+        long sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            // Orientation values are small enough for the boxing caches.
+            sum += exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            sum += exif.getTag(ExifInterface.TAG_PIXEL_X_DIMENSION).getValueAsLong(0);
+            sum += exif.getTag(ExifInterface.TAG_FOCAL_LENGTH).getComponentCount();
+            sum += exif.getDefinedTagDefaultIfd(ExifInterface.TAG_GPS_LATITUDE);
+            sum += exif.isTagCountDefined(ExifInterface.TAG_MAKE) ? 1 : 0;
+        }
+        return sum;
+    }
+
+    public void testTagLookupsDoNotAllocate() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(makeExifJpeg(FEW));
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            lookUpTags(exif);
+        }
+        Debug.resetThreadAllocCount();
+        long sum = lookUpTags(exif);
+        assertEquals(0, Debug.getThreadAllocCount());
+        assertTrue(sum > 0);
+    }
+
+    public void testFocalLengthIsNotAnInteger() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(makeExifJpeg(FEW));
+        try {
+            exif.getTag(ExifInterface.TAG_FOCAL_LENGTH).getValueAt(0);
+            fail("Expected an IllegalArgumentException for a rational tag");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRoundTripPreservesValues() throws Exception {
+        byte[] jpeg = makeExifJpeg(MANY);
+        ExifInterface exif = new ExifInterface();
+        defineRationalsTag(exif);
+        exif.readExif(jpeg);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(jpeg, out);
+
+        ExifInterface copy = new ExifInterface();
+        int tag = defineRationalsTag(copy);
+        copy.readExif(out.toByteArray());
+        Rational[] values = copy.getTagRationalValues(tag);
+        assertEquals(MANY, values.length);
+        for (int i = 0; i < MANY; i++) {
+            assertEquals(new Rational(i + 1, 7), values[i]);
+        }
+        assertEquals(Integer.valueOf(6), copy.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Long.valueOf(4000), copy.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+        double[] latLong = copy.getLatLongAsDoubles();
+        assertEquals(37.422, latLong[0], 1e-4);
+        assertEquals(122.084, latLong[1], 1e-4);
+    }
+
+    /*
+     * Rational values are packed, so a tag with many rationals costs the
+     * same number of objects to read and write as a tag with one.
+     */
+    public void testRoundTripAllocationsDoNotGrowWithComponents() throws Exception {
+        int few = minRoundTrip(makeExifJpeg(FEW));
+        int many = minRoundTrip(makeExifJpeg(MANY));
+        System.out.println("EXIF round trip allocations: " + few + " objects with " + FEW
+                + " rational, " + many + " with " + MANY);
+        assertTrue("allocations grew from " + few + " to " + many, many - few < MANY / 4);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.camera.tests.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
+
+/**
+ * Checks ExifInterface.quickRead against the full parser on the sample
+ * images in res/raw, then times both the way a JMH run would: warm-up
+ * iterations first, then the mean and spread of the measured iterations.
+ * Timings go to stdout.
+ */
+@LargeTest
+public class ExifQuickReadBenchmark extends InstrumentationTestCase {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURE_ITERATIONS = 10;
+    private static final int OPS_PER_ITERATION = 500;
+    private static final int ALL_FIELDS = (1 << ExifInterface.QUICK_FIELD_COUNT) - 1;
+
+    private byte[] readRaw(int id) throws IOException {
+        InputStream in = getInstrumentation().getContext().getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] withOrientation(byte[] jpeg, int degrees) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        exif.addOrientationTag(degrees);
+        return exif.spliceExif(jpeg).toByteArray();
+    }
+
+    private static long parseDateTime(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.replaceAll("[: ]", "").trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* Every field quickRead reports has to agree with what readExif gives */
+    private static void assertMatchesFullParser(byte[] jpeg) throws IOException {
+        long[] values = new long[ExifInterface.QUICK_FIELD_COUNT];
+        int found = ExifInterface.quickRead(jpeg, 0, jpeg.length, ALL_FIELDS, values);
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+
+        Integer orientation = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        assertEquals(orientation != null, has(found, ExifInterface.QUICK_ORIENTATION));
+        if (orientation != null) {
+            assertEquals(orientation.longValue(), values[ExifInterface.QUICK_ORIENTATION]);
+        }
+        assertDimension(exif, ExifInterface.TAG_IMAGE_WIDTH, ExifInterface.TAG_PIXEL_X_DIMENSION,
+                found, values, ExifInterface.QUICK_WIDTH);
+        assertDimension(exif, ExifInterface.TAG_IMAGE_LENGTH, ExifInterface.TAG_PIXEL_Y_DIMENSION,
+                found, values, ExifInterface.QUICK_HEIGHT);
+        assertDateTime(exif.getTagStringValue(ExifInterface.TAG_DATE_TIME),
+                found, values, ExifInterface.QUICK_DATE_TIME);
+        assertDateTime(exif.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL),
+                found, values, ExifInterface.QUICK_DATE_TIME_ORIGINAL);
+    }
+
+    private static void assertDimension(ExifInterface exif, int ifd0Tag, int exifTag, int found,
+            long[] values, int field) {
+        Integer value = exif.getTagIntValue(ifd0Tag);
+        if (value == null) {
+            value = exif.getTagIntValue(exifTag);
+        }
+        assertEquals(value != null, has(found, field));
+        if (value != null) {
+            assertEquals(value.longValue(), values[field]);
+        }
+    }
+
+    private static void assertDateTime(String expected, int found, long[] values, int field) {
+        long value = parseDateTime(expected);
+        assertEquals(value >= 0, has(found, field));
+        if (value >= 0) {
+            assertEquals(value, values[field]);
+        }
+    }
+
+    private static boolean has(int found, int field) {
+        return (found & (1 << field)) != 0;
+    }
+
+    public void testMatchesFullParser() throws Exception {
+        byte[] jpeg = readRaw(R.raw.galaxy_nexus);
+        assertMatchesFullParser(jpeg);
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            byte[] rotated = withOrientation(jpeg, degrees);
+            assertMatchesFullParser(rotated);
+            assertEquals(degrees, ExifInterface.getRotationForOrientationValue(
+                    ExifInterface.quickReadOrientation(rotated)));
+        }
+    }
+
+    /* A fresh ExifInterface writes big endian, the sample above is little endian */
+    public void testBigEndian() throws Exception {
+        byte[] jpeg = readRaw(R.raw.jpeg_control);
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(270);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1460000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3000));
+        byte[] tagged = exif.spliceExif(jpeg).toByteArray();
+        assertMatchesFullParser(tagged);
+
+        long[] values = new long[ExifInterface.QUICK_FIELD_COUNT];
+        int found = ExifInterface.quickRead(tagged, 0, tagged.length, ALL_FIELDS, values);
+        assertEquals(8L, values[ExifInterface.QUICK_ORIENTATION]);
+        assertEquals(4000L, values[ExifInterface.QUICK_WIDTH]);
+        assertEquals(3000L, values[ExifInterface.QUICK_HEIGHT]);
+        assertEquals(20160407033320L, values[ExifInterface.QUICK_DATE_TIME]);
+        assertFalse(has(found, ExifInterface.QUICK_DATE_TIME_ORIGINAL));
+    }
+
+    public void testNoExif() throws Exception {
+        byte[] jpeg = readRaw(R.raw.jpeg_control);
+        long[] values = new long[ExifInterface.QUICK_FIELD_COUNT];
+        assertEquals(0, ExifInterface.quickRead(jpeg, 0, jpeg.length, ALL_FIELDS, values));
+        assertEquals(0, ExifInterface.quickReadOrientation(jpeg));
+    }
+
+    /* Cut off anywhere, the header must never make the scan throw */
+    public void testTruncated() throws Exception {
+        byte[] jpeg = readRaw(R.raw.galaxy_nexus);
+        long[] values = new long[ExifInterface.QUICK_FIELD_COUNT];
+        for (int length = 0; length < 4096; length++) {
+            ExifInterface.quickRead(jpeg, 0, length, ALL_FIELDS, values);
+        }
+    }
+
+    public void testBenchmark() throws Exception {
+        int[] ids = {R.raw.galaxy_nexus, R.raw.jpeg_control};
+        String[] names = {"galaxy_nexus", "jpeg_control"};
+        for (int i = 0; i < ids.length; i++) {
+            final byte[] jpeg = readRaw(ids[i]);
+            report(names[i], "readExif+getOrientation", measure(new Runnable() {
+                @Override
+                public void run() {
+                    ExifInterface exif = new ExifInterface();
+                    try {
+                        exif.readExif(jpeg);
+                    } catch (IOException e) {
+                        // Same as Exif.getExif(), no exif means orientation 0
+                    }
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+                }
+            }));
+            report(names[i], "quickReadOrientation", measure(new Runnable() {
+                @Override
+                public void run() {
+                    ExifInterface.quickReadOrientation(jpeg);
+                }
+            }));
+            final long[] values = new long[ExifInterface.QUICK_FIELD_COUNT];
+            report(names[i], "quickRead all fields", measure(new Runnable() {
+                @Override
+                public void run() {
+                    ExifInterface.quickRead(jpeg, 0, jpeg.length, ALL_FIELDS, values);
+                }
+            }));
+        }
+    }
+
+    /* Nanoseconds per operation of each measured iteration */
+    private static double[] measure(Runnable op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            for (int j = 0; j < OPS_PER_ITERATION; j++) {
+                op.run();
+            }
+        }
+        double[] results = new double[MEASURE_ITERATIONS];
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (int j = 0; j < OPS_PER_ITERATION; j++) {
+                op.run();
+            }
+            results[i] = (double) (System.nanoTime() - start) / OPS_PER_ITERATION;
+        }
+        return results;
+    }
+
+    private static void report(String sample, String name, double[] results) {
+        double mean = 0;
+        for (double r : results) {
+            mean += r;
+        }
+        mean /= results.length;
+        double variance = 0;
+        for (double r : results) {
+            variance += (r - mean) * (r - mean);
+        }
+        double error = Math.sqrt(variance / (results.length - 1));
+        System.out.println(String.format("ExifQuickRead %-14s %-26s %12.1f +- %8.1f ns/op",
+                sample, name, mean, error));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks the in-place paths of rewriteExif and compares them with copying
+ * the whole file, which is what forceRewriteExif falls back to, on synthetic
+ * 8 and 16 MB JPEGs. Runs on a plain JVM; timings go to stdout.
+ */
+@LargeTest
+public class ExifRewriteBenchmark extends TestCase {
+    private static final int[] SIZES_MB = {8, 16};
+    private static final int ROUNDS = 5;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("exifrewrite", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static ExifInterface makeExif(int padding) {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(0);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1460000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.addISO(100);
+        exif.setPadding(padding);
+        return exif;
+    }
+
+    private void writeFile(byte[] jpeg, int padding) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            makeExif(padding).spliceExif(jpeg).writeTo(out.getChannel());
+            // Edits happen to photos saved earlier, flushed to storage.
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) mFile.length());
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Collection<ExifTag> orientationTags(int degrees) {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(degrees);
+        return exif.getAllTags();
+    }
+
+    private static Collection<ExifTag> gpsTags() {
+        ExifInterface exif = new ExifInterface();
+        exif.addGpsTags(37.422, 122.084);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Model"));
+        return exif.getAllTags();
+    }
+
+    /* What forceRewriteExif does when rewriteExif fails */
+    private void rewriteByCopy(Collection<ExifTag> tags) throws IOException {
+        byte[] jpeg = readFile();
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        exif.setTags(tags);
+        exif.writeExif(jpeg, mFile.getAbsolutePath());
+    }
+
+    private static boolean sameTail(byte[] a, byte[] b, int tail) {
+        return Arrays.equals(Arrays.copyOfRange(a, a.length - tail, a.length),
+                Arrays.copyOfRange(b, b.length - tail, b.length));
+    }
+
+    public void testOrientationInPlace() throws Exception {
+        byte[] jpeg = ExifSpliceBenchmark.makeJpeg(1 << 20, new Random(1));
+        writeFile(jpeg, 0);
+        byte[] before = readFile();
+        assertTrue(new ExifInterface().rewriteExif(mFile.getAbsolutePath(), orientationTags(270)));
+        byte[] after = readFile();
+        assertEquals(before.length, after.length);
+        assertTrue(sameTail(before, after, jpeg.length - 2048));
+
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(after);
+        assertEquals(Integer.valueOf(ExifInterface.getOrientationValueForRotation(270)),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Integer.valueOf(100), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+    }
+
+    public void testNewTagsUsePadding() throws Exception {
+        byte[] jpeg = ExifSpliceBenchmark.makeJpeg(1 << 20, new Random(2));
+        writeFile(jpeg, ExifInterface.REWRITE_PADDING);
+        byte[] before = readFile();
+        assertTrue(new ExifInterface().rewriteExif(mFile.getAbsolutePath(), gpsTags()));
+        byte[] after = readFile();
+        assertEquals(before.length, after.length);
+        assertTrue(sameTail(before, after, jpeg.length - 2048));
+
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(after);
+        double[] latLong = exif.getLatLongAsDoubles();
+        assertEquals(37.422, latLong[0], 1e-4);
+        assertEquals(122.084, latLong[1], 1e-4);
+        assertEquals("Model", exif.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+        assertEquals(Integer.valueOf(100), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+    }
+
+    public void testNoRoomFallsBackToCopy() throws Exception {
+        byte[] jpeg = ExifSpliceBenchmark.makeJpeg(1 << 20, new Random(3));
+        writeFile(jpeg, 0);
+        byte[] before = readFile();
+        assertFalse(new ExifInterface().rewriteExif(mFile.getAbsolutePath(), gpsTags()));
+        assertTrue(Arrays.equals(before, readFile()));
+
+        assertFalse(new ExifInterface().forceRewriteExif(mFile.getAbsolutePath(), gpsTags()));
+        long length = mFile.length();
+        assertTrue(length >= before.length + ExifInterface.REWRITE_PADDING);
+
+        // The copy reserved padding, so the next edit is made in place.
+        ExifInterface software = new ExifInterface();
+        software.setTag(software.buildTag(ExifInterface.TAG_SOFTWARE, "Snapdragon Camera"));
+        assertTrue(new ExifInterface().forceRewriteExif(mFile.getAbsolutePath(),
+                software.getAllTags()));
+        assertEquals(length, mFile.length());
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(readFile());
+        assertEquals("Snapdragon Camera",
+                exif.getTagStringValue(ExifInterface.TAG_SOFTWARE).trim());
+        assertEquals("Model", exif.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+    }
+
+    public void testNoExif() throws Exception {
+        byte[] jpeg = new ExifSplice(new byte[0],
+                ExifSpliceBenchmark.makeJpeg(1 << 16, new Random(4)), 0, 1 << 16).toByteArray();
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(jpeg);
+        out.close();
+        assertFalse(new ExifInterface().rewriteExif(mFile.getAbsolutePath(), orientationTags(90)));
+        assertTrue(Arrays.equals(jpeg, readFile()));
+    }
+
+    public void testBenchmark() throws Exception {
+        for (int mb : SIZES_MB) {
+            byte[] jpeg = ExifSpliceBenchmark.makeJpeg(mb << 20, new Random(mb));
+            long copy = 0, inPlace = 0, padded = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                writeFile(jpeg, 0);
+                long start = System.nanoTime();
+                rewriteByCopy(orientationTags(90));
+                copy += System.nanoTime() - start;
+
+                writeFile(jpeg, 0);
+                start = System.nanoTime();
+                assertTrue(new ExifInterface().rewriteExif(mFile.getAbsolutePath(),
+                        orientationTags(90)));
+                inPlace += System.nanoTime() - start;
+
+                writeFile(jpeg, ExifInterface.REWRITE_PADDING);
+                start = System.nanoTime();
+                assertTrue(new ExifInterface().rewriteExif(mFile.getAbsolutePath(), gpsTags()));
+                padded += System.nanoTime() - start;
+            }
+            System.out.println("EXIF rewrite " + mb + "MB: copy " + copy / ROUNDS / 1000
+                    + "us, in place " + inPlace / ROUNDS / 1000 + "us, into padding "
+                    + padded / ROUNDS / 1000 + "us");
+        }
+    }
+}
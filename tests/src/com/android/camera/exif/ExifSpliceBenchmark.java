@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares the streaming ExifOutputStream path with ExifSplice on synthetic
+ * 4, 8 and 16 MB JPEGs, checking that both produce the same bytes. Runs on
+ * a plain JVM; timings go to stdout.
+ */
+@LargeTest
+public class ExifSpliceBenchmark extends TestCase {
+    private static final int[] SIZES_MB = {4, 8, 16};
+    private static final int ROUNDS = 5;
+
+    /* SOI, APP0, an old APP1, DQT, SOF0 and filler scan data up to size bytes, then EOI */
+    static byte[] makeJpeg(int size, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, "JFIF\0".getBytes());
+        byte[] oldExif = new byte[1000];
+        System.arraycopy("Exif\0\0".getBytes(), 0, oldExif, 0, 6);
+        writeSegment(out, 0xe1, oldExif);
+        writeSegment(out, 0xdb, new byte[65]);
+        writeSegment(out, 0xc0, new byte[15]);
+        byte[] scan = new byte[size - out.size() - 2];
+        random.nextBytes(scan);
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        int length = payload.length + 2;
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static ExifInterface makeExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1460000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.addISO(100);
+        exif.addFocalLength(new Rational(400, 100));
+        return exif;
+    }
+
+    private static byte[] writeWithStream(ExifInterface exif, byte[] jpeg) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream s = exif.getExifWriterStream(out);
+        s.write(jpeg, 0, jpeg.length);
+        s.flush();
+        return out.toByteArray();
+    }
+
+    public void testSpliceMatchesStream() throws Exception {
+        byte[] jpeg = makeJpeg(1 << 20, new Random(1));
+        byte[] expected = writeWithStream(makeExif(), jpeg);
+        ExifSplice splice = makeExif().spliceExif(jpeg);
+        assertEquals(expected.length, splice.size());
+        assertTrue(Arrays.equals(expected, splice.toByteArray()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        splice.writeTo(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    public void testSpliceOfPartialArray() throws Exception {
+        byte[] jpeg = makeJpeg(1 << 16, new Random(2));
+        byte[] padded = new byte[jpeg.length + 4096];
+        System.arraycopy(jpeg, 0, padded, 0, jpeg.length);
+        byte[] expected = writeWithStream(makeExif(), jpeg);
+        assertTrue(Arrays.equals(expected,
+                makeExif().spliceExif(padded, 0, jpeg.length).toByteArray()));
+    }
+
+    public void testRejectsNonJpeg() throws Exception {
+        try {
+            makeExif().spliceExif(new byte[16]);
+            fail("Expected an IOException");
+        } catch (java.io.IOException e) {
+            // Expected
+        }
+    }
+
+    public void testBenchmark() throws Exception {
+        File file = File.createTempFile("exifsplice", ".jpg");
+        try {
+            for (int mb : SIZES_MB) {
+                byte[] jpeg = makeJpeg(mb << 20, new Random(mb));
+                long stream = 0, splice = 0, streamFile = 0, spliceFile = 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    byte[] a = writeWithStream(makeExif(), jpeg);
+                    stream += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    byte[] b = makeExif().spliceExif(jpeg).toByteArray();
+                    splice += System.nanoTime() - start;
+                    assertTrue(Arrays.equals(a, b));
+
+                    start = System.nanoTime();
+                    FileOutputStream out = new FileOutputStream(file);
+                    OutputStream s = makeExif().getExifWriterStream(out);
+                    s.write(jpeg, 0, jpeg.length);
+                    s.close();
+                    streamFile += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    out = new FileOutputStream(file);
+                    makeExif().spliceExif(jpeg).writeTo(out.getChannel());
+                    out.close();
+                    spliceFile += System.nanoTime() - start;
+                    assertEquals(a.length, file.length());
+                }
+                System.out.println("EXIF " + mb + "MB: to array stream "
+                        + stream / ROUNDS / 1000 + "us splice " + splice / ROUNDS / 1000
+                        + "us, to file stream " + streamFile / ROUNDS / 1000
+                        + "us splice " + spliceFile / ROUNDS / 1000 + "us");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class CapturePipelineTest extends TestCase {
+    private final List<Integer> mSaved = new ArrayList<Integer>();
+    private final List<Integer> mDropped = new ArrayList<Integer>();
+    private volatile boolean mGateOpen;
+    private CapturePipeline<Integer> mPipeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPipeline = new CapturePipeline<Integer>("test",
+                new CapturePipeline.Recycler<Integer>() {
+            @Override
+            public void recycle(Integer job, boolean completed) {
+                synchronized (mSaved) {
+                    (completed ? mSaved : mDropped).add(job);
+                }
+            }
+        });
+        mPipeline.addStage("work", 2, 1, new CapturePipeline.Stage<Integer>() {
+            @Override
+            public void process(Integer job) throws Exception {
+                Thread.sleep(5);
+            }
+        });
+        mPipeline.addOrderedStage("save", 1, new CapturePipeline.Gate() {
+            @Override
+            public boolean isOpen() {
+                return mGateOpen;
+            }
+        }, new CapturePipeline.Stage<Integer>() {
+            @Override
+            public void process(Integer job) {
+            }
+        });
+        mPipeline.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPipeline.close();
+        super.tearDown();
+    }
+
+    public void testAwaitIdleFinishesQueuedJobs() {
+        mGateOpen = true;
+        for (int i = 0; i < 8; i++) {
+            assertTrue(mPipeline.submit(i));
+        }
+        assertTrue(mPipeline.awaitIdle(5000));
+        mPipeline.close();
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7]", mSaved.toString());
+        assertTrue(mDropped.isEmpty());
+    }
+
+    public void testSignalGateWakesUpTheStage() throws Exception {
+        mPipeline.submit(0);
+        // The job is parked on the closed gate.
+        assertFalse(mPipeline.awaitIdle(100));
+        mGateOpen = true;
+        long start = System.currentTimeMillis();
+        mPipeline.signalGate();
+        assertTrue(mPipeline.awaitIdle(5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals("[0]", mSaved.toString());
+    }
+
+    public void testCloseDropsJobsStillWaiting() {
+        mPipeline.submit(0);
+        assertFalse(mPipeline.awaitIdle(100));
+        mPipeline.close();
+        assertTrue(mPipeline.awaitIdle(0));
+        assertEquals("[0]", mDropped.toString());
+        assertFalse(mPipeline.submit(1));
+    }
+
+    public void testSubmitDoesNotBlockWhileDraining() throws Exception {
+        mPipeline.stopBlockingSubmits();
+        long start = System.currentTimeMillis();
+        // Far more than the stages can hold with the gate closed
+        for (int i = 0; i < 8; i++) {
+            assertTrue(mPipeline.submit(i));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        final CountDownLatch closed = new CountDownLatch(1);
+        mPipeline.closeWhenIdle(5000, new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        mGateOpen = true;
+        mPipeline.signalGate();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(mPipeline.isClosed());
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7]", mSaved.toString());
+        assertTrue(mDropped.isEmpty());
+    }
+
+    public void testCloseWhenIdleDropsJobsAfterTimeout() throws Exception {
+        mPipeline.submit(0);
+        final CountDownLatch closed = new CountDownLatch(1);
+        mPipeline.closeWhenIdle(100, new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        assertTrue(mPipeline.submit(1));
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(mPipeline.awaitIdle(0));
+        assertTrue(mSaved.isEmpty());
+        assertEquals(2, mDropped.size());
+        assertFalse(mPipeline.submit(2));
+    }
+}
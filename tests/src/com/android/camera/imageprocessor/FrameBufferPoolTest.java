@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class FrameBufferPoolTest extends TestCase {
+    private static final int PAGE = 4096;
+
+    public void testReleasedBufferIsReused() {
+        FrameBufferPool pool = new FrameBufferPool(16 * PAGE);
+        ByteBuffer first = pool.acquire(PAGE + 1);
+        assertTrue(first.isDirect());
+        assertEquals(PAGE + 1, first.limit());
+        assertEquals(2 * PAGE, first.capacity());
+        pool.release(first);
+
+        // Any size in the same page bucket gets the pooled buffer back
+        ByteBuffer second = pool.acquire(2 * PAGE - 1);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(2 * PAGE - 1, second.limit());
+        assertNotSame(second, pool.acquire(PAGE));
+
+        FrameBufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.hits);
+        assertEquals(2, stats.misses);
+        assertEquals(2, stats.leasedCount);
+        assertEquals(3 * PAGE, stats.leasedBytes);
+        assertEquals(0, stats.pooledBytes);
+    }
+
+    public void testCapDropsReleasedBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(4 * PAGE);
+        ByteBuffer a = pool.acquire(2 * PAGE);
+        ByteBuffer b = pool.acquire(2 * PAGE);
+        ByteBuffer c = pool.acquire(2 * PAGE);
+        pool.release(a);
+        pool.release(b);
+        // Leased plus pooled may not go over the cap, c has nowhere to go
+        pool.release(c);
+        FrameBufferPool.Stats stats = pool.getStats();
+        assertEquals(4 * PAGE, stats.pooledBytes);
+        assertEquals(1, stats.dropped);
+
+        // A miss evicts idle buffers to make room under the cap
+        pool.acquire(3 * PAGE);
+        stats = pool.getStats();
+        assertEquals(3 * PAGE, stats.leasedBytes);
+        assertTrue(stats.leasedBytes + stats.pooledBytes <= 4 * PAGE);
+    }
+
+    public void testTrimDropsIdleBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(16 * PAGE);
+        ByteBuffer idle = pool.acquire(PAGE);
+        pool.acquire(PAGE);
+        pool.release(idle);
+        pool.trim();
+        FrameBufferPool.Stats stats = pool.getStats();
+        assertEquals(0, stats.pooledBytes);
+        assertEquals(1, stats.leasedCount);
+        assertNotSame(idle, pool.acquire(PAGE));
+    }
+
+    public void testHeapPoolLendsArrayBackedBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(16 * PAGE, false);
+        ByteBuffer buffer = pool.acquire(PAGE + 1);
+        assertFalse(buffer.isDirect());
+        assertTrue(buffer.hasArray());
+        assertEquals(0, buffer.arrayOffset());
+        assertTrue(pool.isLeased(buffer));
+        pool.release(buffer);
+        assertFalse(pool.isLeased(buffer));
+    }
+
+    public void testOwnedBuffersAreNotLeaks() {
+        FrameBufferPool pool = new FrameBufferPool(16 * PAGE);
+        ByteBuffer owned = pool.acquire(PAGE, "reference");
+        ByteBuffer leaked = pool.acquire(PAGE);
+        assertEquals(1, pool.checkLeaks(0));
+        pool.release(leaked);
+        assertEquals(0, pool.checkLeaks(0));
+        pool.release(owned);
+        assertEquals(0, pool.getStats().leasedCount);
+    }
+
+    public void testResultImageArrayOfDirectBuffer() {
+        FrameBufferPool pool = new FrameBufferPool(16 * PAGE);
+        int width = 8, height = 4, stride = 16;
+        ByteBuffer buffer = pool.acquire(stride * height * 3 / 2);
+        for (int i = 0; i < buffer.limit(); i++) {
+            buffer.put(i, (byte) i);
+        }
+        ImageFilter.ResultImage image = new ImageFilter.ResultImage(buffer,
+                new Rect(0, 0, width, height), width, height, stride);
+        byte[] bytes = image.toArray();
+        assertEquals(stride * height * 3 / 2, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals((byte) i, bytes[i]);
+        }
+
+        // A heap buffer hands out its own array
+        ByteBuffer heap = ByteBuffer.allocate(stride * height * 3 / 2);
+        image = new ImageFilter.ResultImage(heap, new Rect(0, 0, width, height),
+                width, height, stride);
+        assertSame(heap.array(), image.toArray());
+        pool.release(buffer);
+    }
+}
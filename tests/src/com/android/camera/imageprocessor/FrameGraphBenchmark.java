@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives synthetic 1080p frames through the CPU preview graph (pack,
+ * rotate, RGBA, sink) at 30 and 120 frames/s, and reports the frame rate
+ * reaching the sink and the share of frames dropped on the way. Runs on a
+ * plain JVM; results go to stdout.
+ */
+@LargeTest
+public class FrameGraphBenchmark extends TestCase {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int FRAMES = 300;
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+
+    private final AtomicInteger mReleased = new AtomicInteger();
+    private byte[] mPixels;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPixels = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = (byte) (i * 31);
+        }
+    }
+
+    private YuvFrame newFrame(long timestamp) {
+        ByteBuffer y = ByteBuffer.wrap(mPixels, 0, WIDTH * HEIGHT).slice();
+        ByteBuffer vu = ByteBuffer.wrap(mPixels, WIDTH * HEIGHT, WIDTH * HEIGHT / 2).slice();
+        return new YuvFrame(y, vu, WIDTH, HEIGHT, WIDTH, WIDTH, 2, timestamp,
+                new YuvFrame.Releaser() {
+            @Override
+            public void release(YuvFrame frame) {
+                mReleased.incrementAndGet();
+            }
+        });
+    }
+
+    private void run(String name, int threads, long intervalNs) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        PixelKernels kernels = new PixelKernels();
+        final AtomicInteger rendered = new AtomicInteger();
+        FrameGraph graph = new FrameGraph(executor);
+        FrameGraph.Node pack = graph.addSource(new FrameGraph.PackNode());
+        FrameGraph.Node rotate = graph.connect(pack, new FrameGraph.RotateNode(kernels, 90, false));
+        FrameGraph.Node rgba = graph.connect(rotate, new FrameGraph.RgbaNode(kernels));
+        graph.connect(rgba, new FrameGraph.Node("sink") {
+            @Override
+            protected FrameGraph.Frame process(FrameGraph.Frame in) {
+                rendered.incrementAndGet();
+                return null;
+            }
+        });
+        mReleased.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            long due = start + i * intervalNs;
+            while (System.nanoTime() < due) {
+                Thread.sleep(1);
+            }
+            graph.push(newFrame(i));
+        }
+        // Let the frames in flight reach the sink
+        int last;
+        do {
+            last = rendered.get();
+            Thread.sleep(100);
+        } while (rendered.get() != last);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        graph.stop();
+        executor.shutdown();
+        assertEquals(FRAMES, mReleased.get());
+        System.out.println(String.format(
+                "FrameGraphBenchmark %s, %d threads: %.1f frames/s rendered, %.1f%% dropped",
+                name, threads, rendered.get() / seconds,
+                100.0 * (FRAMES - rendered.get()) / FRAMES));
+        System.out.println("FrameGraphBenchmark " + graph.getStats());
+    }
+
+    public void testCameraRate() throws Exception {
+        run("30fps", 1, FRAME_INTERVAL_NS);
+        run("30fps", 3, FRAME_INTERVAL_NS);
+    }
+
+    public void testHighRate() throws Exception {
+        run("120fps", 1, FRAME_INTERVAL_NS / 4);
+        run("120fps", 3, FRAME_INTERVAL_NS / 4);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class FrameGraphTest extends TestCase {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int STRIDE = 80;
+
+    private final AtomicInteger mReleased = new AtomicInteger();
+    private final byte[] mPixels = new byte[STRIDE * HEIGHT * 3 / 2];
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(22).nextBytes(mPixels);
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdown();
+        super.tearDown();
+    }
+
+    private YuvFrame newFrame(long timestamp) {
+        ByteBuffer y = ByteBuffer.wrap(mPixels, 0, STRIDE * HEIGHT).slice();
+        ByteBuffer vu = ByteBuffer.wrap(mPixels, STRIDE * HEIGHT, STRIDE * HEIGHT / 2).slice();
+        return new YuvFrame(y, vu, WIDTH, HEIGHT, STRIDE, STRIDE, 2, timestamp,
+                new YuvFrame.Releaser() {
+            @Override
+            public void release(YuvFrame frame) {
+                mReleased.incrementAndGet();
+            }
+        });
+    }
+
+    /* Blocks in process() until opened, then passes the frame on */
+    private static class GateNode extends FrameGraph.Node {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        volatile boolean overlapped;
+
+        GateNode(String name) {
+            super(name);
+        }
+
+        @Override
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
+            if (running.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            entered.countDown();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return in;
+        }
+    }
+
+    /* Remembers the last frame it saw */
+    private static class CaptureNode extends FrameGraph.Node {
+        volatile byte[] last;
+        volatile byte[] lastArray;
+        volatile CountDownLatch done = new CountDownLatch(1);
+
+        CaptureNode() {
+            super("capture");
+        }
+
+        @Override
+        protected FrameGraph.Frame process(FrameGraph.Frame in) {
+            lastArray = in.getData();
+            last = in.getData() == null ? null : in.getData().clone();
+            done.countDown();
+            return null;
+        }
+    }
+
+    public void testSlowNodeKeepsNewestFrame() throws Exception {
+        FrameGraph graph = new FrameGraph(mExecutor);
+        GateNode slow = new GateNode("slow");
+        CaptureNode capture = new CaptureNode();
+        graph.addSource(slow);
+        graph.connect(slow, capture);
+
+        graph.push(newFrame(0));
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) {
+            graph.push(newFrame(i));
+        }
+        // Only the newest frame waits behind the running one
+        assertEquals(9, mReleased.get());
+        slow.gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (graph.getStats().processed[0] < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        graph.stop();
+        assertEquals(11, mReleased.get());
+        assertFalse(slow.overlapped);
+        FrameGraph.Stats stats = graph.getStats();
+        assertEquals(11, stats.pushed);
+        assertEquals(2, stats.processed[0]);
+        assertEquals(9, stats.dropped[0]);
+        // Both frames reached capture, which may have skipped the first one too
+        assertEquals(2, stats.processed[1] + stats.dropped[1]);
+    }
+
+    public void testNodesRunInParallel() throws Exception {
+        FrameGraph graph = new FrameGraph(mExecutor);
+        final AtomicInteger passed = new AtomicInteger();
+        final CountDownLatch second = new CountDownLatch(2);
+        FrameGraph.Node pass = new FrameGraph.Node("pass") {
+            @Override
+            protected FrameGraph.Frame process(FrameGraph.Frame in) {
+                passed.incrementAndGet();
+                second.countDown();
+                return in;
+            }
+        };
+        GateNode render = new GateNode("render");
+        graph.addSource(pass);
+        graph.connect(pass, render);
+
+        graph.push(newFrame(0));
+        assertTrue(render.entered.await(5, TimeUnit.SECONDS));
+        // The next frame gets through the first node while render is busy
+        graph.push(newFrame(1));
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        render.gate.countDown();
+        graph.stop();
+        assertEquals(2, passed.get());
+        assertEquals(2, mReleased.get());
+    }
+
+    public void testRenderChainMatchesKernels() throws Exception {
+        PixelKernels kernels = new PixelKernels();
+        FrameGraph graph = new FrameGraph(mExecutor);
+        CaptureNode capture = new CaptureNode();
+        FrameGraph.Node pack = graph.addSource(new FrameGraph.PackNode());
+        FrameGraph.Node rotate = graph.connect(pack, new FrameGraph.RotateNode(kernels, 90, true));
+        FrameGraph.Node rgba = graph.connect(rotate, new FrameGraph.RgbaNode(kernels));
+        graph.connect(rgba, capture);
+
+        byte[] rotated = new byte[WIDTH * HEIGHT * 3 / 2];
+        kernels.rotateNV21(mPixels, WIDTH, HEIGHT, STRIDE, 90, rotated);
+        kernels.mirrorNV21(rotated, HEIGHT, WIDTH, HEIGHT, false);
+        byte[] expected = new byte[WIDTH * HEIGHT * 4];
+        kernels.nv21ToRgba(rotated, HEIGHT, WIDTH, HEIGHT, PixelKernels.RANGE_FULL, expected);
+
+        HashSet<byte[]> arrays = new HashSet<byte[]>();
+        for (int i = 0; i < 5; i++) {
+            capture.done = new CountDownLatch(1);
+            graph.push(newFrame(i));
+            assertTrue(capture.done.await(5, TimeUnit.SECONDS));
+            assertTrue(Arrays.equals(expected, capture.last));
+            arrays.add(capture.lastArray);
+        }
+        // Sequential frames reuse the buffers of the frames before them
+        assertTrue(arrays.size() <= 2);
+        graph.stop();
+        assertEquals(5, mReleased.get());
+    }
+
+    /* The preview shape of FrameProcessor: a filter working in place, the
+       pack node, the render chain and a listener reading the packed frame */
+    public void testFrameIsCopiedAtMostOnce() throws Exception {
+        final Map<Long, Integer> copies = new HashMap<Long, Integer>();
+        YuvFrame.setCopyListener(new YuvFrame.CopyListener() {
+            @Override
+            public void onCopy(YuvFrame frame, int bytes) {
+                synchronized (copies) {
+                    Integer count = copies.get(frame.getTimestamp());
+                    copies.put(frame.getTimestamp(), count == null ? 1 : count + 1);
+                }
+            }
+        });
+        try {
+            PixelKernels kernels = new PixelKernels();
+            FrameGraph graph = new FrameGraph(mExecutor);
+            FrameGraph.Node filter = graph.addSource(new FrameGraph.Node("filter") {
+                @Override
+                protected FrameGraph.Frame process(FrameGraph.Frame in) {
+                    ByteBuffer y = in.getYuv().getY();
+                    y.put(0, (byte) ~y.get(0));
+                    return in;
+                }
+            });
+            FrameGraph.Node pack = graph.connect(filter, new FrameGraph.PackNode());
+            FrameGraph.Node rotate = graph.connect(pack,
+                    new FrameGraph.RotateNode(kernels, 90, false));
+            FrameGraph.Node rgba = graph.connect(rotate, new FrameGraph.RgbaNode(kernels));
+            CaptureNode render = new CaptureNode();
+            CaptureNode listener = new CaptureNode();
+            graph.connect(rgba, render);
+            graph.connect(pack, listener);
+
+            for (int i = 0; i < 5; i++) {
+                render.done = new CountDownLatch(1);
+                listener.done = new CountDownLatch(1);
+                graph.push(newFrame(i));
+                assertTrue(render.done.await(5, TimeUnit.SECONDS));
+                assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+            }
+            graph.stop();
+            assertEquals(5, mReleased.get());
+            synchronized (copies) {
+                assertEquals(5, copies.size());
+                for (Map.Entry<Long, Integer> entry : copies.entrySet()) {
+                    assertTrue("frame " + entry.getKey() + " copied " + entry.getValue()
+                            + " times", entry.getValue() <= 1);
+                }
+            }
+        } finally {
+            YuvFrame.setCopyListener(null);
+        }
+    }
+
+    public void testStopReleasesPendingFrames() throws Exception {
+        FrameGraph graph = new FrameGraph(mExecutor);
+        final GateNode slow = new GateNode("slow");
+        graph.addSource(slow);
+        graph.push(newFrame(0));
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+        graph.push(newFrame(1));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                slow.gate.countDown();
+            }
+        }.start();
+        graph.stop();
+        assertEquals(2, mReleased.get());
+        assertEquals(1, graph.getStats().processed[0]);
+
+        graph.push(newFrame(2));
+        assertEquals(3, mReleased.get());
+    }
+}
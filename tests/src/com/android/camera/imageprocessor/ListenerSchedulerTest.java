@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ListenerSchedulerTest extends TestCase {
+    private static final long FRAME_NS = 33333333L;
+    private static final long MS = 1000000L;
+
+    private long mTimestamp;
+    private long mClock;
+
+    public void testEveryFrameUntilMeasured() {
+        ListenerScheduler scheduler = new ListenerScheduler("test", 15);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(offer(scheduler));
+        }
+        assertEquals(1, scheduler.getInterval());
+    }
+
+    public void testTargetRate() {
+        ListenerScheduler scheduler = new ListenerScheduler("test", 15);
+        // The first two frames both go through before the frame rate is known
+        assertEquals(61, run(scheduler, 120, 2 * MS));
+        assertEquals(2, scheduler.getInterval());
+    }
+
+    public void testSlowListenerBacksOff() {
+        ListenerScheduler scheduler = new ListenerScheduler("test", 0);
+        run(scheduler, 120, 40 * MS);
+        // 40 ms of work on 33 ms frames stays under half load at every third frame
+        assertEquals(3, scheduler.getInterval());
+    }
+
+    public void testHysteresis() {
+        ListenerScheduler scheduler = new ListenerScheduler("test", 0);
+        run(scheduler, 120, 40 * MS);
+        assertEquals(3, scheduler.getInterval());
+        // Fits in every second frame, but not with the margin
+        run(scheduler, 120, 31 * MS);
+        assertEquals(3, scheduler.getInterval());
+        run(scheduler, 120, 20 * MS);
+        assertEquals(2, scheduler.getInterval());
+        run(scheduler, 120, 2 * MS);
+        assertEquals(1, scheduler.getInterval());
+    }
+
+    public void testStats() {
+        ListenerScheduler scheduler = new ListenerScheduler("tracker", 10);
+        run(scheduler, 90, 5 * MS);
+        ListenerScheduler.Stats stats = scheduler.getStats();
+        assertEquals("tracker", stats.name);
+        assertEquals(3, stats.interval);
+        assertEquals(90, stats.offered);
+        assertTrue(stats.processed >= 30 && stats.processed < 40);
+        assertEquals(10f, stats.effectiveFps, 1f);
+        assertEquals(5f, stats.processMs, 0.1f);
+        assertTrue(stats.latencyMs >= stats.processMs);
+        assertTrue(stats.toString().startsWith("tracker: every 3"));
+    }
+
+    /* Feeds frames 30 fps apart and processes the accepted ones in processNs */
+    private int run(ListenerScheduler scheduler, int frames, long processNs) {
+        int accepted = 0;
+        for (int i = 0; i < frames; i++) {
+            if (offer(scheduler)) {
+                long start = mClock + MS;
+                scheduler.onProcessed(mClock, start, start + processNs);
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private boolean offer(ListenerScheduler scheduler) {
+        mTimestamp += FRAME_NS;
+        mClock += FRAME_NS;
+        return scheduler.offer(mTimestamp);
+    }
+}
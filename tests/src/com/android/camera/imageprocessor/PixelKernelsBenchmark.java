@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times each kernel on a 12MP NV21 frame on the calling thread and on a
+ * pool of every core. Runs on a plain JVM; results go to stdout.
+ */
+@LargeTest
+public class PixelKernelsBenchmark extends TestCase {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    private interface Kernel {
+        void run(PixelKernels kernels);
+    }
+
+    private byte[] mSrc;
+    private byte[] mDst;
+    private int[] mArgb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSrc = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(21).nextBytes(mSrc);
+        mDst = new byte[WIDTH * HEIGHT * 4];
+        mArgb = new int[WIDTH * HEIGHT];
+    }
+
+    private static double time(PixelKernels kernels, Kernel kernel) {
+        for (int i = 0; i < WARMUP; i++) {
+            kernel.run(kernels);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            kernel.run(kernels);
+        }
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+
+    private static void report(String name, Kernel kernel, PixelKernels serial,
+                               PixelKernels pooled) {
+        double one = time(serial, kernel);
+        double all = time(pooled, kernel);
+        System.out.println(String.format("PixelKernelsBenchmark %s: %.2f ms, %d threads %.2f ms (x%.1f)",
+                name, one, pooled.getParallelism(), all, one / all));
+    }
+
+    public void testKernels() {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        PixelKernels serial = new PixelKernels();
+        PixelKernels pooled = new PixelKernels(pool);
+        try {
+            report("nv21ToRgba", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.nv21ToRgba(mSrc, WIDTH, HEIGHT, WIDTH, PixelKernels.RANGE_FULL, mDst);
+                }
+            }, serial, pooled);
+            report("rotate90", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.rotateNV21(mSrc, WIDTH, HEIGHT, WIDTH, 90, mDst);
+                }
+            }, serial, pooled);
+            report("rotate180", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.rotateNV21(mSrc, WIDTH, HEIGHT, WIDTH, 180, mDst);
+                }
+            }, serial, pooled);
+            report("mirror", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.mirrorNV21(mSrc, WIDTH, HEIGHT, WIDTH, false);
+                }
+            }, serial, pooled);
+            report("downscale", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.downscaleNV21(mSrc, WIDTH, HEIGHT, WIDTH, 1000, 750, mDst);
+                }
+            }, serial, pooled);
+            report("argbToNV21", new Kernel() {
+                @Override
+                public void run(PixelKernels kernels) {
+                    kernels.argbToNV21(mArgb, WIDTH, HEIGHT, mDst, WIDTH);
+                }
+            }, serial, pooled);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares PixelKernels with the libjni_imageutil code it replaced, byte for
+ * byte. Runs on a device, it needs the native library.
+ */
+@SmallTest
+public class PixelKernelsNativeTest extends TestCase {
+    private static final int WIDTH = 132;
+    private static final int HEIGHT = 1026;
+    private static final int STRIDE = 144;
+
+    private final Random mRandom = new Random(21);
+    private final PixelKernels mKernels = new PixelKernels();
+
+    /* The native code releases its arrays with JNI_ABORT, so it only writes
+       through to arrays the VM does not copy: the non-movable backing arrays
+       of direct buffers, as PostProcessor used to pass. */
+    private byte[] nonMovable(int size) {
+        byte[] bytes = ByteBuffer.allocateDirect(size).array();
+        byte[] random = new byte[size];
+        mRandom.nextBytes(random);
+        System.arraycopy(random, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    public void testMirror() {
+        for (boolean vertical : new boolean[] { false, true }) {
+            byte[] expected = nonMovable(STRIDE * HEIGHT * 3 / 2);
+            byte[] buf = expected.clone();
+            PostProcessor.nativeFlipNV21(expected, STRIDE, HEIGHT, STRIDE - WIDTH, vertical);
+            mKernels.mirrorNV21(buf, WIDTH, HEIGHT, STRIDE, vertical);
+            assertTrue("vertical " + vertical, Arrays.equals(expected, buf));
+        }
+    }
+
+    public void testDownscale() {
+        byte[] src = nonMovable(STRIDE * HEIGHT * 3 / 2);
+        for (int[] size : new int[][] { { 66, 512 }, { 44, 342 }, { 33, 256 } }) {
+            byte[] expected = ByteBuffer.allocateDirect(size[0] * size[1] * 2).array();
+            int ratio = PostProcessor.nativeResizeImage(src, expected, WIDTH, HEIGHT, STRIDE,
+                    size[0], size[1]);
+            byte[] out = new byte[expected.length];
+            assertEquals(ratio, mKernels.downscaleNV21(src, WIDTH, HEIGHT, STRIDE,
+                    size[0], size[1], out));
+            assertTrue(size[0] + "x" + size[1],
+                    Arrays.equals(Arrays.copyOf(expected, out.length), out));
+        }
+    }
+
+    public void testSplit() {
+        int dstStride = WIDTH + 12;
+        byte[] src = nonMovable(STRIDE * HEIGHT * 3 / 2);
+        ByteBuffer y = ByteBuffer.allocateDirect(dstStride * HEIGHT);
+        ByteBuffer vu = ByteBuffer.allocateDirect(dstStride * HEIGHT / 2);
+        ByteBuffer nativeY = ByteBuffer.allocateDirect(y.capacity());
+        ByteBuffer nativeVu = ByteBuffer.allocateDirect(vu.capacity());
+        PostProcessor.nativeNV21Split(src, nativeY, nativeVu, WIDTH, HEIGHT, STRIDE, dstStride);
+        mKernels.splitNV21(src, WIDTH, HEIGHT, STRIDE, y, vu, dstStride);
+        assertEquals(nativeY, y);
+        assertEquals(nativeVu, vu);
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks every kernel byte for byte against the loops of the native and
+ * RenderScript code it replaced, on the calling thread and across a pool.
+ */
+@SmallTest
+public class PixelKernelsTest extends TestCase {
+    // Tall enough that the pooled kernels really split into several tiles
+    private static final int WIDTH = 132;
+    private static final int HEIGHT = 1026;
+    private static final int STRIDE = 144;
+
+    private final Random mRandom = new Random(21);
+    private ForkJoinPool mPool;
+    private PixelKernels[] mKernels;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+        mKernels = new PixelKernels[] { new PixelKernels(), new PixelKernels(mPool) };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    /* rs/YuvToRgb.rs and the old nativeNV21toRgb, on a tight buffer */
+    private static byte[] refNV21ToRgba(byte[] in, int width, int height, boolean full) {
+        byte[] out = new byte[width * height * 4];
+        int ySize = width * height;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int index = ySize + (x / 2 * 2) + ((y / 2) * width);
+                int yV = in[x + y * width] & 0xFF;
+                int vV = (in[index] & 0xFF) - 128;
+                int uV = (in[index + 1] & 0xFF) - 128;
+                int r;
+                int g;
+                int b;
+                if (full) {
+                    r = (int) (yV + 1.370705f * vV);
+                    g = (int) (yV - 0.698001f * vV - 0.337633f * uV);
+                    b = (int) (yV + 1.732446 * uV);
+                } else {
+                    r = (int) (1.164f * yV + 1.596f * vV);
+                    g = (int) (1.164f * yV - 0.813f * vV - 0.391f * uV);
+                    b = (int) (1.164f * yV + 2.018f * uV);
+                }
+                r = r > 255 ? 255 : r < 0 ? 0 : r;
+                g = g > 255 ? 255 : g < 0 ? 0 : g;
+                b = b > 255 ? 255 : b < 0 ? 0 : b;
+                int o = (y * width + x) * 4;
+                out[o] = (byte) r;
+                out[o + 1] = (byte) g;
+                out[o + 2] = (byte) b;
+                out[o + 3] = (byte) 0xFF;
+            }
+        }
+        return out;
+    }
+
+    /* The old native rotateBufAndMerge */
+    private static byte[] refRotate(byte[] in, int w, int h, int degree) {
+        byte[] out = new byte[w * h * 3 / 2];
+        int i = 0;
+        if (degree == 90) {
+            for (int x = 0; x < w; x++) {
+                for (int y = h - 1; y >= 0; y--) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int x = 0; x < w; x += 2) {
+                for (int y = h / 2 - 1; y >= 0; y--) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        } else if (degree == 270) {
+            for (int x = w - 1; x >= 0; x--) {
+                for (int y = 0; y < h; y++) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int x = w - 2; x >= 0; x -= 2) {
+                for (int y = 0; y < h / 2; y++) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        } else if (degree == 180) {
+            for (int y = h - 1; y >= 0; y--) {
+                for (int x = w - 1; x >= 0; x--) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int y = h / 2 - 1; y >= 0; y--) {
+                for (int x = w - 2; x >= 0; x -= 2) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        }
+        return out;
+    }
+
+    /* The old nativeFlipNV21 */
+    private static void refFlip(byte[] buf, int stride, int height, int gap, boolean vertical) {
+        int ysize = stride * height;
+        byte t1;
+        byte t2;
+        if (vertical) {
+            for (int x = 0; x < stride; x++) {
+                for (int y = 0; y < height / 2; y++) {
+                    t1 = buf[y * stride + x];
+                    buf[y * stride + x] = buf[(height - 1 - y) * stride + x];
+                    buf[(height - 1 - y) * stride + x] = t1;
+                }
+            }
+            for (int x = 0; x < stride; x += 2) {
+                for (int y = 0; y < height / 4; y++) {
+                    int a = ysize + y * stride + x;
+                    int b = ysize + (height / 2 - 1 - y) * stride + x;
+                    t1 = buf[a];
+                    t2 = buf[a + 1];
+                    buf[a] = buf[b];
+                    buf[a + 1] = buf[b + 1];
+                    buf[b] = t1;
+                    buf[b + 1] = t2;
+                }
+            }
+        } else {
+            int width = stride - gap;
+            for (int x = 0; x < width / 2; x++) {
+                for (int y = 0; y < height; y++) {
+                    t1 = buf[y * stride + x];
+                    buf[y * stride + x] = buf[y * stride + (width - 1 - x)];
+                    buf[y * stride + (width - 1 - x)] = t1;
+                }
+            }
+            for (int x = 0; x < width / 2; x += 2) {
+                for (int y = 0; y < height / 2; y++) {
+                    int a = ysize + y * stride + x;
+                    int b = ysize + y * stride + (width - 1 - x - 1);
+                    t1 = buf[a];
+                    t2 = buf[a + 1];
+                    buf[a] = buf[b];
+                    buf[a + 1] = buf[b + 1];
+                    buf[b] = t1;
+                    buf[b + 1] = t2;
+                }
+            }
+        }
+    }
+
+    /* The old nativeResizeImage */
+    private static int refResize(byte[] old, byte[] out, int oldWidth, int oldHeight,
+                                 int oldStride, int newWidth, int newHeight) {
+        int adjustedOldWidth = oldWidth;
+        if ((float) oldWidth / oldHeight != (float) newWidth / newHeight) {
+            adjustedOldWidth = (int) (((float) newWidth / newHeight) * oldHeight);
+        }
+        int wR = adjustedOldWidth / newWidth;
+        int hR = oldHeight / newHeight;
+        if (wR < hR && adjustedOldWidth - newWidth * wR >= adjustedOldWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && oldHeight - newHeight * hR >= oldHeight / 4) {
+            hR++;
+        }
+        int R = wR < hR ? wR : hR;
+        int wC = oldWidth - (newWidth * R);
+        int hC = oldHeight - (newHeight * R);
+        int index = 0;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R) {
+                int cv1 = 0;
+                for (int y = 0; y < R; y++) {
+                    for (int x = 0; x < R; x++) {
+                        cv1 += old[(j + y) * oldStride + i + x] & 0xFF;
+                    }
+                }
+                out[index++] = (byte) (cv1 / (R * R));
+            }
+        }
+        int ySize = oldStride * oldHeight;
+        index = newWidth * newHeight;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R * 2) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R * 2) {
+                int cv1 = 0;
+                int cv2 = 0;
+                for (int y = 0; y < R * 2; y += 2) {
+                    for (int x = 0; x < R * 2; x += 2) {
+                        cv1 += old[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2] & 0xFF;
+                        cv2 += old[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2 + 1] & 0xFF;
+                    }
+                }
+                out[index++] = (byte) (cv1 / (R * R));
+                out[index++] = (byte) (cv2 / (R * R));
+            }
+        }
+        return R;
+    }
+
+    /* PanoCaptureProcessView.bitmapToDataNV21 */
+    private static byte[] refArgbToNV21(int[] argb, int w, int h) {
+        byte[] out = new byte[w * h * 3 / 2];
+        int y = 0;
+        int u = w * h;
+        int index = 0;
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int R = (argb[index] & 0xff0000) >> 16;
+                int G = (argb[index] & 0xff00) >> 8;
+                int B = (argb[index] & 0xff) >> 0;
+                int Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
+                int U = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128;
+                int V = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128;
+                out[y++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
+                if (j % 2 == 0 && index % 2 == 0) {
+                    out[u++] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
+                    out[u++] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
+                }
+                index++;
+            }
+        }
+        return out;
+    }
+
+    /* Copies the width x height image out of a strided NV21 buffer */
+    private static byte[] pack(byte[] in, int width, int height, int stride) {
+        byte[] out = new byte[width * height * 3 / 2];
+        for (int j = 0; j < height; j++) {
+            System.arraycopy(in, j * stride, out, j * width, width);
+        }
+        for (int j = 0; j < height / 2; j++) {
+            System.arraycopy(in, stride * height + j * stride, out, width * height + j * width,
+                    width);
+        }
+        return out;
+    }
+
+    public void testNV21ToRgba() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        for (int range : new int[] { PixelKernels.RANGE_FULL, PixelKernels.RANGE_LIMITED }) {
+            byte[] expected = refNV21ToRgba(packed, WIDTH, HEIGHT,
+                    range == PixelKernels.RANGE_FULL);
+            for (PixelKernels kernels : mKernels) {
+                byte[] rgba = new byte[WIDTH * HEIGHT * 4];
+                kernels.nv21ToRgba(src, WIDTH, HEIGHT, STRIDE, range, rgba);
+                assertTrue(Arrays.equals(expected, rgba));
+
+                int[] argb = new int[WIDTH * HEIGHT];
+                kernels.nv21ToArgb(src, WIDTH, HEIGHT, STRIDE, range, argb);
+                for (int i = 0; i < argb.length; i++) {
+                    int o = i * 4;
+                    int packedRgba = (expected[o + 3] & 0xFF) << 24 | (expected[o] & 0xFF) << 16
+                            | (expected[o + 1] & 0xFF) << 8 | (expected[o + 2] & 0xFF);
+                    assertEquals(packedRgba, argb[i]);
+                }
+            }
+        }
+    }
+
+    public void testRotate() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        for (int degrees : new int[] { 90, 180, 270 }) {
+            byte[] expected = refRotate(packed, WIDTH, HEIGHT, degrees);
+            for (PixelKernels kernels : mKernels) {
+                byte[] out = new byte[expected.length];
+                kernels.rotateNV21(src, WIDTH, HEIGHT, STRIDE, degrees, out);
+                assertTrue("rotate " + degrees, Arrays.equals(expected, out));
+            }
+        }
+        byte[] out = new byte[packed.length];
+        mKernels[1].rotateNV21(src, WIDTH, HEIGHT, STRIDE, 0, out);
+        assertTrue(Arrays.equals(packed, out));
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        return buf;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.capacity()];
+        buf.clear();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /* Direct buffers have no backing array and go through the row tiles */
+    public void testDirectBuffers() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        for (PixelKernels kernels : mKernels) {
+            for (int degrees : new int[] { 0, 90, 180, 270 }) {
+                ByteBuffer out = ByteBuffer.allocateDirect(packed.length);
+                kernels.rotateNV21(direct(src), WIDTH, HEIGHT, STRIDE, degrees, out);
+                byte[] expected = degrees == 0 ? packed : refRotate(packed, WIDTH, HEIGHT, degrees);
+                assertTrue("rotate " + degrees, Arrays.equals(expected, bytes(out)));
+            }
+
+            ByteBuffer rgba = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+            kernels.nv21ToRgba(direct(src), WIDTH, HEIGHT, STRIDE, PixelKernels.RANGE_FULL, rgba);
+            assertTrue(Arrays.equals(refNV21ToRgba(packed, WIDTH, HEIGHT, true), bytes(rgba)));
+
+            for (boolean vertical : new boolean[] { false, true }) {
+                byte[] expected = src.clone();
+                refFlip(expected, STRIDE, HEIGHT, STRIDE - WIDTH, vertical);
+                ByteBuffer buf = direct(src);
+                kernels.mirrorNV21(buf, WIDTH, HEIGHT, STRIDE, vertical);
+                assertTrue("vertical " + vertical, Arrays.equals(expected, bytes(buf)));
+            }
+
+            for (int[] size : new int[][] { { 66, 512 }, { 33, 256 } }) {
+                byte[] expected = new byte[size[0] * size[1] * 2];
+                int ratio = refResize(src, expected, WIDTH, HEIGHT, STRIDE, size[0], size[1]);
+                ByteBuffer out = ByteBuffer.allocateDirect(expected.length);
+                assertEquals(ratio, kernels.downscaleNV21(direct(src), WIDTH, HEIGHT, STRIDE,
+                        size[0], size[1], out));
+                assertTrue(size[0] + "x" + size[1], Arrays.equals(expected, bytes(out)));
+            }
+        }
+    }
+
+    public void testOffsetBuffers() {
+        // Android aligns direct buffers inside their backing array
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] backing = new byte[src.length + 7];
+        System.arraycopy(src, 0, backing, 3, src.length);
+        ByteBuffer buf = ByteBuffer.wrap(backing, 3, src.length).slice();
+        assertEquals(3, buf.arrayOffset());
+
+        byte[] expected = src.clone();
+        refFlip(expected, STRIDE, HEIGHT, STRIDE - WIDTH, false);
+        mKernels[1].mirrorNV21(buf, WIDTH, HEIGHT, STRIDE, false);
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(backing, 3, 3 + src.length)));
+
+        byte[] scaled = new byte[66 * 512 * 3 / 2];
+        int ratio = refResize(expected, scaled, WIDTH, HEIGHT, STRIDE, 66, 512);
+        byte[] outBacking = new byte[scaled.length + 5];
+        ByteBuffer out = ByteBuffer.wrap(outBacking, 5, scaled.length).slice();
+        assertEquals(ratio, mKernels[1].downscaleNV21(buf, WIDTH, HEIGHT, STRIDE, 66, 512, out));
+        assertTrue(Arrays.equals(scaled, Arrays.copyOfRange(outBacking, 5, outBacking.length)));
+    }
+
+    public void testMirror() {
+        for (boolean vertical : new boolean[] { false, true }) {
+            byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+            byte[] expected = src.clone();
+            refFlip(expected, STRIDE, HEIGHT, STRIDE - WIDTH, vertical);
+            for (PixelKernels kernels : mKernels) {
+                byte[] buf = src.clone();
+                kernels.mirrorNV21(buf, WIDTH, HEIGHT, STRIDE, vertical);
+                assertTrue("vertical " + vertical, Arrays.equals(expected, buf));
+            }
+        }
+    }
+
+    public void testDownscale() {
+        int[][] sizes = { { 66, 512 }, { 44, 342 }, { 32, 128 }, { 30, 250 }, { 33, 256 } };
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        for (int[] size : sizes) {
+            byte[] expected = new byte[size[0] * size[1] * 2];
+            int ratio = refResize(src, expected, WIDTH, HEIGHT, STRIDE, size[0], size[1]);
+            for (PixelKernels kernels : mKernels) {
+                byte[] out = new byte[expected.length];
+                assertEquals(ratio, kernels.downscaleNV21(src, WIDTH, HEIGHT, STRIDE,
+                        size[0], size[1], out));
+                assertTrue(size[0] + "x" + size[1], Arrays.equals(expected, out));
+            }
+        }
+    }
+
+    public void testScale() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        for (PixelKernels kernels : mKernels) {
+            byte[] same = new byte[packed.length];
+            kernels.scaleNV21(src, WIDTH, HEIGHT, STRIDE, WIDTH, HEIGHT, same);
+            assertTrue(Arrays.equals(packed, same));
+
+            // Halving samples the bottom right pixel of every 2x2 block
+            int w = WIDTH / 2;
+            int h = 512;
+            int halfVuBase = STRIDE * h * 2;
+            byte[] half = new byte[w * h * 3 / 2];
+            kernels.scaleNV21(src, WIDTH, h * 2, STRIDE, w, h, half);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    assertEquals(src[(j * 2 + 1) * STRIDE + i * 2 + 1], half[j * w + i]);
+                }
+            }
+            for (int j = 0; j < h / 2; j++) {
+                for (int k = 0; k < w / 2; k++) {
+                    int in = halfVuBase + (j * 2 + 1) * STRIDE + (k * 2 + 1) * 2;
+                    assertEquals(src[in], half[w * h + j * w + k * 2]);
+                    assertEquals(src[in + 1], half[w * h + j * w + k * 2 + 1]);
+                }
+            }
+
+            // Doubling repeats every pixel twice in both directions
+            w = WIDTH * 2;
+            h = 64;
+            byte[] twice = new byte[w * h * 3 / 2];
+            kernels.scaleNV21(src, WIDTH, h / 2, STRIDE, w, h, twice);
+            int twiceVuBase = STRIDE * h / 2;
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    assertEquals(src[j / 2 * STRIDE + i / 2], twice[j * w + i]);
+                }
+            }
+            for (int j = 0; j < h / 2; j++) {
+                for (int k = 0; k < w / 2; k++) {
+                    int in = twiceVuBase + j / 2 * STRIDE + k / 2 * 2;
+                    assertEquals(src[in], twice[w * h + j * w + k * 2]);
+                    assertEquals(src[in + 1], twice[w * h + j * w + k * 2 + 1]);
+                }
+            }
+        }
+    }
+
+    public void testArgbToNV21() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = mRandom.nextInt();
+        }
+        byte[] expected = refArgbToNV21(argb, WIDTH, HEIGHT);
+        for (PixelKernels kernels : mKernels) {
+            byte[] out = new byte[expected.length];
+            kernels.argbToNV21(argb, WIDTH, HEIGHT, out, WIDTH);
+            assertTrue(Arrays.equals(expected, out));
+        }
+    }
+
+    public void testCropAndSplit() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        for (PixelKernels kernels : mKernels) {
+            byte[] crop = new byte[WIDTH * HEIGHT * 3 / 2];
+            kernels.cropNV21(src, STRIDE, HEIGHT, 0, 0, WIDTH, HEIGHT, crop, WIDTH);
+            assertTrue(Arrays.equals(packed, crop));
+
+            byte[] part = new byte[8 * 6 * 3 / 2];
+            kernels.cropNV21(src, STRIDE, HEIGHT, 10, 4, 8, 6, part, 8);
+            assertEquals(src[5 * STRIDE + 11], part[1 * 8 + 1]);
+            assertEquals(src[STRIDE * HEIGHT + 3 * STRIDE + 12], part[48 + 8 + 2]);
+
+            ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+            ByteBuffer vu = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 2);
+            kernels.splitNV21(src, WIDTH, HEIGHT, STRIDE, y, vu, WIDTH);
+            byte[] joined = new byte[packed.length];
+            y.get(joined, 0, WIDTH * HEIGHT);
+            vu.get(joined, WIDTH * HEIGHT, WIDTH * HEIGHT / 2);
+            assertTrue(Arrays.equals(packed, joined));
+        }
+        try {
+            mKernels[0].cropNV21(src, STRIDE, HEIGHT, 1, 0, 8, 8, new byte[96], 8);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testYuv420ToNV21() {
+        byte[] src = randomBytes(STRIDE * HEIGHT * 3 / 2);
+        byte[] packed = pack(src, WIDTH, HEIGHT, STRIDE);
+        ByteBuffer y = ByteBuffer.wrap(src, 0, STRIDE * HEIGHT).slice();
+
+        // Semi-planar, the layout of an NV21 backed YUV_420_888 image
+        ByteBuffer v = ByteBuffer.wrap(src, STRIDE * HEIGHT, STRIDE * HEIGHT / 2 - 1).slice();
+        ByteBuffer u = ByteBuffer.wrap(src, STRIDE * HEIGHT + 1, STRIDE * HEIGHT / 2 - 1).slice();
+        // Planar, with the same samples split out
+        int half = WIDTH / 2;
+        ByteBuffer vPlanar = ByteBuffer.allocateDirect(half * HEIGHT / 2);
+        ByteBuffer uPlanar = ByteBuffer.allocateDirect(half * HEIGHT / 2);
+        for (int j = 0; j < HEIGHT / 2; j++) {
+            for (int k = 0; k < half; k++) {
+                vPlanar.put(src[STRIDE * HEIGHT + j * STRIDE + k * 2]);
+                uPlanar.put(src[STRIDE * HEIGHT + j * STRIDE + k * 2 + 1]);
+            }
+        }
+        for (PixelKernels kernels : mKernels) {
+            byte[] out = new byte[packed.length];
+            kernels.yuv420ToNV21(y, STRIDE, u, v, STRIDE, 2, WIDTH, HEIGHT, out, WIDTH);
+            assertTrue(Arrays.equals(packed, out));
+
+            out = new byte[packed.length];
+            kernels.yuv420ToNV21(y, STRIDE, uPlanar, vPlanar, half, 1, WIDTH, HEIGHT, out, WIDTH);
+            assertTrue(Arrays.equals(packed, out));
+        }
+    }
+}
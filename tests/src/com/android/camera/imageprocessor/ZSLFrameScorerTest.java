@@ -0,0 +1,249 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Deterministic harness for ZSL frame selection: synthetic metadata and Y
+ * planes are fed through ZSLRingBuffer.takeBest with ZSLFrameScorer's weights.
+ */
+@SmallTest
+public class ZSLFrameScorerTest extends TestCase {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+    private static final long FRAME_NS = 33000000L;
+
+    private static class FakeFrame {
+        int lensState = CaptureResult.LENS_STATE_STATIONARY;
+        int afState = CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+        int aeState = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+        int awbState = CaptureResult.CONTROL_AWB_STATE_CONVERGED;
+        int flashMode = CaptureResult.FLASH_MODE_OFF;
+        long exposureNs = 10000000L;
+        ByteBuffer y;
+        float sharpness;
+    }
+
+    private static class FakeScorer implements ZSLRingBuffer.Scorer<FakeFrame, FakeFrame> {
+        final ZSLFrameScorer mScorer;
+        int mScored;
+
+        FakeScorer(long windowNs) {
+            mScorer = new ZSLFrameScorer(windowNs);
+        }
+
+        @Override
+        public float score(FakeFrame image, FakeFrame meta, long ageNs) {
+            mScored++;
+            if (!ZSLFrameScorer.isAcceptable(meta.lensState, meta.afState, meta.aeState,
+                    meta.awbState, meta.flashMode)) {
+                return -1f;
+            }
+            return mScorer.score(meta.lensState, meta.aeState, meta.exposureNs,
+                    image.sharpness, ageNs);
+        }
+    }
+
+    private static ByteBuffer checkerboard(int cell) {
+        ByteBuffer y = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < STRIDE; col++) {
+                y.put(row * STRIDE + col, (byte) (((row / cell + col / cell) & 1) == 0 ? 16 : 235));
+            }
+        }
+        return y;
+    }
+
+    /* Horizontal and vertical box blur, standing in for a motion blurred frame */
+    private static ByteBuffer blur(ByteBuffer src, int radius) {
+        ByteBuffer tmp = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        ByteBuffer dst = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int sum = 0, n = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int c = Math.min(WIDTH - 1, Math.max(0, col + k));
+                    sum += src.get(row * STRIDE + c) & 0xff;
+                    n++;
+                }
+                tmp.put(row * STRIDE + col, (byte) (sum / n));
+            }
+        }
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int sum = 0, n = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int r = Math.min(HEIGHT - 1, Math.max(0, row + k));
+                    sum += tmp.get(r * STRIDE + col) & 0xff;
+                    n++;
+                }
+                dst.put(row * STRIDE + col, (byte) (sum / n));
+            }
+        }
+        return dst;
+    }
+
+    private static FakeFrame frame(ByteBuffer y) {
+        FakeFrame f = new FakeFrame();
+        f.y = y;
+        // Computed before the frame is buffered, like ZSLQueue does.
+        f.sharpness = ZSLFrameScorer.sharpness(y, WIDTH, HEIGHT, STRIDE, 1);
+        return f;
+    }
+
+    private static void add(ZSLRingBuffer<FakeFrame, FakeFrame> buffer, int index, FakeFrame f) {
+        long ts = 1000000000L + index * FRAME_NS;
+        buffer.addImage(ts, f);
+        buffer.addMetadata(ts, f);
+    }
+
+    public void testSharpnessOrdering() {
+        ByteBuffer sharp = checkerboard(4);
+        float s0 = ZSLFrameScorer.sharpness(sharp, WIDTH, HEIGHT, STRIDE, 1);
+        float s1 = ZSLFrameScorer.sharpness(blur(sharp, 2), WIDTH, HEIGHT, STRIDE, 1);
+        float s2 = ZSLFrameScorer.sharpness(blur(sharp, 6), WIDTH, HEIGHT, STRIDE, 1);
+        float flat = ZSLFrameScorer.sharpness(ByteBuffer.allocateDirect(STRIDE * HEIGHT),
+                WIDTH, HEIGHT, STRIDE, 1);
+        assertTrue(s0 > s1);
+        assertTrue(s1 > s2);
+        assertEquals(0f, flat, 0f);
+        // Same input must always give the same score.
+        assertEquals(s0, ZSLFrameScorer.sharpness(sharp, WIDTH, HEIGHT, STRIDE, 1), 0f);
+    }
+
+    public void testConvergingFramesRejected() {
+        assertFalse(ZSLFrameScorer.isAcceptable(CaptureResult.LENS_STATE_MOVING,
+                ZSLFrameScorer.STATE_UNKNOWN, ZSLFrameScorer.STATE_UNKNOWN,
+                ZSLFrameScorer.STATE_UNKNOWN, ZSLFrameScorer.STATE_UNKNOWN));
+        assertFalse(ZSLFrameScorer.isAcceptable(CaptureResult.LENS_STATE_STATIONARY,
+                CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN, CaptureResult.CONTROL_AE_STATE_CONVERGED,
+                CaptureResult.CONTROL_AWB_STATE_CONVERGED, CaptureResult.FLASH_MODE_OFF));
+        assertFalse(ZSLFrameScorer.isAcceptable(CaptureResult.LENS_STATE_STATIONARY,
+                CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED, CaptureResult.CONTROL_AE_STATE_CONVERGED,
+                CaptureResult.CONTROL_AWB_STATE_SEARCHING, CaptureResult.FLASH_MODE_OFF));
+        assertTrue(ZSLFrameScorer.isAcceptable(CaptureResult.LENS_STATE_STATIONARY,
+                CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED,
+                CaptureResult.CONTROL_AWB_STATE_SEARCHING, CaptureResult.FLASH_MODE_SINGLE));
+        assertTrue(ZSLFrameScorer.isAcceptable(ZSLFrameScorer.STATE_UNKNOWN,
+                ZSLFrameScorer.STATE_UNKNOWN, ZSLFrameScorer.STATE_UNKNOWN,
+                ZSLFrameScorer.STATE_UNKNOWN, ZSLFrameScorer.STATE_UNKNOWN));
+    }
+
+    /* An older but sharp frame beats newer blurred ones inside the window */
+    public void testPicksSharpestInWindow() {
+        ZSLRingBuffer<FakeFrame, FakeFrame> buffer =
+                new ZSLRingBuffer<FakeFrame, FakeFrame>(5, null);
+        ByteBuffer sharp = checkerboard(4);
+        ByteBuffer blurred = blur(sharp, 6);
+        add(buffer, 0, frame(blurred));
+        FakeFrame best = frame(sharp);
+        add(buffer, 1, best);
+        add(buffer, 2, frame(blurred));
+        add(buffer, 3, frame(blurred));
+        FakeScorer scorer = new FakeScorer(4 * FRAME_NS);
+        ZSLRingBuffer.Frame<FakeFrame, FakeFrame> taken = buffer.takeBest(scorer, 4 * FRAME_NS);
+        assertNotNull(taken);
+        assertSame(best, taken.image);
+        assertTrue("scored " + scorer.mScored, scorer.mScored <= buffer.getCapacity());
+    }
+
+    /* Ranking never touches the pixels, which may be released meanwhile */
+    public void testScoresFramesWhosePixelsAreGone() {
+        ZSLRingBuffer<FakeFrame, FakeFrame> buffer =
+                new ZSLRingBuffer<FakeFrame, FakeFrame>(5, null);
+        ByteBuffer sharp = checkerboard(4);
+        ByteBuffer blurred = blur(sharp, 6);
+        FakeFrame[] frames = { frame(blurred), frame(sharp), frame(blurred) };
+        for (int i = 0; i < frames.length; i++) {
+            add(buffer, i, frames[i]);
+            frames[i].y = null;
+        }
+        ZSLRingBuffer.Frame<FakeFrame, FakeFrame> taken =
+                buffer.takeBest(new FakeScorer(4 * FRAME_NS), 4 * FRAME_NS);
+        assertNotNull(taken);
+        assertSame(frames[1], taken.image);
+    }
+
+    /* Frames older than the window are never considered, however sharp */
+    public void testWindowBoundsAge() {
+        ZSLRingBuffer<FakeFrame, FakeFrame> buffer =
+                new ZSLRingBuffer<FakeFrame, FakeFrame>(5, null);
+        ByteBuffer sharp = checkerboard(4);
+        ByteBuffer blurred = blur(sharp, 6);
+        add(buffer, 0, frame(sharp));
+        add(buffer, 1, frame(blurred));
+        FakeFrame newest = frame(blurred);
+        add(buffer, 2, newest);
+        FakeScorer scorer = new FakeScorer(FRAME_NS);
+        ZSLRingBuffer.Frame<FakeFrame, FakeFrame> taken = buffer.takeBest(scorer, FRAME_NS);
+        assertNotNull(taken);
+        assertSame(newest, taken.image);
+        assertEquals(2, scorer.mScored);
+    }
+
+    /* A sharp frame with the lens moving loses to a blurred but settled one */
+    public void testRejectedFrameNeverWins() {
+        ZSLRingBuffer<FakeFrame, FakeFrame> buffer =
+                new ZSLRingBuffer<FakeFrame, FakeFrame>(5, null);
+        ByteBuffer sharp = checkerboard(4);
+        FakeFrame settled = frame(blur(sharp, 6));
+        add(buffer, 0, settled);
+        FakeFrame moving = frame(sharp);
+        moving.lensState = CaptureResult.LENS_STATE_MOVING;
+        add(buffer, 1, moving);
+        ZSLRingBuffer.Frame<FakeFrame, FakeFrame> taken =
+                buffer.takeBest(new FakeScorer(4 * FRAME_NS), 4 * FRAME_NS);
+        assertSame(settled, taken.image);
+        assertNull(buffer.takeBest(new FakeScorer(4 * FRAME_NS), 4 * FRAME_NS));
+    }
+
+    /* With equal frames the shorter exposure wins */
+    public void testShortExposurePreferred() {
+        ZSLRingBuffer<FakeFrame, FakeFrame> buffer =
+                new ZSLRingBuffer<FakeFrame, FakeFrame>(5, null);
+        ByteBuffer sharp = checkerboard(4);
+        FakeFrame shortExposure = frame(sharp);
+        shortExposure.exposureNs = 5000000L;
+        add(buffer, 0, shortExposure);
+        FakeFrame longExposure = frame(sharp);
+        longExposure.exposureNs = 60000000L;
+        add(buffer, 1, longExposure);
+        ZSLRingBuffer.Frame<FakeFrame, FakeFrame> taken =
+                buffer.takeBest(new FakeScorer(4 * FRAME_NS), 4 * FRAME_NS);
+        assertSame(shortExposure, taken.image);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays interleaved and out-of-order image/metadata timestamp streams
+ * through ZSLRingBuffer. Runs on a plain JVM; results go to stdout.
+ */
+@LargeTest
+public class ZSLRingBufferBenchmark extends TestCase {
+    private static final int FRAMES = 200000;
+    private static final int DEPTH = 5;
+    private static final long FRAME_DURATION_NS = 33333333L;
+
+    private static class FakeImage {
+        final long timestamp;
+        boolean released;
+
+        FakeImage(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final AtomicLong mReleased = new AtomicLong();
+
+    private final ZSLRingBuffer.Releaser<FakeImage> mReleaser =
+            new ZSLRingBuffer.Releaser<FakeImage>() {
+        @Override
+        public void release(FakeImage image) {
+            assertFalse("Image released twice", image.released);
+            image.released = true;
+            mReleased.incrementAndGet();
+        }
+    };
+
+    /* Shuffles neighbouring timestamps so the stream arrives out of order */
+    private static long[] jitter(long[] stream, int window, Random random) {
+        long[] out = Arrays.copyOf(stream, stream.length);
+        for (int i = 0; i + window < out.length; i += window) {
+            for (int j = window - 1; j > 0; j--) {
+                int k = random.nextInt(j + 1);
+                long t = out[i + j];
+                out[i + j] = out[i + k];
+                out[i + k] = t;
+            }
+        }
+        return out;
+    }
+
+    private static long[] timestamps() {
+        long[] ts = new long[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            ts[i] = 1000000000L + i * FRAME_DURATION_NS;
+        }
+        return ts;
+    }
+
+    /**
+     * Single threaded replay where metadata lags the images by a few frames.
+     * Nothing may be lost as long as the lag stays within the buffer depth.
+     */
+    public void testInterleavedReplay() {
+        ZSLRingBuffer<FakeImage, Long> buffer =
+                new ZSLRingBuffer<FakeImage, Long>(DEPTH, mReleaser);
+        Random random = new Random(1234);
+        long[] images = jitter(timestamps(), 2, random);
+        long[] metas = jitter(timestamps(), 2, random);
+        int lag = DEPTH - 3;
+        long addTime = 0;
+        for (int i = 0; i < FRAMES + lag; i++) {
+            long start = System.nanoTime();
+            if (i < FRAMES) {
+                buffer.addImage(images[i], new FakeImage(images[i]));
+            }
+            if (i >= lag) {
+                buffer.addMetadata(metas[i - lag], metas[i - lag]);
+            }
+            addTime += System.nanoTime() - start;
+        }
+        report("interleaved", buffer, addTime, FRAMES * 2);
+        assertEquals(0, buffer.getUnmatchedMetadataCount());
+        assertEquals(0, buffer.getUnmatchedImageCount());
+        assertEquals(FRAMES, buffer.getPairedCount());
+        buffer.close();
+        assertEquals(FRAMES, mReleased.get());
+    }
+
+    /* Metadata for every 10th frame never arrives; exactly those must be counted lost */
+    public void testDroppedMetadata() {
+        ZSLRingBuffer<FakeImage, Long> buffer =
+                new ZSLRingBuffer<FakeImage, Long>(DEPTH, mReleaser);
+        long[] ts = timestamps();
+        long addTime = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long start = System.nanoTime();
+            if (i % 10 != 0) {
+                buffer.addMetadata(ts[i], ts[i]);
+            }
+            buffer.addImage(ts[i], new FakeImage(ts[i]));
+            addTime += System.nanoTime() - start;
+        }
+        report("dropped-meta", buffer, addTime, FRAMES * 2);
+        long lost = buffer.getUnmatchedImageCount();
+        assertTrue("lost " + lost, lost >= FRAMES / 10 - 1 && lost <= FRAMES / 10);
+        buffer.close();
+    }
+
+    /* Takes interleaved with production must always return the newest paired frame */
+    public void testTakeLatest() {
+        ZSLRingBuffer<FakeImage, Long> buffer =
+                new ZSLRingBuffer<FakeImage, Long>(DEPTH, mReleaser);
+        long[] ts = timestamps();
+        long takeTime = 0;
+        int takes = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            buffer.addImage(ts[i], new FakeImage(ts[i]));
+            if (i > 0) {
+                buffer.addMetadata(ts[i - 1], ts[i - 1]);
+            }
+            if (i % 7 == 0 && i > 0) {
+                long start = System.nanoTime();
+                ZSLRingBuffer.Frame<FakeImage, Long> frame = buffer.takeLatest(null);
+                takeTime += System.nanoTime() - start;
+                takes++;
+                assertNotNull(frame);
+                assertEquals(ts[i - 1], frame.timestamp);
+                assertEquals(frame.timestamp, frame.image.timestamp);
+                assertEquals(frame.timestamp, frame.metadata.longValue());
+            }
+        }
+        System.out.println("ZSL take-latest: " + (takeTime / takes) + " ns/take");
+        buffer.close();
+        assertEquals(FRAMES - takes, mReleased.get());
+    }
+
+    /**
+     * Producers on their own threads, the way the image listener and the
+     * capture callback run, with a consumer taking frames concurrently.
+     */
+    public void testConcurrentProducers() throws Exception {
+        final ZSLRingBuffer<FakeImage, Long> buffer =
+                new ZSLRingBuffer<FakeImage, Long>(DEPTH, mReleaser);
+        final long[] images = jitter(timestamps(), 3, new Random(99));
+        final long[] metas = jitter(timestamps(), 3, new Random(77));
+        final long[] taken = new long[1];
+        final AtomicBoolean done = new AtomicBoolean();
+
+        final AtomicLong imageProgress = new AtomicLong();
+        final AtomicLong metaProgress = new AtomicLong();
+        // Asserting off the test thread would not fail the test, the first
+        // failure is kept and checked once the threads are joined.
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // Both streams come from the same sensor, so neither producer may run
+        // more than a couple of frames ahead of the other.
+        Thread imageThread = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < FRAMES && failure.get() == null; i++) {
+                        while (i - metaProgress.get() > 2 && failure.get() == null) {
+                            Thread.yield();
+                        }
+                        buffer.addImage(images[i], new FakeImage(images[i]));
+                        imageProgress.set(i + 1);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        Thread metaThread = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < FRAMES && failure.get() == null; i++) {
+                        while (i - imageProgress.get() > 2 && failure.get() == null) {
+                            Thread.yield();
+                        }
+                        buffer.addMetadata(metas[i], metas[i]);
+                        metaProgress.set(i + 1);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get() && failure.get() == null) {
+                        ZSLRingBuffer.Frame<FakeImage, Long> frame = buffer.takeLatest(null);
+                        if (frame != null) {
+                            if (frame.timestamp != frame.metadata.longValue()) {
+                                throw new AssertionError("frame " + frame.timestamp
+                                        + " matched with metadata " + frame.metadata);
+                            }
+                            taken[0]++;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        long start = System.nanoTime();
+        consumer.start();
+        imageThread.start();
+        metaThread.start();
+        imageThread.join();
+        metaThread.join();
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        consumer.join();
+        if (failure.get() != null) {
+            AssertionFailedError error = new AssertionFailedError(
+                    "worker thread failed: " + failure.get());
+            error.initCause(failure.get());
+            throw error;
+        }
+        report("concurrent", buffer, elapsed, FRAMES * 2);
+        System.out.println("ZSL concurrent: taken " + taken[0]);
+        assertEquals(taken[0], buffer.getTakenCount());
+        assertTrue("too many lost frames", buffer.getUnmatchedImageCount() < FRAMES / 100);
+        buffer.close();
+        assertEquals(FRAMES - taken[0], mReleased.get());
+    }
+
+    private static void report(String name, ZSLRingBuffer<?, ?> buffer, long ns, int ops) {
+        System.out.println("ZSL " + name + ": " + (ns / ops) + " ns/add"
+                + " paired=" + buffer.getPairedCount()
+                + " lostImages=" + buffer.getUnmatchedImageCount()
+                + " lostMeta=" + buffer.getUnmatchedMetadataCount());
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reads back MPO files written by MpoInterface and checks the embedded
+ * images and the index cache.
+ */
+@SmallTest
+public class MpoReaderTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("mporeader", ".jpg");
+        MpoIndexCache.getInstance().clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP0, APP1, DQT, SOF0, random scan data, EOI */
+    private static byte[] makeJpeg(int size, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, "JFIF\0".getBytes());
+        byte[] exif = new byte[200];
+        System.arraycopy("Exif\0\0".getBytes(), 0, exif, 0, 6);
+        writeSegment(out, 0xe1, exif);
+        writeSegment(out, 0xdb, new byte[65]);
+        writeSegment(out, 0xc0, new byte[15]);
+        byte[] scan = new byte[size - out.size() - 2];
+        random.nextBytes(scan);
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        int length = payload.length + 2;
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    private void writeMpo(ByteOrder order, byte[]... images) throws IOException {
+        MpoData mpo = new MpoData();
+        for (int i = 1; i < images.length; i++) {
+            mpo.addAuxiliaryMpoImage(new MpoImageData(images[i], order));
+        }
+        mpo.setPrimaryMpoImage(new MpoImageData(images[0], order));
+        assertTrue(MpoWriterTest.writeMpo(mpo, mFile) > 0);
+    }
+
+    /* The image as written to the container, without the MP Format segment */
+    private static byte[] stripMpf(byte[] jpeg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        out.write(jpeg, 0, 2);
+        int pos = 2;
+        while (pos < jpeg.length) {
+            int marker = ((jpeg[pos] & 0xff) << 8) | (jpeg[pos + 1] & 0xff);
+            int length = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            if (marker == 0xffe2) {
+                out.write(jpeg, pos + 2 + length, jpeg.length - pos - 2 - length);
+                break;
+            }
+            out.write(jpeg, pos, 2 + length);
+            pos += 2 + length;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private void checkImages(ByteOrder order) throws Exception {
+        Random random = new Random(order == ByteOrder.BIG_ENDIAN ? 1 : 2);
+        byte[][] images = {
+                makeJpeg(120000, random), makeJpeg(90000, random), makeJpeg(60000, random)
+        };
+        writeMpo(order, images);
+        MpoReader reader = MpoReader.open(mFile.getAbsolutePath());
+        try {
+            assertTrue(reader.isMpo());
+            assertEquals(images.length, reader.getImageCount());
+            long total = 0;
+            for (int i = 0; i < images.length; i++) {
+                assertEquals(total, reader.getIndex().getImageOffset(i));
+                byte[] mapped = toArray(reader.getImage(i));
+                assertTrue(Arrays.equals(images[i], stripMpf(mapped)));
+                InputStream in = reader.openImage(i);
+                assertTrue(Arrays.equals(mapped, readAll(in)));
+                assertEquals(-1, in.read());
+                total += mapped.length;
+            }
+            assertEquals(mFile.length(), total);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testBigEndianImages() throws Exception {
+        checkImages(ByteOrder.BIG_ENDIAN);
+    }
+
+    public void testLittleEndianImages() throws Exception {
+        checkImages(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void testPlainJpeg() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(makeJpeg(5000, new Random(3)));
+        out.close();
+        MpoReader reader = MpoReader.open(mFile.getAbsolutePath());
+        try {
+            assertFalse(reader.isMpo());
+            assertEquals(0, reader.getImageCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRejectsNonJpeg() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[64]);
+        out.close();
+        try {
+            MpoReader.open(mFile.getAbsolutePath()).close();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCacheHitsAndInvalidation() throws Exception {
+        Random random = new Random(4);
+        writeMpo(ByteOrder.BIG_ENDIAN, makeJpeg(30000, random), makeJpeg(20000, random));
+        MpoIndexCache cache = MpoIndexCache.getInstance();
+        int hits = cache.getHitCount();
+        int misses = cache.getMissCount();
+        MpoReader first = MpoReader.open(mFile.getAbsolutePath());
+        first.close();
+        MpoReader second = MpoReader.open(mFile.getAbsolutePath());
+        second.close();
+        assertSame(first.getIndex(), second.getIndex());
+        assertEquals(misses + 1, cache.getMissCount());
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // A rewrite with a new modification time is parsed again.
+        writeMpo(ByteOrder.BIG_ENDIAN, makeJpeg(30000, random), makeJpeg(25000, random),
+                makeJpeg(10000, random));
+        assertTrue(mFile.setLastModified(mFile.lastModified() + 2000));
+        MpoReader third = MpoReader.open(mFile.getAbsolutePath());
+        third.close();
+        assertNotSame(first.getIndex(), third.getIndex());
+        assertEquals(3, third.getImageCount());
+        assertEquals(misses + 2, cache.getMissCount());
+    }
+
+    public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+        Random random = new Random(5);
+        writeMpo(ByteOrder.BIG_ENDIAN, makeJpeg(10000, random), makeJpeg(10000, random));
+        byte[] mpo = readAll(new FileInputStream(mFile));
+        MpoIndexCache cache = new MpoIndexCache(2);
+        File[] files = new File[3];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = File.createTempFile("mporeader", ".jpg");
+                FileOutputStream out = new FileOutputStream(files[i]);
+                out.write(mpo);
+                out.close();
+                assertEquals(2, read(cache, files[i]).getImageCount());
+            }
+            assertEquals(2, cache.size());
+            read(cache, files[2]);
+            assertEquals(1, cache.getHitCount());
+            // The first file was evicted and is parsed again.
+            read(cache, files[0]);
+            assertEquals(4, cache.getMissCount());
+        } finally {
+            for (File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static MpoReader.Index read(MpoIndexCache cache, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return cache.get(file, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the two-pass MpoWriter produces the same file as the
+ * MpoOutputStream writer for the bayer + mono and ClearSight layouts.
+ */
+@SmallTest
+public class MpoWriterTest extends TestCase {
+    private static final byte[] CROP_INFO = "Qualcomm Dual Camera Attributes".getBytes();
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("mpowriter", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP0, APP1, optionally a crop info APP7, DQT, SOF0, random scan data, EOI */
+    private static byte[] makeJpeg(int size, boolean cropInfo, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, "JFIF\0".getBytes());
+        byte[] exif = new byte[200];
+        System.arraycopy("Exif\0\0".getBytes(), 0, exif, 0, 6);
+        writeSegment(out, 0xe1, exif);
+        if (cropInfo) {
+            byte[] payload = new byte[CROP_INFO.length + 64];
+            System.arraycopy(CROP_INFO, 0, payload, 0, CROP_INFO.length);
+            for (int i = CROP_INFO.length; i < payload.length; i++) {
+                payload[i] = (byte) (i + 1);
+            }
+            writeSegment(out, 0xe7, payload);
+        }
+        writeSegment(out, 0xdb, new byte[65]);
+        writeSegment(out, 0xc0, new byte[15]);
+        byte[] scan = new byte[size - out.size() - 2];
+        random.nextBytes(scan);
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        int length = payload.length + 2;
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    /* Same layouts as MediaSaveService.MpoSaveTask */
+    private static MpoData makeMpo(MpoImageData primary, MpoImageData... auxiliary) {
+        MpoData mpo = new MpoData();
+        for (MpoImageData image : auxiliary) {
+            mpo.addAuxiliaryMpoImage(image);
+        }
+        mpo.setPrimaryMpoImage(primary);
+        return mpo;
+    }
+
+    private static byte[] writeWithStream(MpoData mpo) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(MpoInterface.writeMpo(mpo, out) > 0);
+        return out.toByteArray();
+    }
+
+    /* Writes the buffers of the mpo to file, returns its size or -1 */
+    static long writeMpo(MpoData mpo, File file) throws IOException {
+        ByteBuffer[] buffers = MpoInterface.getMpoBuffers(mpo);
+        if (buffers == null) {
+            return -1;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            long size = 0;
+            for (ByteBuffer buffer : buffers) {
+                size += buffer.remaining();
+            }
+            long written = 0;
+            while (written < size) {
+                written += channel.write(buffers);
+            }
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] writeToFile(MpoData mpo) throws IOException {
+        long size = writeMpo(mpo, mFile);
+        byte[] bytes = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(bytes.length, size);
+        return bytes;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        for (int i = from; i + pattern.length <= data.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void testBayerMonoMatchesStream() throws Exception {
+        Random random = new Random(1);
+        byte[] bayer = makeJpeg(300000, true, random);
+        byte[] mono = makeJpeg(200000, true, random);
+        byte[] expected = writeWithStream(makeMpo(
+                new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(mono, ByteOrder.BIG_ENDIAN)));
+        byte[] actual = writeToFile(makeMpo(
+                new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(mono, ByteOrder.BIG_ENDIAN)));
+        assertTrue(Arrays.equals(expected, actual));
+        // With a bayer primary the crop info is kept in both images.
+        int first = indexOf(actual, CROP_INFO, 0);
+        assertTrue(first > 0);
+        assertTrue(indexOf(actual, CROP_INFO, first + 1) > 0);
+    }
+
+    public void testClearSightMatchesStream() throws Exception {
+        Random random = new Random(2);
+        byte[] cs = makeJpeg(400000, true, random);
+        byte[] bayer = makeJpeg(300000, true, random);
+        byte[] mono = makeJpeg(200000, false, random);
+        byte[] expected = writeWithStream(makeMpo(
+                new MpoImageData(cs, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(mono, ByteOrder.BIG_ENDIAN)));
+        byte[] actual = writeToFile(makeMpo(
+                new MpoImageData(cs, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(mono, ByteOrder.BIG_ENDIAN)));
+        assertTrue(Arrays.equals(expected, actual));
+        // The crop info of the primary is blanked, the bayer one stays.
+        int found = indexOf(actual, CROP_INFO, 0);
+        assertTrue(found > cs.length);
+        assertEquals(-1, indexOf(actual, CROP_INFO, found + 1));
+    }
+
+    public void testLittleEndianSlicesMatchStream() throws Exception {
+        Random random = new Random(3);
+        byte[] bayer = makeJpeg(100000, true, random);
+        byte[] mono = makeJpeg(80000, false, random);
+        byte[] both = new byte[bayer.length + mono.length + 64];
+        System.arraycopy(bayer, 0, both, 16, bayer.length);
+        System.arraycopy(mono, 0, both, 32 + bayer.length, mono.length);
+        byte[] expected = writeWithStream(makeMpo(
+                new MpoImageData(bayer, ByteOrder.LITTLE_ENDIAN),
+                new MpoImageData(mono, ByteOrder.LITTLE_ENDIAN)));
+        byte[] actual = writeToFile(makeMpo(
+                new MpoImageData(both, 16, bayer.length, ByteOrder.LITTLE_ENDIAN),
+                new MpoImageData(both, 32 + bayer.length, mono.length,
+                        ByteOrder.LITTLE_ENDIAN)));
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testEntriesPointAtImages() throws Exception {
+        Random random = new Random(4);
+        byte[] bayer = makeJpeg(50000, false, random);
+        byte[] mono = makeJpeg(40000, false, random);
+        MpoData mpo = makeMpo(new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                new MpoImageData(mono, ByteOrder.BIG_ENDIAN));
+        byte[] actual = writeToFile(mpo);
+        MpoTag entries = mpo.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
+                MpoIfdData.TYPE_MP_INDEX_IFD);
+        MpoTag.MpEntry aux = entries.getMpEntryValue().get(1);
+        // Offsets count from the TIFF header that follows "MPF\0".
+        int tiffStart = indexOf(actual, "MPF\0".getBytes(), 0) + 4;
+        int auxStart = tiffStart + aux.getImageOffset();
+        assertEquals((byte) 0xff, actual[auxStart]);
+        assertEquals((byte) 0xd8, actual[auxStart + 1]);
+        assertEquals(actual.length, auxStart + aux.getImageSize());
+    }
+
+    public void testRejectsNonJpeg() throws Exception {
+        MpoData mpo = makeMpo(new MpoImageData(new byte[64], ByteOrder.BIG_ENDIAN),
+                new MpoImageData(makeJpeg(1000, false, new Random(5)), ByteOrder.BIG_ENDIAN));
+        assertNull(MpoInterface.getMpoBuffers(mpo));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks CompletionRegistry semantics and compares how fast a waiter wakes
+ * up against the sleep-polling loops it replaced. Runs on a plain JVM.
+ */
+@SmallTest
+public class CompletionRegistryTest extends TestCase {
+    private static final int ROUNDS = 50;
+
+    public void testAwaitReturnsCompletedValue() {
+        CompletionRegistry<Integer, String> registry = new CompletionRegistry<Integer, String>();
+        registry.complete(3, "three");
+        assertTrue(registry.isDone(3));
+        assertEquals("three", registry.await(3, 0));
+        assertEquals("three", registry.get(3));
+        assertEquals(1, registry.getCompletedCount());
+    }
+
+    public void testAwaitTimesOut() {
+        CompletionRegistry<Integer, String> registry = new CompletionRegistry<Integer, String>();
+        long start = System.nanoTime();
+        assertNull(registry.await(1, 20));
+        assertTrue(System.nanoTime() - start >= 15000000L);
+        assertFalse(registry.isDone(1));
+    }
+
+    public void testCallbackRunsOnceOnCompletion() {
+        CompletionRegistry<Integer, String> registry = new CompletionRegistry<Integer, String>();
+        final int[] calls = new int[1];
+        final AtomicReference<String> value = new AtomicReference<String>();
+        CompletionRegistry.Callback<String> callback = new CompletionRegistry.Callback<String>() {
+            @Override
+            public void onComplete(String v) {
+                calls[0]++;
+                value.set(v);
+            }
+        };
+        registry.whenComplete(7, callback);
+        assertEquals(0, calls[0]);
+        registry.complete(7, "seven");
+        registry.complete(7, "again");
+        assertEquals(1, calls[0]);
+        assertEquals("seven", value.get());
+
+        // Already complete, runs right away.
+        registry.whenComplete(7, callback);
+        assertEquals(2, calls[0]);
+    }
+
+    public void testClearDropsEntries() {
+        CompletionRegistry<Integer, String> registry = new CompletionRegistry<Integer, String>();
+        registry.complete(0, "zero");
+        registry.clear();
+        assertFalse(registry.isDone(0));
+        assertEquals(0, registry.getCompletedCount());
+    }
+
+    public void testAwaitCount() throws Exception {
+        final CompletionRegistry<Integer, Boolean> registry =
+                new CompletionRegistry<Integer, Boolean>();
+        Thread[] savers = new Thread[5];
+        for (int i = 0; i < savers.length; i++) {
+            final int index = i;
+            savers[i] = new Thread() {
+                public void run() {
+                    registry.complete(index, Boolean.TRUE);
+                }
+            };
+            savers[i].start();
+        }
+        assertEquals(5, registry.awaitCount(5, 1000));
+        for (Thread saver : savers) {
+            saver.join();
+        }
+    }
+
+    /**
+     * Time from completion on one thread until the waiter on another thread
+     * runs, for the registry and for the 10ms sleep loop waitForMetaData used.
+     */
+    public void testWakeUpLatency() throws Exception {
+        long[] registry = new long[ROUNDS];
+        long[] polling = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            registry[i] = measureRegistry();
+            polling[i] = measurePolling();
+        }
+        Arrays.sort(registry);
+        Arrays.sort(polling);
+        long registryMedian = registry[ROUNDS / 2];
+        long pollingMedian = polling[ROUNDS / 2];
+        System.out.println("Wake-up median: registry " + registryMedian / 1000 + "us, "
+                + "sleep polling " + pollingMedian / 1000 + "us");
+        assertTrue("registry " + registryMedian + "ns", registryMedian < 1000000L);
+        assertTrue(registryMedian < pollingMedian);
+    }
+
+    private static long measureRegistry() throws Exception {
+        final CompletionRegistry<Integer, Long> registry = new CompletionRegistry<Integer, Long>();
+        final long[] wokeAt = new long[1];
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                waiting.countDown();
+                registry.await(0, 1000);
+                wokeAt[0] = System.nanoTime();
+            }
+        };
+        waiter.start();
+        waiting.await();
+        // Give the waiter a moment to actually block.
+        Thread.sleep(3);
+        long completedAt = System.nanoTime();
+        registry.complete(0, completedAt);
+        waiter.join();
+        return wokeAt[0] - completedAt;
+    }
+
+    private static long measurePolling() throws Exception {
+        final int[] size = new int[1];
+        final long[] wokeAt = new long[1];
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                waiting.countDown();
+                int timeout = 10;
+                while (timeout > 0) {
+                    synchronized (size) {
+                        if (size[0] > 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                    }
+                    timeout--;
+                }
+                wokeAt[0] = System.nanoTime();
+            }
+        };
+        waiter.start();
+        waiting.await();
+        Thread.sleep(3);
+        long completedAt = System.nanoTime();
+        synchronized (size) {
+            size[0] = 1;
+        }
+        waiter.join();
+        return wokeAt[0] - completedAt;
+    }
+}
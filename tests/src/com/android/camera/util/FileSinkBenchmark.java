@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares burst save throughput of a plain stream per file with FileSink
+ * at each sync setting, and checks no temp file survives a save. Runs
+ * against a local directory.
+ */
+@LargeTest
+public class FileSinkBenchmark extends TestCase {
+    private static final int IMAGE_COUNT = 24;
+    private static final int IMAGE_SIZE = 2 * 1024 * 1024;
+    private static final int WRITERS = 4;
+
+    private File mDir;
+    private byte[][] mImages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "filesink" + System.nanoTime());
+        assertTrue(mDir.mkdirs());
+        mImages = new byte[IMAGE_COUNT][];
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            mImages[i] = new byte[IMAGE_SIZE];
+            Arrays.fill(mImages[i], (byte) i);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private String path(String run, int i) {
+        return new File(mDir, run + i + ".jpg").getPath();
+    }
+
+    private void checkFiles(String run) throws IOException {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            File f = new File(path(run, i));
+            assertEquals(IMAGE_SIZE, f.length());
+            FileInputStream in = new FileInputStream(f);
+            try {
+                assertEquals(i, in.read());
+            } finally {
+                in.close();
+            }
+        }
+        for (String name : mDir.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    private long runStreams() throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            FileOutputStream out = new FileOutputStream(path("stream", i));
+            try {
+                out.write(mImages[i]);
+            } finally {
+                out.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /* Saves every image from the given number of writer threads */
+    private long runSink(final String run, final FileSink sink, final int writers)
+            throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[writers];
+        long start = System.nanoTime();
+        for (int t = 0; t < writers; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < IMAGE_COUNT) {
+                            if (sink.write(path(run, i), mImages[i]) != IMAGE_SIZE) {
+                                throw new AssertionError("Short write of image " + i);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sink.flush();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        long elapsed = System.nanoTime() - start;
+        FileSink.Stats stats = sink.getStats();
+        assertEquals(IMAGE_COUNT, stats.files);
+        System.out.println("FileSink " + run + ": " + stats);
+        return elapsed;
+    }
+
+    public void testThroughput() throws Exception {
+        long stream = runStreams();
+        long never = runSink("never", new FileSink(FileSink.SYNC_NEVER, 0), 1);
+        long each = runSink("each", new FileSink(1, 0), 1);
+        long eachParallel = runSink("eachParallel", new FileSink(1, 0), WRITERS);
+        long batch = runSink("batch", new FileSink(WRITERS, 500), WRITERS);
+        checkFiles("stream");
+        checkFiles("never");
+        checkFiles("each");
+        checkFiles("eachParallel");
+        checkFiles("batch");
+        double mb = IMAGE_COUNT * (double) IMAGE_SIZE / (1024 * 1024);
+        System.out.println(String.format(
+                "FileSinkBenchmark MB/s: stream %.0f, never %.0f, each %.0f, "
+                + "each x%d %.0f, batch x%d %.0f",
+                mb * 1e9 / stream, mb * 1e9 / never, mb * 1e9 / each,
+                WRITERS, mb * 1e9 / eachParallel, WRITERS, mb * 1e9 / batch));
+    }
+
+    public void testBatchForcedAfterDelay() throws Exception {
+        final FileSink sink = new FileSink(8, 200);
+        final File target = new File(path("delay", 0));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sink.write(target.getPath(), mImages[0]);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        writer.start();
+        // Not visible until its batch is forced
+        Thread.sleep(50);
+        assertFalse(target.exists());
+        writer.join(5000);
+        assertNull(failure.get());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(1, sink.getStats().forces);
+        assertEquals(IMAGE_SIZE, target.length());
+    }
+
+    public void testFullBatchCommitsWithoutDelay() throws Exception {
+        final FileSink sink = new FileSink(2, 60000);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sink.write(path("full", 0), mImages[0]);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        sink.write(path("full", 1), mImages[1]);
+        writer.join(5000);
+        assertNull(failure.get());
+        assertEquals(2, sink.getStats().forces);
+        assertEquals(IMAGE_SIZE, new File(path("full", 0)).length());
+        assertEquals(IMAGE_SIZE, new File(path("full", 1)).length());
+    }
+
+    public void testFailedWriteLeavesNothing() {
+        FileSink sink = new FileSink(1, 0);
+        String path = new File(new File(mDir, "missing"), "x.jpg").getPath();
+        try {
+            sink.write(path, new ByteBuffer[] { ByteBuffer.wrap(mImages[0]) });
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(new File(path).exists());
+        assertEquals(1, sink.getStats().failures);
+    }
+
+    public void testReplacesExistingFile() throws IOException {
+        FileSink sink = new FileSink(FileSink.SYNC_NEVER, 0);
+        String path = path("replace", 0);
+        sink.write(path, mImages[1]);
+        sink.write(path, new byte[10]);
+        assertEquals(10, new File(path).length());
+    }
+}
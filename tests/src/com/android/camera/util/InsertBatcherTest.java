@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks InsertBatcher against a fake store standing in for the
+ * MediaStore: batching by size and window, and callbacks in reservation
+ * order whatever order saves finish in.
+ */
+@SmallTest
+public class InsertBatcherTest extends TestCase {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static class FakeStore implements InsertBatcher.Store<String, String> {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        volatile boolean fail;
+
+        @Override
+        public synchronized List<String> insert(List<String> items) {
+            batchSizes.add(items.size());
+            if (fail) {
+                throw new IllegalStateException("provider died");
+            }
+            List<String> results = new ArrayList<String>();
+            for (String item : items) {
+                results.add(item.startsWith("bad") ? null : "content://" + item);
+            }
+            return results;
+        }
+    }
+
+    private static class Recorder implements InsertBatcher.Callback<String> {
+        final List<String> results = new ArrayList<String>();
+        final CountDownLatch done;
+
+        Recorder(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public synchronized void onInserted(String result) {
+            results.add(result);
+            done.countDown();
+        }
+
+        List<String> await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            synchronized (this) {
+                return new ArrayList<String>(results);
+            }
+        }
+    }
+
+    private FakeStore mStore;
+    private InsertBatcher<String, String> mBatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new FakeStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBatcher.shutdown();
+        super.tearDown();
+    }
+
+    public void testFullBatchInsertedTogether() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 4, 10000, DIRECT);
+        for (int batch = 0; batch < 2; batch++) {
+            Recorder recorder = new Recorder(4);
+            for (int i = 0; i < 4; i++) {
+                mBatcher.submit(mBatcher.reserve(), "img" + i, recorder);
+            }
+            assertEquals(4, recorder.await().size());
+        }
+        assertEquals("[4, 4]", mStore.batchSizes.toString());
+        InsertBatcher.Stats stats = mBatcher.getStats();
+        assertEquals(8, stats.items);
+        assertEquals(2, stats.batches);
+        assertEquals(4, stats.largestBatch);
+    }
+
+    public void testPartialBatchInsertedAfterWindow() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 8, 20, DIRECT);
+        Recorder recorder = new Recorder(3);
+        for (int i = 0; i < 3; i++) {
+            mBatcher.submit(mBatcher.reserve(), "img" + i, recorder);
+        }
+        assertEquals("[content://img0, content://img1, content://img2]",
+                recorder.await().toString());
+        assertEquals("[3]", mStore.batchSizes.toString());
+    }
+
+    public void testCallbacksInCaptureOrder() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 2, 20, DIRECT);
+        Recorder recorder = new Recorder(5);
+        long[] tickets = new long[5];
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = mBatcher.reserve();
+        }
+        // Saves finish out of order, one failed before writing anything
+        mBatcher.submit(tickets[3], "img3", recorder);
+        mBatcher.submit(tickets[1], "img1", recorder);
+        mBatcher.submit(tickets[4], "bad4", recorder);
+        mBatcher.submit(tickets[2], null, recorder);
+        Thread.sleep(50);
+        synchronized (recorder) {
+            assertTrue(recorder.results.isEmpty());
+        }
+        mBatcher.submit(tickets[0], "img0", recorder);
+        assertEquals("[content://img0, content://img1, null, content://img3, null]",
+                recorder.await().toString());
+    }
+
+    public void testFailedBatchReportsNull() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 2, 20, DIRECT);
+        mStore.fail = true;
+        Recorder recorder = new Recorder(2);
+        mBatcher.submit(mBatcher.reserve(), "img0", recorder);
+        mBatcher.submit(mBatcher.reserve(), "img1", recorder);
+        assertEquals("[null, null]", recorder.await().toString());
+    }
+
+    public void testConcurrentSaves() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 8, 5, DIRECT);
+        final int count = 200;
+        final Recorder recorder = new Recorder(count);
+        final long[] tickets = new long[count];
+        for (int i = 0; i < count; i++) {
+            tickets[i] = mBatcher.reserve();
+        }
+        Thread[] workers = new Thread[4];
+        for (int w = 0; w < workers.length; w++) {
+            final int first = w;
+            workers[w] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < count; i += 4) {
+                        mBatcher.submit(tickets[i], "img" + i, recorder);
+                    }
+                }
+            };
+            workers[w].start();
+        }
+        List<String> results = recorder.await();
+        for (int i = 0; i < count; i++) {
+            assertEquals("content://img" + i, results.get(i));
+        }
+        assertTrue(mBatcher.getStats().batches < count);
+    }
+
+    public void testSubmitAfterShutdownInsertsRightAway() throws Exception {
+        mBatcher = new InsertBatcher<String, String>(mStore, 4, 10000, DIRECT);
+        long first = mBatcher.reserve();
+        long second = mBatcher.reserve();
+        mBatcher.shutdown();
+        Recorder recorder = new Recorder(2);
+        mBatcher.submit(first, "img0", recorder);
+        mBatcher.submit(second, "img1", recorder);
+        // Inserted on this thread, so the results are already there
+        assertEquals(0, recorder.done.getCount());
+        assertEquals("[content://img0, content://img1]", recorder.await().toString());
+    }
+
+    public void testUnreservedTicketRejected() {
+        mBatcher = new InsertBatcher<String, String>(mStore, 2, 20, DIRECT);
+        try {
+            mBatcher.submit(0, "img0", null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks lane ordering, byte accounting and the watermark hysteresis of
+ * SaveEngine.
+ */
+@SmallTest
+public class SaveEngineTest extends TestCase {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private SaveEngine mEngine;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mEngine != null) {
+            mEngine.shutdown();
+            assertTrue(mEngine.awaitTermination(5000));
+        }
+        super.tearDown();
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    public void testCaptureLaneRunsBeforeBackground() throws Exception {
+        mEngine = new SaveEngine(1, 1000, 500, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(4);
+        // Occupy the only worker so the rest queue up
+        mEngine.submit(SaveEngine.LANE_CAPTURE, 0, await(gate));
+        while (mEngine.getMetrics().running == 0) {
+            Thread.sleep(1);
+        }
+        String[] names = {"raw1", "jpeg1", "raw2", "jpeg2"};
+        int[] lanes = {SaveEngine.LANE_BACKGROUND, SaveEngine.LANE_CAPTURE,
+                SaveEngine.LANE_BACKGROUND, SaveEngine.LANE_CAPTURE};
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            mEngine.submit(lanes[i], 1, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (order) {
+                        order.add(name);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        SaveEngine.Metrics metrics = mEngine.getMetrics();
+        assertEquals(2, metrics.queued[SaveEngine.LANE_CAPTURE]);
+        assertEquals(2, metrics.queued[SaveEngine.LANE_BACKGROUND]);
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[jpeg1, jpeg2, raw1, raw2]", order.toString());
+    }
+
+    public void testHysteresis() throws Exception {
+        mEngine = new SaveEngine(4, 100, 50, DIRECT);
+        final List<Boolean> events = new ArrayList<Boolean>();
+        mEngine.setQueueListener(new SaveEngine.QueueListener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                synchronized (events) {
+                    events.add(full);
+                }
+            }
+        });
+        CountDownLatch[] gates = new CountDownLatch[4];
+        for (int i = 0; i < gates.length; i++) {
+            gates[i] = new CountDownLatch(1);
+            mEngine.submit(SaveEngine.LANE_CAPTURE, 30, await(gates[i]));
+        }
+        assertTrue(mEngine.isFull());
+        assertEquals(120, mEngine.getBytesInFlight());
+
+        // Dropping below the high watermark is not enough to reopen
+        gates[0].countDown();
+        waitForBytes(90);
+        assertTrue(mEngine.isFull());
+        gates[1].countDown();
+        waitForBytes(60);
+        assertTrue(mEngine.isFull());
+        gates[2].countDown();
+        waitForBytes(30);
+        assertFalse(mEngine.isFull());
+        gates[3].countDown();
+        waitForBytes(0);
+
+        synchronized (events) {
+            assertEquals("[true, false]", events.toString());
+        }
+        SaveEngine.Metrics metrics = mEngine.getMetrics();
+        assertEquals(120, metrics.peakBytes);
+        assertEquals(1, metrics.fullTransitions);
+        assertEquals(4, metrics.completed[SaveEngine.LANE_CAPTURE]);
+        assertEquals(0, metrics.running);
+    }
+
+    public void testObserverRunsWithoutCallbackExecutor() throws Exception {
+        // Callbacks never get delivered, like a busy main thread.
+        mEngine = new SaveEngine(1, 100, 50, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+        final List<Boolean> events = new ArrayList<Boolean>();
+        final CountDownLatch reopened = new CountDownLatch(1);
+        mEngine.addQueueObserver(new SaveEngine.QueueListener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                synchronized (events) {
+                    events.add(full);
+                }
+                if (!full) {
+                    reopened.countDown();
+                }
+            }
+        });
+        CountDownLatch gate = new CountDownLatch(1);
+        mEngine.submit(SaveEngine.LANE_CAPTURE, 100, await(gate));
+        assertTrue(mEngine.isFull());
+        gate.countDown();
+        assertTrue(reopened.await(5, TimeUnit.SECONDS));
+        synchronized (events) {
+            assertEquals("[true, false]", events.toString());
+        }
+    }
+
+    public void testBytesReleasedWhenWorkThrows() throws Exception {
+        mEngine = new SaveEngine(1, 100, 50, DIRECT);
+        mEngine.submit(SaveEngine.LANE_BACKGROUND, 100, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("disk full");
+            }
+        });
+        waitForBytes(0);
+        assertFalse(mEngine.isFull());
+        assertEquals(1, mEngine.getMetrics().completed[SaveEngine.LANE_BACKGROUND]);
+    }
+
+    public void testRejectedWorkGivesBytesBack() throws Exception {
+        mEngine = new SaveEngine(1, 100, 50, DIRECT);
+        mEngine.shutdown();
+        try {
+            mEngine.submit(SaveEngine.LANE_CAPTURE, 100, new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(0, mEngine.getBytesInFlight());
+        assertFalse(mEngine.isFull());
+    }
+
+    public void testExecutorAdapter() throws Exception {
+        mEngine = new SaveEngine(2, 100, 50, DIRECT);
+        final CountDownLatch ran = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        mEngine.getExecutor(SaveEngine.LANE_CAPTURE, 40).execute(await(gate));
+        mEngine.getExecutor(SaveEngine.LANE_CAPTURE, 40).execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        waitForBytes(40);
+        gate.countDown();
+        waitForBytes(0);
+    }
+
+    private void waitForBytes(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mEngine.getBytesInFlight() != bytes) {
+            assertTrue("bytes in flight " + mEngine.getBytesInFlight(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
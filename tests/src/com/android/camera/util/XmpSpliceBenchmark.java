@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks XmpSplice against the section list writer XmpUtil used before, on
+ * a ClearSight sized JPEG with a GDepth map and a GImage bayer frame in
+ * extended XMP, and times both. Runs on a plain JVM; timings go to stdout.
+ */
+@LargeTest
+public class XmpSpliceBenchmark extends TestCase {
+    private static final int ROUNDS = 5;
+    private static final int CLEARSIGHT_SIZE = 4 * 1024 * 1024;
+    // Base64 of a VGA depth JPEG and of a 12MP bayer JPEG
+    private static final int DEPTH_BASE64_SIZE = 120 * 1024;
+    private static final int BAYER_BASE64_SIZE = 4 * 1024 * 1024;
+    private static final String GUID = "0123456789ABCDEF0123456789ABCDEF";
+    private static final String BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /* SOI, optionally Exif, APP0, optionally XMP, DQT, SOF0, SOS and filler scan data, EOI */
+    static byte[] makeJpeg(int size, boolean exif, byte[] xmp, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(0xff);
+        out.write(0xd8);
+        if (exif) {
+            byte[] payload = new byte[2000];
+            System.arraycopy("Exif\0\0".getBytes(), 0, payload, 0, 6);
+            writeSegment(out, 0xe1, payload);
+        }
+        writeSegment(out, 0xe0, "JFIF\0".getBytes());
+        if (xmp != null) {
+            writeSegment(out, 0xe1, xmp);
+        }
+        writeSegment(out, 0xdb, new byte[65]);
+        writeSegment(out, 0xc0, new byte[15]);
+        writeSegment(out, 0xda, new byte[10]);
+        byte[] scan = new byte[size - out.size() - 2];
+        random.nextBytes(scan);
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        int length = payload.length + 2;
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static byte[] makeStandardXmp() {
+        return ("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF xmlns:rdf="
+                + "\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"><rdf:Description"
+                + " xmlns:GDepth=\"http://ns.google.com/photos/1.0/depthmap/\""
+                + " xmlns:GImage=\"http://ns.google.com/photos/1.0/image/\""
+                + " xmlns:xmpNote=\"http://ns.adobe.com/xmp/note/\""
+                + " GDepth:Mime=\"image/jpeg\" GDepth:Near=\"0\" GDepth:Far=\"255\""
+                + " GDepth:Format=\"RangeInverse\" GImage:Mime=\"image/jpeg\""
+                + " xmpNote:HasExtendedXMP=\"" + GUID + "\"/></rdf:RDF></x:xmpmeta>")
+                .getBytes();
+    }
+
+    private static byte[] makeExtendedXmp(Random random) {
+        StringBuilder builder = new StringBuilder(DEPTH_BASE64_SIZE + BAYER_BASE64_SIZE + 512);
+        builder.append("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description")
+                .append(" GDepth:Data=\"");
+        appendBase64(builder, DEPTH_BASE64_SIZE, random);
+        builder.append("\" GImage:Data=\"");
+        appendBase64(builder, BAYER_BASE64_SIZE, random);
+        builder.append("\"/></rdf:RDF></x:xmpmeta>");
+        return builder.toString().getBytes();
+    }
+
+    private static void appendBase64(StringBuilder builder, int size, Random random) {
+        for (int i = 0; i < size; i++) {
+            builder.append(BASE64.charAt(random.nextInt(BASE64.length())));
+        }
+    }
+
+    private static byte[] xmpPayload(String text) {
+        return (XmpSplice.XMP_HEADER + text).getBytes();
+    }
+
+    // The section list writer XmpUtil used before XmpSplice, as the reference.
+
+    private static class Section {
+        int marker;
+        int length;
+        byte[] data;
+    }
+
+    private static List<Section> legacyParse(InputStream is) throws IOException {
+        if (is.read() != 0xff || is.read() != 0xd8) {
+            return null;
+        }
+        List<Section> sections = new ArrayList<Section>();
+        int c;
+        while ((c = is.read()) != -1) {
+            if (c != 0xff) {
+                return null;
+            }
+            while ((c = is.read()) == 0xff) {
+            }
+            Section section = new Section();
+            section.marker = c;
+            if (c == 0xda) {
+                section.length = -1;
+                section.data = new byte[is.available()];
+                is.read(section.data, 0, section.data.length);
+                sections.add(section);
+                return sections;
+            }
+            section.length = is.read() << 8 | is.read();
+            section.data = new byte[section.length - 2];
+            is.read(section.data, 0, section.length - 2);
+            sections.add(section);
+        }
+        return sections;
+    }
+
+    private static Section legacySection(byte[] data) {
+        Section section = new Section();
+        section.marker = 0xe1;
+        section.length = data.length + 2;
+        section.data = data;
+        return section;
+    }
+
+    private static byte[] legacyWrite(byte[] jpeg, byte[] standard, byte[] extended)
+            throws IOException {
+        List<Section> sections = legacyParse(new ByteArrayInputStream(jpeg));
+        List<Section> xmpSections = new ArrayList<Section>();
+        xmpSections.add(legacySection(xmpPayload(new String(standard))));
+        for (int offset = 0; offset < extended.length;
+                offset += XmpSplice.MAX_EXTENDED_XMP_BUFFER_SIZE) {
+            int length = Math.min(XmpSplice.MAX_EXTENDED_XMP_BUFFER_SIZE,
+                    extended.length - offset);
+            ByteBuffer data = ByteBuffer.allocate(XmpSplice.EXTENDED_XMP_HEADER_SIZE + length);
+            data.put(XmpSplice.EXTENDED_XMP_HEADER_SIGNATURE.getBytes());
+            data.put(GUID.getBytes());
+            data.putInt(extended.length);
+            data.putInt(offset);
+            data.put(extended, offset, length);
+            xmpSections.add(legacySection(data.array()));
+        }
+        int position = sections.get(0).marker == 0xe1 ? 1 : 0;
+        sections.addAll(position, xmpSections);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(0xff);
+        os.write(0xd8);
+        for (Section section : sections) {
+            os.write(0xff);
+            os.write(section.marker);
+            if (section.length > 0) {
+                os.write(section.length >> 8);
+                os.write(section.length & 0xff);
+            }
+            for (byte b : section.data) {
+                os.write(b);
+            }
+        }
+        return os.toByteArray();
+    }
+
+    public void testMatchesSectionWriterWithExif() throws Exception {
+        Random random = new Random(1);
+        byte[] jpeg = makeJpeg(200000, true, null, random);
+        byte[] standard = makeStandardXmp();
+        byte[] extended = makeExtendedXmp(random);
+        XmpSplice splice = new XmpSplice(jpeg, standard, extended, GUID, false);
+        byte[] expected = legacyWrite(jpeg, standard, extended);
+        assertEquals(expected.length, splice.size());
+        assertTrue(Arrays.equals(expected, splice.toByteArray()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        splice.writeTo(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    public void testMatchesSectionWriterWithoutExif() throws Exception {
+        Random random = new Random(2);
+        byte[] jpeg = makeJpeg(100000, false, null, random);
+        byte[] standard = makeStandardXmp();
+        byte[] extended = new byte[XmpSplice.MAX_EXTENDED_XMP_BUFFER_SIZE * 2];
+        Arrays.fill(extended, (byte) 'A');
+        XmpSplice splice = new XmpSplice(jpeg, standard, extended, GUID, false);
+        assertTrue(Arrays.equals(legacyWrite(jpeg, standard, extended), splice.toByteArray()));
+    }
+
+    public void testReplacesExistingXmp() throws Exception {
+        Random random = new Random(3);
+        byte[] old = xmpPayload("<old/>");
+        byte[] jpeg = makeJpeg(50000, true, old, random);
+        byte[] packet = "<new/>".getBytes();
+        // Same packet length, so the same filler fits the expected image.
+        byte[] expected = makeJpeg(50000, true, xmpPayload("<new/>"), new Random(3));
+        byte[] actual = new XmpSplice(jpeg, packet, null, null, true).toByteArray();
+        assertEquals(jpeg.length, actual.length);
+        assertTrue(Arrays.equals(expected, actual));
+        // Without replacing, the old segment stays and the new one follows the Exif.
+        byte[] inserted = new XmpSplice(jpeg, packet, null, null, false).toByteArray();
+        assertEquals(jpeg.length + 4 + xmpPayload("<new/>").length, inserted.length);
+    }
+
+    public void testRejectsBadInput() throws Exception {
+        byte[] jpeg = makeJpeg(10000, true, null, new Random(4));
+        try {
+            new XmpSplice(new byte[64], new byte[10], null, null, false);
+            fail("Expected an IOException for a non jpeg");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new XmpSplice(jpeg, new byte[XmpSplice.MAX_XMP_BUFFER_SIZE + 1], null, null, false);
+            fail("Expected an IOException for an oversized packet");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testBenchmark() throws Exception {
+        Random random = new Random(5);
+        byte[] jpeg = makeJpeg(CLEARSIGHT_SIZE, true, null, random);
+        byte[] standard = makeStandardXmp();
+        byte[] extended = makeExtendedXmp(random);
+        File file = File.createTempFile("xmpsplice", ".jpg");
+        try {
+            long legacy = Long.MAX_VALUE;
+            long array = Long.MAX_VALUE;
+            long channel = Long.MAX_VALUE;
+            byte[] expected = null;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                expected = legacyWrite(jpeg, standard, extended);
+                legacy = Math.min(legacy, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                byte[] actual = new XmpSplice(jpeg, standard, extended, GUID, false)
+                        .toByteArray();
+                array = Math.min(array, System.nanoTime() - start);
+                assertTrue(Arrays.equals(expected, actual));
+
+                start = System.nanoTime();
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    new XmpSplice(jpeg, standard, extended, GUID, false)
+                            .writeTo(out.getChannel());
+                } finally {
+                    out.close();
+                }
+                channel = Math.min(channel, System.nanoTime() - start);
+                assertEquals(expected.length, file.length());
+            }
+            assertTrue(Arrays.equals(expected, readFile(file)));
+            System.out.println("XmpSpliceBenchmark " + (jpeg.length + extended.length) / 1024
+                    + "KB: sections " + legacy / 1000000 + "ms, array "
+                    + array / 1000000 + "ms, channel " + channel / 1000000 + "ms");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
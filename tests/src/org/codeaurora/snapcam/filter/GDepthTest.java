@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.camera.util.ExtendedXmpPacket;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips depth maps through the GDepth encoding, the PNG and the
+ * base64 in the extended XMP packet, back to the original depth values.
+ */
+@SmallTest
+public class GDepthTest extends TestCase {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    /* A smooth ramp with some noise, between near and far */
+    private static GDepth.DepthMap makeDepthMap(int near, int far, Random random) {
+        GDepth.DepthMap depthMap = new GDepth.DepthMap(WIDTH, HEIGHT);
+        depthMap.rawDepth = new byte[WIDTH * HEIGHT];
+        depthMap.roi = new Rect(0, 0, WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int d = near + (far - near) * (x + y) / (WIDTH + HEIGHT - 2);
+                d += random.nextInt(5) - 2;
+                depthMap.rawDepth[y * WIDTH + x] = (byte) Math.max(near, Math.min(far, d));
+            }
+        }
+        depthMap.rawDepth[0] = (byte) near;
+        depthMap.rawDepth[WIDTH * HEIGHT - 1] = (byte) far;
+        return depthMap;
+    }
+
+    private static byte[] roundTrip(GDepth gDepth) {
+        GDepth decoded = new GDepth(gDepth.getNear(), gDepth.getFar(), gDepth.getDepthImage());
+        assertTrue(decoded.decode());
+        assertEquals(WIDTH, decoded.getDepthMap().width);
+        assertEquals(HEIGHT, decoded.getDepthMap().height);
+        return decoded.getDepthMap().rawDepth;
+    }
+
+    public void testNearAndFar() {
+        GDepth gDepth = GDepth.createGDepth(makeDepthMap(37, 211, new Random(1)));
+        assertNotNull(gDepth);
+        assertEquals(37, gDepth.getNear());
+        assertEquals(211, gDepth.getFar());
+        assertEquals("image/png", gDepth.getMime());
+    }
+
+    public void testRangeLinearValues() {
+        GDepth.DepthMap depthMap = makeDepthMap(50, 100, new Random(2));
+        GDepth gDepth = GDepth.createGDepth(depthMap);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int d = depthMap.rawDepth[i] & 0xff;
+            assertEquals(255 * (d - 50) / 50, depthMap.buffer[i] & 0xff);
+        }
+        assertNotNull(gDepth);
+    }
+
+    public void testDepthRoundTrips() {
+        GDepth.DepthMap depthMap = makeDepthMap(12, 240, new Random(3));
+        GDepth gDepth = GDepth.createGDepth(depthMap);
+        assertTrue(Arrays.equals(depthMap.rawDepth, roundTrip(gDepth)));
+    }
+
+    public void testEveryDepthRoundTrips() {
+        GDepth.DepthMap depthMap = new GDepth.DepthMap(WIDTH, HEIGHT);
+        depthMap.rawDepth = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < depthMap.rawDepth.length; i++) {
+            depthMap.rawDepth[i] = (byte) i;
+        }
+        GDepth gDepth = GDepth.createGDepth(depthMap);
+        assertEquals(0, gDepth.getNear());
+        assertEquals(255, gDepth.getFar());
+        assertTrue(Arrays.equals(depthMap.rawDepth, roundTrip(gDepth)));
+    }
+
+    public void testFlatDepthRoundTrips() {
+        GDepth.DepthMap depthMap = new GDepth.DepthMap(WIDTH, HEIGHT);
+        depthMap.rawDepth = new byte[WIDTH * HEIGHT];
+        Arrays.fill(depthMap.rawDepth, (byte) 77);
+        GDepth gDepth = GDepth.createGDepth(depthMap);
+        assertEquals(77, gDepth.getNear());
+        assertEquals(77, gDepth.getFar());
+        assertTrue(Arrays.equals(depthMap.rawDepth, roundTrip(gDepth)));
+    }
+
+    public void testReusesBuffer() {
+        GDepth.DepthMap depthMap = makeDepthMap(0, 255, new Random(4));
+        byte[] buffer = new byte[WIDTH * HEIGHT];
+        depthMap.buffer = buffer;
+        assertNotNull(GDepth.createGDepth(depthMap));
+        assertSame(buffer, depthMap.buffer);
+    }
+
+    public void testRejectsShortDepth() {
+        GDepth.DepthMap depthMap = new GDepth.DepthMap(WIDTH, HEIGHT);
+        depthMap.rawDepth = new byte[WIDTH];
+        assertNull(GDepth.createGDepth(depthMap));
+    }
+
+    public void testRoundTripsThroughExtendedXmp() {
+        GDepth.DepthMap depthMap = makeDepthMap(20, 180, new Random(5));
+        GDepth gDepth = GDepth.createGDepth(depthMap);
+        byte[] packet = new ExtendedXmpPacket()
+                .addBase64Property(GDepth.NAMESPACE_URL, GDepth.PREFIX, GDepth.PROPERTY_DATA,
+                        gDepth.getDepthImage())
+                .toByteArray();
+        String xmp = new String(packet);
+        String attribute = GDepth.PREFIX + ":" + GDepth.PROPERTY_DATA + "=\"";
+        int start = xmp.indexOf(attribute) + attribute.length();
+        String base64 = xmp.substring(start, xmp.indexOf('"', start));
+        assertEquals(gDepth.getData(), base64);
+
+        byte[] image = Base64.decode(base64, Base64.DEFAULT);
+        assertTrue(Arrays.equals(gDepth.getDepthImage(), image));
+        GDepth decoded = new GDepth(gDepth.getNear(), gDepth.getFar(), image);
+        assertTrue(decoded.decode());
+        assertTrue(Arrays.equals(depthMap.rawDepth, decoded.getDepthMap().rawDepth));
+    }
+}